@@ -0,0 +1,420 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import org.openhim.mediator.engine.MediatorConfig;
+
+/**
+ * A cheap check of request bodies before they are parsed, so that garbage, truncated bodies and the like are rejected
+ * without HAPI parsing them (and throwing an exception for them).
+ *
+ * The body is scanned once, checking that it is JSON or XML and well-formed, that it isn't larger than request-max-size
+ * characters or nested deeper than request-max-depth, and that it is a resource, i.e. a JSON object with a resourceType or
+ * an XML element named for a resource type. Bodies that pass may still be invalid FHIR, that's for the parser and
+ * validator to decide.
+ */
+public class BodyPrefilter {
+    public enum Problem {
+        UNSUPPORTED_MEDIA_TYPE(OperationOutcomes.Kind.UNSUPPORTED_MEDIA_TYPE, OperationOutcomes.Kind.UNSUPPORTED_MEDIA_TYPE.getDetails()),
+        TOO_LARGE(OperationOutcomes.Kind.TOO_LARGE, OperationOutcomes.Kind.TOO_LARGE.getDetails()),
+        TOO_DEEP(OperationOutcomes.Kind.BAD_REQUEST, "The request body is nested too deeply"),
+        MALFORMED(OperationOutcomes.Kind.BAD_REQUEST, "The request body is not well-formed"),
+        NOT_A_RESOURCE(OperationOutcomes.Kind.BAD_REQUEST, "The request body is not a FHIR resource");
+
+        final OperationOutcomes.Kind kind;
+        final String details;
+
+        Problem(OperationOutcomes.Kind kind, String details) {
+            this.kind = kind;
+            this.details = details;
+        }
+
+        public int getStatus() {
+            return kind.getStatus();
+        }
+
+        public String getDetails() {
+            return details;
+        }
+    }
+
+    private BodyPrefilter() {}
+
+
+    public static boolean isEnabled(MediatorConfig config) {
+        return DynamicConfig.getBoolean(config, "request-prefilter", false);
+    }
+
+    /**
+     * @return the problem with the body, or null if it passes
+     */
+    public static Problem check(MediatorConfig config, Contents contents) {
+        if (contents.content==null) {
+            return null;
+        }
+        boolean json = contents.contentType!=null && contents.contentType.contains("json");
+        if (!json && (contents.contentType==null || !contents.contentType.contains("xml"))) {
+            return Problem.UNSUPPORTED_MEDIA_TYPE;
+        }
+
+        long maxSize = DynamicConfig.getLong(config, "request-max-size", 0);
+        // chars rather than bytes, counting the bytes would mean encoding the body
+        if (maxSize > 0 && contents.content.length() > maxSize) {
+            return Problem.TOO_LARGE;
+        }
+
+        int maxDepth = DynamicConfig.getInt(config, "request-max-depth", 0);
+        return json ? checkJson(contents.content, maxDepth > 0 ? maxDepth : Integer.MAX_VALUE)
+                : checkXml(contents.content, maxDepth > 0 ? maxDepth : Integer.MAX_VALUE);
+    }
+
+    private enum JsonState { START, VALUE, VALUE_OR_CLOSE, KEY, KEY_OR_CLOSE, COLON, COMMA_OR_CLOSE, DONE }
+
+    private static boolean isWhitespace(char c) {
+        return c==' ' || c=='\n' || c=='\r' || c=='\t';
+    }
+
+    static Problem checkJson(String body, int maxDepth) {
+        // the open objects ('{') and arrays ('[')
+        char[] stack = new char[16];
+        int depth = 0;
+        boolean hasResourceType = false;
+        JsonState state = JsonState.START;
+
+        int len = body.length();
+        int i = body.startsWith("\uFEFF") ? 1 : 0;
+        for (; i<len; i++) {
+            char c = body.charAt(i);
+            if (isWhitespace(c)) {
+                continue;
+            }
+
+            switch (state) {
+                case START:
+                case VALUE:
+                case VALUE_OR_CLOSE:
+                    if (state==JsonState.VALUE_OR_CLOSE && c==']') {
+                        depth--;
+                        state = depth==0 ? JsonState.DONE : JsonState.COMMA_OR_CLOSE;
+                    } else if (c=='{' || c=='[') {
+                        if (state==JsonState.START && c!='{') {
+                            return Problem.NOT_A_RESOURCE;
+                        }
+                        if (depth >= maxDepth) {
+                            return Problem.TOO_DEEP;
+                        }
+                        if (depth==stack.length) {
+                            char[] grown = new char[stack.length * 2];
+                            System.arraycopy(stack, 0, grown, 0, depth);
+                            stack = grown;
+                        }
+                        stack[depth++] = c;
+                        state = c=='{' ? JsonState.KEY_OR_CLOSE : JsonState.VALUE_OR_CLOSE;
+                    } else if (state==JsonState.START) {
+                        return Problem.NOT_A_RESOURCE;
+                    } else if (c=='"') {
+                        i = scanString(body, i);
+                        if (i < 0) {
+                            return Problem.MALFORMED;
+                        }
+                        state = JsonState.COMMA_OR_CLOSE;
+                    } else {
+                        i = scanLiteral(body, i);
+                        if (i < 0) {
+                            return Problem.MALFORMED;
+                        }
+                        state = JsonState.COMMA_OR_CLOSE;
+                    }
+                    break;
+
+                case KEY:
+                case KEY_OR_CLOSE:
+                    if (state==JsonState.KEY_OR_CLOSE && c=='}') {
+                        depth--;
+                        state = depth==0 ? JsonState.DONE : JsonState.COMMA_OR_CLOSE;
+                    } else if (c=='"') {
+                        int end = scanString(body, i);
+                        if (end < 0) {
+                            return Problem.MALFORMED;
+                        }
+                        if (depth==1 && end - i - 1 == "resourceType".length() && body.startsWith("resourceType", i + 1)) {
+                            hasResourceType = true;
+                        }
+                        i = end;
+                        state = JsonState.COLON;
+                    } else {
+                        return Problem.MALFORMED;
+                    }
+                    break;
+
+                case COLON:
+                    if (c!=':') {
+                        return Problem.MALFORMED;
+                    }
+                    state = JsonState.VALUE;
+                    break;
+
+                case COMMA_OR_CLOSE:
+                    if (c==',') {
+                        state = stack[depth - 1]=='{' ? JsonState.KEY : JsonState.VALUE;
+                    } else if ((c=='}' && stack[depth - 1]=='{') || (c==']' && stack[depth - 1]=='[')) {
+                        depth--;
+                        state = depth==0 ? JsonState.DONE : JsonState.COMMA_OR_CLOSE;
+                    } else {
+                        return Problem.MALFORMED;
+                    }
+                    break;
+
+                case DONE:
+                    // trailing content
+                    return Problem.MALFORMED;
+            }
+        }
+
+        if (state!=JsonState.DONE) {
+            return state==JsonState.START ? Problem.NOT_A_RESOURCE : Problem.MALFORMED;
+        }
+        return hasResourceType ? null : Problem.NOT_A_RESOURCE;
+    }
+
+    /**
+     * @param start the index of the opening quote
+     * @return the index of the closing quote, or -1 if the string isn't valid
+     */
+    private static int scanString(String body, int start) {
+        int len = body.length();
+        for (int i=start + 1; i<len; i++) {
+            char c = body.charAt(i);
+            if (c=='"') {
+                return i;
+            } else if (c=='\\') {
+                if (++i >= len) {
+                    return -1;
+                }
+                char escaped = body.charAt(i);
+                if (escaped=='u') {
+                    if (i + 4 >= len) {
+                        return -1;
+                    }
+                    for (int h=1; h<=4; h++) {
+                        if (Character.digit(body.charAt(i + h), 16) < 0) {
+                            return -1;
+                        }
+                    }
+                    i += 4;
+                } else if ("\"\\/bfnrt".indexOf(escaped) < 0) {
+                    return -1;
+                }
+            } else if (c < 0x20) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the index of the last char of the number, true, false or null starting at start, or -1 if there isn't one
+     */
+    private static int scanLiteral(String body, int start) {
+        for (String literal : new String[] {"true", "false", "null"}) {
+            if (body.startsWith(literal, start)) {
+                return start + literal.length() - 1;
+            }
+        }
+
+        // -?(0|[1-9][0-9]*)(\.[0-9]+)?([eE][+-]?[0-9]+)?
+        int len = body.length();
+        int i = start;
+        if (i < len && body.charAt(i)=='-') {
+            i++;
+        }
+        if (i >= len || !isDigit(body.charAt(i))) {
+            return -1;
+        }
+        if (body.charAt(i)=='0') {
+            i++;
+        } else {
+            while (i < len && isDigit(body.charAt(i))) {
+                i++;
+            }
+        }
+        if (i < len && body.charAt(i)=='.') {
+            i++;
+            if (i >= len || !isDigit(body.charAt(i))) {
+                return -1;
+            }
+            while (i < len && isDigit(body.charAt(i))) {
+                i++;
+            }
+        }
+        if (i < len && (body.charAt(i)=='e' || body.charAt(i)=='E')) {
+            i++;
+            if (i < len && (body.charAt(i)=='+' || body.charAt(i)=='-')) {
+                i++;
+            }
+            if (i >= len || !isDigit(body.charAt(i))) {
+                return -1;
+            }
+            while (i < len && isDigit(body.charAt(i))) {
+                i++;
+            }
+        }
+        return i - 1;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+
+    static Problem checkXml(String body, int maxDepth) {
+        // the open elements, as the start and end of their names in the body
+        int[] names = new int[32];
+        int depth = 0;
+        boolean rootSeen = false;
+
+        int len = body.length();
+        int i = body.startsWith("\uFEFF") ? 1 : 0;
+        while (i < len) {
+            char c = body.charAt(i);
+            if (c!='<') {
+                if (depth==0 && !isWhitespace(c)) {
+                    // text outside of the root element
+                    return rootSeen ? Problem.MALFORMED : Problem.NOT_A_RESOURCE;
+                }
+                i++;
+                continue;
+            }
+
+            if (body.startsWith("<!--", i)) {
+                i = skipPast(body, i + 4, "-->");
+            } else if (body.startsWith("<?", i)) {
+                i = skipPast(body, i + 2, "?>");
+            } else if (body.startsWith("<![CDATA[", i)) {
+                if (depth==0) {
+                    return Problem.MALFORMED;
+                }
+                i = skipPast(body, i + 9, "]]>");
+            } else if (body.startsWith("<!", i)) {
+                // DOCTYPEs aren't allowed in FHIR, and entity declarations aren't something to let through
+                return Problem.MALFORMED;
+            } else if (body.startsWith("</", i)) {
+                int nameStart = i + 2;
+                int nameEnd = scanName(body, nameStart);
+                if (depth==0 || nameEnd==nameStart) {
+                    return Problem.MALFORMED;
+                }
+                int openStart = names[(depth - 1) * 2];
+                int openEnd = names[(depth - 1) * 2 + 1];
+                if (nameEnd - nameStart != openEnd - openStart || !body.regionMatches(nameStart, body, openStart, openEnd - openStart)) {
+                    return Problem.MALFORMED;
+                }
+                while (nameEnd < len && isWhitespace(body.charAt(nameEnd))) {
+                    nameEnd++;
+                }
+                if (nameEnd >= len || body.charAt(nameEnd)!='>') {
+                    return Problem.MALFORMED;
+                }
+                depth--;
+                i = nameEnd + 1;
+            } else {
+                int nameStart = i + 1;
+                int nameEnd = scanName(body, nameStart);
+                if (nameEnd==nameStart) {
+                    return Problem.MALFORMED;
+                }
+                if (depth==0) {
+                    if (rootSeen) {
+                        return Problem.MALFORMED;
+                    }
+                    rootSeen = true;
+                    // named for the resource type, e.g. Patient, or f:Patient with a namespace prefix
+                    int localStart = nameStart;
+                    int colon = body.indexOf(':', nameStart);
+                    if (colon >= 0 && colon < nameEnd) {
+                        localStart = colon + 1;
+                    }
+                    if (localStart==nameEnd || body.charAt(localStart) < 'A' || body.charAt(localStart) > 'Z') {
+                        return Problem.NOT_A_RESOURCE;
+                    }
+                }
+
+                int end = scanTagEnd(body, nameEnd);
+                if (end < 0) {
+                    return Problem.MALFORMED;
+                }
+                if (body.charAt(end - 1)!='/') {
+                    if (depth >= maxDepth) {
+                        return Problem.TOO_DEEP;
+                    }
+                    if (depth * 2 == names.length) {
+                        int[] grown = new int[names.length * 2];
+                        System.arraycopy(names, 0, grown, 0, names.length);
+                        names = grown;
+                    }
+                    names[depth * 2] = nameStart;
+                    names[depth * 2 + 1] = nameEnd;
+                    depth++;
+                }
+                i = end + 1;
+            }
+
+            if (i < 0) {
+                return Problem.MALFORMED;
+            }
+        }
+
+        if (!rootSeen) {
+            return Problem.NOT_A_RESOURCE;
+        }
+        return depth==0 ? null : Problem.MALFORMED;
+    }
+
+    /**
+     * @return the index after the terminator, or -1 if there isn't one
+     */
+    private static int skipPast(String body, int from, String terminator) {
+        int end = body.indexOf(terminator, from);
+        return end < 0 ? -1 : end + terminator.length();
+    }
+
+    /**
+     * @return the index after the element name starting at start
+     */
+    private static int scanName(String body, int start) {
+        int i = start;
+        while (i < body.length()) {
+            char c = body.charAt(i);
+            if (isWhitespace(c) || c=='>' || c=='/' || c=='<' || c=='=' || c=='"' || c=='\'') {
+                break;
+            }
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @return the index of the '>' that ends the tag, skipping over quoted attribute values, or -1 if it doesn't end
+     */
+    private static int scanTagEnd(String body, int from) {
+        int len = body.length();
+        for (int i=from; i<len; i++) {
+            char c = body.charAt(i);
+            if (c=='"' || c=='\'') {
+                i = body.indexOf(c, i + 1);
+                if (i < 0) {
+                    return -1;
+                }
+            } else if (c=='>') {
+                return i;
+            } else if (c=='<') {
+                return -1;
+            }
+        }
+        return -1;
+    }
+}
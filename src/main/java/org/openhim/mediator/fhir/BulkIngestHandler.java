@@ -0,0 +1,348 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSelection;
+import akka.actor.Props;
+import akka.actor.UntypedActor;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.util.OperationOutcomeUtil;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.http.HttpStatus;
+import org.hl7.fhir.instance.model.api.IBaseOperationOutcome;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.FinishRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Handles bulk ingest ([base]/$ingest), which creates each of the resources in an NDJSON body (one JSON resource per line)
+ * or in a Bundle.
+ *
+ * The body is consumed ingest-batch-size resources at a time. Each batch is parsed, validated and converted by its own
+ * {@link BulkIngestWorker} and sent upstream as a batch Bundle, with at most ingest-max-in-flight batches being processed
+ * at a time. Further resources are only read once a batch completes, so that a large body doesn't turn into a large
+ * number of parsed resources. The client receives an OperationOutcome reporting how many resources were created and the
+ * errors of those that weren't, by line (or entry) number.
+ *
+ * Bulk ingest is only available if ingest-enabled is set, otherwise the request is handled like any other. An ingest
+ * counts as one request towards the client's rate limit, for as long as it's in progress, and its batches go through
+ * the upstream circuit breaker.
+ */
+public class BulkIngestHandler extends UntypedActor {
+    /**
+     * A resource to ingest, either as a line of NDJSON or already parsed from a Bundle.
+     */
+    static class Item {
+        final int line;
+        final String json;
+        final IBaseResource resource;
+
+        Item(int line, String json, IBaseResource resource) {
+            this.line = line;
+            this.json = json;
+            this.resource = resource;
+        }
+    }
+
+    static class BatchIngested {
+        final int created;
+        // line -> error
+        final List<Pair<Integer, String>> errors;
+
+        BatchIngested(int created, List<Pair<Integer, String>> errors) {
+            this.created = created;
+            this.errors = errors;
+        }
+    }
+
+
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private final MediatorConfig config;
+
+    private MediatorHTTPRequest request;
+    private ActorRef respondTo;
+    private boolean admissionRequested;
+    private String openhimTrxID;
+    private TrafficCapture capture;
+    private FhirContext fhirContext;
+    private ResourceCodec codec;
+
+    private BufferedReader lines;
+    private Iterator<Bundle.Entry> entries;
+    private int lineNumber;
+    private boolean exhausted;
+
+    private String upstreamContentType;
+    private Map<String, String> upstreamHeaders;
+    private int inFlight;
+    private int created;
+    private int failed;
+    private final List<Pair<Integer, String>> errors = new ArrayList<>();
+
+
+    public BulkIngestHandler(MediatorConfig config) {
+        this.config = config;
+    }
+
+
+    public static boolean isIngestEnabled(MediatorConfig config) {
+        return DynamicConfig.getBoolean(config, "ingest-enabled", false);
+    }
+
+    private void delegate(MediatorHTTPRequest msg) {
+        ActorRef handler = getContext().actorOf(Props.create(FhirProxyHandler.class, config));
+        handler.tell(msg, getSelf());
+    }
+
+    private String getBasePath() {
+        return request.getPath().substring(0, request.getPath().lastIndexOf('/'));
+    }
+
+    private void loadFhirContext() {
+        ActorSelection actor = getContext().actorSelection(config.userPathFor("fhir-context"));
+        actor.tell(new FhirContextActor.FhirContextRequest(request.getRequestHandler(), getSelf()), getSelf());
+    }
+
+    /**
+     * Ask the rate limiter to admit the ingest, if clients are rate limited.
+     */
+    private void admitIngest() throws IOException {
+        if (RateLimitActor.isRateLimitingEnabled(config)) {
+            admissionRequested = true;
+            ActorSelection rateLimiter = getContext().actorSelection(config.userPathFor("rate-limiter"));
+            rateLimiter.tell(new RateLimitActor.Admit(CacheKeys.clientId(request.getHeaders())), getSelf());
+        } else {
+            startIngest();
+        }
+    }
+
+    private void releaseAdmission() {
+        if (admissionRequested) {
+            ActorSelection rateLimiter = getContext().actorSelection(config.userPathFor("rate-limiter"));
+            rateLimiter.tell(new RateLimitActor.Release(), getSelf());
+            admissionRequested = false;
+        }
+    }
+
+    private String determineUpstreamContentType(String contentType) {
+        String upstreamFormat = DynamicConfig.getString(config, "upstream-format", "JSON");
+        if ("XML".equalsIgnoreCase(upstreamFormat) || ("Client".equalsIgnoreCase(upstreamFormat) && !ResourceCodec.isJson(contentType))) {
+            return Constants.FHIR_MIME_XML;
+        }
+        return Constants.FHIR_MIME_JSON;
+    }
+
+    private void startIngest() throws IOException {
+        String contentType = request.getHeaders().get("Content-Type");
+        if (!"POST".equalsIgnoreCase(request.getMethod())) {
+            respondWithOutcome(HttpStatus.SC_METHOD_NOT_ALLOWED, "Bulk ingest requires a POST of NDJSON or a Bundle");
+            return;
+        }
+        if (contentType==null || request.getBody()==null) {
+            respondWithOutcome(HttpStatus.SC_BAD_REQUEST, "Bulk ingest requires a POST of NDJSON or a Bundle");
+            return;
+        }
+        if (fhirContext.getVersion().getVersion()!=FhirVersionEnum.DSTU2) {
+            // resources are created upstream with batch Bundles
+            respondWithOutcome(HttpStatus.SC_BAD_REQUEST, "Bulk ingest requires a DSTU2 FHIR context");
+            return;
+        }
+
+        if (contentType.contains("ndjson")) {
+            lines = new BufferedReader(new StringReader(request.getBody()));
+        } else {
+            try {
+                IBaseResource bundle = codec.parse(new Contents(contentType, request.getBody()));
+                if (!(bundle instanceof Bundle)) {
+                    respondWithOutcome(HttpStatus.SC_BAD_REQUEST, "Expected NDJSON or a Bundle");
+                    return;
+                }
+                entries = ((Bundle) bundle).getEntry().iterator();
+            } catch (DataFormatException ex) {
+                respondWithOutcome(HttpStatus.SC_BAD_REQUEST, ex.getMessage());
+                return;
+            }
+        }
+
+        upstreamContentType = determineUpstreamContentType(contentType);
+        // the client's headers, e.g. its credentials and the transaction id, as for any other upstream request
+        upstreamHeaders = FhirProxyHandler.copyHeaders(request.getHeaders());
+        upstreamHeaders.put("Accept", upstreamContentType);
+
+        log.info("[" + openhimTrxID + "] Starting bulk ingest into " + getBasePath());
+        ingestMore();
+    }
+
+    /**
+     * @return the next resource to ingest, or null if there are none left
+     */
+    private Item nextItem() throws IOException {
+        if (lines!=null) {
+            String line;
+            while ((line = lines.readLine())!=null) {
+                lineNumber++;
+                if (!line.trim().isEmpty()) {
+                    return new Item(lineNumber, line, null);
+                }
+            }
+        } else {
+            while (entries.hasNext()) {
+                lineNumber++;
+                Bundle.Entry entry = entries.next();
+                if (entry.getResource()!=null) {
+                    return new Item(lineNumber, null, entry.getResource());
+                }
+            }
+        }
+        exhausted = true;
+        return null;
+    }
+
+    private void ingestMore() throws IOException {
+        int batchSize = Math.max(1, DynamicConfig.getInt(config, "ingest-batch-size", 100));
+        int maxInFlight = Math.max(1, DynamicConfig.getInt(config, "ingest-max-in-flight", 4));
+
+        while (!exhausted && inFlight < maxInFlight) {
+            List<Item> batch = new ArrayList<>(batchSize);
+            Item item;
+            while (batch.size() < batchSize && (item = nextItem())!=null) {
+                batch.add(item);
+            }
+
+            if (!batch.isEmpty()) {
+                getContext().actorOf(Props.create(BulkIngestWorker.class, config, fhirContext, getBasePath(), upstreamContentType, upstreamHeaders, batch));
+                inFlight++;
+            }
+        }
+
+        if (exhausted && inFlight==0) {
+            respondWithReport();
+        }
+    }
+
+    private void processBatchIngested(BatchIngested msg) throws IOException {
+        inFlight--;
+        created += msg.created;
+        failed += msg.errors.size();
+
+        // only so many errors are reported, a body full of bad lines shouldn't result in an even larger response
+        int maxErrors = DynamicConfig.getInt(config, "ingest-max-errors", 1000);
+        for (Pair<Integer, String> error : msg.errors) {
+            if (errors.size() < maxErrors) {
+                errors.add(error);
+            }
+        }
+
+        log.info("[" + openhimTrxID + "] Bulk ingest progress: " + created + " created, " + failed + " failed, line " + lineNumber);
+        ingestMore();
+    }
+
+    private IBaseOperationOutcome newOutcome(String severity, String details) {
+        IBaseOperationOutcome outcome = OperationOutcomeUtil.newInstance(fhirContext);
+        OperationOutcomeUtil.addIssue(fhirContext, outcome, severity, details, null, null);
+        return outcome;
+    }
+
+    private String determineResponseContentType() {
+        String contentType = FhirProxyHandler.determineClientContentType(request);
+        return contentType.contains("ndjson") ? Constants.FHIR_MIME_JSON : contentType;
+    }
+
+    private void respond(FinishRequest fr) {
+        releaseAdmission();
+        respondTo.tell(fr, getSelf());
+        // the ingest and its report, the batches it was created upstream with aren't captured
+        capture.finish(fr.getResponseStatus());
+    }
+
+    private void respond(int status, IBaseOperationOutcome outcome) {
+        String contentType = determineResponseContentType();
+        String body = codec.newParser(contentType).setPrettyPrint(true).encodeResourceToString(outcome);
+        respond(new FinishRequest(body, contentType, status));
+    }
+
+    private void respondThrottled(RateLimitActor.Throttled msg) {
+        log.info("[" + openhimTrxID + "] Client is over its rate limit, responding with 429 Too Many Requests");
+        String contentType = determineResponseContentType();
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        headers.put("Content-Type", contentType);
+        headers.put("Retry-After", Long.toString(msg.getRetryAfterSeconds()));
+        OperationOutcomes.Kind kind = OperationOutcomes.Kind.OVERLOADED;
+        respond(new FinishRequest(OperationOutcomes.encode(fhirContext, kind, contentType), headers, kind.getStatus()));
+    }
+
+    private void respondWithOutcome(int status, String error) {
+        respond(status, newOutcome("error", error));
+    }
+
+    private void respondWithReport() {
+        String summary = created + " resources created, " + failed + " failed";
+        log.info("[" + openhimTrxID + "] Bulk ingest complete: " + summary);
+
+        IBaseOperationOutcome outcome = newOutcome("information", summary);
+        for (Pair<Integer, String> error : errors) {
+            OperationOutcomeUtil.addIssue(fhirContext, outcome, "error", error.getValue(), "Line " + error.getKey(), null);
+        }
+        if (failed > errors.size()) {
+            OperationOutcomeUtil.addIssue(fhirContext, outcome, "warning", (failed - errors.size()) + " further errors not reported", null, null);
+        }
+        respond(HttpStatus.SC_OK, outcome);
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof MediatorHTTPRequest && !isIngestEnabled(config)) { //bulk ingest is off, so it's an ordinary request
+            delegate((MediatorHTTPRequest) msg);
+
+        } else if (msg instanceof MediatorHTTPRequest) { //inbound request
+            request = (MediatorHTTPRequest) msg;
+            respondTo = request.getRespondTo();
+            openhimTrxID = request.getHeaders().get("X-OpenHIM-TransactionID");
+            capture = TrafficCapture.start(getContext(), config, request);
+            loadFhirContext();
+
+        } else if (msg instanceof FhirContextActor.FhirContextResponse) { //response from FHIR context handler
+            fhirContext = ((FhirContextActor.FhirContextResponse) msg).getResponseObject();
+            codec = new ResourceCodec(fhirContext);
+            admitIngest();
+
+        } else if (msg instanceof RateLimitActor.Admitted) { //the rate limiter let the ingest through
+            startIngest();
+
+        } else if (msg instanceof RateLimitActor.Throttled) { //the client is over its rate limit
+            respondThrottled((RateLimitActor.Throttled) msg);
+
+        } else if (msg instanceof BatchIngested) { //a worker has finished its batch
+            processBatchIngested((BatchIngested) msg);
+
+        } else {
+            unhandled(msg);
+        }
+    }
+
+    @Override
+    public void postStop() throws Exception {
+        releaseAdmission();
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.Props;
+import akka.actor.ReceiveTimeout;
+import akka.actor.UntypedActor;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.dstu2.resource.OperationOutcome;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.validation.FhirValidator;
+import ca.uhn.fhir.validation.ResultSeverityEnum;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import ca.uhn.fhir.validation.ValidationResult;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.Pair;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.AddOrchestrationToCoreResponse;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.MediatorHTTPResponse;
+import scala.concurrent.duration.Duration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses, validates and converts a batch of resources for a {@link BulkIngestHandler} and creates the valid ones
+ * upstream with a single batch request (see {@link CreateBatchSender}).
+ */
+public class BulkIngestWorker extends UntypedActor {
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private final MediatorConfig config;
+    private final FhirContext fhirContext;
+    private final ResourceCodec codec;
+    private final String basePath;
+    private final String upstreamContentType;
+    private final Map<String, String> upstreamHeaders;
+    private final List<BulkIngestHandler.Item> items;
+
+    // the lines of the creates sent upstream, in the order that their responses arrive
+    private final List<Integer> sentLines = new ArrayList<>();
+    private int responses;
+    private int created;
+    private final List<Pair<Integer, String>> errors = new ArrayList<>();
+
+
+    public BulkIngestWorker(MediatorConfig config, FhirContext fhirContext, String basePath, String upstreamContentType,
+                            Map<String, String> upstreamHeaders, List<BulkIngestHandler.Item> items) {
+        this.config = config;
+        this.fhirContext = fhirContext;
+        this.codec = new ResourceCodec(fhirContext);
+        this.basePath = basePath;
+        this.upstreamContentType = upstreamContentType;
+        this.upstreamHeaders = upstreamHeaders;
+        this.items = items;
+    }
+
+
+    @Override
+    public void preStart() throws Exception {
+        getContext().setReceiveTimeout(Duration.create(config.getRootTimeout()!=null ? config.getRootTimeout() : 60000, TimeUnit.MILLISECONDS));
+
+        List<CreateBatchActor.BatchCreate> creates = new ArrayList<>();
+        for (BulkIngestHandler.Item item : items) {
+            IBaseResource resource = parseAndValidate(item);
+            if (resource!=null) {
+                Contents contents = new Contents(upstreamContentType, codec.newParser(upstreamContentType).encodeResourceToString(resource));
+                String path = basePath + "/" + fhirContext.getResourceDefinition(resource).getName();
+                creates.add(new CreateBatchActor.BatchCreate(fhirContext, getSelf(), getSelf(), path, contents, upstreamHeaders));
+                sentLines.add(item.line);
+            }
+        }
+
+        if (creates.isEmpty()) {
+            finish();
+        } else {
+            getContext().actorOf(Props.create(CreateBatchSender.class, config, creates));
+        }
+    }
+
+    /**
+     * @return the resource, or null if it isn't valid
+     */
+    private IBaseResource parseAndValidate(BulkIngestHandler.Item item) {
+        try {
+            IBaseResource resource = item.resource!=null ? item.resource : codec.parse(new Contents(Constants.FHIR_MIME_JSON, item.json));
+
+            if (DynamicConfig.getBoolean(config, "validation-enabled", true)) {
+                FhirValidator validator = fhirContext.newValidator();
+                ValidationResult vr = validator.validateWithResult(resource);
+                if (!vr.isSuccessful()) {
+                    errors.add(new ImmutablePair<>(item.line, firstError(vr)));
+                    return null;
+                }
+            }
+            return resource;
+        } catch (DataFormatException ex) {
+            errors.add(new ImmutablePair<>(item.line, ex.getMessage()));
+            return null;
+        }
+    }
+
+    /**
+     * @return the first error of a failed validation, rather than any warnings reported before it
+     */
+    private static String firstError(ValidationResult vr) {
+        for (SingleValidationMessage message : vr.getMessages()) {
+            if (message.getSeverity()==ResultSeverityEnum.ERROR || message.getSeverity()==ResultSeverityEnum.FATAL) {
+                return message.getMessage();
+            }
+        }
+        return vr.getMessages().get(0).getMessage();
+    }
+
+    /**
+     * @return why upstream didn't create a resource, with the issues of its OperationOutcome if it responded with one
+     */
+    private String describeFailure(MediatorHTTPResponse response) {
+        StringBuilder error = new StringBuilder("Upstream responded with status " + response.getStatusCode());
+        String contentType = response.getHeaders()!=null ? response.getHeaders().get("Content-Type") : null;
+        if (contentType==null || response.getBody()==null || response.getBody().trim().isEmpty()) {
+            return error.toString();
+        }
+
+        try {
+            IBaseResource resource = codec.parse(new Contents(contentType, response.getBody()));
+            if (resource instanceof OperationOutcome) {
+                String separator = ": ";
+                for (OperationOutcome.Issue issue : ((OperationOutcome) resource).getIssue()) {
+                    String text = issue.getDiagnostics()!=null ? issue.getDiagnostics() : issue.getDetails().getText();
+                    if (text!=null) {
+                        error.append(separator).append(text);
+                        separator = "; ";
+                    }
+                }
+            }
+        } catch (DataFormatException ex) {
+            // not a FHIR resource, the status is all there is
+        }
+        return error.toString();
+    }
+
+    private void processResponse(int status, String error) {
+        int line = sentLines.get(responses++);
+        if (status >= 200 && status < 300) {
+            created++;
+        } else {
+            errors.add(new ImmutablePair<>(line, error));
+        }
+
+        if (responses==sentLines.size()) {
+            finish();
+        }
+    }
+
+    private void finish() {
+        getContext().parent().tell(new BulkIngestHandler.BatchIngested(created, errors), getSelf());
+        getContext().stop(getSelf());
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof MediatorHTTPResponse) {
+            MediatorHTTPResponse response = (MediatorHTTPResponse) msg;
+            int status = response.getStatusCode();
+            processResponse(status, status >= 200 && status < 300 ? null : describeFailure(response));
+        } else if (msg instanceof UpstreamCircuitBreakerActor.CircuitOpen) {
+            processResponse(0, "Upstream unavailable, try again in " + ((UpstreamCircuitBreakerActor.CircuitOpen) msg).getRetryAfterSeconds() + "s");
+        } else if (msg instanceof ExceptError) {
+            processResponse(0, "Upstream request failed: " + ((ExceptError) msg).getError().getMessage());
+        } else if (msg instanceof ReceiveTimeout) {
+            while (responses < sentLines.size()) {
+                errors.add(new ImmutablePair<>(sentLines.get(responses++), "Timed out waiting for upstream"));
+            }
+            finish();
+        } else if (msg instanceof AddOrchestrationToCoreResponse) {
+            // batches aren't recorded as orchestrations, their requests can be as large as the ingested body
+        } else {
+            unhandled(msg);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.ActorContext;
+import akka.actor.ActorSelection;
+import akka.actor.ActorSystem;
+import akka.actor.Address;
+import akka.cluster.Cluster;
+import akka.cluster.ClusterEvent;
+import akka.cluster.Member;
+import akka.cluster.MemberStatus;
+import akka.routing.ConsistentHash;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.openhim.mediator.engine.MediatorConfig;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Shares a cache actor's entries with the same actor on the other mediator instances, when the instances run as an
+ * Akka cluster (cluster.enabled in the mediator properties).
+ *
+ * Each key is owned by one member, picked by consistent hashing over the members that are up, so joining or leaving
+ * only moves a share of the keys. A cache actor keeps the entries that it owns, and asks the owner for the others
+ * (see {@link #ownerOf(String)}). Invalidations are broadcast to every member, so that copies anywhere are discarded.
+ * Members that have just joined or left may briefly disagree on the owners, which only costs a cache miss.
+ *
+ * The cache actors pass the cluster's membership events on to {@link #handle(Object)}.
+ */
+public class CacheCluster {
+    private static final int VIRTUAL_NODES_FACTOR = 10;
+
+    private final ActorContext context;
+    private final MediatorConfig config;
+    private final String cacheName;
+    private final Cluster cluster;
+    private final Set<Address> members = new HashSet<>();
+    private ConsistentHash<Address> owners;
+
+
+    /**
+     * @param cacheName the name that the cache actor is started with on every member, e.g. read-cache
+     */
+    public CacheCluster(ActorContext context, MediatorConfig config, String cacheName) {
+        this.context = context;
+        this.config = config;
+        this.cacheName = cacheName;
+        this.cluster = isClusterEnabled(context.system()) ? Cluster.get(context.system()) : null;
+    }
+
+
+    public static boolean isClusterEnabled(ActorSystem system) {
+        return system.settings().ProviderClass().equals("akka.cluster.ClusterActorRefProvider");
+    }
+
+    /**
+     * @return the actor system settings for the mediator properties: the cluster settings when cluster.enabled is set
+     * (cluster.host, cluster.port and the comma separated host:port list cluster.seed-nodes), else the defaults
+     */
+    public static Config actorSystemConfig(MediatorConfig config) {
+        if (!"true".equalsIgnoreCase(config.getProperty("cluster.enabled"))) {
+            return ConfigFactory.load();
+        }
+
+        String host = config.getProperty("cluster.host")!=null ? config.getProperty("cluster.host") : "localhost";
+        String port = config.getProperty("cluster.port")!=null ? config.getProperty("cluster.port") : "2552";
+        List<String> seedNodes = new ArrayList<>();
+        if (config.getProperty("cluster.seed-nodes")!=null) {
+            for (String seedNode : config.getProperty("cluster.seed-nodes").split(",")) {
+                if (!seedNode.trim().isEmpty()) {
+                    seedNodes.add("akka.tcp://mediator@" + seedNode.trim());
+                }
+            }
+        }
+
+        Map<String, Object> settings = new HashMap<>();
+        settings.put("akka.actor.provider", "akka.cluster.ClusterActorRefProvider");
+        settings.put("akka.remote.netty.tcp.hostname", host);
+        settings.put("akka.remote.netty.tcp.port", Integer.parseInt(port));
+        settings.put("akka.cluster.seed-nodes", seedNodes);
+        settings.put("akka.cluster.auto-down-unreachable-after", "30s");
+        settings.put("akka.cluster.metrics.enabled", "off");
+        return ConfigFactory.parseMap(settings).withFallback(ConfigFactory.load());
+    }
+
+    public void subscribe() {
+        if (cluster!=null) {
+            cluster.subscribe(context.self(), ClusterEvent.initialStateAsEvents(), ClusterEvent.MemberEvent.class);
+        }
+    }
+
+    public void unsubscribe() {
+        if (cluster!=null) {
+            cluster.unsubscribe(context.self());
+        }
+    }
+
+    /**
+     * @return true if the message was a membership event
+     */
+    public boolean handle(Object msg) {
+        if (msg instanceof ClusterEvent.MemberUp) {
+            members.add(((ClusterEvent.MemberUp) msg).member().address());
+            owners = null;
+            return true;
+        } else if (msg instanceof ClusterEvent.MemberRemoved) {
+            members.remove(((ClusterEvent.MemberRemoved) msg).member().address());
+            owners = null;
+            return true;
+        } else if (msg instanceof ClusterEvent.CurrentClusterState) {
+            members.clear();
+            for (Member member : ((ClusterEvent.CurrentClusterState) msg).getMembers()) {
+                if (member.status()==MemberStatus.up()) {
+                    members.add(member.address());
+                }
+            }
+            owners = null;
+            return true;
+        }
+        return msg instanceof ClusterEvent.MemberEvent;
+    }
+
+    /**
+     * @return the member that owns the key, or null if it's this member's own (including when not in a cluster)
+     */
+    public Address ownerOf(String key) {
+        if (cluster==null || members.isEmpty()) {
+            return null;
+        }
+        if (owners==null) {
+            owners = ConsistentHash.create(members, VIRTUAL_NODES_FACTOR);
+        }
+
+        Address owner = owners.nodeFor(key);
+        return owner.equals(cluster.selfAddress()) ? null : owner;
+    }
+
+    /**
+     * @return the cache actor on a member
+     */
+    public ActorSelection cacheOn(Address member) {
+        return context.actorSelection(member.toString() + config.userPathFor(cacheName));
+    }
+
+    /**
+     * Tell the cache actors on all the other members.
+     */
+    public void broadcast(Object msg) {
+        if (cluster==null) {
+            return;
+        }
+        for (Address member : members) {
+            if (!member.equals(cluster.selfAddress())) {
+                cacheOn(member).tell(msg, context.self());
+            }
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Keys for the mediator's caches.
+ */
+public class CacheKeys {
+    private static final Pattern RESOURCE_PATH = Pattern.compile("^(.*?/[A-Z][A-Za-z]+/[^/_$][^/]*)(/.*)?$");
+    private static final Pattern RESOURCE_TYPE_PATH = Pattern.compile("^.*/[A-Z][A-Za-z]+/?$");
+    private static final Pattern RESOURCE_TYPE = Pattern.compile("/([A-Z][A-Za-z]+)(/|$)");
+    private static final Pattern WHITESPACE_BETWEEN_TAGS = Pattern.compile(">\\s+<");
+
+    private CacheKeys() {}
+
+    /**
+     * Builds a key for a request. Params are sorted, and _format is ignored as it is handled by the format part of the key.
+     *
+     * @param format see {@link ResourceCodec#formatOf(String)}
+     */
+    public static String requestKey(String format, String path, List<Pair<String, String>> params) {
+        List<String> sorted = new ArrayList<>();
+        if (params!=null) {
+            for (Pair<String, String> param : params) {
+                if ("_format".equalsIgnoreCase(param.getKey())) {
+                    continue;
+                }
+                sorted.add(param.getKey() + "=" + param.getValue());
+            }
+        }
+        Collections.sort(sorted);
+
+        StringBuilder key = new StringBuilder(format).append('|').append(path);
+        char separator = '?';
+        for (String param : sorted) {
+            key.append(separator).append(param);
+            separator = '&';
+        }
+        return key.toString();
+    }
+
+    /**
+     * Builds a key for a client's request, for responses that were fetched with the client's credentials and so must
+     * only be shared with the same client.
+     *
+     * @param clientId see {@link #clientId(Map)}, null for clients without an identity
+     */
+    public static String clientRequestKey(String clientId, String format, String path, List<Pair<String, String>> params) {
+        return (clientId!=null ? clientId : "") + '|' + requestKey(format, path, params);
+    }
+
+    /**
+     * @return the OpenHIM client id, or else a hash of the client's credentials (if any)
+     */
+    public static String clientId(Map<String, String> headers) {
+        String clientId = headers.get("X-OpenHIM-ClientID");
+        if (clientId==null && headers.get("Authorization")!=null) {
+            clientId = DigestUtils.sha256Hex(headers.get("Authorization"));
+        }
+        return clientId;
+    }
+
+    /**
+     * @return the path of the resource instance that a request path refers to, e.g. /fhir/Patient/1 for
+     * /fhir/Patient/1/_history/2, or null if the path does not refer to a resource instance
+     */
+    public static String resourcePath(String path) {
+        if (path==null) {
+            return null;
+        }
+        Matcher m = RESOURCE_PATH.matcher(path);
+        return m.matches() ? m.group(1) : null;
+    }
+
+    /**
+     * @return true if the path refers to a resource type, e.g. /fhir/Patient
+     */
+    public static boolean isResourceTypePath(String path) {
+        return path!=null && RESOURCE_TYPE_PATH.matcher(path).matches();
+    }
+
+    /**
+     * @return the resource type that a request path refers to, e.g. Patient for /fhir/Patient/1, or null if it doesn't
+     * refer to one (e.g. a transaction)
+     */
+    public static String resourceType(String path) {
+        if (path==null) {
+            return null;
+        }
+        Matcher m = RESOURCE_TYPE.matcher(path);
+        return m.find() ? m.group(1) : null;
+    }
+
+    /**
+     * Builds a key for a client's write, for recognising retries of it.
+     *
+     * @param clientId identifies the client, so that different clients never share a key
+     * @param requestKey see {@link #requestKey(String, String, List)}
+     * @param identity the client's idempotency key or the {@link #canonicalBody(Contents) canonical body}
+     */
+    public static String writeKey(String clientId, String requestKey, String identity) {
+        // hashed, as the client id may be a credential and the body may be large
+        return DigestUtils.sha256Hex((clientId!=null ? clientId : "") + '|' + requestKey + '|' + identity);
+    }
+
+    /**
+     * @return a hash of the {@link #canonicalBody(Contents) canonical body}, to tell whether two writes have the same body
+     */
+    public static String fingerprint(Contents contents) {
+        return DigestUtils.sha256Hex(canonicalBody(contents));
+    }
+
+    /**
+     * @return the body without insignificant whitespace, so that a retry that was serialized differently has the same key
+     */
+    public static String canonicalBody(Contents contents) {
+        String body = contents.content!=null ? contents.content.trim() : "";
+        if (contents.contentType!=null && ResourceCodec.isJson(contents.contentType)) {
+            try {
+                return new JsonParser().parse(body).toString();
+            } catch (JsonParseException ex) {
+                // invalid content is rejected later on, it only needs to match its own retries
+                return body;
+            }
+        }
+        return WHITESPACE_BETWEEN_TAGS.matcher(body).replaceAll("><");
+    }
+
+    /**
+     * Builds a key for the outcome of validating a request body. Only identical bodies share a key, a body that merely
+     * looks the same (e.g. with a duplicated element) must be validated for itself.
+     *
+     * @param fhirVersion the version of the FHIR context that validates the body
+     * @param responseFormat the format of the OperationOutcome for a body that fails, see {@link ResourceCodec#formatOf(String)}
+     */
+    public static String validationKey(String fhirVersion, Contents contents, String responseFormat) {
+        return hash(fhirVersion + '|' + contents.contentType + '|' + responseFormat + '|', contents.content);
+    }
+
+    /**
+     * Builds a key for an upstream response body converted to the client's format.
+     *
+     * @param projection the projection applied while converting, or null if none
+     */
+    public static String conversionKey(String fhirVersion, Contents contents, String targetContentType, ResponseProjection projection) {
+        String projectionKey = projection!=null ? projection.getKey() : "";
+        return hash(fhirVersion + '|' + contents.contentType + '|' + targetContentType + '|' + projectionKey + '|', contents.content);
+    }
+
+    private static String hash(String prefix, String body) {
+        // the body is hashed directly rather than concatenated with the rest of the key, it may be large
+        MessageDigest digest = DigestUtils.getSha256Digest();
+        digest.update(prefix.getBytes(StandardCharsets.UTF_8));
+        digest.update(body.getBytes(StandardCharsets.UTF_8));
+        return Hex.encodeHexString(digest.digest());
+    }
+}
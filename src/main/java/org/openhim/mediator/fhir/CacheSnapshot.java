@@ -0,0 +1,424 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.ActorContext;
+import akka.actor.ActorSelection;
+import akka.actor.ActorSystem;
+import akka.event.LoggingAdapter;
+import akka.pattern.Patterns;
+import akka.util.Timeout;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.openhim.mediator.engine.MediatorConfig;
+import scala.concurrent.Await;
+import scala.concurrent.Future;
+import scala.concurrent.duration.Duration;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persists a cache actor's entries to a local snapshot file, so that the cache is warm again after a restart, see
+ * cache-snapshot-directory.
+ *
+ * The snapshot is written periodically (every cache-snapshot-interval seconds, if the cache changed) and on shutdown
+ * ({@link #writeSnapshots(ActorSystem, MediatorConfig)}), to a new file that then replaces the previous one. On startup
+ * the file is memory mapped the first time the cache misses, and entries are only decoded when they're looked up
+ * ({@link #take(String)}), so a large snapshot costs neither startup time nor heap for entries that aren't used again.
+ * Entries that weren't looked up are carried over to the next snapshot, until they expire or the snapshot reaches the
+ * cache's size.
+ *
+ * Each snapshot records the version of what its entries depend on (e.g. the FHIR context and the upstream server), a
+ * snapshot with a different version is discarded. Entries can be grouped, e.g. by resource, to discard them together.
+ */
+public class CacheSnapshot {
+    private static final byte[] MAGIC = "FHIRSNAP".getBytes(StandardCharsets.US_ASCII);
+    private static final int FORMAT = 1;
+    private static final int END = -2;
+
+    /**
+     * Ask a cache actor to write its snapshot if its entries changed. It responds with {@link SnapshotWritten}, unless
+     * it's the periodic write, after which it schedules the next one.
+     */
+    public static class WriteSnapshot {
+        final boolean periodic;
+
+        public WriteSnapshot(boolean periodic) {
+            this.periodic = periodic;
+        }
+    }
+
+    public static class SnapshotWritten {
+    }
+
+    /**
+     * Writes a new snapshot, see {@link #startWriting(String)}.
+     */
+    public class Writer {
+        private final File file;
+        private final DataOutputStream out;
+        private final int maxEntries;
+        private final long maxBytes;
+        private final Set<String> added = new HashSet<>();
+        private int count;
+        private long bytes;
+
+        private Writer(File file, String version, int maxEntries, long maxBytes) throws IOException {
+            this.file = file;
+            this.maxEntries = maxEntries;
+            this.maxBytes = maxBytes;
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+            out.write(MAGIC);
+            out.writeInt(FORMAT);
+            writeBytes(out, version.getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * @param expiresAt when the entry should no longer be loaded, or 0 if it doesn't expire
+         */
+        public void add(String group, String key, byte[] value, long expiresAt) throws IOException {
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            writeBytes(out, group!=null ? group.getBytes(StandardCharsets.UTF_8) : null);
+            writeBytes(out, keyBytes);
+            out.writeLong(expiresAt);
+            writeBytes(out, value);
+            added.add(key);
+            count++;
+            bytes += keyBytes.length + value.length;
+        }
+    }
+
+    private static class Position {
+        final String group;
+        final long expiresAt;
+        final int offset;
+        final int length;
+
+        Position(String group, long expiresAt, int offset, int length) {
+            this.group = group;
+            this.expiresAt = expiresAt;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        boolean isExpired(long now) {
+            return expiresAt > 0 && expiresAt < now;
+        }
+    }
+
+
+    private final LoggingAdapter log;
+    private final File file;
+    private String version;
+
+    private MappedByteBuffer buffer;
+    // key -> where its value is in the mapped file, for the entries that haven't been taken or discarded yet
+    private Map<String, Position> index;
+    private Map<String, Set<String>> groups;
+
+
+    /**
+     * @param version what the entries depend on, snapshots of other versions are discarded
+     */
+    public CacheSnapshot(MediatorConfig config, LoggingAdapter log, String cacheName, String version) {
+        this.log = log;
+        this.file = isSnapshotEnabled(config) ? new File(getDirectory(config), cacheName + ".snapshot") : null;
+        this.version = version;
+    }
+
+
+    public static boolean isSnapshotEnabled(MediatorConfig config) {
+        return !getDirectory(config).isEmpty();
+    }
+
+    private static String getDirectory(MediatorConfig config) {
+        return DynamicConfig.getString(config, "cache-snapshot-directory", "");
+    }
+
+    /**
+     * Schedule the next periodic {@link WriteSnapshot}. When periodic snapshots are off, check again in a minute in case
+     * they're turned on.
+     */
+    public static void scheduleWrite(ActorContext context, MediatorConfig config) {
+        long interval = DynamicConfig.getLong(config, "cache-snapshot-interval", 300);
+        context.system().scheduler().scheduleOnce(
+                Duration.create(interval > 0 ? interval : 60, TimeUnit.SECONDS),
+                context.self(), new WriteSnapshot(true), context.dispatcher(), null
+        );
+    }
+
+    /**
+     * Respond to a {@link WriteSnapshot} once it's written, or schedule the next periodic write.
+     */
+    public static void completeWrite(ActorContext context, MediatorConfig config, WriteSnapshot msg) {
+        if (msg.periodic) {
+            scheduleWrite(context, config);
+        } else {
+            context.sender().tell(new SnapshotWritten(), context.self());
+        }
+    }
+
+    /**
+     * Ask the caches to write their snapshots and wait for them, e.g. when shutting down.
+     */
+    public static void writeSnapshots(ActorSystem system, MediatorConfig config) {
+        if (!isSnapshotEnabled(config)) {
+            return;
+        }
+
+        Timeout timeout = new Timeout(Duration.create(30, TimeUnit.SECONDS));
+        List<Future<Object>> written = new ArrayList<>();
+        for (String cache : Arrays.asList("read-cache", "conversion-cache", "validation-cache")) {
+            ActorSelection actor = system.actorSelection(config.userPathFor(cache));
+            written.add(Patterns.ask(actor, new WriteSnapshot(false), timeout));
+        }
+        for (Future<Object> future : written) {
+            try {
+                Await.result(future, timeout.duration());
+            } catch (Exception ex) {
+                system.log().warning("Could not write a cache snapshot: " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Map the snapshot, if it hasn't been yet.
+     *
+     * @return true if it has entries
+     */
+    private boolean open() {
+        if (index==null) {
+            index = new HashMap<>();
+            groups = new HashMap<>();
+            if (file!=null && file.isFile()) {
+                map();
+            }
+        }
+        return !index.isEmpty();
+    }
+
+    private void map() {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            if (raf.length() > Integer.MAX_VALUE) {
+                throw new IOException("the snapshot is too large to map");
+            }
+            // the mapping stays valid after the file is closed (and when it's replaced)
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+
+            byte[] magic = new byte[MAGIC.length];
+            buffer.get(magic);
+            if (!Arrays.equals(magic, MAGIC) || buffer.getInt()!=FORMAT) {
+                throw new IOException("not a cache snapshot");
+            }
+            String snapshotVersion = readString(buffer, buffer.getInt());
+            if (!version.equals(snapshotVersion)) {
+                log.info("Discarding the cache snapshot " + file + ", it was written for a different configuration");
+                discardFile();
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+            int length;
+            while ((length = buffer.getInt())!=END) {
+                String group = length >= 0 ? readString(buffer, length) : null;
+                String key = readString(buffer, buffer.getInt());
+                long expiresAt = buffer.getLong();
+                int valueLength = buffer.getInt();
+                Position position = new Position(group, expiresAt, buffer.position(), valueLength);
+                buffer.position(buffer.position() + valueLength);
+                if (position.isExpired(now)) {
+                    continue;
+                }
+                index.put(key, position);
+                if (group!=null) {
+                    addToGroup(group, key);
+                }
+            }
+            log.info("Mapped the cache snapshot " + file + " with " + index.size() + " entries");
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException ex) {
+            log.warning("Discarding the cache snapshot " + file + ": " + ex);
+            discardFile();
+        } finally {
+            IOUtils.closeQuietly(raf);
+        }
+    }
+
+    private void addToGroup(String group, String key) {
+        Set<String> keys = groups.get(group);
+        if (keys==null) {
+            keys = new HashSet<>();
+            groups.put(group, keys);
+        }
+        keys.add(key);
+    }
+
+    private void discardFile() {
+        buffer = null;
+        index = new HashMap<>();
+        groups = new HashMap<>();
+        FileUtils.deleteQuietly(file);
+    }
+
+    /**
+     * Remove an entry from the snapshot, to be kept in the cache instead.
+     *
+     * @return the entry's value, or null if it isn't in the snapshot
+     */
+    public byte[] take(String key) {
+        if (!open()) {
+            return null;
+        }
+
+        Position position = index.remove(key);
+        if (position==null) {
+            return null;
+        }
+        if (position.group!=null) {
+            groups.get(position.group).remove(key);
+        }
+        return position.isExpired(System.currentTimeMillis()) ? null : read(position);
+    }
+
+    private byte[] read(Position position) {
+        byte[] value = new byte[position.length];
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(position.offset);
+        slice.get(value);
+        return value;
+    }
+
+    /**
+     * Discard the entries of a group, or all the entries if the group is null.
+     */
+    public void discard(String group) {
+        if (group==null) {
+            // the file may still have entries that were taken into the cache, which is being cleared too
+            discardFile();
+            return;
+        }
+        if (!open()) {
+            return;
+        }
+
+        Set<String> keys = groups.remove(group);
+        if (keys!=null) {
+            index.keySet().removeAll(keys);
+        }
+    }
+
+    /**
+     * Start writing a new snapshot of the cache's entries, the snapshot's remaining entries are added to it by
+     * {@link #finishWriting(Writer)}.
+     *
+     * @param maxEntries how many entries the snapshot may have with the remaining entries added
+     * @param maxBytes roughly how large the snapshot's entries may get with the remaining entries added
+     * @return null if snapshots are disabled
+     */
+    public Writer startWriting(String currentVersion, int maxEntries, long maxBytes) throws IOException {
+        if (file==null) {
+            return null;
+        }
+        if (!currentVersion.equals(version)) {
+            // the configuration changed since the snapshot was written, its entries are stale
+            discard(null);
+            version = currentVersion;
+        }
+
+        File directory = file.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create the directory " + directory);
+        }
+        return new Writer(new File(directory, file.getName() + ".tmp"), currentVersion, maxEntries, maxBytes);
+    }
+
+    public void finishWriting(Writer writer) throws IOException {
+        try {
+            if (open()) {
+                long now = System.currentTimeMillis();
+                for (Map.Entry<String, Position> entry : index.entrySet()) {
+                    Position position = entry.getValue();
+                    if (writer.count >= writer.maxEntries || writer.bytes + position.length > writer.maxBytes) {
+                        break;
+                    }
+                    if (!writer.added.contains(entry.getKey()) && !position.isExpired(now)) {
+                        writer.add(position.group, entry.getKey(), read(position), position.expiresAt);
+                    }
+                }
+            }
+            writer.out.writeInt(END);
+        } finally {
+            writer.out.close();
+        }
+
+        if (!writer.file.renameTo(file)) {
+            FileUtils.deleteQuietly(file);
+            if (!writer.file.renameTo(file)) {
+                FileUtils.deleteQuietly(writer.file);
+                throw new IOException("Could not replace " + file);
+            }
+        }
+        log.info("Wrote " + writer.count + " entries to the cache snapshot " + file);
+
+        // the new file has all the entries, it's mapped again the next time an entry isn't in the cache
+        buffer = null;
+        index = null;
+        groups = null;
+    }
+
+    /**
+     * Write a string of any length (unlike writeUTF) as part of an entry's value.
+     */
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        writeBytes(out, value!=null ? value.getBytes(StandardCharsets.UTF_8) : null);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes==null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSelection;
+import akka.actor.Props;
+import akka.actor.UntypedActor;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.FinishRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+
+/**
+ * Handles reads of resource instances, including versioned reads.
+ *
+ * When the read cache is enabled (read-cache-ttl), identical concurrent reads by the same client are coalesced into a
+ * single upstream request and successful responses are cached by the {@link ReadCacheActor}. Reads are only shared
+ * between requests of the same client (see {@link CacheKeys#clientId(java.util.Map)}), as they're fetched with its
+ * credentials. Everything else, including writes to the same paths and conditional reads, is handled by a
+ * {@link FhirProxyHandler}.
+ *
+ * Cacheable reads are admitted by the rate limiter before they're looked up, and are subject to the read's time budget
+ * while they wait on a coalesced read (see {@link ClientAdmission}).
+ */
+public class CachedReadHandler extends UntypedActor {
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private final MediatorConfig config;
+
+    private MediatorHTTPRequest request;
+    private ActorRef requestHandler;
+    private ClientAdmission admission;
+    private String readKey;
+    private boolean fetching;
+    private boolean reported;
+
+
+    public CachedReadHandler(MediatorConfig config) {
+        this.config = config;
+    }
+
+
+    public static boolean isReadCacheEnabled(MediatorConfig config) {
+        return DynamicConfig.getLong(config, "read-cache-ttl", 0) > 0;
+    }
+
+    private long getTtlMillis() {
+        return DynamicConfig.getLong(config, "read-cache-ttl", 0) * 1000;
+    }
+
+    /**
+     * The resource the read belongs to, for invalidation when it is written to
+     */
+    private String getResourcePath() {
+        return CacheKeys.resourcePath(request.getPath());
+    }
+
+    private boolean isCacheableRead() {
+        if (!isReadCacheEnabled(config) || !"GET".equalsIgnoreCase(request.getMethod())) {
+            return false;
+        }
+        if (request.getHeaders().get("If-None-Match")!=null || request.getHeaders().get("If-Modified-Since")!=null) {
+            return false;
+        }
+        String cacheControl = request.getHeaders().get("Cache-Control");
+        return cacheControl==null || !cacheControl.contains("no-cache");
+    }
+
+    private void delegate(MediatorHTTPRequest msg) {
+        ActorRef handler = getContext().actorOf(Props.create(FhirProxyHandler.class, config));
+        handler.tell(msg, getSelf());
+    }
+
+    /**
+     * Fetch the read on behalf of everyone waiting for it. The handler reports to us so that we can share the result.
+     */
+    private void fetch() {
+        fetching = true;
+        // the handler responds within the read's time budget itself, a timeout is shared with the waiters as a failure
+        admission.handOver();
+        ActorRef handler = getContext().actorOf(Props.create(FhirProxyHandler.class, config, true));
+        handler.tell(new MediatorHTTPRequest(
+                getSelf(), getSelf(), request.getOrchestration(), request.getMethod(), request.getScheme(), request.getHost(),
+                request.getPort(), request.getPath(), request.getBody(), request.getHeaders(), request.getParams()
+        ), getSelf());
+    }
+
+    private void lookupRead() {
+        readKey = CacheKeys.clientRequestKey(
+                CacheKeys.clientId(request.getHeaders()), ResourceCodec.formatOf(FhirProxyHandler.determineClientContentType(request)),
+                request.getPath(), request.getParams()
+        );
+        ActorSelection readCache = getContext().actorSelection(config.userPathFor("read-cache"));
+        readCache.tell(new ReadCacheActor.ReadRequest(requestHandler, getSelf(), getResourcePath(), readKey), getSelf());
+    }
+
+    private void processCachedRead(FinishRequest cached) {
+        if (admission.isFinished()) {
+            // timed out waiting for a coalesced read
+            return;
+        }
+
+        if (cached!=null) {
+            admission.respond(cached);
+        } else {
+            // we're the first
+            fetch();
+        }
+    }
+
+    private void processFetchedRead(FinishRequest response) {
+        // stored even if the client has timed out, for those still waiting
+        ActorSelection readCache = getContext().actorSelection(config.userPathFor("read-cache"));
+        readCache.tell(new ReadCacheActor.StoreRead(getResourcePath(), readKey, response, getTtlMillis()), getSelf());
+        reported = true;
+        admission.respond(response);
+    }
+
+    private void reportFailure() {
+        if (fetching && !reported) {
+            ActorSelection readCache = getContext().actorSelection(config.userPathFor("read-cache"));
+            readCache.tell(new ReadCacheActor.ReadFailed(readKey), getSelf());
+            reported = true;
+        }
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof MediatorHTTPRequest && request==null) { //inbound request
+            request = (MediatorHTTPRequest) msg;
+            requestHandler = request.getRequestHandler();
+
+            if (!isCacheableRead()) {
+                delegate(request);
+                return;
+            }
+            admission = new ClientAdmission(getContext(), config, request);
+            if (!admission.admit()) {
+                lookupRead();
+            }
+
+        } else if (msg instanceof RateLimitActor.Admitted) { //the rate limiter let the read through
+            lookupRead();
+
+        } else if (admission!=null && admission.handle(msg)) {
+            // throttled or timed out
+
+        } else if (msg instanceof ReadCacheActor.ReadResponse) { //response from the read cache
+            processCachedRead(((ReadCacheActor.ReadResponse) msg).getResponseObject());
+
+        } else if (msg instanceof FinishRequest && fetching) { //response from the handler fetching the read
+            processFetchedRead((FinishRequest) msg);
+
+        } else if (msg instanceof ExceptError && fetching) {
+            reportFailure();
+            if (!admission.isFinished()) {
+                requestHandler.tell(msg, getSelf());
+            }
+
+        } else if (fetching) {
+            // orchestrations and anything else meant for the request handler
+            requestHandler.forward(msg, getContext());
+
+        } else {
+            unhandled(msg);
+        }
+    }
+
+    @Override
+    public void postStop() throws Exception {
+        reportFailure();
+        if (admission!=null) {
+            admission.release();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.ActorContext;
+import akka.actor.ActorSelection;
+import akka.actor.Cancellable;
+import ca.uhn.fhir.context.FhirContext;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.FinishRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import scala.concurrent.duration.Duration;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The rate limiting and time budget of a request, for handlers that may answer it themselves (e.g. from a cache) rather
+ * than delegating to a {@link FhirProxyHandler}, so that such answers are subject to the same limits.
+ *
+ * The handler calls {@link #admit()} and carries on once it receives {@link RateLimitActor.Admitted}. It passes its
+ * other messages to {@link #handle(Object)} first, which answers the client with a 429 if it's throttled, or a 504 if
+ * the request's time budget (timeout-&lt;interaction&gt;) runs out first, e.g. while waiting on a coalesced read. The
+ * handler answers through {@link #respond(FinishRequest)}, or {@link #respondUnavailable(long)} if the upstream
+ * circuit breaker is open, and calls {@link #release()} when it stops.
+ *
+ * The request is captured if it's sampled (see {@link TrafficCapture}) once it's answered, unless it was handed over.
+ */
+class ClientAdmission {
+    private static class DeadlineExceeded {
+    }
+
+    private final ActorContext context;
+    private final MediatorConfig config;
+    private final MediatorHTTPRequest request;
+    private final TrafficCapture capture;
+
+    private boolean admissionRequested;
+    private Cancellable deadlineTimer;
+    private boolean finished;
+    // an error response waiting for the FHIR context to encode its OperationOutcome
+    private OperationOutcomes.Kind pendingKind;
+    private String pendingDetails;
+    private long pendingRetryAfter;
+
+
+    ClientAdmission(ActorContext context, MediatorConfig config, MediatorHTTPRequest request) {
+        this.context = context;
+        this.config = config;
+        this.request = request;
+        this.capture = TrafficCapture.start(context, config, request);
+    }
+
+
+    private String getInteraction() {
+        return FhirProxyHandler.interactionOf(request);
+    }
+
+    /**
+     * Start the clock on the request's time budget and ask the rate limiter to admit it.
+     *
+     * @return true if the handler has to wait for {@link RateLimitActor.Admitted}, false if clients aren't rate limited
+     */
+    boolean admit() {
+        long budget = DynamicConfig.getLong(config, "timeout-" + getInteraction(), 0);
+        if (budget > 0) {
+            deadlineTimer = context.system().scheduler().scheduleOnce(
+                    Duration.create(budget, TimeUnit.MILLISECONDS), context.self(), new DeadlineExceeded(), context.dispatcher(), context.self()
+            );
+        }
+
+        if (!RateLimitActor.isRateLimitingEnabled(config)) {
+            return false;
+        }
+        admissionRequested = true;
+        ActorSelection rateLimiter = context.actorSelection(config.userPathFor("rate-limiter"));
+        rateLimiter.tell(new RateLimitActor.Admit(CacheKeys.clientId(request.getHeaders())), context.self());
+        return true;
+    }
+
+    /**
+     * The request is handed over to a {@link FhirProxyHandler} that responds to the client itself, within its own time
+     * budget, and captures the request itself. The admission is kept until the handler stops.
+     */
+    void handOver() {
+        cancelDeadline();
+        capture.discard();
+    }
+
+    /**
+     * For the handler to record its upstream call with the request, if it makes one.
+     */
+    TrafficCapture getCapture() {
+        return capture;
+    }
+
+    /**
+     * @return true if the client has been responded to
+     */
+    boolean isFinished() {
+        return finished;
+    }
+
+    void respond(FinishRequest fr) {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        cancelDeadline();
+        release();
+        request.getRespondTo().tell(fr, context.self());
+        capture.finish(fr.getResponseStatus());
+    }
+
+    /**
+     * Answer the client with a 503, as the upstream circuit breaker didn't let the request through.
+     */
+    void respondUnavailable(long retryAfterSeconds) {
+        pendingKind = OperationOutcomes.Kind.UPSTREAM_UNAVAILABLE;
+        pendingDetails = pendingKind.getDetails();
+        pendingRetryAfter = retryAfterSeconds;
+        loadFhirContext();
+    }
+
+    /**
+     * @return true if the message was meant for the admission
+     */
+    boolean handle(Object msg) {
+        if (msg instanceof RateLimitActor.Throttled) {
+            pendingKind = OperationOutcomes.Kind.OVERLOADED;
+            pendingDetails = pendingKind.getDetails();
+            pendingRetryAfter = ((RateLimitActor.Throttled) msg).getRetryAfterSeconds();
+            loadFhirContext();
+            return true;
+        } else if (msg instanceof DeadlineExceeded) {
+            pendingKind = OperationOutcomes.Kind.TIMEOUT;
+            pendingDetails = "The " + getInteraction() + " did not complete within its time budget of " +
+                    DynamicConfig.getLong(config, "timeout-" + getInteraction(), 0) + "ms";
+            loadFhirContext();
+            return true;
+        } else if (msg instanceof FhirContextActor.FhirContextResponse && pendingKind!=null) {
+            respondWithOutcome(((FhirContextActor.FhirContextResponse) msg).getResponseObject());
+            return true;
+        }
+        return false;
+    }
+
+    private void loadFhirContext() {
+        ActorSelection actor = context.actorSelection(config.userPathFor("fhir-context"));
+        actor.tell(new FhirContextActor.FhirContextRequest(request.getRequestHandler(), context.self()), context.self());
+    }
+
+    private void respondWithOutcome(FhirContext fhirContext) {
+        String contentType = FhirProxyHandler.determineClientContentType(request);
+        if (!contentType.contains("json") && !contentType.contains("xml")) {
+            // e.g. a Binary read in its native format
+            contentType = Constants.FHIR_MIME_JSON;
+        }
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        headers.put("Content-Type", contentType);
+        if (pendingKind!=OperationOutcomes.Kind.TIMEOUT) {
+            headers.put("Retry-After", Long.toString(pendingRetryAfter));
+        }
+        respond(new FinishRequest(OperationOutcomes.encode(fhirContext, pendingDetails, contentType), headers, pendingKind.getStatus()));
+    }
+
+    private void cancelDeadline() {
+        if (deadlineTimer!=null) {
+            deadlineTimer.cancel();
+            deadlineTimer = null;
+        }
+    }
+
+    void release() {
+        cancelDeadline();
+        if (admissionRequested) {
+            ActorSelection rateLimiter = context.actorSelection(config.userPathFor("rate-limiter"));
+            rateLimiter.tell(new RateLimitActor.Release(), context.self());
+            admissionRequested = false;
+        }
+    }
+}
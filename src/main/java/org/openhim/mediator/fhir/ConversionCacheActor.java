@@ -0,0 +1,330 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.ActorRef;
+import akka.actor.Address;
+import akka.actor.UntypedActor;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import ca.uhn.fhir.util.VersionUtil;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.MediatorRequestMessage;
+import org.openhim.mediator.engine.messages.SimpleMediatorRequest;
+import org.openhim.mediator.engine.messages.SimpleMediatorResponse;
+import scala.concurrent.duration.Duration;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches converted upstream response bodies, so that a popular resource that upstream keeps returning unchanged
+ * (e.g. a ValueSet or a large Questionnaire) is only converted to the client's format once.
+ *
+ * The cache is bounded by the size of the bodies it holds, conversion-cache-size megabytes, the least recently used
+ * bodies are discarded first.
+ *
+ * When the mediator instances run as a cluster the converted bodies are shared, see {@link CacheCluster}: a body that
+ * isn't cached locally is looked up on the member that owns its key, and converted bodies are stored on the owner too.
+ * The keys identify the bodies by their content, so they never need to be discarded.
+ *
+ * The converted bodies are kept in a snapshot on disk, see {@link CacheSnapshot}, which is discarded if the FHIR context
+ * or the HAPI version (and so the encoding) changes.
+ */
+public class ConversionCacheActor extends UntypedActor {
+    /**
+     * Lookup a converted body. The request object is the conversion key, see
+     * {@link CacheKeys#conversionKey(String, Contents, String, ResponseProjection)}.
+     */
+    public static class ConversionRequest extends SimpleMediatorRequest<String> {
+        public ConversionRequest(ActorRef requestHandler, ActorRef respondTo, String conversionKey) {
+            super(requestHandler, respondTo, conversionKey);
+        }
+    }
+
+    /**
+     * The converted body, or null if the requester should convert it and report back with {@link StoreConversion}.
+     */
+    public static class ConversionResponse extends SimpleMediatorResponse<Contents> {
+        public ConversionResponse(MediatorRequestMessage originalRequest, Contents responseObject) {
+            super(originalRequest, responseObject);
+        }
+    }
+
+    public static class StoreConversion {
+        final String conversionKey;
+        final Contents contents;
+
+        public StoreConversion(String conversionKey, Contents contents) {
+            this.conversionKey = conversionKey;
+            this.contents = contents;
+        }
+    }
+
+
+    public static class SharedConversionLookup implements Serializable {
+        final String conversionKey;
+
+        public SharedConversionLookup(String conversionKey) {
+            this.conversionKey = conversionKey;
+        }
+    }
+
+    /**
+     * The owner's converted body (also used to store a body on its owner), the content is null if it doesn't have it.
+     */
+    public static class SharedConversion implements Serializable {
+        final String conversionKey;
+        final String contentType;
+        final String content;
+
+        public SharedConversion(String conversionKey, Contents contents) {
+            this.conversionKey = conversionKey;
+            this.contentType = contents!=null ? contents.contentType : null;
+            this.content = contents!=null ? contents.content : null;
+        }
+
+        Contents getContents() {
+            return content!=null ? new Contents(contentType, content) : null;
+        }
+    }
+
+    public static class SharedStoreConversion implements Serializable {
+        final SharedConversion conversion;
+
+        public SharedStoreConversion(SharedConversion conversion) {
+            this.conversion = conversion;
+        }
+    }
+
+    private static class SharedLookupTimeout {
+        final String conversionKey;
+
+        SharedLookupTimeout(String conversionKey) {
+            this.conversionKey = conversionKey;
+        }
+    }
+
+
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private final MediatorConfig config;
+
+    private final LinkedHashMap<String, Contents> conversions = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    // conversion key -> requests waiting for the body to be looked up on the member that owns it
+    private final Map<String, List<ConversionRequest>> sharedLookups = new HashMap<>();
+    private CacheCluster cluster;
+    private CacheSnapshot snapshot;
+    private boolean changed;
+
+
+    public ConversionCacheActor(MediatorConfig config) {
+        this.config = config;
+    }
+
+
+    @Override
+    public void preStart() throws Exception {
+        cluster = new CacheCluster(getContext(), config, "conversion-cache");
+        cluster.subscribe();
+
+        snapshot = new CacheSnapshot(config, log, "conversion-cache", getSnapshotVersion());
+        if (CacheSnapshot.isSnapshotEnabled(config)) {
+            CacheSnapshot.scheduleWrite(getContext(), config);
+        }
+    }
+
+    @Override
+    public void postStop() throws Exception {
+        cluster.unsubscribe();
+    }
+
+    public static boolean isConversionCacheEnabled(MediatorConfig config) {
+        return DynamicConfig.getLong(config, "conversion-cache-size", 0) > 0;
+    }
+
+    private long getMaxBytes() {
+        return DynamicConfig.getLong(config, "conversion-cache-size", 0) * 1024 * 1024;
+    }
+
+    /**
+     * @return roughly the memory used by a cached body
+     */
+    private static long sizeOf(String key, Contents contents) {
+        return 2L * (key.length() + contents.content.length() + contents.contentType.length()) + 64;
+    }
+
+    /**
+     * @return what the converted bodies depend on besides their keys
+     */
+    private String getSnapshotVersion() {
+        return "conversion|" + VersionUtil.getVersion() + "|" + DynamicConfig.getString(config, "fhir-context", "DSTU2");
+    }
+
+    /**
+     * @return a converted body, from the snapshot if it isn't in the cache (yet)
+     */
+    private Contents getConversion(String conversionKey) {
+        Contents contents = conversions.get(conversionKey);
+        if (contents!=null) {
+            return contents;
+        }
+
+        byte[] value = snapshot.take(conversionKey);
+        if (value==null) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(value));
+            contents = new Contents(CacheSnapshot.readString(in), CacheSnapshot.readString(in));
+            store(conversionKey, contents);
+            return contents;
+        } catch (IOException ex) {
+            log.warning("Could not load " + conversionKey + " from the snapshot: " + ex.getMessage());
+            return null;
+        }
+    }
+
+    private void writeSnapshot() {
+        try {
+            CacheSnapshot.Writer writer = snapshot.startWriting(getSnapshotVersion(), Integer.MAX_VALUE, getMaxBytes());
+            if (writer==null) {
+                return;
+            }
+
+            for (Map.Entry<String, Contents> entry : conversions.entrySet()) {
+                ByteArrayOutputStream value = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(value);
+                CacheSnapshot.writeString(out, entry.getValue().contentType);
+                CacheSnapshot.writeString(out, entry.getValue().content);
+                out.flush();
+                writer.add(null, entry.getKey(), value.toByteArray(), 0);
+            }
+            snapshot.finishWriting(writer);
+            changed = false;
+        } catch (IOException ex) {
+            log.warning("Could not write the conversion cache snapshot: " + ex.getMessage());
+        }
+    }
+
+    private void evict(long maxBytes) {
+        Iterator<Map.Entry<String, Contents>> it = conversions.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Contents> eldest = it.next();
+            bytes -= sizeOf(eldest.getKey(), eldest.getValue());
+            it.remove();
+        }
+    }
+
+    private void processConversionRequest(ConversionRequest msg) {
+        Contents contents = getConversion(msg.getRequestObject());
+        Address owner = contents==null ? cluster.ownerOf(msg.getRequestObject()) : null;
+        if (owner==null) {
+            msg.getRespondTo().tell(new ConversionResponse(msg, contents), getSelf());
+            return;
+        }
+
+        // another member may have it, ask before converting it
+        List<ConversionRequest> waiting = sharedLookups.get(msg.getRequestObject());
+        if (waiting!=null) {
+            waiting.add(msg);
+            return;
+        }
+
+        waiting = new ArrayList<>();
+        waiting.add(msg);
+        sharedLookups.put(msg.getRequestObject(), waiting);
+        cluster.cacheOn(owner).tell(new SharedConversionLookup(msg.getRequestObject()), getSelf());
+        getContext().system().scheduler().scheduleOnce(
+                Duration.create(DynamicConfig.getLong(config, "cluster-lookup-timeout", 200), TimeUnit.MILLISECONDS),
+                getSelf(), new SharedLookupTimeout(msg.getRequestObject()), getContext().dispatcher(), getSelf()
+        );
+    }
+
+    private void processSharedConversion(String conversionKey, Contents contents) {
+        List<ConversionRequest> waiting = sharedLookups.remove(conversionKey);
+        if (waiting==null) {
+            // timed out
+            return;
+        }
+
+        for (ConversionRequest request : waiting) {
+            request.getRespondTo().tell(new ConversionResponse(request, contents), getSelf());
+        }
+        if (contents!=null) {
+            store(conversionKey, contents);
+        }
+    }
+
+    private void processStoreConversion(StoreConversion msg) {
+        store(msg.conversionKey, msg.contents);
+
+        Address owner = cluster.ownerOf(msg.conversionKey);
+        if (owner!=null) {
+            cluster.cacheOn(owner).tell(new SharedStoreConversion(new SharedConversion(msg.conversionKey, msg.contents)), getSelf());
+        }
+    }
+
+    private void store(String conversionKey, Contents contents) {
+        long maxBytes = getMaxBytes();
+        long size = sizeOf(conversionKey, contents);
+        // a body that would displace most of the cache isn't worth caching
+        if (size > maxBytes / 4) {
+            return;
+        }
+
+        Contents replaced = conversions.put(conversionKey, contents);
+        if (replaced!=null) {
+            bytes -= sizeOf(conversionKey, replaced);
+        }
+        bytes += size;
+        evict(maxBytes);
+        changed = true;
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof ConversionRequest) {
+            processConversionRequest((ConversionRequest) msg);
+        } else if (msg instanceof StoreConversion) {
+            processStoreConversion((StoreConversion) msg);
+
+        // from the other members of a cluster
+        } else if (msg instanceof SharedConversionLookup) {
+            String conversionKey = ((SharedConversionLookup) msg).conversionKey;
+            getSender().tell(new SharedConversion(conversionKey, getConversion(conversionKey)), getSelf());
+        } else if (msg instanceof SharedConversion) {
+            processSharedConversion(((SharedConversion) msg).conversionKey, ((SharedConversion) msg).getContents());
+        } else if (msg instanceof SharedLookupTimeout) {
+            processSharedConversion(((SharedLookupTimeout) msg).conversionKey, null);
+        } else if (msg instanceof SharedStoreConversion) {
+            SharedConversion conversion = ((SharedStoreConversion) msg).conversion;
+            store(conversion.conversionKey, conversion.getContents());
+        } else if (msg instanceof CacheSnapshot.WriteSnapshot) {
+            if (changed) {
+                writeSnapshot();
+            }
+            CacheSnapshot.completeWrite(getContext(), config, (CacheSnapshot.WriteSnapshot) msg);
+        } else if (cluster.handle(msg)) {
+            // membership changed
+        } else {
+            unhandled(msg);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.ActorRef;
+import akka.actor.Props;
+import akka.actor.UntypedActor;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import ca.uhn.fhir.context.FhirContext;
+import org.openhim.mediator.engine.MediatorConfig;
+import scala.concurrent.duration.Duration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects creates from concurrent requests so that they can be sent upstream together as a single batch Bundle.
+ *
+ * Creates are grouped by the base they're posted to and their headers, as the batch is sent with the headers of its
+ * first create. Headers that identify the individual request (see {@link #PER_REQUEST_HEADERS}) don't stop creates
+ * from being batched together. A group is sent
+ * (see {@link CreateBatchSender}) once it has create-batch-size creates or its first create has waited for
+ * create-batch-window milliseconds, whichever comes first.
+ */
+public class CreateBatchActor extends UntypedActor {
+    /**
+     * A create to add to a batch. The requester receives the upstream response to its entry as a MediatorHTTPResponse,
+     * or an ExceptError via its request handler if the batch failed.
+     */
+    public static class BatchCreate {
+        final FhirContext fhirContext;
+        final ActorRef requestHandler;
+        final ActorRef respondTo;
+        final String path;
+        final Contents contents;
+        final Map<String, String> headers;
+
+        public BatchCreate(FhirContext fhirContext, ActorRef requestHandler, ActorRef respondTo, String path, Contents contents, Map<String, String> headers) {
+            this.fhirContext = fhirContext;
+            this.requestHandler = requestHandler;
+            this.respondTo = respondTo;
+            this.path = path;
+            this.contents = contents;
+            this.headers = headers;
+        }
+
+        /**
+         * @return the base the create is posted to, e.g. /fhir for /fhir/Observation
+         */
+        String getBasePath() {
+            String path = this.path.endsWith("/") ? this.path.substring(0, this.path.length()-1) : this.path;
+            return path.substring(0, path.lastIndexOf('/'));
+        }
+
+        String getResourceType() {
+            String path = this.path.endsWith("/") ? this.path.substring(0, this.path.length()-1) : this.path;
+            return path.substring(path.lastIndexOf('/') + 1);
+        }
+
+        String getGroupKey() {
+            StringBuilder key = new StringBuilder(getBasePath()).append('|').append(contents.contentType);
+            Map<String, String> sorted = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            sorted.putAll(headers);
+            for (Map.Entry<String, String> header : sorted.entrySet()) {
+                if (!PER_REQUEST_HEADERS.contains(header.getKey()) && !"Content-Type".equalsIgnoreCase(header.getKey())) {
+                    key.append('|').append(header.getKey().toLowerCase()).append('=').append(header.getValue());
+                }
+            }
+            return key.toString();
+        }
+    }
+
+    /**
+     * Headers that identify a single request rather than affect how upstream handles it.
+     */
+    static final Set<String> PER_REQUEST_HEADERS = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+    static {
+        PER_REQUEST_HEADERS.addAll(Arrays.asList(
+                "X-OpenHIM-TransactionID", "Idempotency-Key", "X-Request-ID", "X-Correlation-ID", "traceparent", "tracestate", "Date"
+        ));
+    }
+
+    private static class SendBatch {
+        final String groupKey;
+        final List<BatchCreate> batch;
+
+        SendBatch(String groupKey, List<BatchCreate> batch) {
+            this.groupKey = groupKey;
+            this.batch = batch;
+        }
+    }
+
+
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private final MediatorConfig config;
+    // group key -> the batch being collected
+    private final Map<String, List<BatchCreate>> pending = new HashMap<>();
+
+
+    public CreateBatchActor(MediatorConfig config) {
+        this.config = config;
+    }
+
+
+    public static boolean isCreateBatchingEnabled(MediatorConfig config) {
+        return DynamicConfig.getInt(config, "create-batch-size", 0) > 1;
+    }
+
+    private void processCreate(BatchCreate msg) {
+        String groupKey = msg.getGroupKey();
+        List<BatchCreate> batch = pending.get(groupKey);
+        if (batch==null) {
+            batch = new ArrayList<>();
+            pending.put(groupKey, batch);
+            getContext().system().scheduler().scheduleOnce(
+                    Duration.create(DynamicConfig.getLong(config, "create-batch-window", 5), TimeUnit.MILLISECONDS),
+                    getSelf(), new SendBatch(groupKey, batch), getContext().dispatcher(), getSelf()
+            );
+        }
+
+        batch.add(msg);
+        if (batch.size() >= DynamicConfig.getInt(config, "create-batch-size", 0)) {
+            send(groupKey, batch);
+        }
+    }
+
+    private void send(String groupKey, List<BatchCreate> batch) {
+        // the window may close on a batch that was already sent because it was full
+        if (pending.get(groupKey)!=batch) {
+            return;
+        }
+        pending.remove(groupKey);
+
+        log.debug("Sending " + batch.size() + " creates for " + groupKey + " as a batch");
+        getContext().actorOf(Props.create(CreateBatchSender.class, config, batch));
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof BatchCreate) {
+            processCreate((BatchCreate) msg);
+        } else if (msg instanceof SendBatch) {
+            send(((SendBatch) msg).groupKey, ((SendBatch) msg).batch);
+        } else {
+            unhandled(msg);
+        }
+    }
+}
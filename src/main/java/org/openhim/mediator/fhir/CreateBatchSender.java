@@ -0,0 +1,219 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.ActorSelection;
+import akka.actor.ReceiveTimeout;
+import akka.actor.UntypedActor;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.utils.DateUtils;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.AddOrchestrationToCoreResponse;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPResponse;
+import scala.concurrent.duration.Duration;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Sends a batch of creates collected by the {@link CreateBatchActor} upstream as a batch Bundle
+ * and responds to each requester with its entry of the batch-response.
+ */
+public class CreateBatchSender extends UntypedActor {
+    private static final Pattern XML_DECLARATION = Pattern.compile("^\\s*<\\?xml[^>]*\\?>");
+
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private final MediatorConfig config;
+    private final List<CreateBatchActor.BatchCreate> batch;
+    private final ResourceCodec codec;
+    private final String contentType;
+    private long upstreamCallSentAt;
+
+
+    public CreateBatchSender(MediatorConfig config, List<CreateBatchActor.BatchCreate> batch) {
+        this.config = config;
+        this.batch = batch;
+        this.codec = new ResourceCodec(batch.get(0).fhirContext);
+        this.contentType = batch.get(0).contents.contentType;
+    }
+
+
+    @Override
+    public void preStart() throws Exception {
+        getContext().setReceiveTimeout(Duration.create(config.getRootTimeout()!=null ? config.getRootTimeout() : 60000, TimeUnit.MILLISECONDS));
+        sendBatch();
+    }
+
+    /**
+     * The bundle is assembled as text, the creates have already been parsed (and possibly validated) by their handlers.
+     */
+    private String buildBundle() {
+        StringBuilder bundle = new StringBuilder();
+        if (ResourceCodec.isJson(contentType)) {
+            bundle.append("{\"resourceType\":\"Bundle\",\"type\":\"batch\",\"entry\":[");
+            for (int i=0; i<batch.size(); i++) {
+                CreateBatchActor.BatchCreate create = batch.get(i);
+                bundle.append(i>0 ? "," : "").append("{\"resource\":").append(create.contents.content)
+                        .append(",\"request\":{\"method\":\"POST\",\"url\":\"").append(create.getResourceType()).append("\"}}");
+            }
+            bundle.append("]}");
+        } else {
+            bundle.append("<Bundle xmlns=\"http://hl7.org/fhir\"><type value=\"batch\"/>");
+            for (CreateBatchActor.BatchCreate create : batch) {
+                bundle.append("<entry><resource>").append(XML_DECLARATION.matcher(create.contents.content).replaceFirst(""))
+                        .append("</resource><request><method value=\"POST\"/><url value=\"").append(create.getResourceType())
+                        .append("\"/></request></entry>");
+            }
+            bundle.append("</Bundle>");
+        }
+        return bundle.toString();
+    }
+
+    private void sendBatch() {
+        // the creates of a batch only differ in the headers that identify each request, see CreateBatchActor
+        CreateBatchActor.BatchCreate first = batch.get(0);
+        Map<String, String> headers = FhirProxyHandler.copyHeaders(first.headers);
+        headers.put("Content-Type", contentType);
+        // identifies the first create, not the batch
+        headers.remove("Idempotency-Key");
+
+        MediatorHTTPRequest request = new MediatorHTTPRequest(
+                getSelf(),
+                getSelf(),
+                "FHIR Upstream Batch",
+                "POST",
+                DynamicConfig.getString(config, "upstream-scheme", "http"),
+                DynamicConfig.getString(config, "upstream-host", "localhost"),
+                DynamicConfig.getInt(config, "upstream-port", 80),
+                first.getBasePath(),
+                buildBundle(),
+                headers,
+                Collections.<Pair<String, String>>emptyList()
+        );
+
+        log.info("Forwarding a batch of " + batch.size() + " creates to " + request.getHost() + ":" + request.getPort() + request.getPath());
+        if (UpstreamCircuitBreakerActor.isCircuitBreakerEnabled(config)) {
+            upstreamCallSentAt = System.currentTimeMillis();
+            ActorSelection breaker = getContext().actorSelection(config.userPathFor("upstream-breaker"));
+            breaker.tell(request, getSelf());
+        } else {
+            ActorSelection httpConnector = getContext().actorSelection(config.userPathFor("http-connector"));
+            httpConnector.tell(request, getSelf());
+        }
+    }
+
+    private void reportUpstreamOutcome(boolean success) {
+        if (upstreamCallSentAt > 0) {
+            long slowCall = DynamicConfig.getLong(config, "circuit-breaker-slow-call", 0);
+            boolean slow = slowCall > 0 && System.currentTimeMillis() - upstreamCallSentAt > slowCall;
+
+            ActorSelection breaker = getContext().actorSelection(config.userPathFor("upstream-breaker"));
+            breaker.tell(new UpstreamCircuitBreakerActor.CallOutcome(success && !slow), getSelf());
+            upstreamCallSentAt = 0;
+        }
+    }
+
+    private static int parseStatus(String status) {
+        // e.g. "201 Created"
+        String code = status.trim().split(" ")[0];
+        return Integer.parseInt(code);
+    }
+
+    private void processResponse(MediatorHTTPResponse response) {
+        if (response.getStatusCode() < 200 || response.getStatusCode() >= 300) {
+            // the batch as a whole was rejected, which applies to each of the creates
+            for (CreateBatchActor.BatchCreate create : batch) {
+                create.respondTo.tell(new MediatorHTTPResponse(response.getBody(), response.getStatusCode(), response.getHeaders()), getSelf());
+            }
+            return;
+        }
+
+        String responseContentType = response.getHeaders().get("Content-Type");
+        Contents contents = new Contents(responseContentType!=null ? responseContentType : contentType, response.getBody());
+        Bundle bundle = codec.newParser(contents.contentType).parseResource(Bundle.class, contents.content);
+        if (bundle.getEntry().size()!=batch.size()) {
+            throw new RuntimeException("Expected " + batch.size() + " entries in the batch-response, got " + bundle.getEntry().size());
+        }
+
+        for (int i=0; i<batch.size(); i++) {
+            Bundle.Entry entry = bundle.getEntry().get(i);
+            Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            String body = null;
+            if (entry.getResource()!=null && !entry.getResource().isEmpty()) {
+                body = codec.encode(entry.getResource(), contents.contentType).content;
+                headers.put("Content-Type", contents.contentType);
+            }
+
+            Bundle.EntryResponse entryResponse = entry.getResponse();
+            if (entryResponse.getLocation()!=null) {
+                headers.put("Location", entryResponse.getLocation());
+            }
+            if (entryResponse.getEtag()!=null) {
+                headers.put("ETag", entryResponse.getEtag());
+            }
+            if (entryResponse.getLastModified()!=null) {
+                headers.put("Last-Modified", DateUtils.formatDate(entryResponse.getLastModified()));
+            }
+
+            int status = entryResponse.getStatus()!=null ? parseStatus(entryResponse.getStatus()) : HttpStatus.SC_CREATED;
+            batch.get(i).respondTo.tell(new MediatorHTTPResponse(body, status, headers), getSelf());
+        }
+    }
+
+    private void fail(Throwable ex) {
+        for (CreateBatchActor.BatchCreate create : batch) {
+            create.requestHandler.tell(new ExceptError(ex), getSelf());
+        }
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof MediatorHTTPResponse) {
+            reportUpstreamOutcome(((MediatorHTTPResponse) msg).getStatusCode() < 500);
+            try {
+                processResponse((MediatorHTTPResponse) msg);
+            } catch (RuntimeException ex) {
+                log.warning("Could not read the batch-response: " + ex.getMessage());
+                fail(ex);
+            }
+            getContext().stop(getSelf());
+        } else if (msg instanceof UpstreamCircuitBreakerActor.CircuitOpen) {
+            // each of the creates is answered as if it had been sent on its own
+            upstreamCallSentAt = 0;
+            for (CreateBatchActor.BatchCreate create : batch) {
+                create.respondTo.tell(msg, getSelf());
+            }
+            getContext().stop(getSelf());
+        } else if (msg instanceof ExceptError) {
+            reportUpstreamOutcome(false);
+            fail(((ExceptError) msg).getError());
+            getContext().stop(getSelf());
+        } else if (msg instanceof ReceiveTimeout) {
+            reportUpstreamOutcome(false);
+            fail(new RuntimeException("Timed out waiting for the upstream batch-response"));
+            getContext().stop(getSelf());
+        } else if (msg instanceof AddOrchestrationToCoreResponse) {
+            // the batch request is part of each of the client transactions
+            for (CreateBatchActor.BatchCreate create : batch) {
+                create.requestHandler.tell(msg, getSelf());
+            }
+        } else {
+            unhandled(msg);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import org.openhim.mediator.engine.MediatorConfig;
+
+/**
+ * Typed access to the mediator's dynamic config.
+ *
+ * Values arrive from core as JSON types, but may also be strings when overridden from the environment
+ * (see MediatorMain), and optional params may not be set at all.
+ */
+public class DynamicConfig {
+    private DynamicConfig() {}
+
+    public static String getString(MediatorConfig config, String param, String defaultValue) {
+        Object value = config.getDynamicConfig().get(param);
+        return value!=null ? value.toString() : defaultValue;
+    }
+
+    public static boolean getBoolean(MediatorConfig config, String param, boolean defaultValue) {
+        Object value = config.getDynamicConfig().get(param);
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        } else if (value!=null) {
+            return Boolean.parseBoolean(value.toString());
+        }
+        return defaultValue;
+    }
+
+    public static long getLong(MediatorConfig config, String param, long defaultValue) {
+        Object value = config.getDynamicConfig().get(param);
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        } else if (value!=null) {
+            try {
+                return (long) Double.parseDouble(value.toString());
+            } catch (NumberFormatException ex) {
+                return defaultValue;
+            }
+        }
+        return defaultValue;
+    }
+
+    public static double getDouble(MediatorConfig config, String param, double defaultValue) {
+        Object value = config.getDynamicConfig().get(param);
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        } else if (value!=null) {
+            try {
+                return Double.parseDouble(value.toString());
+            } catch (NumberFormatException ex) {
+                return defaultValue;
+            }
+        }
+        return defaultValue;
+    }
+
+    public static int getInt(MediatorConfig config, String param, int defaultValue) {
+        return (int) getLong(config, param, defaultValue);
+    }
+}
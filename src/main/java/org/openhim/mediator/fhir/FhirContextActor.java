@@ -23,10 +23,17 @@ import org.openhim.mediator.engine.messages.SimpleMediatorResponse;
  * The FHIR Context is an expensive object to create, and this actor allows for sharing of it among requests.
  */
 public class FhirContextActor extends UntypedActor {
+    /**
+     * The request object is the OpenHIM transaction ID of the request that needs the context, if any.
+     */
     public static class FhirContextRequest extends SimpleMediatorRequest<Object> {
         public FhirContextRequest(ActorRef requestHandler, ActorRef respondTo) {
             super(requestHandler, respondTo, null);
         }
+
+        public FhirContextRequest(ActorRef requestHandler, ActorRef respondTo, String transactionId) {
+            super(requestHandler, respondTo, transactionId);
+        }
     }
 
     public static class FhirContextResponse extends SimpleMediatorResponse<FhirContext> {
@@ -49,22 +56,27 @@ public class FhirContextActor extends UntypedActor {
     }
 
 
-    private boolean setupFhirContext(ActorRef requestHandler) {
+    private boolean setupFhirContext(ActorRef requestHandler, String transactionId) {
         String targetContext = (String)config.getDynamicConfig().get("fhir-context");
 
         if (fhirContext==null || !setupContext.equals(targetContext)) {
             log.info("Initializing HAPI FHIR context");
 
-            switch (targetContext) {
-                case "DSTU1":
-                    fhirContext = FhirContext.forDstu1();
-                    break;
-                case "DSTU2":
-                    fhirContext = FhirContext.forDstu2();
-                    break;
-                default:
-                    requestHandler.tell(new ExceptError(new RuntimeException("Unsupported option specified for fhir-context")), getSelf());
-                    return false;
+            StageEvents.Span span = StageEvents.begin(StageEvents.Stage.CONTEXT_INITIALIZATION, transactionId);
+            try {
+                switch (targetContext) {
+                    case "DSTU1":
+                        fhirContext = FhirContext.forDstu1();
+                        break;
+                    case "DSTU2":
+                        fhirContext = FhirContext.forDstu2();
+                        break;
+                    default:
+                        requestHandler.tell(new ExceptError(new RuntimeException("Unsupported option specified for fhir-context")), getSelf());
+                        return false;
+                }
+            } finally {
+                span.end();
             }
 
             setupContext = targetContext;
@@ -77,9 +89,10 @@ public class FhirContextActor extends UntypedActor {
     public void onReceive(Object msg) throws Exception {
 
         if (msg instanceof FhirContextRequest) {
-            if (setupFhirContext(((FhirContextRequest) msg).getRequestHandler())) {
-                FhirContextResponse response = new FhirContextResponse((FhirContextRequest) msg, fhirContext);
-                ((FhirContextRequest) msg).getRespondTo().tell(response, getSelf());
+            FhirContextRequest request = (FhirContextRequest) msg;
+            if (setupFhirContext(request.getRequestHandler(), (String) request.getRequestObject())) {
+                FhirContextResponse response = new FhirContextResponse(request, fhirContext);
+                request.getRespondTo().tell(response, getSelf());
             }
         } else {
             unhandled(msg);
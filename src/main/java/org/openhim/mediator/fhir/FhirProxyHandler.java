@@ -6,31 +6,46 @@
 
 package org.openhim.mediator.fhir;
 
+import akka.actor.ActorContext;
 import akka.actor.ActorRef;
 import akka.actor.ActorSelection;
+import akka.actor.Cancellable;
+import akka.actor.Props;
 import akka.actor.UntypedActor;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum;
+import ca.uhn.fhir.model.primitive.InstantDt;
 import ca.uhn.fhir.parser.DataFormatException;
-import ca.uhn.fhir.parser.IParser;
-import ca.uhn.fhir.util.OperationOutcomeUtil;
 import ca.uhn.fhir.validation.FhirValidator;
+import ca.uhn.fhir.validation.SingleValidationMessage;
 import ca.uhn.fhir.validation.ValidationResult;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.http.HttpStatus;
+import org.apache.http.client.utils.DateUtils;
+import org.hl7.fhir.instance.model.api.IAnyResource;
 import org.hl7.fhir.instance.model.api.IBaseOperationOutcome;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.AddOrchestrationToCoreResponse;
 import org.openhim.mediator.engine.messages.ExceptError;
 import org.openhim.mediator.engine.messages.FinishRequest;
 import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
 import org.openhim.mediator.engine.messages.MediatorHTTPResponse;
+import org.openhim.mediator.engine.messages.PutPropertyInCoreResponse;
+import scala.concurrent.duration.Duration;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 
 
 public class FhirProxyHandler extends UntypedActor {
@@ -39,47 +54,153 @@ public class FhirProxyHandler extends UntypedActor {
         IBaseOperationOutcome operationOutcome;
     }
 
-    private static class Contents {
-        String contentType;
-        String content;
-
-        public Contents(String contentType, String content) {
-            this.contentType = contentType;
-            this.content = content;
-        }
+    private static class DeadlineExceeded {
     }
 
     LoggingAdapter log = Logging.getLogger(getContext().system(), this);
 
     private final MediatorConfig config;
+    // admitted by the rate limiter on the request's behalf, by the handler that delegated it
+    private final boolean admitted;
 
     private FhirContext fhirContext;
+    private ResourceCodec codec;
     private ActorRef requestHandler;
     private ActorRef respondTo;
     private MediatorHTTPRequest request;
     private MediatorHTTPResponse response;
     private String openhimTrxID;
     private String upstreamFormat;
+    private Map<String, String> upstreamHeaders;
+    private String writeKey;
+    private String writeFingerprint;
+    private boolean writeReported;
+    private boolean requestParsed;
+    private boolean hedged;
+    private MediatorHTTPRequest upstreamRequest;
+    private MediatorHTTPRequest hedgeRequest;
+    // the read and its hedge, if one was sent, until they fail
+    private int upstreamCallsInFlight;
+    private long deadline;
+    private Cancellable deadlineTimer;
+    private boolean finished;
+    private long upstreamCallSentAt;
+    private long hedgeSentAt;
+    private boolean admissionRequested;
+    private String validationKey;
+    private String conversionKey;
+    private Contents conversionSource;
+    private String conversionTarget;
+    private ResponseProjection conversionProjection;
+    private ActorRef requestBodyConverter;
+    private IBaseResource parsedRequest;
+    private List<Pair<String, String>> includes;
+    private TrafficCapture capture;
+    private StageEvents.Span requestSpan = StageEvents.DISABLED;
+    private StageEvents.Span contextSpan = StageEvents.DISABLED;
+    private StageEvents.Span upstreamSpan = StageEvents.DISABLED;
 
 
     public FhirProxyHandler(MediatorConfig config) {
+        this(config, false);
+    }
+
+    /**
+     * @param admitted true if the delegating handler was admitted by the rate limiter for the request, and keeps the
+     *                 admission until the request completes (see {@link ClientAdmission})
+     */
+    public FhirProxyHandler(MediatorConfig config, boolean admitted) {
         this.config = config;
+        this.admitted = admitted;
     }
 
 
     private void loadFhirContext() {
+        contextSpan = beginStage(StageEvents.Stage.CONTEXT_ACQUISITION, null, null);
         ActorSelection actor = getContext().actorSelection(config.userPathFor("fhir-context"));
-        actor.tell(new FhirContextActor.FhirContextRequest(requestHandler, getSelf()), getSelf());
+        actor.tell(new FhirContextActor.FhirContextRequest(requestHandler, getSelf(), openhimTrxID), getSelf());
+    }
+
+    /**
+     * Start recording a stage of handling the request, see {@link StageEvents}.
+     *
+     * @param input the stage's input, if any
+     * @param targetContentType the content type the stage produces, if any
+     */
+    private StageEvents.Span beginStage(StageEvents.Stage stage, Contents input, String targetContentType) {
+        StageEvents.Span span = StageEvents.begin(stage, openhimTrxID);
+        if (span.isEnabled()) {
+            span.setResourceType(CacheKeys.resourceType(request.getPath()));
+            if (input!=null && input.content!=null) {
+                span.setBodySize(input.content.length());
+            }
+            span.setFormats(
+                    input!=null && input.contentType!=null ? ResourceCodec.formatOf(input.contentType) : null,
+                    targetContentType!=null ? ResourceCodec.formatOf(targetContentType) : null
+            );
+        }
+        return span;
+    }
+
+    private IBaseResource parse(Contents contents) {
+        StageEvents.Span span = beginStage(StageEvents.Stage.PARSE, contents, null);
+        try {
+            IBaseResource resource = codec.parse(contents);
+            if (span.isEnabled()) {
+                span.setResourceType(fhirContext.getResourceDefinition(resource).getName());
+            }
+            return resource;
+        } finally {
+            span.end();
+        }
+    }
+
+    private Contents encode(IBaseResource resource, String contentType, ResponseProjection projection) {
+        StageEvents.Span span = beginStage(StageEvents.Stage.ENCODE, null, contentType);
+        try {
+            Contents encoded = codec.encode(resource, contentType, projection);
+            if (span.isEnabled()) {
+                span.setResourceType(fhirContext.getResourceDefinition(resource).getName());
+                span.setBodySize(encoded.content.length());
+            }
+            return encoded;
+        } finally {
+            span.end();
+        }
+    }
+
+    /**
+     * Convert a body with its parse and encode recorded as stages of the conversion.
+     */
+    private Contents convert(Contents contents, String contentType, ResponseProjection projection) {
+        StageEvents.Span span = beginStage(StageEvents.Stage.CONVERT, contents, contentType);
+        try {
+            IBaseResource resource = parse(contents);
+            if (span.isEnabled()) {
+                span.setResourceType(fhirContext.getResourceDefinition(resource).getName());
+            }
+            return encode(resource, contentType, projection);
+        } finally {
+            span.end();
+        }
     }
 
 
-    private FhirValidationResult validateFhirRequest(Contents contents) {
+    /**
+     * @param profileValidators the validators of the profiles that the resource declares, see {@link ProfileValidatorActor}
+     */
+    private FhirValidationResult validateFhirRequest(IBaseResource resource, List<FhirValidator> profileValidators) {
         FhirValidationResult result = new FhirValidationResult();
         FhirValidator validator = fhirContext.newValidator();
 
-        IParser parser = newParser(contents.contentType);
-        IBaseResource resource = parser.parseResource(contents.content);
         ValidationResult vr = validator.validateWithResult(resource);
+        if (!profileValidators.isEmpty()) {
+            List<SingleValidationMessage> messages = new ArrayList<>(vr.getMessages());
+            for (FhirValidator profileValidator : profileValidators) {
+                messages.addAll(profileValidator.validateWithResult(resource).getMessages());
+            }
+            vr = new ValidationResult(fhirContext, messages);
+        }
 
         if (vr.isSuccessful()) {
             result.passed = true;
@@ -95,9 +216,15 @@ public class FhirProxyHandler extends UntypedActor {
     private void forwardRequest(Map<String, String> headers, String body) {
         String upstreamAccept = determineTargetContentType(determineClientContentType());
         headers.put("Accept", upstreamAccept);
+        if (headers.get("If-Match")!=null) {
+            headers.put("If-Match", ResourceVersionActor.upstreamIfMatch(headers.get("If-Match")));
+        }
+        upstreamHeaders = headers;
+        includes = getIncludesToAssemble();
 
+        // errors and orchestrations come back here first, to see the outcome of the call for the circuit breaker
         MediatorHTTPRequest newRequest = new MediatorHTTPRequest(
-                requestHandler,
+                getSelf(),
                 getSelf(),
                 "FHIR Upstream",
                 request.getMethod(),
@@ -111,12 +238,148 @@ public class FhirProxyHandler extends UntypedActor {
         );
 
         log.info("[" + openhimTrxID + "] Forwarding to " + newRequest.getHost() + ":" + newRequest.getPort() + newRequest.getPath());
+        upstreamSpan = beginStage(StageEvents.Stage.UPSTREAM_WAIT, new Contents(headers.get("Content-Type"), body), upstreamAccept);
+        capture.upstreamSent(newRequest);
+
+        upstreamRequest = newRequest;
+        upstreamCallSentAt = sendUpstream(newRequest);
+        upstreamCallsInFlight = 1;
+
+        if ("GET".equalsIgnoreCase(request.getMethod()) && HedgedReadActor.isHedgingEnabled(config)) {
+            ActorSelection hedging = getContext().actorSelection(config.userPathFor("upstream-hedging"));
+            hedging.tell(new HedgedReadActor.HedgeRead(newRequest), getSelf());
+            hedged = true;
+        }
+    }
 
+    /**
+     * Send a request upstream, through the circuit breaker if it's enabled.
+     *
+     * @return when the request was sent through the circuit breaker, or 0 if it wasn't
+     */
+    private long sendUpstream(MediatorHTTPRequest upstreamRequest) {
+        if (UpstreamCircuitBreakerActor.isCircuitBreakerEnabled(config)) {
+            ActorSelection breaker = getContext().actorSelection(config.userPathFor("upstream-breaker"));
+            breaker.tell(upstreamRequest, getSelf());
+            return System.currentTimeMillis();
+        }
         ActorSelection httpConnector = getContext().actorSelection(config.userPathFor("http-connector"));
-        httpConnector.tell(newRequest, getSelf());
+        httpConnector.tell(upstreamRequest, getSelf());
+        return 0;
     }
 
-    private Map<String, String> copyHeaders(Map<String, String> headers) {
+    /**
+     * Send the read again, if upstream still hasn't responded to it, see {@link HedgedReadActor}.
+     */
+    private void sendHedge() {
+        if (response!=null || finished || upstreamCallsInFlight!=1 || hedgeRequest!=null) {
+            return;
+        }
+        hedgeRequest = new MediatorHTTPRequest(
+                getSelf(), getSelf(), "FHIR Upstream (hedged)", upstreamRequest.getMethod(), upstreamRequest.getScheme(),
+                upstreamRequest.getHost(), upstreamRequest.getPort(), upstreamRequest.getPath(), upstreamRequest.getBody(),
+                upstreamRequest.getHeaders(), upstreamRequest.getParams()
+        );
+        hedgeSentAt = sendUpstream(hedgeRequest);
+        upstreamCallsInFlight++;
+    }
+
+    /**
+     * Report the outcome of the upstream calls that are still in flight to the circuit breaker.
+     */
+    private void reportUpstreamOutcome(boolean success) {
+        upstreamCallSentAt = reportCallOutcome(upstreamCallSentAt, success);
+        hedgeSentAt = reportCallOutcome(hedgeSentAt, success);
+    }
+
+    /**
+     * @param sentAt when the call was sent through the circuit breaker, 0 if it wasn't or was already reported
+     * @return 0, the call has been reported
+     */
+    private long reportCallOutcome(long sentAt, boolean success) {
+        if (sentAt > 0) {
+            boolean slow = UpstreamCircuitBreakerActor.isSlowCall(config, sentAt);
+
+            ActorSelection breaker = getContext().actorSelection(config.userPathFor("upstream-breaker"));
+            breaker.tell(new UpstreamCircuitBreakerActor.CallOutcome(success && !slow), getSelf());
+        }
+        return 0;
+    }
+
+    /**
+     * One of a hedged read and its hedge failed, the other may still succeed.
+     */
+    private void processFailedCall(ExceptError msg) {
+        log.info("[" + openhimTrxID + "] A hedged upstream read failed, waiting on the other: " + msg.getError().getMessage());
+        upstreamCallsInFlight--;
+        // the error doesn't say which call failed, either counts the same for the breaker
+        if (upstreamCallSentAt > 0) {
+            upstreamCallSentAt = reportCallOutcome(upstreamCallSentAt, false);
+        } else {
+            hedgeSentAt = reportCallOutcome(hedgeSentAt, false);
+        }
+    }
+
+    private void respondCircuitOpen(UpstreamCircuitBreakerActor.CircuitOpen msg) {
+        log.info("[" + openhimTrxID + "] Upstream circuit breaker is open, responding with 503 Service Unavailable");
+        upstreamCallSentAt = 0;
+        upstreamCallsInFlight = 0;
+        upstreamSpan.end();
+        requestHandler.tell(new PutPropertyInCoreResponse("upstream-circuit", "open"), getSelf());
+        respondRetryLater(OperationOutcomes.Kind.UPSTREAM_UNAVAILABLE, msg.getRetryAfterSeconds());
+    }
+
+    private void respondThrottled(RateLimitActor.Throttled msg) {
+        log.info("[" + openhimTrxID + "] Client is over its rate limit, responding with 429 Too Many Requests");
+        respondRetryLater(OperationOutcomes.Kind.OVERLOADED, msg.getRetryAfterSeconds());
+    }
+
+    private void respondRetryLater(OperationOutcomes.Kind kind, long retryAfterSeconds) {
+        String responseContentType = determineClientContentType();
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        headers.put("Content-Type", responseContentType);
+        headers.put("Retry-After", Long.toString(retryAfterSeconds));
+        respond(new FinishRequest(OperationOutcomes.encode(fhirContext, kind, responseContentType), headers, kind.getStatus()));
+    }
+
+    /**
+     * Ask the rate limiter to admit the request, if clients are rate limited and the request wasn't admitted already.
+     */
+    private void admitRequest() {
+        if (RateLimitActor.isRateLimitingEnabled(config) && !admitted) {
+            admissionRequested = true;
+            ActorSelection rateLimiter = getContext().actorSelection(config.userPathFor("rate-limiter"));
+            rateLimiter.tell(new RateLimitActor.Admit(getClientId()), getSelf());
+        } else {
+            startRequest();
+        }
+    }
+
+    private void releaseAdmission() {
+        if (admissionRequested) {
+            ActorSelection rateLimiter = getContext().actorSelection(config.userPathFor("rate-limiter"));
+            rateLimiter.tell(new RateLimitActor.Release(), getSelf());
+            admissionRequested = false;
+        }
+    }
+
+    private void startRequest() {
+        if (isSearchPrefetchEnabled() && request.getParams()!=null && !request.getParams().isEmpty()) {
+            lookupPrefetchedPage();
+        } else {
+            checkKnownVersion();
+        }
+    }
+
+    private void completeHedgedRead() {
+        if (hedged) {
+            ActorSelection hedging = getContext().actorSelection(config.userPathFor("upstream-hedging"));
+            hedging.tell(new HedgedReadActor.ReadCompleted(), getSelf());
+            hedged = false;
+        }
+    }
+
+    static Map<String, String> copyHeaders(Map<String, String> headers) {
         Map<String, String> copy = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
         for (String header : headers.keySet()) {
             if ("Content-Type".equalsIgnoreCase(header) || "Content-Length".equalsIgnoreCase(header) || "Host".equalsIgnoreCase(header)) {
@@ -134,6 +397,10 @@ public class FhirProxyHandler extends UntypedActor {
             if ("_format".equalsIgnoreCase(param.getKey())) {
                 continue;
             }
+            if (includes!=null && IncludeAssembler.isIncludeParam(param.getKey())) {
+                // resolved by the mediator
+                continue;
+            }
 
             copy.add(param);
         }
@@ -143,7 +410,35 @@ public class FhirProxyHandler extends UntypedActor {
     private void forwardRequest(Contents contents) {
         Map<String, String> headers = copyHeaders(request.getHeaders());
         headers.put("Content-Type", contents.contentType);
-        forwardRequest(headers, contents.content);
+        if (isBatchableCreate()) {
+            batchCreate(headers, contents);
+        } else {
+            forwardRequest(headers, contents.content);
+        }
+    }
+
+    /**
+     * @return true if this is a plain create that can be sent upstream as part of a batch
+     */
+    private boolean isBatchableCreate() {
+        return CreateBatchActor.isCreateBatchingEnabled(config) && "POST".equalsIgnoreCase(request.getMethod()) &&
+                CacheKeys.isResourceTypePath(request.getPath()) && request.getParams().isEmpty() &&
+                request.getHeaders().get("If-None-Exist")==null && fhirContext.getVersion().getVersion()==FhirVersionEnum.DSTU2;
+    }
+
+    private void batchCreate(Map<String, String> headers, Contents contents) {
+        if (!requestParsed) {
+            // a malformed create would fail the whole batch, so make sure it's well-formed like it would be if validated
+            parse(contents);
+        }
+
+        headers.put("Accept", determineTargetContentType(determineClientContentType()));
+        upstreamHeaders = headers;
+
+        log.info("[" + openhimTrxID + "] Batching create with concurrent creates");
+        upstreamSpan = beginStage(StageEvents.Stage.UPSTREAM_WAIT, contents, headers.get("Accept"));
+        ActorSelection batcher = getContext().actorSelection(config.userPathFor("create-batcher"));
+        batcher.tell(new CreateBatchActor.BatchCreate(fhirContext, requestHandler, getSelf(), request.getPath(), contents, headers), getSelf());
     }
 
     private void forwardRequest() {
@@ -174,35 +469,188 @@ public class FhirProxyHandler extends UntypedActor {
 
         log.info("[" + openhimTrxID + "] Converting request body to " + targetContentType);
 
-        IParser inParser = newParser(contents.contentType);
-        IBaseResource resource = inParser.parseResource(contents.content);
-
         if ("JSON".equalsIgnoreCase(upstreamFormat) || "XML".equalsIgnoreCase(upstreamFormat)) {
-            IParser outParser = newParser(targetContentType);
-            String converted = outParser.setPrettyPrint(true).encodeResourceToString(resource);
-            return new Contents(targetContentType, converted);
+            requestParsed = true;
+            return convert(contents, targetContentType, null);
         } else {
             requestHandler.tell(new ExceptError(new RuntimeException("Unknown upstream format specified " + upstreamFormat)), getSelf());
             return null;
         }
     }
 
+    private Contents getRequestContents() {
+        return new Contents(request.getHeaders().get("Content-Type"), request.getBody());
+    }
+
     private void processRequestWithContents() {
-        String contentType = request.getHeaders().get("Content-Type");
-        String body = request.getBody();
-        Contents contents = new Contents(contentType, body);
+        Contents contents = getRequestContents();
+
+        if (BodyPrefilter.isEnabled(config)) {
+            BodyPrefilter.Problem problem = BodyPrefilter.check(config, contents);
+            if (problem!=null) {
+                log.info("[" + openhimTrxID + "] Rejecting request body: " + problem.getDetails());
+                String responseContentType = determineClientContentType();
+                sendClientError(problem.getStatus(), OperationOutcomes.encode(fhirContext, problem.getDetails(), responseContentType), responseContentType);
+                return;
+            }
+        }
 
         if ((Boolean)config.getDynamicConfig().get("validation-enabled")) {
-            FhirValidationResult validationResult = validateFhirRequest(contents);
+            if (ValidationCacheActor.isValidationCacheEnabled(config) && contents.contentType!=null && contents.content!=null) {
+                lookupValidation(contents);
+                return;
+            }
+            validateAndForwardRequest(contents);
+            return;
+        }
 
-            if (!validationResult.passed) {
-                sendBadRequest(validationResult.operationOutcome);
+        convertAndForwardRequest(contents);
+    }
+
+    private boolean isParallelConversionEnabled(Contents contents) {
+        long minSize = DynamicConfig.getLong(config, "parallel-conversion-min-size", 0);
+        return minSize > 0 && contents.content!=null && contents.content.length() >= minSize &&
+                ("JSON".equalsIgnoreCase(upstreamFormat) || "XML".equalsIgnoreCase(upstreamFormat)) &&
+                !isUpstreamAndClientFormatsEqual(contents.contentType);
+    }
+
+    private void validateAndForwardRequest(Contents contents) {
+        IBaseResource resource = parse(contents);
+        requestParsed = true;
+
+        if (ProfileValidatorActor.isProfileValidationEnabled(config)) {
+            List<String> profiles = ProfileValidatorActor.getProfiles(resource);
+            if (!profiles.isEmpty()) {
+                parsedRequest = resource;
+                ActorSelection profileValidators = getContext().actorSelection(config.userPathFor("profile-validators"));
+                profileValidators.tell(new ProfileValidatorActor.ProfileValidatorRequest(requestHandler, getSelf(), profiles), getSelf());
+                return;
+            }
+        }
+
+        validateAndForwardRequest(contents, resource, Collections.<FhirValidator>emptyList());
+    }
+
+    private void processProfileValidators(List<FhirValidator> profileValidators) {
+        IBaseResource resource = parsedRequest;
+        parsedRequest = null;
+        validateAndForwardRequest(getRequestContents(), resource, profileValidators);
+    }
+
+    private void validateAndForwardRequest(Contents contents, IBaseResource resource, List<FhirValidator> profileValidators) {
+        if (!isParallelConversionEnabled(contents)) {
+            if (validateRequest(resource, profileValidators)) {
+                convertAndForwardRequest(contents);
+            }
+            return;
+        }
+
+        if (checkDeadlineExceeded()) {
+            return;
+        }
+
+        // large bodies are converted for upstream while they're validated, the conversion is discarded if they fail
+        String targetContentType = determineTargetContentType(contents.contentType);
+        log.info("[" + openhimTrxID + "] Converting request body to " + targetContentType + " while validating it");
+        requestBodyConverter = getContext().actorOf(Props.create(RequestBodyConverter.class, codec, resource, targetContentType));
+
+        if (!validateRequest(resource, profileValidators)) {
+            getContext().stop(requestBodyConverter);
+            requestBodyConverter = null;
+        }
+    }
+
+    private void processConvertedRequestBody(RequestBodyConverter.Converted converted) {
+        requestBodyConverter = null;
+        if (converted.error!=null) {
+            requestHandler.tell(new ExceptError(converted.error), getSelf());
+            return;
+        }
+        if (checkDeadlineExceeded()) {
+            return;
+        }
+
+        forwardRequest(converted.contents);
+    }
+
+    /**
+     * @return true if the request passed validation, else the client has been sent the validation outcome
+     */
+    private boolean validateRequest(IBaseResource resource, List<FhirValidator> profileValidators) {
+        FhirValidationResult validationResult;
+        StageEvents.Span validateSpan = beginStage(StageEvents.Stage.VALIDATE, getRequestContents(), null);
+        try {
+            if (validateSpan.isEnabled()) {
+                validateSpan.setResourceType(fhirContext.getResourceDefinition(resource).getName());
+            }
+            validationResult = validateFhirRequest(resource, profileValidators);
+        } finally {
+            validateSpan.end();
+        }
+
+        if (!validationResult.passed) {
+            String responseContentType = determineClientContentType();
+            String outcome;
+            StageEvents.Span encodeSpan = beginStage(StageEvents.Stage.ENCODE, null, responseContentType);
+            try {
+                outcome = codec.newParser(responseContentType).encodeResourceToString(validationResult.operationOutcome);
+                encodeSpan.setResourceType("OperationOutcome");
+                encodeSpan.setBodySize(outcome.length());
+            } finally {
+                encodeSpan.end();
+            }
+            storeValidation(new ValidationCacheActor.ValidationOutcome(false, outcome));
+            sendBadRequest(outcome, responseContentType);
+            return false;
+        }
+
+        storeValidation(new ValidationCacheActor.ValidationOutcome(true, null));
+        return true;
+    }
+
+    private void lookupValidation(Contents contents) {
+        String responseFormat = ResourceCodec.formatOf(determineClientContentType());
+        validationKey = CacheKeys.validationKey(fhirContext.getVersion().getVersion().name(), contents, responseFormat);
+
+        ActorSelection validationCache = getContext().actorSelection(config.userPathFor("validation-cache"));
+        validationCache.tell(new ValidationCacheActor.ValidationRequest(requestHandler, getSelf(), validationKey), getSelf());
+    }
+
+    private void storeValidation(ValidationCacheActor.ValidationOutcome outcome) {
+        if (validationKey!=null) {
+            ActorSelection validationCache = getContext().actorSelection(config.userPathFor("validation-cache"));
+            validationCache.tell(new ValidationCacheActor.StoreValidation(validationKey, outcome), getSelf());
+        }
+    }
+
+    private void processCachedValidation(ValidationCacheActor.ValidationOutcome outcome) {
+        Contents contents = getRequestContents();
+
+        try {
+            if (outcome==null) {
+                validateAndForwardRequest(contents);
                 return;
+            } else if (!outcome.passed) {
+                log.info("[" + openhimTrxID + "] Request body failed validation before, responding with its validation outcome");
+                sendBadRequest(outcome.operationOutcome, determineClientContentType());
+                return;
+            } else {
+                log.debug("[" + openhimTrxID + "] Request body passed validation before");
             }
+
+            convertAndForwardRequest(contents);
+        } catch (DataFormatException ex) {
+            sendBadRequest(ex);
+        }
+    }
+
+    private void convertAndForwardRequest(Contents contents) {
+        if (checkDeadlineExceeded()) {
+            return;
         }
 
         contents = convertBodyForUpstream(contents);
-        if (contents==null) {
+        if (contents==null || checkDeadlineExceeded()) {
             return;
         }
 
@@ -210,6 +658,45 @@ public class FhirProxyHandler extends UntypedActor {
     }
 
     private void processClientRequest() {
+        writeKey = getWriteKey();
+        if (writeKey!=null) {
+            ActorSelection deduplication = getContext().actorSelection(config.userPathFor("post-deduplication"));
+            deduplication.tell(new WriteDeduplicationActor.DeduplicationRequest(requestHandler, getSelf(), writeKey, writeFingerprint), getSelf());
+            return;
+        }
+
+        forwardClientRequest();
+    }
+
+    private void processDeduplicatedWrite(FinishRequest original) {
+        if (original==null) {
+            forwardClientRequest();
+            return;
+        }
+
+        log.info("[" + openhimTrxID + "] Request is a retry of an earlier create, responding with the original result");
+        writeReported = true;
+        respond(original);
+    }
+
+    private void respondKeyReused() {
+        log.info("[" + openhimTrxID + "] Request reuses the Idempotency-Key of a different create, responding with 422 Unprocessable Entity");
+        // it's not a result of the original write
+        writeReported = true;
+        String responseContentType = determineClientContentType();
+        String details = "The Idempotency-Key was already used for a create with a different body";
+        sendClientError(HttpStatus.SC_UNPROCESSABLE_ENTITY, OperationOutcomes.encode(fhirContext, details, responseContentType), responseContentType);
+    }
+
+    private void forwardClientRequest() {
+        if (checkDeadlineExceeded()) {
+            return;
+        }
+
+        if (!"GET".equalsIgnoreCase(request.getMethod())) {
+            invalidateCachedReads();
+        }
+
         try {
             if (request.getMethod().equalsIgnoreCase("POST") || request.getMethod().equalsIgnoreCase("PUT")) {
                 processRequestWithContents();
@@ -217,36 +704,163 @@ public class FhirProxyHandler extends UntypedActor {
                 forwardRequest();
             }
         } catch (DataFormatException ex) {
-            sendBadRequest(throwableToOperationOutcome(ex));
+            sendBadRequest(ex);
         }
     }
 
-    private IBaseOperationOutcome throwableToOperationOutcome(Throwable ex) {
-        IBaseOperationOutcome outcome = OperationOutcomeUtil.newInstance(fhirContext);
-        OperationOutcomeUtil.addIssue(fhirContext, outcome, "error", ex.getMessage(), null, null);
-        return outcome;
-    }
-
-    private void sendBadRequest(IBaseOperationOutcome outcome) {
+    private void sendBadRequest(Throwable ex) {
         String responseContentType = determineClientContentType();
+        sendBadRequest(OperationOutcomes.encode(fhirContext, ex.getMessage(), responseContentType), responseContentType);
+    }
 
-        IParser parser = newParser(responseContentType);
-        String body = parser.encodeResourceToString(outcome);
+    private void sendBadRequest(String body, String responseContentType) {
+        sendClientError(HttpStatus.SC_BAD_REQUEST, body, responseContentType);
+    }
 
-        FinishRequest badRequest = new FinishRequest(body, responseContentType, HttpStatus.SC_BAD_REQUEST);
+    private void sendClientError(int status, String body, String responseContentType) {
+        FinishRequest badRequest = new FinishRequest(body, responseContentType, status);
+        endRequestSpan(badRequest);
+        capture.finish(status);
+        reportWriteResult(badRequest);
+        releaseAdmission();
+        finished = true;
         requestHandler.tell(badRequest, getSelf());
     }
 
+    private void respond(FinishRequest fr) {
+        endRequestSpan(fr);
+        capture.finish(fr.getResponseStatus());
+        reportWriteResult(fr);
+        releaseAdmission();
+        finished = true;
+        respondTo.tell(fr, getSelf());
+    }
+
+    private void endRequestSpan(FinishRequest fr) {
+        if (fr.getResponseStatus()!=null) {
+            requestSpan.setStatus(fr.getResponseStatus());
+        }
+        requestSpan.end();
+    }
+
+    private String getInteraction() {
+        return interactionOf(request);
+    }
+
+    /**
+     * @return the kind of interaction, for its time budget: read, search, create or transaction (any other write)
+     */
+    static String interactionOf(MediatorHTTPRequest request) {
+        if ("GET".equalsIgnoreCase(request.getMethod())) {
+            return CacheKeys.resourcePath(request.getPath())!=null ? "read" : "search";
+        }
+        if ("POST".equalsIgnoreCase(request.getMethod())) {
+            if (CacheKeys.isResourceTypePath(request.getPath())) {
+                return "create";
+            } else if (request.getPath().endsWith("/_search")) {
+                return "search";
+            }
+        }
+        return "transaction";
+    }
+
+    /**
+     * Start the clock on the interaction's time budget, if it has one. Without a budget only mediator.timeout applies.
+     */
+    private void startDeadline() {
+        long budget = DynamicConfig.getLong(config, "timeout-" + getInteraction(), 0);
+        if (budget <= 0) {
+            return;
+        }
+
+        deadline = System.currentTimeMillis() + budget;
+        deadlineTimer = getContext().system().scheduler().scheduleOnce(
+                Duration.create(budget, TimeUnit.MILLISECONDS), getSelf(), new DeadlineExceeded(), getContext().dispatcher(), getSelf()
+        );
+    }
+
+    /**
+     * Called between stages, so that no further work is done for a request that the client has been told has timed out.
+     *
+     * @return true if the deadline has passed, in which case the client has been responded to
+     */
+    private boolean checkDeadlineExceeded() {
+        if (deadline > 0 && System.currentTimeMillis() >= deadline) {
+            respondDeadlineExceeded();
+            return true;
+        }
+        return false;
+    }
+
+    private void respondDeadlineExceeded() {
+        String details = "The " + getInteraction() + " did not complete within its time budget of " +
+                DynamicConfig.getLong(config, "timeout-" + getInteraction(), 0) + "ms";
+        log.warning("[" + openhimTrxID + "] " + details + ", abandoning the request");
 
-    private IParser newParser(String contentType) {
-        if (contentType.contains("json")) {
-            return fhirContext.newJsonParser();
+        if (fhirContext==null) {
+            respond(new FinishRequest(details, "text/plain", OperationOutcomes.Kind.TIMEOUT.getStatus()));
+            return;
+        }
+
+        String responseContentType = determineClientContentType();
+        respond(new FinishRequest(OperationOutcomes.encode(fhirContext, details, responseContentType), responseContentType, OperationOutcomes.Kind.TIMEOUT.getStatus()));
+    }
+
+    /**
+     * @return the key identifying this create for recognising retries of it, or null if creates aren't deduplicated
+     */
+    private String getWriteKey() {
+        // only creates, a repeated POST search or transaction/batch Bundle must be handled again
+        if (!"POST".equalsIgnoreCase(request.getMethod()) || !CacheKeys.isResourceTypePath(request.getPath())) {
+            return null;
+        }
+
+        String mode = DynamicConfig.getString(config, "post-deduplication", "Idempotency-Key");
+        String idempotencyKey = request.getHeaders().get("Idempotency-Key");
+        String clientId = getClientId();
+        String identity;
+        if (idempotencyKey!=null && ("Idempotency-Key".equalsIgnoreCase(mode) || "Content".equalsIgnoreCase(mode))) {
+            identity = "key:" + idempotencyKey;
+            // to tell a retry from a different create that reuses the key
+            writeFingerprint = CacheKeys.fingerprint(new Contents(request.getHeaders().get("Content-Type"), request.getBody()));
+        } else if ("Content".equalsIgnoreCase(mode) && clientId!=null) {
+            // anonymous clients can't be told apart, so their identical creates are never taken for retries
+            identity = "body:" + CacheKeys.canonicalBody(new Contents(request.getHeaders().get("Content-Type"), request.getBody()));
         } else {
-            return fhirContext.newXmlParser();
+            return null;
+        }
+
+        // different clients never share results
+        String requestKey = CacheKeys.requestKey(ResourceCodec.formatOf(determineClientContentType()), request.getPath(), request.getParams());
+        return CacheKeys.writeKey(clientId, requestKey, identity);
+    }
+
+    private String getClientId() {
+        return CacheKeys.clientId(request.getHeaders());
+    }
+
+    private void reportWriteResult(FinishRequest fr) {
+        if (writeKey!=null && !writeReported) {
+            ActorSelection deduplication = getContext().actorSelection(config.userPathFor("post-deduplication"));
+            deduplication.tell(new WriteDeduplicationActor.StoreResult(writeKey, fr), getSelf());
+            writeReported = true;
+        }
+    }
+
+    private void reportWriteFailure() {
+        if (writeKey!=null && !writeReported) {
+            ActorSelection deduplication = getContext().actorSelection(config.userPathFor("post-deduplication"));
+            deduplication.tell(new WriteDeduplicationActor.WriteFailed(writeKey), getSelf());
+            writeReported = true;
         }
     }
 
+
     private String determineClientContentType() {
+        return determineClientContentType(request);
+    }
+
+    static String determineClientContentType(MediatorHTTPRequest request) {
         // first check for Accept header
         String accept = request.getHeaders().get("Accept");
         if (accept!=null && !"*/*".equals(accept)) {
@@ -286,62 +900,461 @@ public class FhirProxyHandler extends UntypedActor {
         return new Contents(contentType, body);
     }
 
-    private void respondWithContents(Contents contents) {
+    /**
+     * @param transformed true if the contents are not the upstream body as is, i.e. they were converted or projected
+     */
+    private void respondWithContents(Contents contents, boolean transformed) {
         Map<String, String> headers = copyHeaders(response.getHeaders());
         headers.put("Content-Type", contents.contentType);
+
+        if (isConditionalRead() && isSuccessfulResponse()) {
+            if (headers.get("ETag")==null || headers.get("Last-Modified")==null) {
+                addVersionHeadersFromMeta(headers, contents);
+            }
+
+            String versionId = ResourceVersionActor.versionIdOf(headers.get("ETag"));
+            if (transformed && versionId!=null) {
+                // the upstream ETag identifies the upstream representation, this one is tagged as another of its version
+                headers.put("ETag", ResourceVersionActor.representationETag(versionId, getRepresentationKey()));
+            } else if (transformed || versionId==null) {
+                headers.put("ETag", strongETag(contents.content));
+            }
+
+            ResourceVersionActor.ResourceVersion version = new ResourceVersionActor.ResourceVersion(headers.get("ETag"), headers.get("Last-Modified"));
+            recordVersion(version);
+
+            if (version.matchesIfNoneMatch(request.getHeaders().get("If-None-Match"))) {
+                respondNotModified(version);
+                return;
+            }
+        }
+
         FinishRequest fr = new FinishRequest(contents.content, headers, response.getStatusCode());
-        respondTo.tell(fr, getSelf());
+        respond(fr);
     }
 
-    private Contents convertResponseContents(String clientAccept, Contents responseContents) {
+    private Contents convertResponseContents(String clientAccept, Contents responseContents, ResponseProjection projection) {
         log.info("[" + openhimTrxID + "] Converting response body to " + clientAccept);
 
-        IParser inParser = newParser(responseContents.contentType);
-        IBaseResource resource = inParser.parseResource(responseContents.content);
+        return convert(responseContents, clientAccept, projection);
+    }
 
-        IParser outParser = newParser(clientAccept);
-        String converted = outParser.setPrettyPrint(true).encodeResourceToString(resource);
-        return new Contents(clientAccept, converted);
+    /**
+     * Convert the response body, or use the cached conversion of an identical body if there is one.
+     */
+    private void respondWithConvertedContents(Contents responseContents, String targetContentType, ResponseProjection projection) {
+        if (!ConversionCacheActor.isConversionCacheEnabled(config)) {
+            respondWithContents(convertResponseContents(targetContentType, responseContents, projection), true);
+            return;
+        }
+
+        conversionSource = responseContents;
+        conversionTarget = targetContentType;
+        conversionProjection = projection;
+        conversionKey = CacheKeys.conversionKey(fhirContext.getVersion().getVersion().name(), responseContents, targetContentType, projection);
+
+        ActorSelection conversionCache = getContext().actorSelection(config.userPathFor("conversion-cache"));
+        conversionCache.tell(new ConversionCacheActor.ConversionRequest(requestHandler, getSelf(), conversionKey), getSelf());
+    }
+
+    private void processCachedConversion(Contents converted) {
+        if (converted!=null) {
+            log.info("[" + openhimTrxID + "] Using the cached conversion of the response body to " + conversionTarget);
+        } else {
+            converted = convertResponseContents(conversionTarget, conversionSource, conversionProjection);
+
+            ActorSelection conversionCache = getContext().actorSelection(config.userPathFor("conversion-cache"));
+            conversionCache.tell(new ConversionCacheActor.StoreConversion(conversionKey, converted), getSelf());
+        }
+        respondWithContents(converted, true);
+    }
+
+    /**
+     * @return the _summary/_elements projection to apply to the response, or null if none
+     */
+    private ResponseProjection getResponseProjection() {
+        int status = response.getStatusCode();
+        if (status < 200 || status >= 300 || !ResponseProjection.isEnabled(config)) {
+            return null;
+        }
+        return ResponseProjection.fromParams(request.getParams());
+    }
+
+    private boolean isSuccessfulResponse() {
+        return response.getStatusCode() >= 200 && response.getStatusCode() < 300;
+    }
+
+    private boolean isConditionalGetEnabled() {
+        return DynamicConfig.getBoolean(config, "conditional-get-enabled", false);
+    }
+
+    /**
+     * @return true if this is a read of a resource instance for which versions are tracked
+     */
+    private boolean isConditionalRead() {
+        return isConditionalGetEnabled() && "GET".equalsIgnoreCase(request.getMethod()) &&
+                CacheKeys.resourcePath(request.getPath())!=null;
+    }
+
+    /**
+     * @return the representation of the resource that the client reads, i.e. its format and projection
+     */
+    private String getRepresentationKey() {
+        return CacheKeys.requestKey(ResourceCodec.formatOf(determineClientContentType()), request.getPath(), request.getParams());
+    }
+
+    /**
+     * Versions are only known to the client that read them, a 304 is answered without asking upstream whether the client
+     * may still read the resource.
+     */
+    private String getVersionKey() {
+        return CacheKeys.clientRequestKey(getClientId(), ResourceCodec.formatOf(determineClientContentType()), request.getPath(), request.getParams());
+    }
+
+    /**
+     * Fill in the ETag and Last-Modified headers that upstream left out from the resource's meta.versionId and
+     * meta.lastUpdated, as a FHIR server would have set them.
+     */
+    private void addVersionHeadersFromMeta(Map<String, String> headers, Contents contents) {
+        IBaseResource resource;
+        try {
+            resource = codec.parse(contents);
+        } catch (DataFormatException ex) {
+            return;
+        }
+
+        String versionId = resource.getIdElement().getVersionIdPart();
+        if (headers.get("ETag")==null && versionId!=null) {
+            headers.put("ETag", "W/\"" + versionId + "\"");
+        }
+
+        Date lastUpdated = null;
+        if (resource instanceof IResource) {
+            InstantDt updated = ResourceMetadataKeyEnum.UPDATED.get((IResource) resource);
+            lastUpdated = updated!=null ? updated.getValue() : null;
+        } else if (resource instanceof IAnyResource) {
+            lastUpdated = ((IAnyResource) resource).getMeta().getLastUpdated();
+        }
+        if (headers.get("Last-Modified")==null && lastUpdated!=null) {
+            headers.put("Last-Modified", DateUtils.formatDate(lastUpdated));
+        }
+    }
+
+    private static String strongETag(String content) {
+        return "\"" + DigestUtils.md5Hex(content) + "\"";
+    }
+
+    private void checkKnownVersion() {
+        boolean conditional = request.getHeaders().get("If-None-Match")!=null || request.getHeaders().get("If-Modified-Since")!=null;
+        if (!conditional || !isConditionalRead()) {
+            processClientRequest();
+            return;
+        }
+
+        ActorSelection versions = getContext().actorSelection(config.userPathFor("resource-versions"));
+        versions.tell(new ResourceVersionActor.VersionRequest(
+                requestHandler, getSelf(), CacheKeys.resourcePath(request.getPath()), getVersionKey()
+        ), getSelf());
+    }
+
+    private void processKnownVersion(ResourceVersionActor.ResourceVersion version) {
+        String ifNoneMatch = request.getHeaders().get("If-None-Match");
+        boolean current = version!=null && (ifNoneMatch!=null ?
+                version.matchesIfNoneMatch(ifNoneMatch) :
+                version.notModifiedSince(request.getHeaders().get("If-Modified-Since")));
+
+        if (current) {
+            log.info("[" + openhimTrxID + "] Resource version is current, responding with 304 Not Modified");
+            respondNotModified(version);
+        } else {
+            processClientRequest();
+        }
+    }
+
+    private void respondNotModified(ResourceVersionActor.ResourceVersion version) {
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        if (version.getETag()!=null) {
+            headers.put("ETag", version.getETag());
+        }
+        if (version.getLastModified()!=null) {
+            headers.put("Last-Modified", version.getLastModified());
+        }
+        respond(new FinishRequest(null, headers, HttpStatus.SC_NOT_MODIFIED));
+    }
+
+    private void recordVersion(ResourceVersionActor.ResourceVersion version) {
+        ActorSelection versions = getContext().actorSelection(config.userPathFor("resource-versions"));
+        versions.tell(new ResourceVersionActor.RecordVersion(CacheKeys.resourcePath(request.getPath()), getVersionKey(), version), getSelf());
+    }
+
+    /**
+     * Discard what is known about the resource being written, i.e. its versions and cached reads. Writes that may touch
+     * any resource (transactions, conditional updates/deletes) discard everything, creates don't affect known resources.
+     */
+    private void invalidateCachedReads() {
+        invalidateCachedReads(getContext(), config, request);
+    }
+
+    /**
+     * Discard the known versions and cached reads that a write may have made stale: those of the resource written to,
+     * or all of them if it isn't a write to a single resource (e.g. a transaction). Creates don't affect earlier reads.
+     */
+    static void invalidateCachedReads(ActorContext context, MediatorConfig config, MediatorHTTPRequest request) {
+        String resourcePath = CacheKeys.resourcePath(request.getPath());
+        if (resourcePath==null && "POST".equalsIgnoreCase(request.getMethod()) && CacheKeys.isResourceTypePath(request.getPath())) {
+            return;
+        }
+
+        if (DynamicConfig.getBoolean(config, "conditional-get-enabled", false)) {
+            ActorSelection versions = context.actorSelection(config.userPathFor("resource-versions"));
+            versions.tell(new ResourceVersionActor.InvalidateVersions(resourcePath), context.self());
+        }
+        if (CachedReadHandler.isReadCacheEnabled(config)) {
+            ActorSelection readCache = context.actorSelection(config.userPathFor("read-cache"));
+            readCache.tell(new ReadCacheActor.InvalidateReads(resourcePath), context.self());
+        }
+    }
+
+    private boolean isSearchPrefetchEnabled() {
+        return "GET".equalsIgnoreCase(request.getMethod()) && DynamicConfig.getInt(config, "search-prefetch-pages", 0) > 0;
+    }
+
+    private void lookupPrefetchedPage() {
+        String pageKey = CacheKeys.clientRequestKey(
+                getClientId(), ResourceCodec.formatOf(determineClientContentType()), request.getPath(), request.getParams()
+        );
+        ActorSelection pageCache = getContext().actorSelection(config.userPathFor("search-page-cache"));
+        pageCache.tell(new SearchPageCacheActor.PageRequest(requestHandler, getSelf(), pageKey), getSelf());
+    }
+
+    private void processPrefetchedPage(FinishRequest page) {
+        if (page==null) {
+            checkKnownVersion();
+            return;
+        }
+
+        log.info("[" + openhimTrxID + "] Responding with prefetched search page");
+        respond(page);
+    }
+
+    private void prefetchNextPages(Contents upstreamContents) {
+        // cheap check before handing over to the page cache, which parses the page to find the actual link
+        if (response.getStatusCode()!=HttpStatus.SC_OK || !upstreamContents.content.contains("next")) {
+            return;
+        }
+
+        ActorSelection pageCache = getContext().actorSelection(config.userPathFor("search-page-cache"));
+        pageCache.tell(new SearchPageCacheActor.PrefetchPages(
+                fhirContext, upstreamContents, determineClientContentType(), upstreamHeaders
+        ), getSelf());
+    }
+
+    /**
+     * @return the _include and _revinclude params of a search that the mediator resolves, or null if there are none
+     */
+    private List<Pair<String, String>> getIncludesToAssemble() {
+        if (!"GET".equalsIgnoreCase(request.getMethod()) || !IncludeAssembler.isIncludeAssemblyEnabled(config) ||
+                !CacheKeys.isResourceTypePath(request.getPath()) || fhirContext.getVersion().getVersion()!=FhirVersionEnum.DSTU2) {
+            return null;
+        }
+
+        List<Pair<String, String>> found = new ArrayList<>();
+        for (Pair<String, String> param : request.getParams()) {
+            if (IncludeAssembler.isIncludeParam(param.getKey()) && param.getValue()!=null) {
+                found.add(param);
+            }
+        }
+        return found.isEmpty() ? null : found;
+    }
+
+    private void assembleIncludes(Contents contents) {
+        log.info("[" + openhimTrxID + "] Resolving the search's _include and _revinclude params");
+
+        String basePath = request.getPath().replaceAll("/+$", "");
+        basePath = basePath.substring(0, basePath.lastIndexOf('/'));
+        getContext().actorOf(Props.create(IncludeAssembler.class, config, new IncludeAssembler.Assemble(
+                fhirContext, requestHandler, contents, basePath, includes, upstreamHeaders, determineClientContentType(), getResponseProjection()
+        )));
+    }
+
+    private void processAssembledIncludes(IncludeAssembler.Assembled assembled) {
+        if (assembled.error!=null) {
+            requestHandler.tell(new ExceptError(assembled.error), getSelf());
+            return;
+        }
+        if (checkDeadlineExceeded()) {
+            return;
+        }
+
+        respondWithContents(assembled.contents, true);
     }
 
     private void processUpstreamResponse() {
+        if (checkDeadlineExceeded()) {
+            return;
+        }
+
         log.info("[" + openhimTrxID + "] Processing upstream response and responding to client");
         Contents contents = getResponseBodyAsContents();
 
-        if ("Client".equalsIgnoreCase(upstreamFormat) || contents==null) {
-            respondTo.tell(response.toFinishRequest(true), getSelf());
+        if (includes!=null && contents!=null && response.getStatusCode()==HttpStatus.SC_OK) {
+            // the next pages don't include anything, so they're not prefetched
+            assembleIncludes(contents);
+            return;
+        }
+
+        ResponseProjection projection = contents!=null ? getResponseProjection() : null;
+        boolean projectPassthrough = projection!=null && ResponseProjection.isEnabledForPassthrough(config);
+
+        if (contents==null || ("Client".equalsIgnoreCase(upstreamFormat) && !projectPassthrough)) {
+            if (isConditionalRead() && isSuccessfulResponse() && response.getHeaders().get("ETag")!=null) {
+                recordVersion(new ResourceVersionActor.ResourceVersion(response.getHeaders().get("ETag"), response.getHeaders().get("Last-Modified")));
+            }
+            respond(response.toFinishRequest(true));
+        } else if ("Client".equalsIgnoreCase(upstreamFormat)) {
+            respondWithConvertedContents(contents, contents.contentType, projection);
         } else {
             String clientAccept = determineClientContentType();
 
             if (isUpstreamAndClientFormatsEqual(clientAccept)) {
-                respondWithContents(contents);
+                if (projectPassthrough) {
+                    respondWithConvertedContents(contents, contents.contentType, projection);
+                } else {
+                    respondWithContents(contents, false);
+                }
             } else {
-                respondWithContents(convertResponseContents(clientAccept, contents));
+                respondWithConvertedContents(contents, clientAccept, projection);
             }
         }
+
+        if (!"GET".equalsIgnoreCase(request.getMethod())) {
+            // again, in case a read raced with the write and recorded the old version
+            invalidateCachedReads();
+        }
+
+        if (contents!=null && isSearchPrefetchEnabled()) {
+            prefetchNextPages(contents);
+        }
     }
 
 
     @Override
     public void onReceive(Object msg) throws Exception {
+        if (finished && !(msg instanceof MediatorHTTPRequest)) {
+            // e.g. an upstream response that arrived after the deadline, the client has already been responded to
+            return;
+        }
+
         if (msg instanceof MediatorHTTPRequest) { //inbound request
             request = (MediatorHTTPRequest) msg;
             requestHandler = request.getRequestHandler();
             respondTo = request.getRespondTo();
             openhimTrxID = request.getHeaders().get("X-OpenHIM-TransactionID");
+            requestSpan = beginStage(StageEvents.Stage.CLIENT_RESPONSE, getRequestContents(), determineClientContentType());
+            capture = TrafficCapture.start(getContext(), config, request);
             upstreamFormat = (String) config.getDynamicConfig().get("upstream-format");
+            startDeadline();
             loadFhirContext();
 
+        } else if (msg instanceof DeadlineExceeded) {
+            respondDeadlineExceeded();
+
         } else if (msg instanceof FhirContextActor.FhirContextResponse) { //response from FHIR context handler
             fhirContext = ((FhirContextActor.FhirContextResponse) msg).getResponseObject();
-            processClientRequest();
+            contextSpan.end();
+            codec = new ResourceCodec(fhirContext);
+            admitRequest();
+
+        } else if (msg instanceof RateLimitActor.Admitted) { //the rate limiter let the request through
+            startRequest();
+
+        } else if (msg instanceof RateLimitActor.Throttled) { //the client is over its rate limit
+            respondThrottled((RateLimitActor.Throttled) msg);
 
-        } else if (msg instanceof MediatorHTTPResponse) { //response from upstream server
+        } else if (msg instanceof SearchPageCacheActor.PageResponse) { //response from the search page cache
+            processPrefetchedPage(((SearchPageCacheActor.PageResponse) msg).getResponseObject());
+
+        } else if (msg instanceof ResourceVersionActor.VersionResponse) { //response from the resource version tracker
+            processKnownVersion(((ResourceVersionActor.VersionResponse) msg).getResponseObject());
+
+        } else if (msg instanceof ValidationCacheActor.ValidationResponse) { //response from the validation cache
+            processCachedValidation(((ValidationCacheActor.ValidationResponse) msg).getResponseObject());
+
+        } else if (msg instanceof ConversionCacheActor.ConversionResponse) { //response from the converted body cache
+            processCachedConversion(((ConversionCacheActor.ConversionResponse) msg).getResponseObject());
+
+        } else if (msg instanceof ProfileValidatorActor.ProfileValidatorResponse) { //response from the profile validators
+            processProfileValidators(((ProfileValidatorActor.ProfileValidatorResponse) msg).getResponseObject());
+
+        } else if (msg instanceof RequestBodyConverter.Converted && getSender().equals(requestBodyConverter)) { //the request body was converted while it was validated
+            processConvertedRequestBody((RequestBodyConverter.Converted) msg);
+
+        } else if (msg instanceof IncludeAssembler.Assembled) { //the search's includes were fetched and added to the searchset
+            processAssembledIncludes((IncludeAssembler.Assembled) msg);
+
+        } else if (msg instanceof WriteDeduplicationActor.DeduplicationResponse) { //response from the write deduplication store
+            processDeduplicatedWrite(((WriteDeduplicationActor.DeduplicationResponse) msg).getResponseObject());
+
+        } else if (msg instanceof WriteDeduplicationActor.KeyReused) { //the Idempotency-Key was used for a different create
+            respondKeyReused();
+
+        } else if (msg instanceof MediatorHTTPResponse && response==null) { //response from upstream server
             response = (MediatorHTTPResponse) msg;
+            upstreamSpan.end();
+            capture.upstreamReceived(response);
+            if (hedgeRequest!=null && response.getOriginalRequest()==hedgeRequest) {
+                hedgeSentAt = reportCallOutcome(hedgeSentAt, response.getStatusCode() < 500);
+            } else {
+                upstreamCallSentAt = reportCallOutcome(upstreamCallSentAt, response.getStatusCode() < 500);
+            }
+            // the other of a hedged read and its hedge is abandoned, it only counts as failed if it's slow already
+            reportUpstreamOutcome(true);
+            completeHedgedRead();
             processUpstreamResponse();
 
+        } else if (msg instanceof HedgedReadActor.SendHedge) { //upstream is slow to respond to the read
+            sendHedge();
+
+        } else if (msg instanceof UpstreamCircuitBreakerActor.CircuitOpen && upstreamCallsInFlight > 1) { //the breaker opened before the hedge was sent
+            upstreamCallsInFlight--;
+            hedgeSentAt = 0;
+
+        } else if (msg instanceof UpstreamCircuitBreakerActor.CircuitOpen) { //the upstream circuit breaker didn't let the request through
+            respondCircuitOpen((UpstreamCircuitBreakerActor.CircuitOpen) msg);
+
+        } else if (msg instanceof ExceptError && upstreamCallsInFlight > 1) { //one of a hedged read and its hedge failed
+            processFailedCall((ExceptError) msg);
+
+        } else if (msg instanceof ExceptError) { //upstream request failed
+            upstreamSpan.end();
+            upstreamCallsInFlight = 0;
+            reportUpstreamOutcome(false);
+            completeHedgedRead();
+            requestHandler.forward(msg, getContext());
+
+        } else if (msg instanceof AddOrchestrationToCoreResponse || msg instanceof PutPropertyInCoreResponse) {
+            requestHandler.forward(msg, getContext());
+
+        } else if (msg instanceof MediatorHTTPResponse) {
+            // the slower of a hedged read and its hedge
+
         } else {
             unhandled(msg);
         }
     }
+
+    @Override
+    public void postStop() throws Exception {
+        // e.g. the upstream request failed, let a retry try again
+        reportWriteFailure();
+        reportUpstreamOutcome(false);
+        completeHedgedRead();
+        releaseAdmission();
+        if (deadlineTimer!=null) {
+            deadlineTimer.cancel();
+        }
+        // e.g. the request failed with an error, it's recorded without a status
+        upstreamSpan.end();
+        requestSpan.end();
+    }
 }
\ No newline at end of file
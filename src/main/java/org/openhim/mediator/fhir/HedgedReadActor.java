@@ -0,0 +1,167 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.ActorRef;
+import akka.actor.UntypedActor;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import scala.concurrent.duration.Duration;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hedges upstream reads: if upstream hasn't responded to a read within hedge-delay milliseconds (or, with
+ * hedge-adaptive, the observed 95th percentile read latency if that's longer) the handler is told to
+ * {@link SendHedge send the read again}, on another connection, and uses whichever response arrives first.
+ * The handler sends the hedge itself, through the circuit breaker like the read, so that it knows which of
+ * its calls are still in flight and reports the outcome of each.
+ *
+ * Hedges are limited by a budget of hedge-budget percent of reads, so that a slow upstream server
+ * doesn't receive twice the load.
+ */
+public class HedgedReadActor extends UntypedActor {
+    /**
+     * A read was sent upstream. Sent by the handler that will receive the response.
+     */
+    public static class HedgeRead {
+        final MediatorHTTPRequest request;
+
+        public HedgeRead(MediatorHTTPRequest request) {
+            this.request = request;
+        }
+    }
+
+    /**
+     * The handler received a response to its read (or gave up on it).
+     */
+    public static class ReadCompleted {
+    }
+
+    /**
+     * Sent to the handler when its read should be hedged.
+     */
+    public static class SendHedge {
+    }
+
+    private static class HedgeDue {
+        final ActorRef handler;
+
+        HedgeDue(ActorRef handler) {
+            this.handler = handler;
+        }
+    }
+
+    private static class PendingRead {
+        final MediatorHTTPRequest request;
+        final long sentAt;
+
+        PendingRead(MediatorHTTPRequest request, long sentAt) {
+            this.request = request;
+            this.sentAt = sentAt;
+        }
+    }
+
+    private static final int MAX_TOKENS = 10;
+    private static final int LATENCY_SAMPLES = 1000;
+    private static final int MIN_LATENCY_SAMPLES = 20;
+
+
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private final MediatorConfig config;
+
+    // handler -> its read
+    private final Map<ActorRef, PendingRead> pending = new HashMap<>();
+    private double tokens = MAX_TOKENS;
+
+    // recent read latencies, the percentile is recalculated every so often rather than for every read
+    private final long[] latencies = new long[LATENCY_SAMPLES];
+    private int latencyCount;
+    private long p95 = -1;
+
+
+    public HedgedReadActor(MediatorConfig config) {
+        this.config = config;
+    }
+
+
+    public static boolean isHedgingEnabled(MediatorConfig config) {
+        return DynamicConfig.getLong(config, "hedge-delay", 0) > 0;
+    }
+
+    private long getDelayMillis() {
+        long delay = DynamicConfig.getLong(config, "hedge-delay", 0);
+        if (DynamicConfig.getBoolean(config, "hedge-adaptive", false) && p95 > delay) {
+            return p95;
+        }
+        return delay;
+    }
+
+    private void recordLatency(long latency) {
+        latencies[latencyCount % LATENCY_SAMPLES] = latency;
+        latencyCount++;
+
+        if (latencyCount >= MIN_LATENCY_SAMPLES && latencyCount % MIN_LATENCY_SAMPLES == 0) {
+            long[] sorted = Arrays.copyOf(latencies, Math.min(latencyCount, LATENCY_SAMPLES));
+            Arrays.sort(sorted);
+            p95 = sorted[(int) Math.ceil(sorted.length * 0.95) - 1];
+        }
+    }
+
+    private void processHedgeRead(HedgeRead msg) {
+        // every read earns a fraction of a hedge
+        double budget = DynamicConfig.getLong(config, "hedge-budget", 5) / 100.0;
+        tokens = Math.min(MAX_TOKENS, tokens + budget);
+
+        pending.put(getSender(), new PendingRead(msg.request, System.currentTimeMillis()));
+        getContext().system().scheduler().scheduleOnce(
+                Duration.create(getDelayMillis(), TimeUnit.MILLISECONDS), getSelf(), new HedgeDue(getSender()),
+                getContext().dispatcher(), getSelf()
+        );
+    }
+
+    private void processReadCompleted() {
+        PendingRead read = pending.remove(getSender());
+        if (read!=null) {
+            recordLatency(System.currentTimeMillis() - read.sentAt);
+        }
+    }
+
+    private void processHedgeDue(HedgeDue msg) {
+        PendingRead read = pending.get(msg.handler);
+        if (read==null) {
+            return;
+        }
+        if (tokens < 1) {
+            log.debug("Hedge budget exhausted, not hedging read of " + read.request.getPath());
+            return;
+        }
+        tokens--;
+
+        log.info("Upstream hasn't responded to " + read.request.getPath() + " after " + (System.currentTimeMillis() - read.sentAt) + "ms, hedging the read");
+        msg.handler.tell(new SendHedge(), getSelf());
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof HedgeRead) {
+            processHedgeRead((HedgeRead) msg);
+        } else if (msg instanceof ReadCompleted) {
+            processReadCompleted();
+        } else if (msg instanceof HedgeDue) {
+            processHedgeDue((HedgeDue) msg);
+        } else {
+            unhandled(msg);
+        }
+    }
+}
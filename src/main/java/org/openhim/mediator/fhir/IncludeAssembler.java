@@ -0,0 +1,393 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.ActorRef;
+import akka.actor.Props;
+import akka.actor.UntypedActor;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.valueset.SearchEntryModeEnum;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.rest.method.RestSearchParameterTypeEnum;
+import ca.uhn.fhir.util.FhirTerser;
+import ca.uhn.fhir.util.ResourceReferenceInfo;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.openhim.mediator.engine.MediatorConfig;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Resolves the _include and _revinclude params of a search for a {@link FhirProxyHandler}, for upstream servers that
+ * don't support them.
+ *
+ * The searchset that upstream returned for the search without them is parsed and the resources that its matches
+ * reference (_include), or that reference its matches (_revinclude), are fetched from upstream in parallel by
+ * {@link IncludeFetcher}s. References are de-duplicated and resources that are already in the searchset aren't fetched.
+ * The searchset is then returned to the handler in the client's format with the fetched resources added as includes.
+ *
+ * Only references to resources on the same server (relative references) are followed, and only to a single level,
+ * i.e. :iterate/:recurse aren't followed further. Each _revinclude is resolved with a single upstream search, of which
+ * only the first page is included. Searchsets are only supported for DSTU2.
+ *
+ * Upstream's paging links don't have the _include and _revinclude params, as upstream never saw them, so they're added
+ * back to the links of the searchset. Following a link through the mediator then resolves the includes of that page too.
+ */
+public class IncludeAssembler extends UntypedActor {
+    public static class Assemble {
+        final FhirContext fhirContext;
+        final ActorRef requestHandler;
+        final Contents searchset;
+        final String basePath;
+        final List<Pair<String, String>> includes;
+        final Map<String, String> upstreamHeaders;
+        final String clientContentType;
+        final ResponseProjection projection;
+
+        public Assemble(FhirContext fhirContext, ActorRef requestHandler, Contents searchset, String basePath,
+                        List<Pair<String, String>> includes, Map<String, String> upstreamHeaders, String clientContentType,
+                        ResponseProjection projection) {
+            this.fhirContext = fhirContext;
+            this.requestHandler = requestHandler;
+            this.searchset = searchset;
+            this.basePath = basePath;
+            this.includes = includes;
+            this.upstreamHeaders = upstreamHeaders;
+            this.clientContentType = clientContentType;
+            this.projection = projection;
+        }
+    }
+
+    public static class Assembled {
+        final Contents contents;
+        final RuntimeException error;
+
+        public Assembled(Contents contents, RuntimeException error) {
+            this.contents = contents;
+            this.error = error;
+        }
+    }
+
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private final MediatorConfig config;
+    private final Assemble assemble;
+    private final ResourceCodec codec;
+
+    private Bundle bundle;
+    // the resources in the searchset, as Type/id
+    private final Set<String> present = new HashSet<>();
+    private final List<IncludeFetcher.Fetch> fetches = new ArrayList<>();
+    private final Map<IncludeFetcher.Fetch, IBaseResource> fetched = new HashMap<>();
+
+
+    public IncludeAssembler(MediatorConfig config, Assemble assemble) {
+        this.config = config;
+        this.assemble = assemble;
+        this.codec = new ResourceCodec(assemble.fhirContext);
+    }
+
+
+    public static boolean isIncludeAssemblyEnabled(MediatorConfig config) {
+        return getMaxResources(config) > 0;
+    }
+
+    private static int getMaxResources(MediatorConfig config) {
+        return DynamicConfig.getInt(config, "include-max-resources", 0);
+    }
+
+    /**
+     * @return true if the param is an _include or _revinclude, including with a modifier such as :iterate
+     */
+    public static boolean isIncludeParam(String name) {
+        return name.equals("_include") || name.startsWith("_include:") ||
+                name.equals("_revinclude") || name.startsWith("_revinclude:");
+    }
+
+    private static boolean isRevInclude(String name) {
+        return name.startsWith("_revinclude");
+    }
+
+    @Override
+    public void preStart() throws Exception {
+        try {
+            IBaseResource resource = codec.parse(assemble.searchset);
+            if (!(resource instanceof Bundle)) {
+                finish(assemble.searchset, null);
+                return;
+            }
+            bundle = (Bundle) resource;
+
+            planFetches();
+            if (fetches.isEmpty()) {
+                assemble();
+                return;
+            }
+
+            log.info("Fetching " + fetches.size() + " includes from upstream");
+            for (IncludeFetcher.Fetch fetch : fetches) {
+                getContext().actorOf(Props.create(IncludeFetcher.class, config, codec, fetch));
+            }
+        } catch (RuntimeException ex) {
+            finish(null, ex);
+        }
+    }
+
+    private List<IBaseResource> getMatches() {
+        List<IBaseResource> matches = new ArrayList<>();
+        for (Bundle.Entry entry : bundle.getEntry()) {
+            if (entry.getResource()==null) {
+                continue;
+            }
+            present.add(entry.getResource().getIdElement().toUnqualifiedVersionless().getValue());
+
+            String mode = entry.getSearch().getMode();
+            if (mode==null || SearchEntryModeEnum.MATCH.getCode().equals(mode)) {
+                matches.add(entry.getResource());
+            }
+        }
+        return matches;
+    }
+
+    private void planFetches() {
+        List<IBaseResource> matches = getMatches();
+        if (matches.isEmpty()) {
+            return;
+        }
+
+        Set<String> references = new LinkedHashSet<>();
+        for (Pair<String, String> include : assemble.includes) {
+            if (isRevInclude(include.getKey())) {
+                planRevInclude(include.getValue(), matches);
+            } else {
+                for (IBaseResource match : matches) {
+                    collectReferences(include.getValue(), match, references);
+                }
+            }
+        }
+        references.removeAll(present);
+
+        int max = getMaxResources(config);
+        if (references.size() + fetches.size() > max) {
+            log.warning("Search includes more than " + max + " resources, only the first " + max + " will be included");
+        }
+        for (String reference : references) {
+            if (fetches.size() >= max) {
+                break;
+            }
+            fetches.add(new IncludeFetcher.Fetch(
+                    assemble.requestHandler, assemble.basePath + "/" + reference, Collections.<Pair<String, String>>emptyList(),
+                    assemble.upstreamHeaders, assemble.clientContentType
+            ));
+        }
+    }
+
+    /**
+     * @param include SourceType:param[:TargetType] or *
+     */
+    private void collectReferences(String include, IBaseResource match, Set<String> references) {
+        FhirContext fhirContext = assemble.fhirContext;
+        FhirTerser terser = fhirContext.newTerser();
+
+        if ("*".equals(include)) {
+            for (ResourceReferenceInfo reference : terser.getAllResourceReferences(match)) {
+                addReference(reference.getResourceReference(), null, references);
+            }
+            return;
+        }
+
+        String[] parts = include.split(":");
+        RuntimeResourceDefinition definition = fhirContext.getResourceDefinition(match);
+        if (parts.length < 2 || !parts[0].equals(definition.getName())) {
+            return;
+        }
+
+        RuntimeSearchParam param = definition.getSearchParam(parts[1]);
+        if (param==null || param.getParamType()!=RestSearchParameterTypeEnum.REFERENCE) {
+            log.debug("Ignoring _include=" + include + ", it isn't a reference search param");
+            return;
+        }
+
+        String targetType = parts.length > 2 ? parts[2] : null;
+        for (String path : param.getPathsSplit()) {
+            try {
+                for (Object value : terser.getValues(match, path.trim())) {
+                    if (value instanceof IBaseReference) {
+                        addReference((IBaseReference) value, targetType, references);
+                    }
+                }
+            } catch (DataFormatException ex) {
+                log.debug("Could not follow " + path + ": " + ex.getMessage());
+            }
+        }
+    }
+
+    private void addReference(IBaseReference reference, String targetType, Set<String> references) {
+        IIdType id = reference.getReferenceElement();
+        // contained and absolute references aren't on the upstream server
+        if (id==null || id.isEmpty() || id.isLocal() || id.hasBaseUrl() || !id.hasIdPart() || id.getResourceType()==null) {
+            return;
+        }
+        if (targetType!=null && !targetType.equals(id.getResourceType())) {
+            return;
+        }
+        references.add(id.toUnqualifiedVersionless().getValue());
+    }
+
+    /**
+     * @param include SourceType:param[:TargetType], where param references the matches
+     */
+    private void planRevInclude(String include, List<IBaseResource> matches) {
+        String[] parts = include.split(":");
+        if (parts.length < 2) {
+            return;
+        }
+
+        List<String> targets = new ArrayList<>();
+        for (IBaseResource match : matches) {
+            IIdType id = match.getIdElement().toUnqualifiedVersionless();
+            if (id.getResourceType()!=null && id.hasIdPart() && (parts.length < 3 || parts[2].equals(id.getResourceType()))) {
+                targets.add(id.getValue());
+            }
+        }
+        if (targets.isEmpty()) {
+            return;
+        }
+
+        fetches.add(new IncludeFetcher.Fetch(
+                assemble.requestHandler, assemble.basePath + "/" + parts[0],
+                Collections.singletonList(Pair.of(parts[1], StringUtils.join(targets, ","))),
+                assemble.upstreamHeaders, assemble.clientContentType
+        ));
+    }
+
+    private void processFetched(IncludeFetcher.Fetched msg) {
+        fetched.put(msg.fetch, msg.resource);
+        if (fetched.size() == fetches.size()) {
+            assemble();
+        }
+    }
+
+    /**
+     * @return the url of a paging link with the search's include params
+     */
+    private String withIncludes(String url) {
+        StringBuilder withIncludes = new StringBuilder(url);
+        char separator = url.contains("?") ? '&' : '?';
+        try {
+            for (Pair<String, String> include : assemble.includes) {
+                withIncludes.append(separator).append(URLEncoder.encode(include.getKey(), "UTF-8"))
+                        .append('=').append(URLEncoder.encode(include.getValue(), "UTF-8"));
+                separator = '&';
+            }
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+        return withIncludes.toString();
+    }
+
+    private void assemble() {
+        for (Bundle.Link link : bundle.getLink()) {
+            if (link.getUrl()!=null) {
+                link.setUrl(withIncludes(link.getUrl()));
+            }
+        }
+
+        String fullUrlBase = getFullUrlBase();
+        for (Bundle.Entry entry : bundle.getEntry()) {
+            if (entry.getResource()!=null && entry.getSearch().getMode()==null) {
+                entry.getSearch().setMode(SearchEntryModeEnum.MATCH);
+            }
+        }
+
+        int max = getMaxResources(config);
+        int included = 0;
+        // in the order planned, so that the response doesn't depend on which fetch was quickest
+        for (IncludeFetcher.Fetch fetch : fetches) {
+            IBaseResource resource = fetched.get(fetch);
+            List<IBaseResource> resources = new ArrayList<>();
+            if (resource instanceof Bundle) {
+                for (Bundle.Entry entry : ((Bundle) resource).getEntry()) {
+                    if (entry.getResource()!=null) {
+                        resources.add(entry.getResource());
+                    }
+                }
+            } else if (resource!=null) {
+                resources.add(resource);
+            }
+
+            for (IBaseResource include : resources) {
+                String id = include.getIdElement().toUnqualifiedVersionless().getValue();
+                if (included >= max || !present.add(id)) {
+                    continue;
+                }
+                Bundle.Entry entry = bundle.addEntry();
+                entry.setResource((IResource) include);
+                entry.getSearch().setMode(SearchEntryModeEnum.INCLUDE);
+                if (fullUrlBase!=null) {
+                    entry.setFullUrl(fullUrlBase + id);
+                }
+                included++;
+            }
+        }
+
+        try {
+            finish(codec.encode(bundle, assemble.clientContentType, assemble.projection), null);
+        } catch (RuntimeException ex) {
+            finish(null, ex);
+        }
+    }
+
+    /**
+     * @return the server base that upstream uses in the fullUrls of the searchset, e.g. http://example.org/fhir/
+     */
+    private String getFullUrlBase() {
+        for (Bundle.Entry entry : bundle.getEntry()) {
+            String fullUrl = entry.getFullUrl();
+            if (entry.getResource()==null || fullUrl==null) {
+                continue;
+            }
+            String id = entry.getResource().getIdElement().toUnqualifiedVersionless().getValue();
+            if (id!=null && fullUrl.endsWith("/" + id)) {
+                return fullUrl.substring(0, fullUrl.length() - id.length());
+            }
+        }
+        return null;
+    }
+
+    private void finish(Contents contents, RuntimeException error) {
+        getContext().parent().tell(new Assembled(contents, error), getSelf());
+        getContext().stop(getSelf());
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof IncludeFetcher.Fetched) {
+            processFetched((IncludeFetcher.Fetched) msg);
+        } else {
+            unhandled(msg);
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSelection;
+import akka.actor.ReceiveTimeout;
+import akka.actor.UntypedActor;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.http.HttpStatus;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.AddOrchestrationToCoreResponse;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.FinishRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPResponse;
+import scala.concurrent.duration.Duration;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fetches a single resource, or a single search page, from upstream on behalf of an {@link IncludeAssembler} and
+ * reports it back parsed. Failures are reported as a null resource, the search is then assembled without it.
+ *
+ * Reads are looked up in the read cache first if it's enabled, and are added to it when fetched, so included resources
+ * are shared with the client reads of the same resources. Fetches go through the upstream circuit breaker if it's
+ * enabled, an open breaker is a failure like any other.
+ */
+public class IncludeFetcher extends UntypedActor {
+    public static class Fetch {
+        final ActorRef requestHandler;
+        final String path;
+        final List<Pair<String, String>> params;
+        final Map<String, String> headers;
+        final String clientContentType;
+
+        public Fetch(ActorRef requestHandler, String path, List<Pair<String, String>> params, Map<String, String> headers, String clientContentType) {
+            this.requestHandler = requestHandler;
+            this.path = path;
+            this.params = params;
+            this.headers = headers;
+            this.clientContentType = clientContentType;
+        }
+
+        boolean isRead() {
+            return params.isEmpty() && CacheKeys.resourcePath(path)!=null;
+        }
+    }
+
+    public static class Fetched {
+        final Fetch fetch;
+        final IBaseResource resource;
+
+        public Fetched(Fetch fetch, IBaseResource resource) {
+            this.fetch = fetch;
+            this.resource = resource;
+        }
+    }
+
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private final MediatorConfig config;
+    private final ResourceCodec codec;
+    private final Fetch fetch;
+    private String readKey;
+    private boolean fetching;
+    private boolean reported;
+    private long upstreamCallSentAt;
+
+
+    public IncludeFetcher(MediatorConfig config, ResourceCodec codec, Fetch fetch) {
+        this.config = config;
+        this.codec = codec;
+        this.fetch = fetch;
+    }
+
+
+    @Override
+    public void preStart() throws Exception {
+        getContext().setReceiveTimeout(Duration.create(config.getRootTimeout()!=null ? config.getRootTimeout() : 60000, TimeUnit.MILLISECONDS));
+
+        if (fetch.isRead() && CachedReadHandler.isReadCacheEnabled(config)) {
+            // fetched with the client's credentials, like the client's own reads
+            readKey = CacheKeys.clientRequestKey(
+                    CacheKeys.clientId(fetch.headers), ResourceCodec.formatOf(fetch.clientContentType), fetch.path, fetch.params
+            );
+            ActorSelection readCache = getContext().actorSelection(config.userPathFor("read-cache"));
+            readCache.tell(new ReadCacheActor.ReadRequest(fetch.requestHandler, getSelf(), CacheKeys.resourcePath(fetch.path), readKey), getSelf());
+        } else {
+            sendRequest();
+        }
+    }
+
+    private void sendRequest() {
+        MediatorHTTPRequest request = new MediatorHTTPRequest(
+                getSelf(),
+                getSelf(),
+                "FHIR Upstream Include",
+                "GET",
+                DynamicConfig.getString(config, "upstream-scheme", "http"),
+                DynamicConfig.getString(config, "upstream-host", "localhost"),
+                DynamicConfig.getInt(config, "upstream-port", 80),
+                fetch.path,
+                null,
+                fetch.headers,
+                fetch.params
+        );
+
+        log.debug("Fetching included " + fetch.path);
+        if (UpstreamCircuitBreakerActor.isCircuitBreakerEnabled(config)) {
+            upstreamCallSentAt = System.currentTimeMillis();
+            ActorSelection breaker = getContext().actorSelection(config.userPathFor("upstream-breaker"));
+            breaker.tell(request, getSelf());
+        } else {
+            ActorSelection httpConnector = getContext().actorSelection(config.userPathFor("http-connector"));
+            httpConnector.tell(request, getSelf());
+        }
+    }
+
+    private void reportUpstreamOutcome(boolean success) {
+        if (upstreamCallSentAt > 0) {
+            long slowCall = DynamicConfig.getLong(config, "circuit-breaker-slow-call", 0);
+            boolean slow = slowCall > 0 && System.currentTimeMillis() - upstreamCallSentAt > slowCall;
+
+            ActorSelection breaker = getContext().actorSelection(config.userPathFor("upstream-breaker"));
+            breaker.tell(new UpstreamCircuitBreakerActor.CallOutcome(success && !slow), getSelf());
+            upstreamCallSentAt = 0;
+        }
+    }
+
+    private void processCachedRead(FinishRequest cached) {
+        if (cached==null) {
+            // we're the first, fetch it on behalf of everyone waiting
+            fetching = true;
+            sendRequest();
+            return;
+        }
+
+        String contentType = cached.getResponseHeaders()!=null ? cached.getResponseHeaders().get("Content-Type") : null;
+        if (contentType==null) {
+            contentType = cached.getResponseMimeType();
+        }
+        if (cached.getResponseStatus()!=HttpStatus.SC_OK || cached.getResponse()==null || contentType==null) {
+            finish(null);
+            return;
+        }
+        finish(codec.parse(new Contents(contentType, cached.getResponse())));
+    }
+
+    private void processResponse(MediatorHTTPResponse response) {
+        String contentType = response.getHeaders().get("Content-Type");
+        if (response.getStatusCode()!=HttpStatus.SC_OK || response.getBody()==null || contentType==null ||
+                (!contentType.contains("json") && !contentType.contains("xml"))) {
+            log.warning("Could not fetch included " + fetch.path + ", upstream responded with " + response.getStatusCode());
+            finish(null);
+            return;
+        }
+
+        IBaseResource resource = codec.parse(new Contents(contentType, response.getBody()));
+        if (fetching && ResourceCodec.isSameFormat(contentType, fetch.clientContentType)) {
+            // cache it as the client read would have been, reads in other formats are left to the client reads
+            Map<String, String> headers = FhirProxyHandler.copyHeaders(response.getHeaders());
+            headers.put("Content-Type", contentType);
+
+            ActorSelection readCache = getContext().actorSelection(config.userPathFor("read-cache"));
+            readCache.tell(new ReadCacheActor.StoreRead(
+                    CacheKeys.resourcePath(fetch.path), readKey, new FinishRequest(response.getBody(), headers, HttpStatus.SC_OK),
+                    DynamicConfig.getLong(config, "read-cache-ttl", 0) * 1000
+            ), getSelf());
+            reported = true;
+        }
+        finish(resource);
+    }
+
+    private void reportFailure() {
+        if (fetching && !reported) {
+            ActorSelection readCache = getContext().actorSelection(config.userPathFor("read-cache"));
+            readCache.tell(new ReadCacheActor.ReadFailed(readKey), getSelf());
+            reported = true;
+        }
+    }
+
+    private void finish(IBaseResource resource) {
+        reportFailure();
+        getContext().parent().tell(new Fetched(fetch, resource), getSelf());
+        getContext().stop(getSelf());
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof ReadCacheActor.ReadResponse) {
+            try {
+                processCachedRead(((ReadCacheActor.ReadResponse) msg).getResponseObject());
+            } catch (RuntimeException ex) {
+                log.warning("Could not read cached " + fetch.path + ": " + ex.getMessage());
+                finish(null);
+            }
+        } else if (msg instanceof MediatorHTTPResponse) {
+            reportUpstreamOutcome(((MediatorHTTPResponse) msg).getStatusCode() < 500);
+            try {
+                processResponse((MediatorHTTPResponse) msg);
+            } catch (RuntimeException ex) {
+                log.warning("Could not fetch included " + fetch.path + ": " + ex.getMessage());
+                finish(null);
+            }
+        } else if (msg instanceof UpstreamCircuitBreakerActor.CircuitOpen) {
+            log.warning("Could not fetch included " + fetch.path + ", the upstream circuit breaker is open");
+            upstreamCallSentAt = 0;
+            finish(null);
+        } else if (msg instanceof ExceptError) {
+            log.warning("Could not fetch included " + fetch.path + ": " + ((ExceptError) msg).getError().getMessage());
+            finish(null);
+        } else if (msg instanceof ReceiveTimeout) {
+            log.warning("Timed out fetching included " + fetch.path);
+            finish(null);
+        } else if (msg instanceof AddOrchestrationToCoreResponse) {
+            // the fetches are part of the client's transaction
+            fetch.requestHandler.forward(msg, getContext());
+        } else {
+            unhandled(msg);
+        }
+    }
+
+    @Override
+    public void postStop() throws Exception {
+        // e.g. the fetch errored or timed out
+        reportUpstreamOutcome(false);
+        reportFailure();
+    }
+}
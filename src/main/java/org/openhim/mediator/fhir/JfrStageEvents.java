@@ -0,0 +1,170 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The JFR events of {@link StageEvents}, named org.openhim.mediator.fhir.&lt;Stage&gt;, e.g. to enable only some of
+ * them in a recording's settings. Only loaded if the JVM has the JFR API.
+ *
+ * The events don't record stack traces, the stage and its fields say where it's from.
+ */
+class JfrStageEvents implements StageEvents.Recorder {
+    @Category({"OpenHIM", "FHIR Proxy"})
+    @StackTrace(false)
+    abstract static class StageEvent extends Event {
+        @Label("Transaction ID")
+        @Description("The OpenHIM transaction")
+        String transactionId;
+
+        @Label("Resource Type")
+        String resourceType;
+
+        @Label("Body Size")
+        @Description("The size of the body that the stage handles (the request body for the whole request), in characters")
+        long bodySize;
+
+        @Label("Source Format")
+        String sourceFormat;
+
+        @Label("Target Format")
+        String targetFormat;
+    }
+
+    @Name("org.openhim.mediator.fhir.ContextAcquisition")
+    @Label("FHIR Context Acquisition")
+    @Description("Waiting for the shared FHIR context")
+    static class ContextAcquisition extends StageEvent {
+    }
+
+    @Name("org.openhim.mediator.fhir.ContextInitialization")
+    @Label("FHIR Context Initialization")
+    @Description("Creating the FHIR context, for the first request or after fhir-context changed")
+    static class ContextInitialization extends StageEvent {
+    }
+
+    @Name("org.openhim.mediator.fhir.Parse")
+    @Label("FHIR Parse")
+    static class Parse extends StageEvent {
+    }
+
+    @Name("org.openhim.mediator.fhir.Validate")
+    @Label("FHIR Validate")
+    static class Validate extends StageEvent {
+    }
+
+    @Name("org.openhim.mediator.fhir.Convert")
+    @Label("FHIR Convert")
+    @Description("Converting a body to another format, i.e. parsing and encoding it")
+    static class Convert extends StageEvent {
+    }
+
+    @Name("org.openhim.mediator.fhir.Encode")
+    @Label("FHIR Encode")
+    static class Encode extends StageEvent {
+    }
+
+    @Name("org.openhim.mediator.fhir.UpstreamWait")
+    @Label("FHIR Upstream Wait")
+    @Description("Waiting for the upstream server's response")
+    static class UpstreamWait extends StageEvent {
+    }
+
+    @Name("org.openhim.mediator.fhir.ClientResponse")
+    @Label("FHIR Client Response")
+    @Description("Handling a request, from receiving it to responding to the client")
+    static class ClientResponse extends StageEvent {
+        @Label("Status")
+        @Description("The response status, or 0 if the request failed with an error")
+        int status;
+    }
+
+    private static class JfrSpan extends StageEvents.Span {
+        private final StageEvent event;
+        private boolean ended;
+
+        JfrSpan(StageEvent event) {
+            this.event = event;
+        }
+
+        @Override
+        public boolean isEnabled() {
+            return true;
+        }
+
+        @Override
+        public void setResourceType(String resourceType) {
+            event.resourceType = resourceType;
+        }
+
+        @Override
+        public void setBodySize(long bodySize) {
+            event.bodySize = bodySize;
+        }
+
+        @Override
+        public void setFormats(String sourceFormat, String targetFormat) {
+            event.sourceFormat = sourceFormat;
+            event.targetFormat = targetFormat;
+        }
+
+        @Override
+        public void setStatus(int status) {
+            if (event instanceof ClientResponse) {
+                ((ClientResponse) event).status = status;
+            }
+        }
+
+        @Override
+        public void end() {
+            if (!ended) {
+                ended = true;
+                event.commit();
+            }
+        }
+    }
+
+
+    private static StageEvent newEvent(StageEvents.Stage stage) {
+        switch (stage) {
+            case CONTEXT_ACQUISITION:
+                return new ContextAcquisition();
+            case CONTEXT_INITIALIZATION:
+                return new ContextInitialization();
+            case PARSE:
+                return new Parse();
+            case VALIDATE:
+                return new Validate();
+            case CONVERT:
+                return new Convert();
+            case ENCODE:
+                return new Encode();
+            case UPSTREAM_WAIT:
+                return new UpstreamWait();
+            default:
+                return new ClientResponse();
+        }
+    }
+
+    @Override
+    public StageEvents.Span begin(StageEvents.Stage stage, String transactionId) {
+        StageEvent event = newEvent(stage);
+        if (!event.isEnabled()) {
+            return StageEvents.DISABLED;
+        }
+
+        event.transactionId = transactionId;
+        event.begin();
+        return new JfrSpan(event);
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.instance.hapi.validation.IValidationSupport;
+import org.hl7.fhir.instance.model.OperationOutcome;
+import org.hl7.fhir.instance.model.StructureDefinition;
+import org.hl7.fhir.instance.model.ValueSet;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Supplies the instance validator with locally loaded StructureDefinitions and ValueSets, see
+ * {@link ProfileValidatorActor}.
+ *
+ * The codes of the code systems that the ValueSets define are indexed in memory, so codes are validated with a lookup
+ * rather than by a terminology server or by searching the ValueSets. Once loaded it's only read, and can be shared by
+ * validators on any thread.
+ */
+public class LocalProfileSupport implements IValidationSupport {
+    private final Map<String, StructureDefinition> structureDefinitions = new HashMap<>();
+    private final Map<String, ValueSet> valueSets = new HashMap<>();
+    // code system -> the ValueSet that defines it
+    private final Map<String, ValueSet> codeSystems = new HashMap<>();
+    // code system -> code -> concept
+    private final Map<String, Map<String, ValueSet.ConceptDefinitionComponent>> concepts = new HashMap<>();
+
+
+    /**
+     * @return false if the resource can't be used, e.g. it's a StructureDefinition without a snapshot
+     */
+    public boolean add(IBaseResource resource) {
+        if (resource instanceof StructureDefinition) {
+            StructureDefinition structureDefinition = (StructureDefinition) resource;
+            if (structureDefinition.getUrl()==null || !structureDefinition.hasSnapshot()) {
+                return false;
+            }
+            structureDefinitions.put(structureDefinition.getUrl(), structureDefinition);
+            return true;
+
+        } else if (resource instanceof ValueSet) {
+            ValueSet valueSet = (ValueSet) resource;
+            if (valueSet.getUrl()!=null) {
+                valueSets.put(valueSet.getUrl(), valueSet);
+            }
+            if (valueSet.hasCodeSystem() && valueSet.getCodeSystem().getSystem()!=null) {
+                indexCodeSystem(valueSet);
+            }
+            return true;
+        }
+
+        return false;
+    }
+
+    private void indexCodeSystem(ValueSet valueSet) {
+        String system = valueSet.getCodeSystem().getSystem();
+        codeSystems.put(system, valueSet);
+
+        Map<String, ValueSet.ConceptDefinitionComponent> codes = concepts.get(system);
+        if (codes==null) {
+            codes = new HashMap<>();
+            concepts.put(system, codes);
+        }
+        indexConcepts(codes, valueSet.getCodeSystem().getConcept());
+    }
+
+    private void indexConcepts(Map<String, ValueSet.ConceptDefinitionComponent> codes, List<ValueSet.ConceptDefinitionComponent> concepts) {
+        for (ValueSet.ConceptDefinitionComponent concept : concepts) {
+            if (concept.getCode()!=null) {
+                codes.put(concept.getCode(), concept);
+            }
+            indexConcepts(codes, concept.getConcept());
+        }
+    }
+
+    public Collection<StructureDefinition> getStructureDefinitions() {
+        return Collections.unmodifiableCollection(structureDefinitions.values());
+    }
+
+    public int getValueSetCount() {
+        return valueSets.size();
+    }
+
+    public int getCodeCount() {
+        int count = 0;
+        for (Map<String, ValueSet.ConceptDefinitionComponent> codes : concepts.values()) {
+            count += codes.size();
+        }
+        return count;
+    }
+
+    @Override
+    public ValueSet.ValueSetExpansionComponent expandValueSet(FhirContext fhirContext, ValueSet.ConceptSetComponent include) {
+        Map<String, ValueSet.ConceptDefinitionComponent> codes = concepts.get(include.getSystem());
+        if (codes==null || include.hasFilter()) {
+            return null;
+        }
+
+        ValueSet.ValueSetExpansionComponent expansion = new ValueSet.ValueSetExpansionComponent();
+        if (include.hasConcept()) {
+            for (ValueSet.ConceptReferenceComponent reference : include.getConcept()) {
+                ValueSet.ConceptDefinitionComponent concept = codes.get(reference.getCode());
+                if (concept!=null) {
+                    expansion.addContains().setSystem(include.getSystem()).setCode(concept.getCode()).setDisplay(concept.getDisplay());
+                }
+            }
+        } else {
+            for (ValueSet.ConceptDefinitionComponent concept : codes.values()) {
+                expansion.addContains().setSystem(include.getSystem()).setCode(concept.getCode()).setDisplay(concept.getDisplay());
+            }
+        }
+        return expansion;
+    }
+
+    @Override
+    public ValueSet fetchCodeSystem(FhirContext fhirContext, String system) {
+        return codeSystems.get(system);
+    }
+
+    @Override
+    public <T extends IBaseResource> T fetchResource(FhirContext fhirContext, Class<T> resourceClass, String uri) {
+        if (resourceClass.isAssignableFrom(StructureDefinition.class) && structureDefinitions.containsKey(uri)) {
+            return resourceClass.cast(structureDefinitions.get(uri));
+        }
+        if (resourceClass.isAssignableFrom(ValueSet.class) && valueSets.containsKey(uri)) {
+            return resourceClass.cast(valueSets.get(uri));
+        }
+        return null;
+    }
+
+    @Override
+    public boolean isCodeSystemSupported(FhirContext fhirContext, String system) {
+        return concepts.containsKey(system);
+    }
+
+    @Override
+    public CodeValidationResult validateCode(FhirContext fhirContext, String system, String code, String display) {
+        Map<String, ValueSet.ConceptDefinitionComponent> codes = concepts.get(system);
+        if (codes==null) {
+            return null;
+        }
+
+        ValueSet.ConceptDefinitionComponent concept = codes.get(code);
+        if (concept==null) {
+            return new CodeValidationResult(OperationOutcome.IssueSeverity.ERROR, "Unknown code " + system + "#" + code);
+        }
+        if (display!=null && concept.getDisplay()!=null && !display.equals(concept.getDisplay())) {
+            return new CodeValidationResult(OperationOutcome.IssueSeverity.WARNING,
+                    "Display for " + system + "#" + code + " should be '" + concept.getDisplay() + "'", concept);
+        }
+        return new CodeValidationResult(concept);
+    }
+}
@@ -7,6 +7,7 @@
 package org.openhim.mediator.fhir;
 
 import akka.actor.ActorSystem;
+import akka.actor.Inbox;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
 import org.apache.commons.io.FileUtils;
@@ -21,15 +22,33 @@ import java.util.Properties;
 
 public class MediatorMain {
 
-    private static RoutingTable buildRoutingTable() throws RoutingTable.RouteAlreadyMappedException {
+    static RoutingTable buildRoutingTable() throws RoutingTable.RouteAlreadyMappedException {
         RoutingTable routingTable = new RoutingTable();
+        // first match wins
+        routingTable.addRegexRoute(".*/metadata", MetadataHandler.class);
+        routingTable.addRegexRoute(".*/\\$ingest", BulkIngestHandler.class);
+        routingTable.addRegexRoute(".*/Binary(/.*)?", RawContentHandler.class);
+        routingTable.addRegexRoute(".*/[A-Z][A-Za-z]+/[^/_$][^/]*(/_history/[^/]+)?", CachedReadHandler.class);
         routingTable.addRegexRoute(".*", FhirProxyHandler.class);
         return routingTable;
     }
 
-    private static StartupActorsConfig buildStartupActorsConfig() {
+    static StartupActorsConfig buildStartupActorsConfig() {
         StartupActorsConfig startupActors = new StartupActorsConfig();
         startupActors.addActor("fhir-context", FhirContextActor.class);
+        startupActors.addActor("search-page-cache", SearchPageCacheActor.class);
+        startupActors.addActor("resource-versions", ResourceVersionActor.class);
+        startupActors.addActor("read-cache", ReadCacheActor.class);
+        startupActors.addActor("metadata-cache", MetadataCacheActor.class);
+        startupActors.addActor("post-deduplication", WriteDeduplicationActor.class);
+        startupActors.addActor("create-batcher", CreateBatchActor.class);
+        startupActors.addActor("upstream-hedging", HedgedReadActor.class);
+        startupActors.addActor("upstream-breaker", UpstreamCircuitBreakerActor.class);
+        startupActors.addActor("rate-limiter", RateLimitActor.class);
+        startupActors.addActor("validation-cache", ValidationCacheActor.class);
+        startupActors.addActor("profile-validators", ProfileValidatorActor.class);
+        startupActors.addActor("conversion-cache", ConversionCacheActor.class);
+        startupActors.addActor("traffic-recorder", TrafficRecorderActor.class);
         return startupActors;
     }
 
@@ -87,24 +106,38 @@ public class MediatorMain {
         return config;
     }
 
-    public static void main(String... args) throws Exception {
-        //setup actor system
-        final ActorSystem system = ActorSystem.create("mediator");
-        //setup logger for main
-        final LoggingAdapter log = Logging.getLogger(system, "main");
-
-        //setup actors
-        log.info("Initializing mediator actors...");
+    /**
+     * The engine waits for each request's response with an actor Inbox. The extension that backs inboxes is created
+     * lazily and concurrent first use fails ('actor name [dsl] is not unique'), so create it before serving requests.
+     */
+    static void initInboxExtension(ActorSystem system) {
+        Inbox.create(system);
+    }
 
+    public static void main(String... args) throws Exception {
         String configPath = null;
         if (args.length==2 && args[0].equals("--conf")) {
             configPath = args[1];
-            log.info("Loading mediator configuration from '" + configPath + "'...");
+        }
+        final MediatorConfig config = loadConfig(configPath);
+
+        //setup actor system, as a member of a cluster if the caches are shared with other instances
+        final ActorSystem system = ActorSystem.create("mediator", CacheCluster.actorSystemConfig(config));
+        //setup logger for main
+        final LoggingAdapter log = Logging.getLogger(system, "main");
+
+        if (configPath!=null) {
+            log.info("Loaded mediator configuration from '" + configPath + "'");
         } else {
             log.info("No configuration specified. Using default properties...");
         }
+        if (CacheCluster.isClusterEnabled(system)) {
+            log.info("Sharing caches with the cluster's other members");
+        }
 
-        MediatorConfig config = loadConfig(configPath);
+        //setup actors
+        log.info("Initializing mediator actors...");
+        initInboxExtension(system);
         final MediatorServer server = new MediatorServer(system, config);
 
         //setup shutdown hook
@@ -113,6 +146,7 @@ public class MediatorMain {
             public void run() {
                 log.info("Shutting down mediator");
                 server.stop();
+                CacheSnapshot.writeSnapshots(system, config);
                 system.shutdown();
             }
         });
@@ -0,0 +1,193 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.ActorRef;
+import akka.actor.Props;
+import akka.actor.UntypedActor;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.MediatorRequestMessage;
+import org.openhim.mediator.engine.messages.SimpleMediatorRequest;
+import org.openhim.mediator.engine.messages.SimpleMediatorResponse;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caches the upstream server's conformance statement (/metadata), pre-encoded in both JSON and XML.
+ *
+ * Once fetched the statement is served from memory, unless metadata-cache-enabled is off (see {@link MetadataHandler}).
+ * After metadata-cache-ttl it is refreshed in the background (see {@link MetadataFetcher}) while the current copy
+ * continues to be served, also when the refresh fails because the upstream server is unavailable. Only the very first
+ * request has to wait for upstream. While there is no copy, a failed fetch is only retried after a while, in the
+ * meantime requests are handled as usual.
+ *
+ * The statement is shared by every client, so it's fetched without any client's credentials: the cache requires the
+ * upstream server to serve /metadata without authentication, as FHIR servers generally do. If it doesn't, the fetch
+ * fails and requests for it are handled as usual, with their own credentials.
+ */
+public class MetadataCacheActor extends UntypedActor {
+    /**
+     * Lookup the conformance statement. The request object is the metadata path.
+     */
+    public static class MetadataRequest extends SimpleMediatorRequest<String> {
+        final String contentType;
+
+        public MetadataRequest(ActorRef requestHandler, ActorRef respondTo, String path, String contentType) {
+            super(requestHandler, respondTo, path);
+            this.contentType = contentType;
+        }
+    }
+
+    /**
+     * The statement in the requested format, or null if it isn't available.
+     */
+    public static class MetadataResponse extends SimpleMediatorResponse<Contents> {
+        public MetadataResponse(MediatorRequestMessage originalRequest, Contents responseObject) {
+            super(originalRequest, responseObject);
+        }
+    }
+
+    static class MetadataFetched {
+        final String path;
+        final Contents json;
+        final Contents xml;
+
+        MetadataFetched(String path, Contents json, Contents xml) {
+            this.path = path;
+            this.json = json;
+            this.xml = xml;
+        }
+    }
+
+    static class MetadataFetchFailed {
+        final String path;
+
+        MetadataFetchFailed(String path) {
+            this.path = path;
+        }
+    }
+
+    private static class CachedMetadata {
+        Contents json;
+        Contents xml;
+        long fetchedAt;
+        long lastAttempt;
+        boolean refreshing;
+        final List<MetadataRequest> waiting = new ArrayList<>();
+    }
+
+
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private final MediatorConfig config;
+    // per metadata path, in case the mediator fronts more than one base
+    private final Map<String, CachedMetadata> metadata = new HashMap<>();
+
+
+    public MetadataCacheActor(MediatorConfig config) {
+        this.config = config;
+    }
+
+
+    private long getTtlMillis() {
+        return DynamicConfig.getLong(config, "metadata-cache-ttl", 300) * 1000;
+    }
+
+    private long getRetryMillis() {
+        return Math.min(getTtlMillis(), 10000);
+    }
+
+    private void refresh(String path, CachedMetadata cached) {
+        cached.refreshing = true;
+        cached.lastAttempt = System.currentTimeMillis();
+        getContext().actorOf(Props.create(MetadataFetcher.class, config, path));
+    }
+
+    private void processMetadataRequest(MetadataRequest msg) {
+        String path = msg.getRequestObject();
+        CachedMetadata cached = metadata.get(path);
+        if (cached==null) {
+            cached = new CachedMetadata();
+            metadata.put(path, cached);
+        }
+
+        long now = System.currentTimeMillis();
+        boolean canRetry = cached.lastAttempt + getRetryMillis() < now;
+
+        if (cached.json==null) {
+            if (cached.refreshing) {
+                cached.waiting.add(msg);
+            } else if (canRetry) {
+                cached.waiting.add(msg);
+                refresh(path, cached);
+            } else {
+                // the last fetch failed a moment ago, rather than waiting on upstream again it's handled as usual
+                respond(msg, cached);
+            }
+            return;
+        }
+
+        respond(msg, cached);
+
+        boolean expired = cached.fetchedAt + getTtlMillis() < now;
+        if (expired && canRetry && !cached.refreshing) {
+            log.debug("Refreshing conformance statement " + path + " in the background");
+            refresh(path, cached);
+        }
+    }
+
+    private void respond(MetadataRequest msg, CachedMetadata cached) {
+        Contents contents = cached.json==null ? null : (ResourceCodec.isJson(msg.contentType) ? cached.json : cached.xml);
+        msg.getRespondTo().tell(new MetadataResponse(msg, contents), getSelf());
+    }
+
+    private void processFetched(MetadataFetched msg) {
+        CachedMetadata cached = metadata.get(msg.path);
+        cached.json = msg.json;
+        cached.xml = msg.xml;
+        cached.fetchedAt = System.currentTimeMillis();
+        cached.refreshing = false;
+
+        for (MetadataRequest request : cached.waiting) {
+            respond(request, cached);
+        }
+        cached.waiting.clear();
+    }
+
+    private void processFetchFailed(MetadataFetchFailed msg) {
+        CachedMetadata cached = metadata.get(msg.path);
+        cached.refreshing = false;
+
+        if (cached.json!=null) {
+            log.warning("Could not refresh conformance statement " + msg.path + ", continuing to serve the cached copy");
+        }
+
+        // without a copy the waiting requests are handled as usual, which reports the upstream failure to the client
+        for (MetadataRequest request : cached.waiting) {
+            respond(request, cached);
+        }
+        cached.waiting.clear();
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof MetadataRequest) {
+            processMetadataRequest((MetadataRequest) msg);
+        } else if (msg instanceof MetadataFetched) {
+            processFetched((MetadataFetched) msg);
+        } else if (msg instanceof MetadataFetchFailed) {
+            processFetchFailed((MetadataFetchFailed) msg);
+        } else {
+            unhandled(msg);
+        }
+    }
+}
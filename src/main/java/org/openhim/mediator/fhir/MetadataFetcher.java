@@ -0,0 +1,124 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.ActorSelection;
+import akka.actor.ReceiveTimeout;
+import akka.actor.UntypedActor;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.http.HttpStatus;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.AddOrchestrationToCoreResponse;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPResponse;
+import scala.concurrent.duration.Duration;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fetches the conformance statement from upstream on behalf of the {@link MetadataCacheActor}
+ * and encodes it in both JSON and XML. It's fetched without credentials, as it's shared by every client.
+ */
+public class MetadataFetcher extends UntypedActor {
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private final MediatorConfig config;
+    private final String path;
+    private ResourceCodec codec;
+
+
+    public MetadataFetcher(MediatorConfig config, String path) {
+        this.config = config;
+        this.path = path;
+    }
+
+
+    @Override
+    public void preStart() throws Exception {
+        getContext().setReceiveTimeout(Duration.create(config.getRootTimeout()!=null ? config.getRootTimeout() : 60000, TimeUnit.MILLISECONDS));
+        ActorSelection actor = getContext().actorSelection(config.userPathFor("fhir-context"));
+        actor.tell(new FhirContextActor.FhirContextRequest(getSelf(), getSelf()), getSelf());
+    }
+
+    private void sendRequest() {
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        headers.put("Accept", "XML".equalsIgnoreCase(DynamicConfig.getString(config, "upstream-format", "JSON")) ? Constants.FHIR_MIME_XML : Constants.FHIR_MIME_JSON);
+
+        MediatorHTTPRequest request = new MediatorHTTPRequest(
+                getSelf(),
+                getSelf(),
+                "FHIR Upstream Metadata Refresh",
+                "GET",
+                DynamicConfig.getString(config, "upstream-scheme", "http"),
+                DynamicConfig.getString(config, "upstream-host", "localhost"),
+                DynamicConfig.getInt(config, "upstream-port", 80),
+                path,
+                null,
+                headers,
+                Collections.<Pair<String, String>>emptyList()
+        );
+
+        log.info("Fetching conformance statement " + path);
+        ActorSelection httpConnector = getContext().actorSelection(config.userPathFor("http-connector"));
+        httpConnector.tell(request, getSelf());
+    }
+
+    private void processResponse(MediatorHTTPResponse response) {
+        String contentType = response.getHeaders().get("Content-Type");
+        if (response.getStatusCode()!=HttpStatus.SC_OK || response.getBody()==null || contentType==null ||
+                (!contentType.contains("json") && !contentType.contains("xml"))) {
+            if (response.getStatusCode()==HttpStatus.SC_UNAUTHORIZED || response.getStatusCode()==HttpStatus.SC_FORBIDDEN) {
+                log.warning("Upstream requires credentials for " + path + ", it can't be cached (see metadata-cache-enabled)");
+            } else {
+                log.warning("Upstream responded to " + path + " with status " + response.getStatusCode());
+            }
+            finish(new MetadataCacheActor.MetadataFetchFailed(path));
+            return;
+        }
+
+        IBaseResource statement = codec.parse(new Contents(contentType, response.getBody()));
+        finish(new MetadataCacheActor.MetadataFetched(
+                path, codec.encode(statement, Constants.FHIR_MIME_JSON), codec.encode(statement, Constants.FHIR_MIME_XML)
+        ));
+    }
+
+    private void finish(Object result) {
+        getContext().parent().tell(result, getSelf());
+        getContext().stop(getSelf());
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof FhirContextActor.FhirContextResponse) {
+            codec = new ResourceCodec(((FhirContextActor.FhirContextResponse) msg).getResponseObject());
+            sendRequest();
+        } else if (msg instanceof MediatorHTTPResponse) {
+            try {
+                processResponse((MediatorHTTPResponse) msg);
+            } catch (RuntimeException ex) {
+                log.warning("Could not read conformance statement " + path + ": " + ex.getMessage());
+                finish(new MetadataCacheActor.MetadataFetchFailed(path));
+            }
+        } else if (msg instanceof ExceptError) {
+            log.warning("Could not fetch conformance statement " + path + ": " + ((ExceptError) msg).getError().getMessage());
+            finish(new MetadataCacheActor.MetadataFetchFailed(path));
+        } else if (msg instanceof ReceiveTimeout) {
+            finish(new MetadataCacheActor.MetadataFetchFailed(path));
+        } else if (msg instanceof AddOrchestrationToCoreResponse) {
+            // background fetches are not part of a client transaction
+        } else {
+            unhandled(msg);
+        }
+    }
+}
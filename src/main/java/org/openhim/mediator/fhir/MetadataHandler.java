@@ -0,0 +1,125 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSelection;
+import akka.actor.Props;
+import akka.actor.UntypedActor;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.http.HttpStatus;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.FinishRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Serves the conformance statement (/metadata) from the {@link MetadataCacheActor}.
+ *
+ * Requests that the cache can't answer, i.e. anything but a plain GET or when the statement couldn't be fetched at all,
+ * are handled by a {@link FhirProxyHandler}, as are all requests if metadata-cache-enabled isn't set. Plain GETs are
+ * admitted by the rate limiter and are subject to their time budget like any other request (see {@link ClientAdmission}).
+ */
+public class MetadataHandler extends UntypedActor {
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private final MediatorConfig config;
+
+    private MediatorHTTPRequest request;
+    private ClientAdmission admission;
+
+
+    public MetadataHandler(MediatorConfig config) {
+        this.config = config;
+    }
+
+
+    public static boolean isMetadataCacheEnabled(MediatorConfig config) {
+        return DynamicConfig.getBoolean(config, "metadata-cache-enabled", true);
+    }
+
+    private boolean isPlainRead() {
+        if (!isMetadataCacheEnabled(config) || !"GET".equalsIgnoreCase(request.getMethod())) {
+            return false;
+        }
+        for (Pair<String, String> param : request.getParams()) {
+            if (!"_format".equals(param.getKey())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void delegate() {
+        ActorRef handler = getContext().actorOf(Props.create(FhirProxyHandler.class, config));
+        handler.tell(request, getSelf());
+    }
+
+    private void lookupMetadata() {
+        ActorSelection metadataCache = getContext().actorSelection(config.userPathFor("metadata-cache"));
+        metadataCache.tell(new MetadataCacheActor.MetadataRequest(
+                request.getRequestHandler(), getSelf(), request.getPath(), FhirProxyHandler.determineClientContentType(request)
+        ), getSelf());
+    }
+
+    private void processMetadata(Contents statement) {
+        if (admission.isFinished()) {
+            return;
+        }
+
+        if (statement==null) {
+            // already admitted on its behalf
+            admission.handOver();
+            ActorRef handler = getContext().actorOf(Props.create(FhirProxyHandler.class, config, true));
+            handler.tell(request, getSelf());
+            return;
+        }
+
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        headers.put("Content-Type", statement.contentType);
+        admission.respond(new FinishRequest(statement.content, headers, HttpStatus.SC_OK));
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof MediatorHTTPRequest) { //inbound request
+            request = (MediatorHTTPRequest) msg;
+
+            if (!isPlainRead()) {
+                delegate();
+                return;
+            }
+            admission = new ClientAdmission(getContext(), config, request);
+            if (!admission.admit()) {
+                lookupMetadata();
+            }
+
+        } else if (msg instanceof RateLimitActor.Admitted) { //the rate limiter let the request through
+            lookupMetadata();
+
+        } else if (admission!=null && admission.handle(msg)) {
+            // throttled or timed out
+
+        } else if (msg instanceof MetadataCacheActor.MetadataResponse) { //response from the metadata cache
+            processMetadata(((MetadataCacheActor.MetadataResponse) msg).getResponseObject());
+
+        } else {
+            unhandled(msg);
+        }
+    }
+
+    @Override
+    public void postStop() throws Exception {
+        if (admission!=null) {
+            admission.release();
+        }
+    }
+}
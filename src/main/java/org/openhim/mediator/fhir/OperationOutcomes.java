@@ -0,0 +1,182 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.util.OperationOutcomeUtil;
+import org.apache.http.HttpStatus;
+import org.hl7.fhir.instance.model.api.IBaseOperationOutcome;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Encodes the OperationOutcomes of the mediator's common error responses.
+ *
+ * These all consist of a single error issue, so rather than building and encoding an OperationOutcome for every
+ * rejection, an OperationOutcome is encoded once per FHIR version and format with a placeholder for the details,
+ * and the details are escaped into it. OperationOutcomes with several issues, such as validation results, are
+ * encoded in full as usual.
+ */
+public class OperationOutcomes {
+    public enum Kind {
+        BAD_REQUEST(HttpStatus.SC_BAD_REQUEST, "The request is not valid"),
+        UNSUPPORTED_MEDIA_TYPE(HttpStatus.SC_UNSUPPORTED_MEDIA_TYPE, "The request body must be FHIR JSON or XML"),
+        TOO_LARGE(HttpStatus.SC_REQUEST_TOO_LONG, "The request body is too large"),
+        OVERLOADED(429, "Too many requests, try again later"),
+        UPSTREAM_UNAVAILABLE(HttpStatus.SC_SERVICE_UNAVAILABLE, "The upstream server is unavailable, try again later"),
+        TIMEOUT(HttpStatus.SC_GATEWAY_TIMEOUT, "The request did not complete in time");
+
+        final int status;
+        final String details;
+
+        Kind(int status, String details) {
+            this.status = status;
+            this.details = details;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public String getDetails() {
+            return details;
+        }
+    }
+
+    private static class Template {
+        final String prefix;
+        final String suffix;
+
+        Template(String prefix, String suffix) {
+            this.prefix = prefix;
+            this.suffix = suffix;
+        }
+    }
+
+    private static final String PLACEHOLDER = "@@details@@";
+
+    // FHIR version|format -> template
+    private static final ConcurrentMap<String, Template> templates = new ConcurrentHashMap<>();
+
+    private OperationOutcomes() {}
+
+
+    /**
+     * @return an OperationOutcome with an error issue with the kind's details, encoded in the content type
+     */
+    public static String encode(FhirContext fhirContext, Kind kind, String contentType) {
+        return encode(fhirContext, kind.details, contentType);
+    }
+
+    /**
+     * @return an OperationOutcome with an error issue with the details, encoded in the content type
+     */
+    public static String encode(FhirContext fhirContext, String details, String contentType) {
+        boolean json = ResourceCodec.isJson(contentType);
+        Template template = getTemplate(fhirContext, contentType);
+        if (template==null) {
+            return encodeInFull(fhirContext, details, contentType);
+        }
+
+        String escaped = json ? escapeJson(details) : escapeXml(details);
+        return new StringBuilder(template.prefix.length() + escaped.length() + template.suffix.length())
+                .append(template.prefix).append(escaped).append(template.suffix).toString();
+    }
+
+    private static Template getTemplate(FhirContext fhirContext, String contentType) {
+        String key = fhirContext.getVersion().getVersion() + "|" + ResourceCodec.formatOf(contentType);
+        Template template = templates.get(key);
+        if (template==null) {
+            String encoded = encodeInFull(fhirContext, PLACEHOLDER, contentType);
+            int at = encoded.indexOf(PLACEHOLDER);
+            if (at < 0 || encoded.indexOf(PLACEHOLDER, at + 1) >= 0) {
+                // can't template it, encode every time
+                return null;
+            }
+            template = new Template(encoded.substring(0, at), encoded.substring(at + PLACEHOLDER.length()));
+            templates.putIfAbsent(key, template);
+        }
+        return template;
+    }
+
+    private static String encodeInFull(FhirContext fhirContext, String details, String contentType) {
+        IBaseOperationOutcome outcome = OperationOutcomeUtil.newInstance(fhirContext);
+        OperationOutcomeUtil.addIssue(fhirContext, outcome, "error", details, null, null);
+        return new ResourceCodec(fhirContext).newParser(contentType).encodeResourceToString(outcome);
+    }
+
+    static String escapeJson(String value) {
+        if (value==null) {
+            return "";
+        }
+        StringBuilder escaped = new StringBuilder(value.length() + 16);
+        for (int i=0; i<value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    escaped.append("\\\"");
+                    break;
+                case '\\':
+                    escaped.append("\\\\");
+                    break;
+                case '\n':
+                    escaped.append("\\n");
+                    break;
+                case '\r':
+                    escaped.append("\\r");
+                    break;
+                case '\t':
+                    escaped.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        escaped.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        escaped.append(c);
+                    }
+            }
+        }
+        return escaped.toString();
+    }
+
+    static String escapeXml(String value) {
+        if (value==null) {
+            return "";
+        }
+        StringBuilder escaped = new StringBuilder(value.length() + 16);
+        for (int i=0; i<value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '&':
+                    escaped.append("&amp;");
+                    break;
+                case '<':
+                    escaped.append("&lt;");
+                    break;
+                case '>':
+                    escaped.append("&gt;");
+                    break;
+                case '"':
+                    escaped.append("&quot;");
+                    break;
+                case '\'':
+                    escaped.append("&apos;");
+                    break;
+                case '\n':
+                case '\r':
+                case '\t':
+                    escaped.append("&#").append((int) c).append(';');
+                    break;
+                default:
+                    // other control chars aren't allowed in XML at all
+                    escaped.append(c < 0x20 ? ' ' : c);
+            }
+        }
+        return escaped.toString();
+    }
+}
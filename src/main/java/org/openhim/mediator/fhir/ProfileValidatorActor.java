@@ -0,0 +1,233 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.ActorRef;
+import akka.actor.UntypedActor;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum;
+import ca.uhn.fhir.model.primitive.IdDt;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.validation.FhirValidator;
+import org.apache.commons.io.FileUtils;
+import org.hl7.fhir.instance.hapi.validation.DefaultProfileValidationSupport;
+import org.hl7.fhir.instance.hapi.validation.FhirInstanceValidator;
+import org.hl7.fhir.instance.hapi.validation.ValidationSupportChain;
+import org.hl7.fhir.instance.model.Bundle;
+import org.hl7.fhir.instance.model.StructureDefinition;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.MediatorRequestMessage;
+import org.openhim.mediator.engine.messages.SimpleMediatorRequest;
+import org.openhim.mediator.engine.messages.SimpleMediatorResponse;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Validates request bodies against the profiles that they declare in meta.profile, e.g. national profiles.
+ *
+ * The StructureDefinitions (with pre-generated snapshots) and ValueSets in validation-profiles-directory (as JSON or XML
+ * files, on their own or in Bundles) are loaded at startup, see {@link LocalProfileSupport}, and a validator is set up
+ * for each profile. Handlers ask for the validators of the profiles that a body declares, and run them alongside the
+ * default validator. Profiles that haven't been loaded are not validated against.
+ *
+ * Profiles are only supported for DSTU2.
+ */
+public class ProfileValidatorActor extends UntypedActor {
+    /**
+     * Lookup the validators for profile URLs.
+     */
+    public static class ProfileValidatorRequest extends SimpleMediatorRequest<List<String>> {
+        public ProfileValidatorRequest(ActorRef requestHandler, ActorRef respondTo, List<String> profiles) {
+            super(requestHandler, respondTo, profiles);
+        }
+    }
+
+    /**
+     * The validators of the profiles that have been loaded, the validators are thread safe.
+     */
+    public static class ProfileValidatorResponse extends SimpleMediatorResponse<List<FhirValidator>> {
+        public ProfileValidatorResponse(MediatorRequestMessage originalRequest, List<FhirValidator> responseObject) {
+            super(originalRequest, responseObject);
+        }
+    }
+
+
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private final MediatorConfig config;
+
+    private String loadedConfig;
+    // profile url -> validator
+    private final Map<String, FhirValidator> validators = new HashMap<>();
+
+
+    public ProfileValidatorActor(MediatorConfig config) {
+        this.config = config;
+    }
+
+
+    public static boolean isProfileValidationEnabled(MediatorConfig config) {
+        return !DynamicConfig.getString(config, "validation-profiles-directory", "").isEmpty();
+    }
+
+    /**
+     * @return the profiles that a resource declares in meta.profile
+     */
+    public static List<String> getProfiles(IBaseResource resource) {
+        if (!(resource instanceof IResource)) {
+            return Collections.emptyList();
+        }
+
+        List<String> profiles = new ArrayList<>();
+        List<IdDt> declared = ResourceMetadataKeyEnum.PROFILES.get((IResource) resource);
+        if (declared!=null) {
+            for (IdDt profile : declared) {
+                if (profile.getValue()!=null) {
+                    profiles.add(profile.getValue());
+                }
+            }
+        }
+        return profiles;
+    }
+
+    /**
+     * @return the configuration that the validators depend on
+     */
+    static String getProfileConfig(MediatorConfig config) {
+        return DynamicConfig.getString(config, "fhir-context", "DSTU2") + "|" + DynamicConfig.getString(config, "validation-profiles-directory", "");
+    }
+
+    @Override
+    public void preStart() throws Exception {
+        checkProfiles();
+    }
+
+    private void checkProfiles() {
+        String current = getProfileConfig(config);
+        if (current.equals(loadedConfig)) {
+            return;
+        }
+
+        validators.clear();
+        loadedConfig = current;
+        if (!isProfileValidationEnabled(config)) {
+            return;
+        }
+        if (!"DSTU2".equals(DynamicConfig.getString(config, "fhir-context", "DSTU2"))) {
+            log.warning("Profile validation is only supported for DSTU2, request bodies won't be validated against their profiles");
+            return;
+        }
+
+        loadProfiles(new File(DynamicConfig.getString(config, "validation-profiles-directory", "")));
+    }
+
+    private void loadProfiles(File directory) {
+        if (!directory.isDirectory()) {
+            log.warning("Profile directory " + directory + " doesn't exist, request bodies won't be validated against their profiles");
+            return;
+        }
+
+        FhirContext hl7OrgContext = FhirContext.forDstu2Hl7Org();
+        LocalProfileSupport support = new LocalProfileSupport();
+        for (File file : FileUtils.listFiles(directory, new String[]{"json", "xml"}, true)) {
+            try {
+                IParser parser = file.getName().endsWith(".json") ? hl7OrgContext.newJsonParser() : hl7OrgContext.newXmlParser();
+                IBaseResource resource = parser.parseResource(FileUtils.readFileToString(file, StandardCharsets.UTF_8));
+
+                if (resource instanceof Bundle) {
+                    for (Bundle.BundleEntryComponent entry : ((Bundle) resource).getEntry()) {
+                        addProfileResource(support, file, entry.getResource());
+                    }
+                } else {
+                    addProfileResource(support, file, resource);
+                }
+            } catch (IOException | DataFormatException ex) {
+                log.warning("Could not load " + file + ": " + ex.getMessage());
+            }
+        }
+
+        // the local profiles and code systems take precedence over the base FHIR ones
+        DefaultProfileValidationSupport baseSupport = new DefaultProfileValidationSupport();
+        ValidationSupportChain validationSupport = new ValidationSupportChain(support, baseSupport);
+        // loads all the base code systems
+        baseSupport.fetchCodeSystem(hl7OrgContext, "http://hl7.org/fhir/administrative-gender");
+        FhirContext fhirContext = FhirContext.forDstu2();
+        for (StructureDefinition profile : support.getStructureDefinitions()) {
+            FhirInstanceValidator instanceValidator = new FhirInstanceValidator(validationSupport);
+            instanceValidator.setStructureDefintion(profile);
+
+            // the default validator already checks against the schema (schematron isn't on the classpath, and
+            // configuring it at all fails)
+            FhirValidator validator = fhirContext.newValidator();
+            validator.setValidateAgainstStandardSchema(false);
+            validator.registerValidatorModule(instanceValidator);
+            warmUp(fhirContext, validator, profile);
+            validators.put(profile.getUrl(), validator);
+        }
+
+        log.info("Loaded " + validators.size() + " profiles and " + support.getValueSetCount() + " ValueSets (" +
+                support.getCodeCount() + " codes) from " + directory);
+    }
+
+    /**
+     * The base FHIR definitions are loaded the first time that they're needed, which takes several seconds, so use
+     * each validator once while loading rather than leaving it to the first request.
+     */
+    private void warmUp(FhirContext fhirContext, FhirValidator validator, StructureDefinition profile) {
+        try {
+            String resourceType = profile.getConstrainedType();
+            if (resourceType!=null) {
+                validator.validateWithResult(fhirContext.getResourceDefinition(resourceType).newInstance());
+            }
+        } catch (RuntimeException ex) {
+            log.warning("Could not warm up the validator for " + profile.getUrl() + ": " + ex.getMessage());
+        }
+    }
+
+    private void addProfileResource(LocalProfileSupport support, File file, IBaseResource resource) {
+        if (resource!=null && !support.add(resource)) {
+            log.warning("Ignoring a " + resource.getClass().getSimpleName() + " in " + file +
+                    ", only StructureDefinitions with snapshots and ValueSets are loaded");
+        }
+    }
+
+    private void processProfileValidatorRequest(ProfileValidatorRequest msg) {
+        checkProfiles();
+
+        List<FhirValidator> found = new ArrayList<>();
+        for (String profile : msg.getRequestObject()) {
+            FhirValidator validator = validators.get(profile);
+            if (validator!=null) {
+                found.add(validator);
+            } else {
+                log.debug("Profile " + profile + " hasn't been loaded, not validating against it");
+            }
+        }
+        msg.getRespondTo().tell(new ProfileValidatorResponse(msg, found), getSelf());
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof ProfileValidatorRequest) {
+            processProfileValidatorRequest((ProfileValidatorRequest) msg);
+        } else {
+            unhandled(msg);
+        }
+    }
+}
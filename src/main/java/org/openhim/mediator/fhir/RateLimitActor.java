@@ -0,0 +1,247 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.ActorRef;
+import akka.actor.UntypedActor;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import org.openhim.mediator.engine.MediatorConfig;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Rate limits clients and schedules their requests fairly. Handlers ask to be admitted before processing a request,
+ * and release their admission once they're done.
+ *
+ * Each client (identified by its OpenHIM client id, or else its credentials) has a token bucket that refills at
+ * rate-limit requests per second and holds up to rate-limit-burst requests. A client that has run out of tokens is
+ * throttled until its bucket refills.
+ *
+ * If rate-limit-max-concurrent is set, at most that many requests are processed at a time. Further requests wait in a
+ * queue per client, and the queues are served in proportion to the clients' weights (rate-limit-weights), so that a
+ * client with a backlog of requests doesn't hold up everybody else. Weights also scale a client's rate and burst.
+ */
+public class RateLimitActor extends UntypedActor {
+    public static class Admit {
+        final String clientId;
+
+        public Admit(String clientId) {
+            this.clientId = clientId;
+        }
+    }
+
+    public static class Admitted {
+    }
+
+    public static class Throttled {
+        final long retryAfterSeconds;
+
+        public Throttled(long retryAfterSeconds) {
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        public long getRetryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+    }
+
+    /**
+     * The handler is done with its request, whether or not it was admitted yet.
+     */
+    public static class Release {
+    }
+
+    private static class Client {
+        final String id;
+        final double weight;
+        double tokens;
+        long refilledAt;
+        // the virtual time at which the client's next request is due, for weighted fair queuing
+        double virtualTime;
+        final ArrayDeque<ActorRef> queue = new ArrayDeque<>();
+
+        Client(String id, double weight, long now) {
+            this.id = id;
+            this.weight = weight;
+            this.refilledAt = now;
+        }
+    }
+
+    private static final String ANONYMOUS = "anonymous";
+    private static final int MAX_CLIENTS = 10000;
+
+
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private final MediatorConfig config;
+
+    private final Map<String, Client> clients = new HashMap<>();
+    // handlers -> their client, for those that are waiting in a queue
+    private final Map<ActorRef, Client> queued = new HashMap<>();
+    private final Set<ActorRef> active = new HashSet<>();
+    private double virtualTime;
+
+
+    public RateLimitActor(MediatorConfig config) {
+        this.config = config;
+    }
+
+
+    public static boolean isRateLimitingEnabled(MediatorConfig config) {
+        return DynamicConfig.getInt(config, "rate-limit", 0) > 0 || DynamicConfig.getInt(config, "rate-limit-max-concurrent", 0) > 0;
+    }
+
+    /**
+     * @param weights e.g. "sync-job=0.5,emr=4"
+     */
+    private double parseWeight(String weights, String clientId) {
+        if (weights!=null) {
+            for (String weight : weights.split(",")) {
+                int eq = weight.lastIndexOf('=');
+                if (eq > 0 && weight.substring(0, eq).trim().equals(clientId)) {
+                    try {
+                        return Math.max(0.01, Double.parseDouble(weight.substring(eq + 1).trim()));
+                    } catch (NumberFormatException ex) {
+                        log.warning("Invalid weight for client " + clientId + " in rate-limit-weights: " + weight);
+                    }
+                }
+            }
+        }
+        return 1;
+    }
+
+    private double getRate(Client client) {
+        return DynamicConfig.getInt(config, "rate-limit", 0) * client.weight;
+    }
+
+    private double getBurst(Client client) {
+        int burst = DynamicConfig.getInt(config, "rate-limit-burst", 0);
+        return Math.max(1, (burst > 0 ? burst : DynamicConfig.getInt(config, "rate-limit", 0)) * client.weight);
+    }
+
+    private Client getClient(String clientId, long now) {
+        String id = clientId!=null ? clientId : ANONYMOUS;
+        Client client = clients.get(id);
+        if (client==null) {
+            if (clients.size() >= MAX_CLIENTS) {
+                pruneIdleClients(now);
+            }
+            double weight = parseWeight(DynamicConfig.getString(config, "rate-limit-weights", null), id);
+            client = new Client(id, weight, now);
+            client.tokens = getBurst(client);
+            client.virtualTime = virtualTime;
+            clients.put(id, client);
+        }
+        return client;
+    }
+
+    /**
+     * Forget clients with full buckets and nothing queued, they're the same as new clients.
+     */
+    private void pruneIdleClients(long now) {
+        Iterator<Client> it = clients.values().iterator();
+        while (it.hasNext()) {
+            Client client = it.next();
+            refill(client, now);
+            if (client.queue.isEmpty() && client.tokens >= getBurst(client)) {
+                it.remove();
+            }
+        }
+    }
+
+    private void refill(Client client, long now) {
+        double rate = getRate(client);
+        if (rate > 0) {
+            client.tokens = Math.min(getBurst(client), client.tokens + (now - client.refilledAt) * rate / 1000);
+        }
+        client.refilledAt = now;
+    }
+
+    private boolean isAtCapacity() {
+        int maxConcurrent = DynamicConfig.getInt(config, "rate-limit-max-concurrent", 0);
+        return maxConcurrent > 0 && active.size() >= maxConcurrent;
+    }
+
+    private void admit(ActorRef handler, Client client) {
+        // a client is charged for its requests in virtual time, the more weight the less each costs
+        client.virtualTime = Math.max(client.virtualTime, virtualTime) + 1 / client.weight;
+        active.add(handler);
+        handler.tell(new Admitted(), getSelf());
+    }
+
+    private void processAdmit(Admit msg) {
+        long now = System.currentTimeMillis();
+        Client client = getClient(msg.clientId, now);
+
+        if (getRate(client) > 0) {
+            refill(client, now);
+            if (client.tokens < 1) {
+                long retryAfter = (long) Math.ceil((1 - client.tokens) / getRate(client));
+                log.info("Client " + client.id + " is over its rate limit, throttling the request");
+                getSender().tell(new Throttled(Math.max(1, retryAfter)), getSelf());
+                return;
+            }
+            client.tokens--;
+        }
+
+        if (isAtCapacity()) {
+            client.queue.add(getSender());
+            queued.put(getSender(), client);
+        } else {
+            admit(getSender(), client);
+        }
+    }
+
+    /**
+     * Admit the next request of the backlogged client that is furthest behind its fair share.
+     */
+    private void admitNext() {
+        while (!isAtCapacity() && !queued.isEmpty()) {
+            Client next = null;
+            for (Client client : clients.values()) {
+                if (!client.queue.isEmpty() && (next==null || client.virtualTime < next.virtualTime)) {
+                    next = client;
+                }
+            }
+            if (next==null) {
+                return;
+            }
+
+            virtualTime = Math.max(virtualTime, next.virtualTime);
+            ActorRef handler = next.queue.poll();
+            queued.remove(handler);
+            admit(handler, next);
+        }
+    }
+
+    private void processRelease() {
+        Client client = queued.remove(getSender());
+        if (client!=null) {
+            // gave up while waiting, e.g. its time budget ran out
+            client.queue.remove(getSender());
+        } else if (active.remove(getSender())) {
+            admitNext();
+        }
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof Admit) {
+            processAdmit((Admit) msg);
+        } else if (msg instanceof Release) {
+            processRelease();
+        } else {
+            unhandled(msg);
+        }
+    }
+}
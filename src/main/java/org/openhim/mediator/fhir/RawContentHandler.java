@@ -0,0 +1,183 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSelection;
+import akka.actor.Props;
+import akka.actor.UntypedActor;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import org.apache.commons.lang3.tuple.Pair;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.AddOrchestrationToCoreResponse;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPResponse;
+import org.openhim.mediator.engine.messages.PutPropertyInCoreResponse;
+
+import java.util.Map;
+
+/**
+ * Handles Binary requests.
+ *
+ * Their content in its native format (e.g. a PDF) is passed between the client and upstream as is, without loading
+ * the FHIR context, parsing, validating or converting anything. Requests for the FHIR representation
+ * (a json or xml Accept, _format or Content-Type) are handled by a {@link FhirProxyHandler}. Other resources that
+ * refer to documents (e.g. DocumentReference) are always FHIR resources, they're handled as such.
+ *
+ * Like every other request, raw content requests are admitted by the rate limiter and are subject to their time budget
+ * (see {@link ClientAdmission}), pass through the upstream circuit breaker, are captured if sampled, and writes discard
+ * the cached reads and known versions of the Binary they write to.
+ */
+public class RawContentHandler extends UntypedActor {
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private final MediatorConfig config;
+
+    private MediatorHTTPRequest request;
+    private ActorRef requestHandler;
+    private ClientAdmission admission;
+    private long upstreamCallSentAt;
+
+
+    public RawContentHandler(MediatorConfig config) {
+        this.config = config;
+    }
+
+
+    private static boolean isFhirFormat(String mimeType) {
+        return mimeType!=null && (mimeType.contains("json") || mimeType.contains("xml"));
+    }
+
+    private boolean isFhirRepresentation() {
+        if (isFhirFormat(request.getHeaders().get("Accept")) || isFhirFormat(request.getHeaders().get("Content-Type"))) {
+            return true;
+        }
+        for (Pair<String, String> param : request.getParams()) {
+            if ("_format".equals(param.getKey())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void forwardRequest() {
+        Map<String, String> headers = FhirProxyHandler.copyHeaders(request.getHeaders());
+        if (request.getHeaders().get("Content-Type")!=null) {
+            headers.put("Content-Type", request.getHeaders().get("Content-Type"));
+        }
+
+        if (!"GET".equalsIgnoreCase(request.getMethod())) {
+            FhirProxyHandler.invalidateCachedReads(getContext(), config, request);
+        }
+
+        // errors and orchestrations come back here first, to see the outcome of the call for the circuit breaker
+        MediatorHTTPRequest newRequest = new MediatorHTTPRequest(
+                getSelf(),
+                getSelf(),
+                "FHIR Upstream",
+                request.getMethod(),
+                DynamicConfig.getString(config, "upstream-scheme", "http"),
+                DynamicConfig.getString(config, "upstream-host", "localhost"),
+                DynamicConfig.getInt(config, "upstream-port", 80),
+                request.getPath(),
+                request.getBody(),
+                headers,
+                request.getParams()
+        );
+
+        log.info("[" + request.getHeaders().get("X-OpenHIM-TransactionID") + "] Forwarding raw content request to " +
+                newRequest.getHost() + ":" + newRequest.getPort() + newRequest.getPath());
+        admission.getCapture().upstreamSent(newRequest);
+
+        if (UpstreamCircuitBreakerActor.isCircuitBreakerEnabled(config)) {
+            upstreamCallSentAt = System.currentTimeMillis();
+            ActorSelection breaker = getContext().actorSelection(config.userPathFor("upstream-breaker"));
+            breaker.tell(newRequest, getSelf());
+        } else {
+            ActorSelection httpConnector = getContext().actorSelection(config.userPathFor("http-connector"));
+            httpConnector.tell(newRequest, getSelf());
+        }
+    }
+
+    private void reportUpstreamOutcome(boolean success) {
+        if (upstreamCallSentAt > 0) {
+            boolean slow = UpstreamCircuitBreakerActor.isSlowCall(config, upstreamCallSentAt);
+
+            ActorSelection breaker = getContext().actorSelection(config.userPathFor("upstream-breaker"));
+            breaker.tell(new UpstreamCircuitBreakerActor.CallOutcome(success && !slow), getSelf());
+            upstreamCallSentAt = 0;
+        }
+    }
+
+    private void processUpstreamResponse(MediatorHTTPResponse response) {
+        reportUpstreamOutcome(response.getStatusCode() < 500);
+        admission.getCapture().upstreamReceived(response);
+        if (!"GET".equalsIgnoreCase(request.getMethod())) {
+            // again, in case a read raced with the write and cached the old content
+            FhirProxyHandler.invalidateCachedReads(getContext(), config, request);
+        }
+        admission.respond(response.toFinishRequest(true));
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof MediatorHTTPRequest && request==null) { //inbound request
+            request = (MediatorHTTPRequest) msg;
+            requestHandler = request.getRequestHandler();
+
+            if (isFhirRepresentation()) {
+                ActorRef handler = getContext().actorOf(Props.create(FhirProxyHandler.class, config));
+                handler.tell(msg, getSelf());
+                return;
+            }
+            admission = new ClientAdmission(getContext(), config, request);
+            if (!admission.admit()) {
+                forwardRequest();
+            }
+
+        } else if (admission==null) {
+            // delegated, the FhirProxyHandler responds to the client itself
+            unhandled(msg);
+
+        } else if (msg instanceof RateLimitActor.Admitted) { //the rate limiter let the request through
+            forwardRequest();
+
+        } else if (admission.handle(msg)) {
+            // throttled, timed out or answered as unavailable
+
+        } else if (msg instanceof MediatorHTTPResponse) { //response from upstream server
+            processUpstreamResponse((MediatorHTTPResponse) msg);
+
+        } else if (msg instanceof UpstreamCircuitBreakerActor.CircuitOpen) { //the upstream circuit breaker didn't let the request through
+            log.info("[" + request.getHeaders().get("X-OpenHIM-TransactionID") + "] Upstream circuit breaker is open, responding with 503 Service Unavailable");
+            upstreamCallSentAt = 0;
+            admission.respondUnavailable(((UpstreamCircuitBreakerActor.CircuitOpen) msg).getRetryAfterSeconds());
+
+        } else if (msg instanceof ExceptError) { //upstream request failed
+            reportUpstreamOutcome(false);
+            if (!admission.isFinished()) {
+                requestHandler.forward(msg, getContext());
+            }
+
+        } else if (msg instanceof AddOrchestrationToCoreResponse || msg instanceof PutPropertyInCoreResponse) {
+            requestHandler.forward(msg, getContext());
+
+        } else {
+            unhandled(msg);
+        }
+    }
+
+    @Override
+    public void postStop() throws Exception {
+        reportUpstreamOutcome(false);
+        if (admission!=null) {
+            admission.release();
+        }
+    }
+}
@@ -0,0 +1,517 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.ActorRef;
+import akka.actor.Address;
+import akka.actor.UntypedActor;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import ca.uhn.fhir.util.VersionUtil;
+import org.apache.http.HttpStatus;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.FinishRequest;
+import org.openhim.mediator.engine.messages.MediatorRequestMessage;
+import org.openhim.mediator.engine.messages.SimpleMediatorRequest;
+import org.openhim.mediator.engine.messages.SimpleMediatorResponse;
+import scala.concurrent.duration.Duration;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches the responses of reads and coalesces concurrent identical reads, see {@link CachedReadHandler}.
+ *
+ * The first request for a key that isn't cached is told to fetch it (a null {@link ReadResponse}), identical requests
+ * that arrive while it does are held back and answered with its result, unless it was throttled, unavailable or timed
+ * out, in which case they're told to fetch it themselves. Successful responses are then cached for as long as the
+ * fetching handler asks for, which may be not at all.
+ *
+ * When the mediator instances run as a cluster the cached reads are shared, see {@link CacheCluster}: a read that isn't
+ * cached locally is looked up on the member that owns its key before it's fetched, fetched reads are stored on the
+ * owner too, and discarded reads are discarded on every member.
+ *
+ * The cached reads are kept in a snapshot on disk, see {@link CacheSnapshot}, for as long as their TTLs allow. The
+ * snapshot is discarded if the FHIR context or the upstream server changes.
+ */
+public class ReadCacheActor extends UntypedActor {
+    /**
+     * Lookup a read. The request object is the read key, see {@link CacheKeys#clientRequestKey(String, String, String, List)}.
+     */
+    public static class ReadRequest extends SimpleMediatorRequest<String> {
+        final String resourcePath;
+
+        public ReadRequest(ActorRef requestHandler, ActorRef respondTo, String resourcePath, String readKey) {
+            super(requestHandler, respondTo, readKey);
+            this.resourcePath = resourcePath;
+        }
+    }
+
+    /**
+     * The response to send to the client, or null if the requester should fetch it
+     * and report back with either {@link StoreRead} or {@link ReadFailed}.
+     */
+    public static class ReadResponse extends SimpleMediatorResponse<FinishRequest> {
+        public ReadResponse(MediatorRequestMessage originalRequest, FinishRequest responseObject) {
+            super(originalRequest, responseObject);
+        }
+    }
+
+    public static class StoreRead {
+        final String resourcePath;
+        final String readKey;
+        final FinishRequest response;
+        final long ttlMillis;
+
+        public StoreRead(String resourcePath, String readKey, FinishRequest response, long ttlMillis) {
+            this.resourcePath = resourcePath;
+            this.readKey = readKey;
+            this.response = response;
+            this.ttlMillis = ttlMillis;
+        }
+    }
+
+    public static class ReadFailed {
+        final String readKey;
+
+        public ReadFailed(String readKey) {
+            this.readKey = readKey;
+        }
+    }
+
+    /**
+     * Discard the cached reads of a resource, or of all resources if the path is null.
+     */
+    public static class InvalidateReads {
+        final String resourcePath;
+
+        public InvalidateReads(String resourcePath) {
+            this.resourcePath = resourcePath;
+        }
+    }
+
+    /**
+     * A cached read as sent between the members of a cluster, with what's left of its TTL.
+     */
+    public static class SharedRead implements Serializable {
+        final String body;
+        final HashMap<String, String> headers;
+        final Integer status;
+        final long ttlMillis;
+
+        SharedRead(FinishRequest response, long ttlMillis) {
+            this.body = response.getResponse();
+            this.headers = new HashMap<>();
+            if (response.getResponseHeaders()!=null) {
+                headers.putAll(response.getResponseHeaders());
+            } else if (response.getResponseMimeType()!=null) {
+                headers.put("Content-Type", response.getResponseMimeType());
+            }
+            this.status = response.getResponseStatus();
+            this.ttlMillis = ttlMillis;
+        }
+
+        FinishRequest toFinishRequest() {
+            Map<String, String> copy = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            copy.putAll(headers);
+            return new FinishRequest(body, copy, status);
+        }
+    }
+
+    public static class SharedReadLookup implements Serializable {
+        final String resourcePath;
+        final String readKey;
+
+        public SharedReadLookup(String resourcePath, String readKey) {
+            this.resourcePath = resourcePath;
+            this.readKey = readKey;
+        }
+    }
+
+    /**
+     * The owner's cached read, or null if it doesn't have it.
+     */
+    public static class SharedReadResult implements Serializable {
+        final String readKey;
+        final SharedRead read;
+
+        public SharedReadResult(String readKey, SharedRead read) {
+            this.readKey = readKey;
+            this.read = read;
+        }
+    }
+
+    public static class SharedStoreRead implements Serializable {
+        final String resourcePath;
+        final String readKey;
+        final SharedRead read;
+
+        public SharedStoreRead(String resourcePath, String readKey, SharedRead read) {
+            this.resourcePath = resourcePath;
+            this.readKey = readKey;
+            this.read = read;
+        }
+    }
+
+    public static class SharedInvalidateReads implements Serializable {
+        final String resourcePath;
+
+        public SharedInvalidateReads(String resourcePath) {
+            this.resourcePath = resourcePath;
+        }
+    }
+
+    private static class SharedLookupTimeout {
+        final String readKey;
+
+        SharedLookupTimeout(String readKey) {
+            this.readKey = readKey;
+        }
+    }
+
+    private static class CachedRead {
+        final FinishRequest response;
+        final long expiresAt;
+
+        CachedRead(FinishRequest response, long expiresAt) {
+            this.response = response;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private final MediatorConfig config;
+
+    // resource path -> (read key -> read), so that a write can discard all the representations of a resource
+    private final Map<String, Map<String, CachedRead>> reads = new LinkedHashMap<String, Map<String, CachedRead>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Map<String, CachedRead>> eldest) {
+            return size() > DynamicConfig.getInt(config, "read-cache-max-resources", 10000);
+        }
+    };
+    // read key -> requests waiting for the read in flight
+    private final Map<String, List<ReadRequest>> inFlight = new HashMap<>();
+    private final Map<String, String> inFlightPaths = new HashMap<>();
+    // reads in flight that were invalidated by a write while upstream, their results are shared but not cached
+    private final Set<String> stale = new HashSet<>();
+    // read key -> the first request for a read that's being looked up on the member that owns it
+    private final Map<String, ReadRequest> sharedLookups = new HashMap<>();
+    private CacheCluster cluster;
+    private CacheSnapshot snapshot;
+    private boolean changed;
+
+
+    public ReadCacheActor(MediatorConfig config) {
+        this.config = config;
+    }
+
+
+    @Override
+    public void preStart() throws Exception {
+        cluster = new CacheCluster(getContext(), config, "read-cache");
+        cluster.subscribe();
+
+        snapshot = new CacheSnapshot(config, log, "read-cache", getSnapshotVersion());
+        if (CacheSnapshot.isSnapshotEnabled(config)) {
+            CacheSnapshot.scheduleWrite(getContext(), config);
+        }
+    }
+
+    @Override
+    public void postStop() throws Exception {
+        cluster.unsubscribe();
+    }
+
+    /**
+     * @return what the cached responses depend on besides the request
+     */
+    private String getSnapshotVersion() {
+        return "read|" + VersionUtil.getVersion() + "|" + DynamicConfig.getString(config, "fhir-context", "DSTU2") + "|" +
+                DynamicConfig.getString(config, "upstream-scheme", "http") + "://" + DynamicConfig.getString(config, "upstream-host", "") + ":" +
+                DynamicConfig.getLong(config, "upstream-port", 80) + "|" + DynamicConfig.getString(config, "upstream-format", "JSON") + "|" +
+                DynamicConfig.getString(config, "response-projection", "Converted");
+    }
+
+    private CachedRead getRead(String resourcePath, String readKey) {
+        Map<String, CachedRead> representations = reads.get(resourcePath);
+        CachedRead read = representations!=null ? representations.get(readKey) : null;
+        if (read==null) {
+            read = loadRead(resourcePath, readKey);
+            if (read==null) {
+                return null;
+            }
+            representations = reads.get(resourcePath);
+        }
+
+        if (read.expiresAt < System.currentTimeMillis()) {
+            representations.remove(readKey);
+            return null;
+        }
+        return read;
+    }
+
+    /**
+     * Move a read from the snapshot into the cache, if the snapshot has it.
+     */
+    private CachedRead loadRead(String resourcePath, String readKey) {
+        byte[] value = snapshot.take(readKey);
+        if (value==null) {
+            return null;
+        }
+
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(value));
+            long expiresAt = in.readLong();
+            int status = in.readInt();
+            int headerCount = in.readInt();
+            Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            for (int i=0; i<headerCount; i++) {
+                String name = CacheSnapshot.readString(in);
+                headers.put(name, CacheSnapshot.readString(in));
+            }
+            CachedRead read = new CachedRead(new FinishRequest(CacheSnapshot.readString(in), headers, status), expiresAt);
+            putRead(resourcePath, readKey, read);
+            return read;
+        } catch (IOException ex) {
+            log.warning("Could not load " + readKey + " from the snapshot: " + ex.getMessage());
+            return null;
+        }
+    }
+
+    private void putRead(String resourcePath, String readKey, CachedRead read) {
+        Map<String, CachedRead> representations = reads.get(resourcePath);
+        if (representations==null) {
+            representations = new HashMap<>();
+            reads.put(resourcePath, representations);
+        }
+        representations.put(readKey, read);
+    }
+
+    private void writeSnapshot() {
+        try {
+            // the reads are bounded by their TTLs rather than by size
+            CacheSnapshot.Writer writer = snapshot.startWriting(getSnapshotVersion(), Integer.MAX_VALUE, Long.MAX_VALUE);
+            if (writer==null) {
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+            for (Map.Entry<String, Map<String, CachedRead>> resource : reads.entrySet()) {
+                for (Map.Entry<String, CachedRead> entry : resource.getValue().entrySet()) {
+                    CachedRead read = entry.getValue();
+                    if (read.expiresAt < now) {
+                        continue;
+                    }
+
+                    ByteArrayOutputStream value = new ByteArrayOutputStream();
+                    DataOutputStream out = new DataOutputStream(value);
+                    SharedRead shared = new SharedRead(read.response, 0);
+                    out.writeLong(read.expiresAt);
+                    out.writeInt(shared.status);
+                    out.writeInt(shared.headers.size());
+                    for (Map.Entry<String, String> header : shared.headers.entrySet()) {
+                        CacheSnapshot.writeString(out, header.getKey());
+                        CacheSnapshot.writeString(out, header.getValue());
+                    }
+                    CacheSnapshot.writeString(out, shared.body);
+                    out.flush();
+                    writer.add(resource.getKey(), entry.getKey(), value.toByteArray(), read.expiresAt);
+                }
+            }
+            snapshot.finishWriting(writer);
+            changed = false;
+        } catch (IOException ex) {
+            log.warning("Could not write the read cache snapshot: " + ex.getMessage());
+        }
+    }
+
+    private void processReadRequest(ReadRequest msg) {
+        CachedRead read = getRead(msg.resourcePath, msg.getRequestObject());
+        if (read!=null) {
+            msg.getRespondTo().tell(new ReadResponse(msg, read.response), getSelf());
+            return;
+        }
+
+        List<ReadRequest> waiting = inFlight.get(msg.getRequestObject());
+        if (waiting!=null) {
+            waiting.add(msg);
+            return;
+        }
+
+        inFlight.put(msg.getRequestObject(), new ArrayList<ReadRequest>());
+        inFlightPaths.put(msg.getRequestObject(), msg.resourcePath);
+
+        Address owner = cluster.ownerOf(msg.getRequestObject());
+        if (owner!=null) {
+            // another member may have it, ask before fetching it
+            sharedLookups.put(msg.getRequestObject(), msg);
+            cluster.cacheOn(owner).tell(new SharedReadLookup(msg.resourcePath, msg.getRequestObject()), getSelf());
+            getContext().system().scheduler().scheduleOnce(
+                    Duration.create(DynamicConfig.getLong(config, "cluster-lookup-timeout", 200), TimeUnit.MILLISECONDS),
+                    getSelf(), new SharedLookupTimeout(msg.getRequestObject()), getContext().dispatcher(), getSelf()
+            );
+            return;
+        }
+
+        msg.getRespondTo().tell(new ReadResponse(msg, null), getSelf());
+    }
+
+    private void processSharedReadResult(String readKey, SharedRead read) {
+        ReadRequest first = sharedLookups.remove(readKey);
+        if (first==null) {
+            // timed out
+            return;
+        }
+
+        if (read==null || stale.contains(readKey)) {
+            first.getRespondTo().tell(new ReadResponse(first, null), getSelf());
+            return;
+        }
+
+        // keep a copy, writes are broadcast so it's discarded along with the owner's
+        FinishRequest response = read.toFinishRequest();
+        first.getRespondTo().tell(new ReadResponse(first, response), getSelf());
+        processStoreRead(new StoreRead(first.resourcePath, readKey, response, read.ttlMillis), false);
+    }
+
+    private void processSharedReadLookup(SharedReadLookup msg) {
+        CachedRead read = getRead(msg.resourcePath, msg.readKey);
+        SharedRead shared = read!=null ? new SharedRead(read.response, read.expiresAt - System.currentTimeMillis()) : null;
+        getSender().tell(new SharedReadResult(msg.readKey, shared), getSelf());
+    }
+
+    /**
+     * @param share true to store it on the member that owns it as well
+     */
+    private void processStoreRead(StoreRead msg, boolean share) {
+        if (!isShareable(msg.response)) {
+            // e.g. the upstream server was overloaded or the fetch timed out, the others may still fare better
+            processReadFailed(new ReadFailed(msg.readKey));
+            return;
+        }
+
+        List<ReadRequest> waiting = inFlight.remove(msg.readKey);
+        inFlightPaths.remove(msg.readKey);
+        boolean isStale = stale.remove(msg.readKey);
+
+        if (waiting!=null) {
+            if (!waiting.isEmpty()) {
+                log.debug("Sharing read " + msg.readKey + " with " + waiting.size() + " coalesced requests");
+            }
+            for (ReadRequest request : waiting) {
+                request.getRespondTo().tell(new ReadResponse(request, msg.response), getSelf());
+            }
+        }
+
+        if (!isStale && msg.ttlMillis > 0 && msg.response.getResponseStatus()!=null && msg.response.getResponseStatus()==HttpStatus.SC_OK) {
+            putRead(msg.resourcePath, msg.readKey, new CachedRead(msg.response, System.currentTimeMillis() + msg.ttlMillis));
+            changed = true;
+
+            Address owner = share ? cluster.ownerOf(msg.readKey) : null;
+            if (owner!=null) {
+                cluster.cacheOn(owner).tell(new SharedStoreRead(msg.resourcePath, msg.readKey, new SharedRead(msg.response, msg.ttlMillis)), getSelf());
+            }
+        }
+    }
+
+    /**
+     * @return true if the fetched response is the answer to the read for everyone waiting on it, i.e. a success or a
+     * client error. Throttling (429), unavailability (503) and timeouts (504) may only apply to the request that fetched it.
+     */
+    static boolean isShareable(FinishRequest response) {
+        Integer status = response.getResponseStatus();
+        if (status==null || status==OperationOutcomes.Kind.OVERLOADED.getStatus()) {
+            return false;
+        }
+        return (status >= 200 && status < 300) || (status >= 400 && status < 500);
+    }
+
+    private void processReadFailed(ReadFailed msg) {
+        sharedLookups.remove(msg.readKey);
+        List<ReadRequest> waiting = inFlight.remove(msg.readKey);
+        inFlightPaths.remove(msg.readKey);
+        stale.remove(msg.readKey);
+
+        if (waiting!=null) {
+            // let them try for themselves
+            for (ReadRequest request : waiting) {
+                request.getRespondTo().tell(new ReadResponse(request, null), getSelf());
+            }
+        }
+    }
+
+    private void processInvalidate(InvalidateReads msg) {
+        if (msg.resourcePath==null) {
+            log.debug("Discarding all cached reads");
+            reads.clear();
+            snapshot.discard(null);
+            stale.addAll(inFlight.keySet());
+            changed = true;
+            return;
+        }
+
+        reads.remove(msg.resourcePath);
+        snapshot.discard(msg.resourcePath);
+        changed = true;
+        for (Map.Entry<String, String> entry : inFlightPaths.entrySet()) {
+            if (msg.resourcePath.equals(entry.getValue())) {
+                stale.add(entry.getKey());
+            }
+        }
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof ReadRequest) {
+            processReadRequest((ReadRequest) msg);
+        } else if (msg instanceof StoreRead) {
+            processStoreRead((StoreRead) msg, true);
+        } else if (msg instanceof ReadFailed) {
+            processReadFailed((ReadFailed) msg);
+        } else if (msg instanceof CacheSnapshot.WriteSnapshot) {
+            if (changed) {
+                writeSnapshot();
+            }
+            CacheSnapshot.completeWrite(getContext(), config, (CacheSnapshot.WriteSnapshot) msg);
+        } else if (msg instanceof InvalidateReads) {
+            processInvalidate((InvalidateReads) msg);
+            cluster.broadcast(new SharedInvalidateReads(((InvalidateReads) msg).resourcePath));
+
+        // from the other members of a cluster
+        } else if (msg instanceof SharedReadLookup) {
+            processSharedReadLookup((SharedReadLookup) msg);
+        } else if (msg instanceof SharedReadResult) {
+            processSharedReadResult(((SharedReadResult) msg).readKey, ((SharedReadResult) msg).read);
+        } else if (msg instanceof SharedLookupTimeout) {
+            processSharedReadResult(((SharedLookupTimeout) msg).readKey, null);
+        } else if (msg instanceof SharedStoreRead) {
+            SharedStoreRead store = (SharedStoreRead) msg;
+            processStoreRead(new StoreRead(store.resourcePath, store.readKey, store.read.toFinishRequest(), store.read.ttlMillis), false);
+        } else if (msg instanceof SharedInvalidateReads) {
+            processInvalidate(new InvalidateReads(((SharedInvalidateReads) msg).resourcePath));
+        } else if (cluster.handle(msg)) {
+            // membership changed
+        } else {
+            unhandled(msg);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.UntypedActor;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * Encodes a parsed request body in the upstream format for a {@link FhirProxyHandler}, while the handler validates the
+ * same resource on its own thread. Both only read the resource.
+ *
+ * Replies to its parent with {@link Converted} and stops. The handler stops it if the body fails validation.
+ */
+public class RequestBodyConverter extends UntypedActor {
+    public static class Converted {
+        final Contents contents;
+        final RuntimeException error;
+
+        public Converted(Contents contents, RuntimeException error) {
+            this.contents = contents;
+            this.error = error;
+        }
+    }
+
+    private final ResourceCodec codec;
+    private final IBaseResource resource;
+    private final String targetContentType;
+
+
+    public RequestBodyConverter(ResourceCodec codec, IBaseResource resource, String targetContentType) {
+        this.codec = codec;
+        this.resource = resource;
+        this.targetContentType = targetContentType;
+    }
+
+
+    @Override
+    public void preStart() throws Exception {
+        Converted converted;
+        try {
+            converted = new Converted(codec.encode(resource, targetContentType), null);
+        } catch (RuntimeException ex) {
+            converted = new Converted(null, ex);
+        }
+        getContext().parent().tell(converted, getSelf());
+        getContext().stop(getSelf());
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        unhandled(msg);
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parses and encodes FHIR resources for a FHIR context, picking the JSON or XML parser based on a content type.
+ *
+ * Parsers aren't thread safe, but they can be reused one resource after another, so each thread keeps a JSON and an XML
+ * parser for parsing and encoding. Resources are encoded into char buffers from a {@link BufferPool} shared by all
+ * threads, rather than into a new writer that grows (and copies) its way up to the size of the body every time. When
+ * converting, the buffer is sized for the body being converted to begin with.
+ */
+public class ResourceCodec {
+    /**
+     * The parsers of a thread, for a FHIR context.
+     */
+    private static class ThreadCodec {
+        final FhirContext fhirContext;
+        final IParser jsonParser;
+        final IParser xmlParser;
+
+        ThreadCodec(FhirContext fhirContext) {
+            this.fhirContext = fhirContext;
+            this.jsonParser = fhirContext.newJsonParser();
+            this.xmlParser = fhirContext.newXmlParser();
+        }
+    }
+
+    /**
+     * Char buffers in size classes (16K to 4M chars, each class four times the size of the one before), shared by all
+     * threads. Only a few buffers of each class are kept, fewer of the larger classes, so at most about 12M chars are
+     * held on to. Buffers for bodies larger than the largest class aren't pooled.
+     */
+    static class BufferPool {
+        static final int[] CLASS_CHARS = {16 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024, 4 * 1024 * 1024};
+        private static final int[] CLASS_RETAINED = {8, 8, 4, 2, 2};
+
+        private final List<Queue<char[]>> free = new ArrayList<>();
+        private final AtomicInteger[] retained = new AtomicInteger[CLASS_CHARS.length];
+
+        BufferPool() {
+            for (int i=0; i<CLASS_CHARS.length; i++) {
+                free.add(new ConcurrentLinkedQueue<char[]>());
+                retained[i] = new AtomicInteger();
+            }
+        }
+
+        /**
+         * @return a buffer of at least the size, which should be released when done with
+         */
+        char[] acquire(int minChars) {
+            for (int i=0; i<CLASS_CHARS.length; i++) {
+                if (CLASS_CHARS[i] >= minChars) {
+                    char[] buffer = free.get(i).poll();
+                    if (buffer!=null) {
+                        retained[i].decrementAndGet();
+                        return buffer;
+                    }
+                    return new char[CLASS_CHARS[i]];
+                }
+            }
+            return new char[minChars];
+        }
+
+        void release(char[] buffer) {
+            for (int i=0; i<CLASS_CHARS.length; i++) {
+                if (CLASS_CHARS[i]==buffer.length) {
+                    if (retained[i].incrementAndGet() <= CLASS_RETAINED[i]) {
+                        free.get(i).offer(buffer);
+                    } else {
+                        retained[i].decrementAndGet();
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * A writer into buffers from the pool, moving to a buffer of a larger class when it's full.
+     */
+    private static class BufferWriter extends Writer {
+        private char[] chars;
+        private int length;
+
+        BufferWriter(int sizeHint) {
+            chars = bufferPool.acquire(sizeHint);
+        }
+
+        private void ensureCapacity(int additional) {
+            int needed = length + additional;
+            if (needed <= chars.length) {
+                return;
+            }
+            char[] larger = bufferPool.acquire(Math.max(needed, chars.length * 2));
+            System.arraycopy(chars, 0, larger, 0, length);
+            bufferPool.release(chars);
+            chars = larger;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            ensureCapacity(len);
+            System.arraycopy(cbuf, off, chars, length, len);
+            length += len;
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            ensureCapacity(len);
+            str.getChars(off, off + len, chars, length);
+            length += len;
+        }
+
+        @Override
+        public void write(int c) {
+            ensureCapacity(1);
+            chars[length++] = (char) c;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        /**
+         * Return the buffer to the pool, the writer can't be used after.
+         */
+        @Override
+        public void close() {
+            if (chars!=null) {
+                bufferPool.release(chars);
+                chars = null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return new String(chars, 0, length);
+        }
+    }
+
+    private static final ThreadLocal<ThreadCodec> threadCodecs = new ThreadLocal<>();
+    private static final BufferPool bufferPool = new BufferPool();
+    private static final int DEFAULT_SIZE_HINT = BufferPool.CLASS_CHARS[0];
+
+    private final FhirContext fhirContext;
+
+
+    public ResourceCodec(FhirContext fhirContext) {
+        this.fhirContext = fhirContext;
+    }
+
+
+    public static boolean isJson(String contentType) {
+        return contentType.contains("json");
+    }
+
+    /**
+     * @return "json" or "xml", for use in cache keys where only the format family matters
+     */
+    public static String formatOf(String contentType) {
+        return isJson(contentType) ? "json" : "xml";
+    }
+
+    public static boolean isSameFormat(String contentType, String otherContentType) {
+        return isJson(contentType) == isJson(otherContentType);
+    }
+
+    public FhirContext getFhirContext() {
+        return fhirContext;
+    }
+
+    public IParser newParser(String contentType) {
+        if (isJson(contentType)) {
+            return fhirContext.newJsonParser();
+        } else {
+            return fhirContext.newXmlParser();
+        }
+    }
+
+    private ThreadCodec getThreadCodec() {
+        ThreadCodec codec = threadCodecs.get();
+        if (codec==null || codec.fhirContext!=fhirContext) {
+            codec = new ThreadCodec(fhirContext);
+            threadCodecs.set(codec);
+        }
+        return codec;
+    }
+
+    /**
+     * @return this thread's parser for the content type. Only for parsing and for encoding without a projection, as
+     * projections are configured on the parser.
+     */
+    private IParser getParser(String contentType) {
+        ThreadCodec codec = getThreadCodec();
+        return isJson(contentType) ? codec.jsonParser : codec.xmlParser;
+    }
+
+    public IBaseResource parse(Contents contents) {
+        return getParser(contents.contentType).parseResource(contents.content);
+    }
+
+    public Contents encode(IBaseResource resource, String contentType) {
+        return encode(resource, contentType, null);
+    }
+
+    /**
+     * @param projection an optional projection to apply while encoding, see {@link ResponseProjection}. The resource is
+     *                   encoded unprojected if the projection isn't supported for it.
+     */
+    public Contents encode(IBaseResource resource, String contentType, ResponseProjection projection) {
+        return encode(resource, contentType, projection, DEFAULT_SIZE_HINT);
+    }
+
+    /**
+     * @param sizeHint the expected size of the encoded body, in chars
+     */
+    private Contents encode(IBaseResource resource, String contentType, ResponseProjection projection, int sizeHint) {
+        IParser parser;
+        if (projection!=null && projection.isSupportedFor(resource)) {
+            parser = newParser(contentType);
+            projection.apply(fhirContext, parser, resource);
+        } else {
+            parser = getParser(contentType);
+        }
+        parser.setPrettyPrint(true);
+
+        BufferWriter buffer = new BufferWriter(sizeHint);
+        try {
+            parser.encodeResourceToWriter(resource, buffer);
+            return new Contents(contentType, buffer.toString());
+        } catch (IOException ex) {
+            // the buffer doesn't throw
+            throw new IllegalStateException(ex);
+        } finally {
+            buffer.close();
+        }
+    }
+
+    public Contents convert(Contents contents, String contentType) {
+        return convert(contents, contentType, null);
+    }
+
+    public Contents convert(Contents contents, String contentType, ResponseProjection projection) {
+        // the other format is about as large
+        return encode(parse(contents), contentType, projection, Math.max(DEFAULT_SIZE_HINT, contents.content.length()));
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.ActorRef;
+import akka.actor.UntypedActor;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.http.client.utils.DateUtils;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.MediatorRequestMessage;
+import org.openhim.mediator.engine.messages.SimpleMediatorRequest;
+import org.openhim.mediator.engine.messages.SimpleMediatorResponse;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tracks the versions of the resources that the mediator has proxied, so that conditional reads
+ * (If-None-Match/If-Modified-Since) can be answered with a 304 without going upstream.
+ *
+ * A version is only considered current for a short time after it was seen (conditional-get-max-age),
+ * and writes to a resource that pass through the mediator discard what is known about it.
+ *
+ * Representations that the mediator produces (converted or projected) are tagged with the upstream version they're
+ * of, see {@link #representationETag(String, String)}, so that a client can use the tag for If-Match on an update.
+ */
+public class ResourceVersionActor extends UntypedActor {
+    public static class ResourceVersion {
+        final String etag;
+        final String lastModified;
+        final long seenAt;
+
+        public ResourceVersion(String etag, String lastModified) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.seenAt = System.currentTimeMillis();
+        }
+
+        public String getETag() {
+            return etag;
+        }
+
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Weak comparison, as required for If-None-Match (RFC 7232)
+         */
+        public boolean matchesIfNoneMatch(String ifNoneMatch) {
+            if (ifNoneMatch==null || etag==null) {
+                return false;
+            }
+            for (String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+                if ("*".equals(candidate) || opaqueTag(candidate).equals(opaqueTag(etag))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public boolean notModifiedSince(String ifModifiedSince) {
+            if (ifModifiedSince==null || lastModified==null) {
+                return false;
+            }
+            Date since = DateUtils.parseDate(ifModifiedSince);
+            Date modified = DateUtils.parseDate(lastModified);
+            return since!=null && modified!=null && !modified.after(since);
+        }
+
+        private static String opaqueTag(String etag) {
+            return etag.startsWith("W/") ? etag.substring(2) : etag;
+        }
+    }
+
+    public static class VersionRequest extends SimpleMediatorRequest<String> {
+        final String resourcePath;
+
+        public VersionRequest(ActorRef requestHandler, ActorRef respondTo, String resourcePath, String requestKey) {
+            super(requestHandler, respondTo, requestKey);
+            this.resourcePath = resourcePath;
+        }
+    }
+
+    /**
+     * The known version, or null if unknown or no longer considered current.
+     */
+    public static class VersionResponse extends SimpleMediatorResponse<ResourceVersion> {
+        public VersionResponse(MediatorRequestMessage originalRequest, ResourceVersion responseObject) {
+            super(originalRequest, responseObject);
+        }
+    }
+
+    public static class RecordVersion {
+        final String resourcePath;
+        final String requestKey;
+        final ResourceVersion version;
+
+        public RecordVersion(String resourcePath, String requestKey, ResourceVersion version) {
+            this.resourcePath = resourcePath;
+            this.requestKey = requestKey;
+            this.version = version;
+        }
+    }
+
+    /**
+     * Discard the versions of a resource, or of all resources if the path is null.
+     */
+    public static class InvalidateVersions {
+        final String resourcePath;
+
+        public InvalidateVersions(String resourcePath) {
+            this.resourcePath = resourcePath;
+        }
+    }
+
+
+    // "<version id>+<representation>", FHIR ids can't contain a '+'
+    private static final Pattern REPRESENTATION_ETAG = Pattern.compile("\"(.+)\\+[0-9a-f]{8}\"");
+
+
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private final MediatorConfig config;
+
+    // resource path -> (request key -> version), as a resource has a representation per format and projection.
+    // Expired versions are discarded lazily, the map is bounded by evicting the least recently used resources.
+    private final Map<String, Map<String, ResourceVersion>> versions = new LinkedHashMap<String, Map<String, ResourceVersion>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Map<String, ResourceVersion>> eldest) {
+            return size() > DynamicConfig.getInt(config, "conditional-get-max-resources", 10000);
+        }
+    };
+
+
+    public ResourceVersionActor(MediatorConfig config) {
+        this.config = config;
+    }
+
+
+    /**
+     * The strong ETag of a representation of a resource version that the mediator produced, e.g. by converting it to
+     * another format. Each representation gets its own tag, and the tag names the version it's of.
+     *
+     * @param versionId the upstream version id
+     * @param representationKey identifies the representation, i.e. the format and projection
+     */
+    public static String representationETag(String versionId, String representationKey) {
+        return "\"" + versionId + "+" + DigestUtils.md5Hex(representationKey).substring(0, 8) + "\"";
+    }
+
+    /**
+     * @return the version id in a FHIR ETag (W/"3"), or null if there's no ETag
+     */
+    public static String versionIdOf(String etag) {
+        if (etag==null) {
+            return null;
+        }
+        String tag = ResourceVersion.opaqueTag(etag.trim());
+        return tag.length() > 1 && tag.startsWith("\"") && tag.endsWith("\"") ? tag.substring(1, tag.length() - 1) : tag;
+    }
+
+    /**
+     * Map the representation ETags in an If-Match header back to the upstream versions they're of, as an upstream
+     * server would reject them. Other tags are left as is.
+     */
+    public static String upstreamIfMatch(String ifMatch) {
+        StringBuilder upstream = new StringBuilder();
+        for (String candidate : ifMatch.split(",")) {
+            candidate = candidate.trim();
+            Matcher matcher = REPRESENTATION_ETAG.matcher(candidate);
+            if (matcher.matches()) {
+                candidate = "W/\"" + matcher.group(1) + "\"";
+            }
+            if (upstream.length() > 0) {
+                upstream.append(", ");
+            }
+            upstream.append(candidate);
+        }
+        return upstream.toString();
+    }
+
+    private long getMaxAgeMillis() {
+        return DynamicConfig.getLong(config, "conditional-get-max-age", 30) * 1000;
+    }
+
+    private void processVersionRequest(VersionRequest msg) {
+        ResourceVersion version = null;
+        Map<String, ResourceVersion> representations = versions.get(msg.resourcePath);
+
+        if (representations!=null) {
+            version = representations.get(msg.getRequestObject());
+            if (version!=null && version.seenAt + getMaxAgeMillis() < System.currentTimeMillis()) {
+                representations.remove(msg.getRequestObject());
+                version = null;
+            }
+        }
+
+        msg.getRespondTo().tell(new VersionResponse(msg, version), getSelf());
+    }
+
+    private void processRecordVersion(RecordVersion msg) {
+        Map<String, ResourceVersion> representations = versions.get(msg.resourcePath);
+        if (representations==null) {
+            representations = new HashMap<>();
+            versions.put(msg.resourcePath, representations);
+        }
+        representations.put(msg.requestKey, msg.version);
+    }
+
+    private void processInvalidate(InvalidateVersions msg) {
+        if (msg.resourcePath==null) {
+            log.debug("Discarding all known resource versions");
+            versions.clear();
+        } else {
+            versions.remove(msg.resourcePath);
+        }
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof VersionRequest) {
+            processVersionRequest((VersionRequest) msg);
+        } else if (msg instanceof RecordVersion) {
+            processRecordVersion((RecordVersion) msg);
+        } else if (msg instanceof InvalidateVersions) {
+            processInvalidate((InvalidateVersions) msg);
+        } else {
+            unhandled(msg);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.valueset.BundleTypeEnum;
+import ca.uhn.fhir.parser.IParser;
+import org.apache.commons.lang3.tuple.Pair;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.openhim.mediator.engine.MediatorConfig;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Applies the _summary and _elements search params to a response on the mediator side,
+ * for upstream servers that ignore them.
+ *
+ * The projection is applied while encoding: HAPI's summary mode, narrative suppression and encode elements
+ * restrict what the parser writes out, so a projected response is also cheaper to encode.
+ *
+ * _summary=count is only applied to DSTU2 searchsets. Other responses are passed on unprojected, see
+ * {@link #isSupportedFor(IBaseResource)}, rather than answering a count with something else.
+ */
+public class ResponseProjection {
+    public enum Summary {
+        TRUE, TEXT, DATA, COUNT
+    }
+
+    // along with the mandatory top level elements of the resource
+    private static final List<String> TEXT_ELEMENTS = Arrays.asList("text", "id", "meta");
+
+    private final Summary summary;
+    private final List<String> elements;
+
+
+    private ResponseProjection(Summary summary, List<String> elements) {
+        this.summary = summary;
+        this.elements = elements;
+    }
+
+
+    /**
+     * @return the projection requested by the params, or null if none is requested
+     */
+    public static ResponseProjection fromParams(List<Pair<String, String>> params) {
+        if (params==null) {
+            return null;
+        }
+
+        Summary summary = null;
+        List<String> elements = new ArrayList<>();
+
+        for (Pair<String, String> param : params) {
+            if ("_summary".equals(param.getKey()) && param.getValue()!=null) {
+                switch (param.getValue().trim().toLowerCase()) {
+                    case "true":
+                        summary = Summary.TRUE;
+                        break;
+                    case "text":
+                        summary = Summary.TEXT;
+                        break;
+                    case "data":
+                        summary = Summary.DATA;
+                        break;
+                    case "count":
+                        summary = Summary.COUNT;
+                        break;
+                    default:
+                        // 'false' or unknown: full resources
+                        break;
+                }
+            } else if ("_elements".equals(param.getKey()) && param.getValue()!=null) {
+                for (String element : param.getValue().split(",")) {
+                    if (!element.trim().isEmpty()) {
+                        elements.add(element.trim());
+                    }
+                }
+            }
+        }
+
+        if (summary==null && elements.isEmpty()) {
+            return null;
+        }
+        return new ResponseProjection(summary, elements);
+    }
+
+    /**
+     * @return true if responses that are passed through unconverted should be projected too, which costs a parse
+     */
+    public static boolean isEnabledForPassthrough(MediatorConfig config) {
+        return "All".equalsIgnoreCase(DynamicConfig.getString(config, "response-projection", "Converted"));
+    }
+
+    public static boolean isEnabled(MediatorConfig config) {
+        return !"Disabled".equalsIgnoreCase(DynamicConfig.getString(config, "response-projection", "Converted"));
+    }
+
+    public Summary getSummary() {
+        return summary;
+    }
+
+    public List<String> getElements() {
+        return Collections.unmodifiableList(elements);
+    }
+
+    /**
+     * @return identifies the projection, e.g. for caching projected bodies
+     */
+    public String getKey() {
+        StringBuilder key = new StringBuilder(summary!=null ? summary.name() : "");
+        for (String element : elements) {
+            key.append(',').append(element);
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return false if the mediator can't apply the projection to the resource, in which case it should be passed on
+     *         unprojected: _summary=count for anything other than a DSTU2 searchset
+     */
+    public boolean isSupportedFor(IBaseResource resource) {
+        if (summary==Summary.COUNT) {
+            return resource instanceof Bundle && ((Bundle) resource).getTypeElement().getValueAsEnum()==BundleTypeEnum.SEARCH_RESULTS;
+        }
+        return true;
+    }
+
+    /**
+     * Configure a parser to encode the resource according to this projection. The projection must be
+     * {@link #isSupportedFor(IBaseResource) supported} for the resource.
+     *
+     * For _summary=count the entries are removed from the Bundle, so the resource may be modified.
+     */
+    public void apply(FhirContext fhirContext, IParser parser, IBaseResource resource) {
+        if (summary==Summary.COUNT) {
+            ((Bundle) resource).getEntry().clear();
+            return;
+        }
+
+        if (summary==Summary.TRUE) {
+            parser.setSummaryMode(true);
+        } else if (summary==Summary.DATA) {
+            parser.setSuppressNarratives(true);
+        }
+
+        List<String> encodeElements = summary==Summary.TEXT ? TEXT_ELEMENTS : elements;
+        if (!encodeElements.isEmpty()) {
+            Set<String> resourceTypes = resourceTypesFor(fhirContext, resource);
+            Set<String> wildcarded = new HashSet<>();
+            for (String element : encodeElements) {
+                wildcarded.add("*." + element);
+            }
+            if (summary==Summary.TEXT) {
+                wildcarded.addAll(mandatoryElementsOf(fhirContext, resourceTypes));
+            }
+            parser.setEncodeElements(wildcarded);
+            parser.setEncodeElementsAppliesToResourceTypes(resourceTypes);
+        }
+    }
+
+    /**
+     * @return the mandatory top level elements of the resource types, e.g. Observation.status
+     */
+    private static Set<String> mandatoryElementsOf(FhirContext fhirContext, Set<String> resourceTypes) {
+        Set<String> mandatory = new HashSet<>();
+        for (String type : resourceTypes) {
+            for (BaseRuntimeChildDefinition child : fhirContext.getResourceDefinition(type).getChildren()) {
+                if (child.getMin() > 0) {
+                    // choice elements by their base name, e.g. effective for effectiveDateTime
+                    mandatory.add(type + "." + child.getElementName());
+                }
+            }
+        }
+        return mandatory;
+    }
+
+    /**
+     * The elements apply to the resource itself, or to the entries when it is a Bundle.
+     */
+    private static Set<String> resourceTypesFor(FhirContext fhirContext, IBaseResource resource) {
+        Set<String> types = new HashSet<>();
+        if (resource instanceof Bundle) {
+            for (Bundle.Entry entry : ((Bundle) resource).getEntry()) {
+                if (entry.getResource()!=null) {
+                    types.add(entry.getResource().getResourceName());
+                }
+            }
+        } else {
+            types.add(fhirContext.getResourceDefinition(resource).getName());
+        }
+        return types;
+    }
+}
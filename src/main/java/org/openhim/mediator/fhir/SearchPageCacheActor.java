@@ -0,0 +1,236 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.ActorRef;
+import akka.actor.Props;
+import akka.actor.UntypedActor;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import ca.uhn.fhir.context.FhirContext;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.FinishRequest;
+import org.openhim.mediator.engine.messages.MediatorRequestMessage;
+import org.openhim.mediator.engine.messages.SimpleMediatorRequest;
+import org.openhim.mediator.engine.messages.SimpleMediatorResponse;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A short lived cache of searchset pages that have been prefetched from upstream.
+ *
+ * When a client receives a searchset Bundle with a 'next' link, the following pages are fetched in the background
+ * (see {@link SearchPagePrefetcher}), already converted to the client's format, so that following the link can be
+ * served from memory. Pages are keyed on the client and the request path and params, so the link host is irrelevant,
+ * and a page is only served to the client it was fetched for.
+ */
+public class SearchPageCacheActor extends UntypedActor {
+    /**
+     * Lookup a page. The request object is the page key, see {@link CacheKeys#clientRequestKey(String, String, String, List)}.
+     */
+    public static class PageRequest extends SimpleMediatorRequest<String> {
+        public PageRequest(ActorRef requestHandler, ActorRef respondTo, String pageKey) {
+            super(requestHandler, respondTo, pageKey);
+        }
+    }
+
+    /**
+     * The cached page as it is to be sent to the client, or null if not cached.
+     */
+    public static class PageResponse extends SimpleMediatorResponse<FinishRequest> {
+        public PageResponse(MediatorRequestMessage originalRequest, FinishRequest responseObject) {
+            super(originalRequest, responseObject);
+        }
+    }
+
+    /**
+     * Prefetch the pages following a searchset page that was just sent to a client.
+     */
+    public static class PrefetchPages {
+        final FhirContext fhirContext;
+        final Contents page;
+        final String clientContentType;
+        final Map<String, String> headers;
+
+        public PrefetchPages(FhirContext fhirContext, Contents page, String clientContentType, Map<String, String> headers) {
+            this.fhirContext = fhirContext;
+            this.page = page;
+            this.clientContentType = clientContentType;
+            this.headers = headers;
+        }
+    }
+
+    /**
+     * Sent by a prefetcher once it has a page. The key is null for the page that seeded the prefetch.
+     */
+    static class StorePage {
+        final String pageKey;
+        final FinishRequest page;
+        final String nextUrl;
+        final int depth;
+        final PrefetchPages origin;
+
+        StorePage(String pageKey, FinishRequest page, String nextUrl, int depth, PrefetchPages origin) {
+            this.pageKey = pageKey;
+            this.page = page;
+            this.nextUrl = nextUrl;
+            this.depth = depth;
+            this.origin = origin;
+        }
+    }
+
+    static class PageFetchFailed {
+        final String pageKey;
+
+        PageFetchFailed(String pageKey) {
+            this.pageKey = pageKey;
+        }
+    }
+
+    private static class CachedPage {
+        final FinishRequest page;
+        final String nextUrl;
+        final PrefetchPages origin;
+        final long expiresAt;
+
+        CachedPage(FinishRequest page, String nextUrl, PrefetchPages origin, long expiresAt) {
+            this.page = page;
+            this.nextUrl = nextUrl;
+            this.origin = origin;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private final MediatorConfig config;
+
+    private final Map<String, CachedPage> pages = new LinkedHashMap<String, CachedPage>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedPage> eldest) {
+            return size() > DynamicConfig.getInt(config, "search-prefetch-max-pages", 1000);
+        }
+    };
+    private final Set<String> inFlight = new HashSet<>();
+
+
+    public SearchPageCacheActor(MediatorConfig config) {
+        this.config = config;
+    }
+
+
+    private int getPrefetchDepth() {
+        return DynamicConfig.getInt(config, "search-prefetch-pages", 0);
+    }
+
+    private long getTtlMillis() {
+        return DynamicConfig.getLong(config, "search-prefetch-ttl", 60) * 1000;
+    }
+
+    private void purgeExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<CachedPage> it = pages.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().expiresAt < now) {
+                it.remove();
+            }
+        }
+    }
+
+    private CachedPage getPage(String pageKey) {
+        CachedPage page = pages.get(pageKey);
+        if (page!=null && page.expiresAt < System.currentTimeMillis()) {
+            pages.remove(pageKey);
+            return null;
+        }
+        return page;
+    }
+
+    private static String pageKey(PrefetchPages origin, String url) {
+        return SearchPagePrefetcher.pageKeyForUrl(CacheKeys.clientId(origin.headers), ResourceCodec.formatOf(origin.clientContentType), url);
+    }
+
+    private void fetch(String url, int depth, PrefetchPages origin) {
+        String pageKey = pageKey(origin, url);
+        if (pageKey==null || inFlight.contains(pageKey) || getPage(pageKey)!=null) {
+            return;
+        }
+
+        inFlight.add(pageKey);
+        getContext().actorOf(Props.create(SearchPagePrefetcher.class, config, new SearchPagePrefetcher.Fetch(origin, url, pageKey, depth)));
+    }
+
+    private void processPrefetch(PrefetchPages msg) {
+        int depth = getPrefetchDepth();
+        if (depth > 0) {
+            getContext().actorOf(Props.create(SearchPagePrefetcher.class, config, new SearchPagePrefetcher.Fetch(msg, null, null, depth + 1)));
+        }
+    }
+
+    private void processStorePage(StorePage msg) {
+        purgeExpired();
+
+        if (msg.pageKey!=null) {
+            log.debug("Caching prefetched search page " + msg.pageKey);
+            inFlight.remove(msg.pageKey);
+            pages.put(msg.pageKey, new CachedPage(msg.page, msg.nextUrl, msg.origin, System.currentTimeMillis() + getTtlMillis()));
+        }
+
+        if (msg.nextUrl!=null && msg.depth > 1) {
+            fetch(msg.nextUrl, msg.depth - 1, msg.origin);
+        }
+    }
+
+    /**
+     * A client is walking the pages, keep the configured number of pages ahead of it available
+     */
+    private void topUp(CachedPage page) {
+        int depth = getPrefetchDepth();
+        String nextUrl = page.nextUrl;
+
+        for (int i=0; i<depth && nextUrl!=null; i++) {
+            String nextKey = pageKey(page.origin, nextUrl);
+            CachedPage next = nextKey!=null ? getPage(nextKey) : null;
+
+            if (next==null) {
+                fetch(nextUrl, depth - i, page.origin);
+                return;
+            }
+            nextUrl = next.nextUrl;
+        }
+    }
+
+    private void processPageRequest(PageRequest msg) {
+        CachedPage page = getPage(msg.getRequestObject());
+        msg.getRespondTo().tell(new PageResponse(msg, page!=null ? page.page : null), getSelf());
+
+        if (page!=null) {
+            topUp(page);
+        }
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof PageRequest) {
+            processPageRequest((PageRequest) msg);
+        } else if (msg instanceof PrefetchPages) {
+            processPrefetch((PrefetchPages) msg);
+        } else if (msg instanceof StorePage) {
+            processStorePage((StorePage) msg);
+        } else if (msg instanceof PageFetchFailed) {
+            inFlight.remove(((PageFetchFailed) msg).pageKey);
+        } else {
+            unhandled(msg);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.ActorSelection;
+import akka.actor.ReceiveTimeout;
+import akka.actor.UntypedActor;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.http.HttpStatus;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.AddOrchestrationToCoreResponse;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.FinishRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPResponse;
+import scala.concurrent.duration.Duration;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fetches a single searchset page from upstream on behalf of the {@link SearchPageCacheActor},
+ * converts it to the client's format and reports it back to the cache, with upstream's response headers, along with the
+ * page's 'next' link.
+ *
+ * A fetch without a url is a seed: the page the client has already received is only inspected for its 'next' link.
+ */
+public class SearchPagePrefetcher extends UntypedActor {
+    public static class Fetch {
+        final SearchPageCacheActor.PrefetchPages origin;
+        final String url;
+        final String pageKey;
+        final int depth;
+
+        public Fetch(SearchPageCacheActor.PrefetchPages origin, String url, String pageKey, int depth) {
+            this.origin = origin;
+            this.url = url;
+            this.pageKey = pageKey;
+            this.depth = depth;
+        }
+    }
+
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private final MediatorConfig config;
+    private final Fetch fetch;
+    private final ResourceCodec codec;
+    private List<Pair<String, String>> params;
+
+
+    public SearchPagePrefetcher(MediatorConfig config, Fetch fetch) {
+        this.config = config;
+        this.fetch = fetch;
+        this.codec = new ResourceCodec(fetch.origin.fhirContext);
+    }
+
+
+    /**
+     * @param clientId the client the page is fetched for, see {@link CacheKeys#clientId(Map)}, as pages are fetched with
+     *                 the client's credentials
+     */
+    public static String pageKeyForUrl(String clientId, String format, String url) {
+        try {
+            URI uri = new URI(url);
+            List<Pair<String, String>> params = new ArrayList<>();
+            for (NameValuePair param : URLEncodedUtils.parse(uri, "UTF-8")) {
+                params.add(Pair.of(param.getName(), param.getValue()));
+            }
+            return CacheKeys.clientRequestKey(clientId, format, uri.getPath(), params);
+        } catch (URISyntaxException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the url of the 'next' link if the resource is a Bundle that has one, else null
+     */
+    public static String nextLink(IBaseResource resource) {
+        if (resource instanceof Bundle) {
+            Bundle.Link next = ((Bundle) resource).getLink("next");
+            if (next!=null && next.getUrl()!=null && !next.getUrl().isEmpty()) {
+                return next.getUrl();
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void preStart() throws Exception {
+        try {
+            if (fetch.url==null) {
+                IBaseResource resource = codec.parse(fetch.origin.page);
+                finish(new SearchPageCacheActor.StorePage(null, null, nextLink(resource), fetch.depth, fetch.origin));
+            } else {
+                getContext().setReceiveTimeout(Duration.create(config.getRootTimeout()!=null ? config.getRootTimeout() : 60000, TimeUnit.MILLISECONDS));
+                sendRequest();
+            }
+        } catch (RuntimeException | URISyntaxException ex) {
+            log.warning("Could not prefetch search pages: " + ex.getMessage());
+            finish(new SearchPageCacheActor.PageFetchFailed(fetch.pageKey));
+        }
+    }
+
+    private void sendRequest() throws URISyntaxException {
+        URI uri = new URI(fetch.url);
+        params = new ArrayList<>();
+        for (NameValuePair param : URLEncodedUtils.parse(uri, "UTF-8")) {
+            params.add(Pair.of(param.getName(), param.getValue()));
+        }
+
+        MediatorHTTPRequest request = new MediatorHTTPRequest(
+                getSelf(),
+                getSelf(),
+                "FHIR Upstream Page Prefetch",
+                "GET",
+                DynamicConfig.getString(config, "upstream-scheme", "http"),
+                DynamicConfig.getString(config, "upstream-host", "localhost"),
+                DynamicConfig.getInt(config, "upstream-port", 80),
+                uri.getPath(),
+                null,
+                fetch.origin.headers,
+                params
+        );
+
+        log.debug("Prefetching search page " + fetch.url);
+        ActorSelection httpConnector = getContext().actorSelection(config.userPathFor("http-connector"));
+        httpConnector.tell(request, getSelf());
+    }
+
+    private void processResponse(MediatorHTTPResponse response) {
+        String contentType = response.getHeaders().get("Content-Type");
+        if (response.getStatusCode()!=HttpStatus.SC_OK || response.getBody()==null || contentType==null ||
+                (!contentType.contains("json") && !contentType.contains("xml"))) {
+            finish(new SearchPageCacheActor.PageFetchFailed(fetch.pageKey));
+            return;
+        }
+
+        Contents upstreamContents = new Contents(contentType, response.getBody());
+        IBaseResource resource = codec.parse(upstreamContents);
+
+        String nextUrl = nextLink(resource);
+
+        // project the page the same way the client's own response would be
+        ResponseProjection projection = ResponseProjection.isEnabled(config) ? ResponseProjection.fromParams(params) : null;
+        boolean sameFormat = ResourceCodec.isSameFormat(contentType, fetch.origin.clientContentType);
+
+        Contents contents = upstreamContents;
+        if (!sameFormat || (projection!=null && ResponseProjection.isEnabledForPassthrough(config))) {
+            contents = codec.encode(resource, fetch.origin.clientContentType, projection);
+        }
+
+        // served with upstream's headers, like the client's own response would be
+        Map<String, String> headers = FhirProxyHandler.copyHeaders(response.getHeaders());
+        headers.put("Content-Type", contents.contentType);
+        FinishRequest page = new FinishRequest(contents.content, headers, HttpStatus.SC_OK);
+
+        finish(new SearchPageCacheActor.StorePage(fetch.pageKey, page, nextUrl, fetch.depth, fetch.origin));
+    }
+
+    private void finish(Object result) {
+        getContext().parent().tell(result, getSelf());
+        getContext().stop(getSelf());
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof MediatorHTTPResponse) {
+            try {
+                processResponse((MediatorHTTPResponse) msg);
+            } catch (RuntimeException ex) {
+                log.warning("Could not prefetch search page " + fetch.url + ": " + ex.getMessage());
+                finish(new SearchPageCacheActor.PageFetchFailed(fetch.pageKey));
+            }
+        } else if (msg instanceof ExceptError) {
+            log.warning("Could not prefetch search page " + fetch.url + ": " + ((ExceptError) msg).getError().getMessage());
+            finish(new SearchPageCacheActor.PageFetchFailed(fetch.pageKey));
+        } else if (msg instanceof ReceiveTimeout) {
+            finish(new SearchPageCacheActor.PageFetchFailed(fetch.pageKey));
+        } else if (msg instanceof AddOrchestrationToCoreResponse) {
+            // background fetches are not part of a client transaction
+        } else {
+            unhandled(msg);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+/**
+ * Records the stages of handling a request (parsing, validating, converting, waiting for upstream, etc.) as Java Flight
+ * Recorder events, so that a recording's GC, lock and CPU samples can be related to the FHIR work being done.
+ *
+ * The events are defined in {@link JfrStageEvents}, which is only loaded if the JVM has the JFR API (Java 11+ or a JDK
+ * 8 update with JFR). On other JVMs, and for events that aren't enabled in the current recordings, stages are
+ * {@link #DISABLED} spans that cost nothing to record.
+ */
+public class StageEvents {
+    public enum Stage {
+        // waiting for the shared FHIR context, see FhirContextActor
+        CONTEXT_ACQUISITION,
+        // creating the FHIR context
+        CONTEXT_INITIALIZATION,
+        PARSE,
+        VALIDATE,
+        CONVERT,
+        ENCODE,
+        UPSTREAM_WAIT,
+        // the whole request, up to responding to the client
+        CLIENT_RESPONSE
+    }
+
+    /**
+     * A stage in progress, ended once it completes. The fields are those known for the stage, the rest are left empty.
+     */
+    public static class Span {
+        /**
+         * @return false if the stage isn't recorded, so there's no need to work out its fields
+         */
+        public boolean isEnabled() {
+            return false;
+        }
+
+        public void setResourceType(String resourceType) {
+        }
+
+        public void setBodySize(long bodySize) {
+        }
+
+        /**
+         * @param sourceFormat the format of the stage's input, json or xml
+         * @param targetFormat the format of the stage's output, json or xml
+         */
+        public void setFormats(String sourceFormat, String targetFormat) {
+        }
+
+        public void setStatus(int status) {
+        }
+
+        /**
+         * Record the stage, if it's long enough for the recording's threshold. A span is only recorded once.
+         */
+        public void end() {
+        }
+    }
+
+    public interface Recorder {
+        Span begin(Stage stage, String transactionId);
+    }
+
+    public static final Span DISABLED = new Span();
+
+    private static final Recorder recorder = loadRecorder();
+
+
+    private StageEvents() {}
+
+
+    private static Recorder loadRecorder() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return (Recorder) Class.forName("org.openhim.mediator.fhir.JfrStageEvents").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            // no JFR
+            return null;
+        }
+    }
+
+    /**
+     * @param transactionId the OpenHIM transaction, if known
+     */
+    public static Span begin(Stage stage, String transactionId) {
+        return recorder!=null ? recorder.begin(stage, transactionId) : DISABLED;
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.ActorContext;
+import akka.actor.ActorSelection;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPResponse;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The capture of a request for the {@link TrafficRecorderActor}, if it's sampled.
+ *
+ * The handler that answers the client starts it when it receives the request, records its upstream call, if any, and
+ * finishes it once it has responded, which sends the exchange to the recorder. A handler that hands the request over to
+ * another handler that answers the client {@link #discard() discards} it, the other handler captures the request
+ * instead. Captures that aren't sampled do nothing.
+ */
+class TrafficCapture {
+    private final ActorContext context;
+    private final MediatorConfig config;
+    private final MediatorHTTPRequest request;
+    private final long receivedAt;
+
+    private boolean capturing;
+    private MediatorHTTPRequest upstreamRequest;
+    private MediatorHTTPResponse upstreamResponse;
+    private long upstreamSentAt;
+    private long upstreamMillis = -1;
+
+
+    private TrafficCapture(ActorContext context, MediatorConfig config, MediatorHTTPRequest request, boolean capturing) {
+        this.context = context;
+        this.config = config;
+        this.request = request;
+        this.capturing = capturing;
+        this.receivedAt = System.currentTimeMillis();
+    }
+
+
+    /**
+     * Start capturing the request, for traffic-capture-percent of requests.
+     */
+    static TrafficCapture start(ActorContext context, MediatorConfig config, MediatorHTTPRequest request) {
+        return new TrafficCapture(context, config, request, TrafficRecorderActor.isSampled(config));
+    }
+
+    void upstreamSent(MediatorHTTPRequest upstreamRequest) {
+        if (capturing) {
+            this.upstreamRequest = upstreamRequest;
+            upstreamSentAt = System.currentTimeMillis();
+        }
+    }
+
+    void upstreamReceived(MediatorHTTPResponse upstreamResponse) {
+        if (capturing && upstreamSentAt > 0) {
+            this.upstreamResponse = upstreamResponse;
+            upstreamMillis = System.currentTimeMillis() - upstreamSentAt;
+        }
+    }
+
+    /**
+     * Don't capture the request, e.g. it was handed over to a handler that captures it itself.
+     */
+    void discard() {
+        capturing = false;
+    }
+
+    /**
+     * Send the request and how it was handled to the traffic recorder, if it's captured.
+     *
+     * @param status the status the client was responded to with
+     */
+    void finish(Integer status) {
+        if (!capturing) {
+            return;
+        }
+        capturing = false;
+
+        TrafficLog.Request captured = new TrafficLog.Request(
+                request.getMethod(), request.getPath(), request.getParams(), withoutCredentials(request.getHeaders()), request.getBody()
+        );
+        TrafficLog.Request upstreamCaptured = null;
+        if (upstreamRequest!=null) {
+            // the body is the client's, converted
+            upstreamCaptured = new TrafficLog.Request(
+                    upstreamRequest.getMethod(), upstreamRequest.getPath(), upstreamRequest.getParams(), withoutCredentials(upstreamRequest.getHeaders()), null
+            );
+        }
+        TrafficLog.Response upstreamCapturedResponse = null;
+        if (upstreamResponse!=null) {
+            upstreamCapturedResponse = new TrafficLog.Response(
+                    upstreamResponse.getStatusCode(), withoutCredentials(upstreamResponse.getHeaders()), upstreamResponse.getBody()
+            );
+        }
+
+        ActorSelection recorder = context.actorSelection(config.userPathFor("traffic-recorder"));
+        recorder.tell(new TrafficLog.Exchange(
+                request.getHeaders().get("X-OpenHIM-TransactionID"), receivedAt, captured, upstreamCaptured, upstreamCapturedResponse,
+                upstreamMillis, status!=null ? status : 0, System.currentTimeMillis() - receivedAt
+        ), context.self());
+    }
+
+    /**
+     * @return the headers without credentials or cookies, in either direction
+     */
+    static Map<String, String> withoutCredentials(Map<String, String> headers) {
+        Map<String, String> copy = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        if (headers!=null) {
+            copy.putAll(headers);
+        }
+        copy.remove("Authorization");
+        copy.remove("Proxy-Authorization");
+        copy.remove("Cookie");
+        copy.remove("Set-Cookie");
+        return copy;
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The binary format of captured traffic, see {@link TrafficRecorderActor}.
+ *
+ * A log file starts with a magic number and the format version, followed by one frame per exchange: the uncompressed
+ * and the compressed length, and the exchange deflated on its own. Frames are only ever appended, a frame that was cut
+ * short (e.g. by a crash) ends the file.
+ */
+public class TrafficLog {
+    private static final byte[] MAGIC = "FHIRTRAF".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+
+    public static final String FILE_SUFFIX = ".trafficlog";
+
+    public static class Request {
+        final String method;
+        final String path;
+        final List<Pair<String, String>> params;
+        final Map<String, String> headers;
+        final String body;
+
+        public Request(String method, String path, List<Pair<String, String>> params, Map<String, String> headers, String body) {
+            this.method = method;
+            this.path = path;
+            this.params = params;
+            this.headers = headers;
+            this.body = body;
+        }
+    }
+
+    public static class Response {
+        final int status;
+        final Map<String, String> headers;
+        final String body;
+
+        public Response(int status, Map<String, String> headers, String body) {
+            this.status = status;
+            this.headers = headers;
+            this.body = body;
+        }
+    }
+
+    /**
+     * A client request and how it was handled. The upstream request (without its body) and response are null if the
+     * mediator responded without calling upstream, e.g. from a cache or with a validation error.
+     */
+    public static class Exchange {
+        final String transactionId;
+        // epoch millis
+        final long receivedAt;
+        final Request request;
+        final Request upstreamRequest;
+        final Response upstreamResponse;
+        final long upstreamMillis;
+        final int status;
+        final long totalMillis;
+
+        public Exchange(String transactionId, long receivedAt, Request request, Request upstreamRequest,
+                        Response upstreamResponse, long upstreamMillis, int status, long totalMillis) {
+            this.transactionId = transactionId;
+            this.receivedAt = receivedAt;
+            this.request = request;
+            this.upstreamRequest = upstreamRequest;
+            this.upstreamResponse = upstreamResponse;
+            this.upstreamMillis = upstreamMillis;
+            this.status = status;
+            this.totalMillis = totalMillis;
+        }
+    }
+
+
+    private TrafficLog() {}
+
+
+    public static void writeHeader(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.write(MAGIC);
+        data.writeInt(VERSION);
+        data.flush();
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    public static int writeExchange(OutputStream out, Exchange exchange) throws IOException {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(raw);
+        writeString(data, exchange.transactionId);
+        data.writeLong(exchange.receivedAt);
+        writeRequest(data, exchange.request);
+        data.writeBoolean(exchange.upstreamRequest!=null);
+        if (exchange.upstreamRequest!=null) {
+            writeRequest(data, exchange.upstreamRequest);
+        }
+        data.writeBoolean(exchange.upstreamResponse!=null);
+        if (exchange.upstreamResponse!=null) {
+            data.writeInt(exchange.upstreamResponse.status);
+            writeHeaders(data, exchange.upstreamResponse.headers);
+            writeString(data, exchange.upstreamResponse.body);
+        }
+        data.writeLong(exchange.upstreamMillis);
+        data.writeInt(exchange.status);
+        data.writeLong(exchange.totalMillis);
+        data.flush();
+
+        byte[] compressed = deflate(raw.toByteArray());
+        DataOutputStream frame = new DataOutputStream(out);
+        frame.writeInt(raw.size());
+        frame.writeInt(compressed.length);
+        frame.write(compressed);
+        frame.flush();
+        return 8 + compressed.length;
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 4 + 64);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void writeRequest(DataOutputStream data, Request request) throws IOException {
+        writeString(data, request.method);
+        writeString(data, request.path);
+        List<Pair<String, String>> params = request.params!=null ? request.params : Collections.<Pair<String, String>>emptyList();
+        data.writeInt(params.size());
+        for (Pair<String, String> param : params) {
+            writeString(data, param.getKey());
+            writeString(data, param.getValue());
+        }
+        writeHeaders(data, request.headers);
+        writeString(data, request.body);
+    }
+
+    private static void writeHeaders(DataOutputStream data, Map<String, String> headers) throws IOException {
+        if (headers==null) {
+            data.writeInt(0);
+            return;
+        }
+        data.writeInt(headers.size());
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            writeString(data, header.getKey());
+            writeString(data, header.getValue());
+        }
+    }
+
+    private static void writeString(DataOutputStream data, String value) throws IOException {
+        if (value==null) {
+            data.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+
+
+    /**
+     * Reads the exchanges of a log file in the order that they were written.
+     */
+    public static class Reader implements Closeable {
+        private final DataInputStream in;
+
+        public Reader(File file) throws IOException {
+            this(new FileInputStream(file));
+        }
+
+        public Reader(InputStream in) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(in));
+            try {
+                byte[] magic = new byte[MAGIC.length];
+                this.in.readFully(magic);
+                if (!Arrays.equals(magic, MAGIC)) {
+                    throw new IOException("Not a traffic log");
+                }
+                int version = this.in.readInt();
+                if (version!=VERSION) {
+                    throw new IOException("Unsupported traffic log version " + version);
+                }
+            } catch (IOException ex) {
+                IOUtils.closeQuietly(this.in);
+                throw ex;
+            }
+        }
+
+        /**
+         * @return the next exchange, or null at the end of the log
+         */
+        public Exchange next() throws IOException {
+            byte[] raw;
+            try {
+                int rawLength = in.readInt();
+                byte[] compressed = new byte[in.readInt()];
+                in.readFully(compressed);
+                raw = inflate(compressed, rawLength);
+            } catch (EOFException ex) {
+                return null;
+            }
+
+            DataInputStream data = new DataInputStream(new ByteArrayInputStream(raw));
+            String transactionId = readString(data);
+            long receivedAt = data.readLong();
+            Request request = readRequest(data);
+            Request upstreamRequest = data.readBoolean() ? readRequest(data) : null;
+            Response upstreamResponse = null;
+            if (data.readBoolean()) {
+                int status = data.readInt();
+                upstreamResponse = new Response(status, readHeaders(data), readString(data));
+            }
+            long upstreamMillis = data.readLong();
+            int status = data.readInt();
+            long totalMillis = data.readLong();
+            return new Exchange(transactionId, receivedAt, request, upstreamRequest, upstreamResponse, upstreamMillis, status, totalMillis);
+        }
+
+        private static byte[] inflate(byte[] compressed, int rawLength) throws IOException {
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(compressed);
+                byte[] raw = new byte[rawLength];
+                int length = 0;
+                while (length < rawLength && !inflater.finished()) {
+                    int inflated = inflater.inflate(raw, length, rawLength - length);
+                    if (inflated==0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    length += inflated;
+                }
+                if (length!=rawLength) {
+                    throw new IOException("Corrupt traffic log frame");
+                }
+                return raw;
+            } catch (DataFormatException ex) {
+                throw new IOException("Corrupt traffic log frame", ex);
+            } finally {
+                inflater.end();
+            }
+        }
+
+        private static Request readRequest(DataInputStream data) throws IOException {
+            String method = readString(data);
+            String path = readString(data);
+            int paramCount = data.readInt();
+            List<Pair<String, String>> params = new ArrayList<>(paramCount);
+            for (int i=0; i<paramCount; i++) {
+                String name = readString(data);
+                params.add(new ImmutablePair<>(name, readString(data)));
+            }
+            return new Request(method, path, params, readHeaders(data), readString(data));
+        }
+
+        private static Map<String, String> readHeaders(DataInputStream data) throws IOException {
+            int count = data.readInt();
+            Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            for (int i=0; i<count; i++) {
+                String name = readString(data);
+                headers.put(name, readString(data));
+            }
+            return headers;
+        }
+
+        private static String readString(DataInputStream data) throws IOException {
+            int length = data.readInt();
+            if (length < 0) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            data.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
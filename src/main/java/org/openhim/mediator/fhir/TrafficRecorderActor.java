@@ -0,0 +1,141 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.UntypedActor;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import org.apache.commons.io.IOUtils;
+import org.openhim.mediator.engine.MediatorConfig;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Captures a sample of the traffic through the proxy, so that production request mixes can be replayed when testing
+ * performance. Whichever handler answers a request decides whether to capture it ({@link #isSampled(MediatorConfig)})
+ * and sends the completed exchange here (see {@link TrafficCapture}), which appends it to the current log file in
+ * traffic-capture-directory, see {@link TrafficLog}.
+ *
+ * A new file is started once the current one reaches traffic-capture-file-size megabytes, and only the latest
+ * traffic-capture-files files are kept. Exchanges that can't be written are dropped, capturing never fails a request.
+ */
+public class TrafficRecorderActor extends UntypedActor {
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private final MediatorConfig config;
+
+    private File directory;
+    private File file;
+    private OutputStream out;
+    private long fileSize;
+
+
+    public TrafficRecorderActor(MediatorConfig config) {
+        this.config = config;
+    }
+
+
+    public static boolean isTrafficCaptureEnabled(MediatorConfig config) {
+        return DynamicConfig.getDouble(config, "traffic-capture-percent", 0) > 0;
+    }
+
+    /**
+     * @return true if a request should be captured, for traffic-capture-percent of requests
+     */
+    public static boolean isSampled(MediatorConfig config) {
+        double percent = DynamicConfig.getDouble(config, "traffic-capture-percent", 0);
+        return percent > 0 && (percent >= 100 || ThreadLocalRandom.current().nextDouble(100) < percent);
+    }
+
+    private void processExchange(TrafficLog.Exchange exchange) {
+        try {
+            openFile();
+            fileSize += TrafficLog.writeExchange(out, exchange);
+            out.flush();
+
+            if (fileSize >= DynamicConfig.getLong(config, "traffic-capture-file-size", 64) * 1024 * 1024) {
+                closeFile();
+            }
+        } catch (IOException ex) {
+            log.warning("Could not capture the exchange for " + exchange.transactionId + " to " + file + ": " + ex.getMessage());
+            closeFile();
+        }
+    }
+
+    private void openFile() throws IOException {
+        File current = new File(DynamicConfig.getString(config, "traffic-capture-directory", "traffic"));
+        if (out!=null && current.equals(directory)) {
+            return;
+        }
+
+        closeFile();
+        directory = current;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create the directory " + directory);
+        }
+
+        String timestamp = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date());
+        file = new File(directory, "traffic-" + timestamp + TrafficLog.FILE_SUFFIX);
+        for (int i=1; file.exists(); i++) {
+            file = new File(directory, "traffic-" + timestamp + "-" + i + TrafficLog.FILE_SUFFIX);
+        }
+
+        out = new BufferedOutputStream(new FileOutputStream(file));
+        TrafficLog.writeHeader(out);
+        fileSize = 0;
+        log.info("Capturing traffic to " + file);
+
+        removeOldFiles();
+    }
+
+    private void removeOldFiles() {
+        File[] files = directory.listFiles();
+        if (files==null) {
+            return;
+        }
+
+        // the names sort in the order that the files were started
+        Arrays.sort(files);
+        int keep = Math.max(1, DynamicConfig.getInt(config, "traffic-capture-files", 10));
+        int logs = 0;
+        for (int i=files.length - 1; i>=0; i--) {
+            if (!files[i].getName().startsWith("traffic-") || !files[i].getName().endsWith(TrafficLog.FILE_SUFFIX)) {
+                continue;
+            }
+            if (++logs > keep && !files[i].delete()) {
+                log.warning("Could not remove the old traffic log " + files[i]);
+            }
+        }
+    }
+
+    private void closeFile() {
+        IOUtils.closeQuietly(out);
+        out = null;
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof TrafficLog.Exchange) {
+            processExchange((TrafficLog.Exchange) msg);
+        } else {
+            unhandled(msg);
+        }
+    }
+
+    @Override
+    public void postStop() throws Exception {
+        closeFile();
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.ActorSelection;
+import akka.actor.UntypedActor;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+
+/**
+ * A circuit breaker in front of the upstream server. Handlers send their upstream requests here rather than to the
+ * http-connector, and report the outcome of each with {@link CallOutcome}.
+ *
+ * While closed, requests are passed on to the http-connector and the outcomes of the most recent calls are kept. A call
+ * fails if it errors, upstream responds with a server error or it takes longer than circuit-breaker-slow-call ms. Once
+ * circuit-breaker-failure-rate percent of the recent calls have failed, the breaker opens: requests are answered with
+ * {@link CircuitOpen} straight away, without waiting on the upstream server. After circuit-breaker-open-duration seconds
+ * the breaker is half-open and lets a single trial call through, which either closes it again or re-opens it.
+ */
+public class UpstreamCircuitBreakerActor extends UntypedActor {
+    private enum State { CLOSED, OPEN, HALF_OPEN }
+
+    /**
+     * Sent to the requester instead of passing its request on to upstream.
+     */
+    public static class CircuitOpen {
+        final long retryAfterSeconds;
+
+        public CircuitOpen(long retryAfterSeconds) {
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        public long getRetryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+    }
+
+    public static class CallOutcome {
+        final boolean success;
+
+        public CallOutcome(boolean success) {
+            this.success = success;
+        }
+    }
+
+    private static final int WINDOW_SIZE = 20;
+    private static final int MIN_CALLS = 10;
+
+
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private final MediatorConfig config;
+
+    private State state = State.CLOSED;
+    private long openedAt;
+    private boolean trialInFlight;
+
+    // outcomes of the most recent calls while closed
+    private final boolean[] failures = new boolean[WINDOW_SIZE];
+    private int next;
+    private int calls;
+
+
+    public UpstreamCircuitBreakerActor(MediatorConfig config) {
+        this.config = config;
+    }
+
+
+    public static boolean isCircuitBreakerEnabled(MediatorConfig config) {
+        return DynamicConfig.getInt(config, "circuit-breaker-failure-rate", 0) > 0;
+    }
+
+    /**
+     * @return true if the call took longer than circuit-breaker-slow-call ms, in which case it counts as failed
+     */
+    public static boolean isSlowCall(MediatorConfig config, long sentAt) {
+        long slowCall = DynamicConfig.getLong(config, "circuit-breaker-slow-call", 0);
+        return slowCall > 0 && System.currentTimeMillis() - sentAt > slowCall;
+    }
+
+    private long getOpenMillis() {
+        return DynamicConfig.getLong(config, "circuit-breaker-open-duration", 10) * 1000;
+    }
+
+    private void transition(State to) {
+        if (to==State.OPEN) {
+            log.warning("Upstream circuit breaker is open, failing requests fast for " + getOpenMillis() / 1000 + "s");
+            openedAt = System.currentTimeMillis();
+        } else if (to==State.CLOSED) {
+            log.info("Upstream circuit breaker is closed");
+            next = 0;
+            calls = 0;
+        }
+        state = to;
+        trialInFlight = false;
+    }
+
+    private void processRequest(MediatorHTTPRequest msg) {
+        if (state==State.OPEN && System.currentTimeMillis() - openedAt >= getOpenMillis()) {
+            log.info("Upstream circuit breaker is half-open, trying a request");
+            transition(State.HALF_OPEN);
+        }
+
+        if (state==State.OPEN || (state==State.HALF_OPEN && trialInFlight)) {
+            long retryAfter = Math.max(1, (openedAt + getOpenMillis() - System.currentTimeMillis()) / 1000);
+            msg.getRespondTo().tell(new CircuitOpen(retryAfter), getSelf());
+            return;
+        }
+
+        if (state==State.HALF_OPEN) {
+            trialInFlight = true;
+        }
+        ActorSelection httpConnector = getContext().actorSelection(config.userPathFor("http-connector"));
+        httpConnector.tell(msg, getSender());
+    }
+
+    private void processOutcome(CallOutcome msg) {
+        if (state==State.HALF_OPEN) {
+            transition(msg.success ? State.CLOSED : State.OPEN);
+            return;
+        }
+        if (state==State.OPEN) {
+            // a call that was already in flight when the breaker opened
+            return;
+        }
+
+        failures[next] = !msg.success;
+        next = (next + 1) % WINDOW_SIZE;
+        calls = Math.min(calls + 1, WINDOW_SIZE);
+
+        if (calls < MIN_CALLS) {
+            return;
+        }
+        int failed = 0;
+        for (int i=0; i<calls; i++) {
+            if (failures[i]) {
+                failed++;
+            }
+        }
+        if (failed * 100 >= calls * DynamicConfig.getInt(config, "circuit-breaker-failure-rate", 0)) {
+            transition(State.OPEN);
+        }
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof MediatorHTTPRequest) {
+            processRequest((MediatorHTTPRequest) msg);
+        } else if (msg instanceof CallOutcome) {
+            processOutcome((CallOutcome) msg);
+        } else {
+            unhandled(msg);
+        }
+    }
+}
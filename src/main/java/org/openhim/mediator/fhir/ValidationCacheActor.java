@@ -0,0 +1,224 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.ActorRef;
+import akka.actor.UntypedActor;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import ca.uhn.fhir.util.VersionUtil;
+import org.apache.commons.io.FileUtils;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.MediatorRequestMessage;
+import org.openhim.mediator.engine.messages.SimpleMediatorRequest;
+import org.openhim.mediator.engine.messages.SimpleMediatorResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caches the outcomes of validating request bodies, so that a body that is submitted again (e.g. by a periodic sync or a
+ * retry) isn't validated again. Bodies that pass are cached as such, those that fail with their encoded OperationOutcome.
+ *
+ * Holds up to validation-cache-size outcomes, the least recently used are discarded first. The outcomes are discarded
+ * when the validator configuration (the FHIR version or the profiles) changes.
+ *
+ * The outcomes are kept in a snapshot on disk, see {@link CacheSnapshot}, which is discarded if the validator
+ * configuration, the profile files or the HAPI version changes.
+ */
+public class ValidationCacheActor extends UntypedActor {
+    /**
+     * Lookup a validation outcome. The request object is the validation key, see {@link CacheKeys#validationKey(String, Contents, String)}.
+     */
+    public static class ValidationRequest extends SimpleMediatorRequest<String> {
+        public ValidationRequest(ActorRef requestHandler, ActorRef respondTo, String validationKey) {
+            super(requestHandler, respondTo, validationKey);
+        }
+    }
+
+    /**
+     * The cached outcome, or null if the body hasn't been validated yet.
+     */
+    public static class ValidationResponse extends SimpleMediatorResponse<ValidationOutcome> {
+        public ValidationResponse(MediatorRequestMessage originalRequest, ValidationOutcome responseObject) {
+            super(originalRequest, responseObject);
+        }
+    }
+
+    public static class ValidationOutcome {
+        final boolean passed;
+        // the encoded OperationOutcome if it failed, in the format of the validation key
+        final String operationOutcome;
+
+        public ValidationOutcome(boolean passed, String operationOutcome) {
+            this.passed = passed;
+            this.operationOutcome = operationOutcome;
+        }
+    }
+
+    public static class StoreValidation {
+        final String validationKey;
+        final ValidationOutcome outcome;
+
+        public StoreValidation(String validationKey, ValidationOutcome outcome) {
+            this.validationKey = validationKey;
+            this.outcome = outcome;
+        }
+    }
+
+
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private final MediatorConfig config;
+
+    private final Map<String, ValidationOutcome> outcomes = new LinkedHashMap<String, ValidationOutcome>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ValidationOutcome> eldest) {
+            return size() > DynamicConfig.getInt(config, "validation-cache-size", 0);
+        }
+    };
+    private String validatorConfig;
+    private CacheSnapshot snapshot;
+    private boolean changed;
+
+
+    public ValidationCacheActor(MediatorConfig config) {
+        this.config = config;
+    }
+
+
+    @Override
+    public void preStart() throws Exception {
+        snapshot = new CacheSnapshot(config, log, "validation-cache", getSnapshotVersion());
+        if (CacheSnapshot.isSnapshotEnabled(config)) {
+            CacheSnapshot.scheduleWrite(getContext(), config);
+        }
+    }
+
+
+    public static boolean isValidationCacheEnabled(MediatorConfig config) {
+        return DynamicConfig.getInt(config, "validation-cache-size", 0) > 0;
+    }
+
+    /**
+     * @return the configuration that validation outcomes depend on
+     */
+    private String getValidatorConfig() {
+        return ProfileValidatorActor.getProfileConfig(config);
+    }
+
+    /**
+     * @return what the outcomes depend on besides their keys, including when the profiles were last changed
+     */
+    private String getSnapshotVersion() {
+        long newest = 0;
+        int count = 0;
+        File directory = new File(DynamicConfig.getString(config, "validation-profiles-directory", ""));
+        if (directory.isDirectory()) {
+            for (File profile : FileUtils.listFiles(directory, null, true)) {
+                newest = Math.max(newest, profile.lastModified());
+                count++;
+            }
+        }
+        return "validation|" + VersionUtil.getVersion() + "|" + getValidatorConfig() + "|" + count + "|" + newest;
+    }
+
+    /**
+     * @return an outcome, from the snapshot if it isn't in the cache (yet)
+     */
+    private ValidationOutcome getOutcome(String validationKey) {
+        ValidationOutcome outcome = outcomes.get(validationKey);
+        if (outcome!=null) {
+            return outcome;
+        }
+
+        byte[] value = snapshot.take(validationKey);
+        if (value==null) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(value));
+            outcome = new ValidationOutcome(in.readBoolean(), CacheSnapshot.readString(in));
+            outcomes.put(validationKey, outcome);
+            return outcome;
+        } catch (IOException ex) {
+            log.warning("Could not load " + validationKey + " from the snapshot: " + ex.getMessage());
+            return null;
+        }
+    }
+
+    private void writeSnapshot() {
+        try {
+            CacheSnapshot.Writer writer = snapshot.startWriting(
+                    getSnapshotVersion(), DynamicConfig.getInt(config, "validation-cache-size", 0), Long.MAX_VALUE
+            );
+            if (writer==null) {
+                return;
+            }
+
+            for (Map.Entry<String, ValidationOutcome> entry : outcomes.entrySet()) {
+                ByteArrayOutputStream value = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(value);
+                out.writeBoolean(entry.getValue().passed);
+                CacheSnapshot.writeString(out, entry.getValue().operationOutcome);
+                out.flush();
+                writer.add(null, entry.getKey(), value.toByteArray(), 0);
+            }
+            snapshot.finishWriting(writer);
+            changed = false;
+        } catch (IOException ex) {
+            log.warning("Could not write the validation cache snapshot: " + ex.getMessage());
+        }
+    }
+
+    private void checkValidatorConfig() {
+        String current = getValidatorConfig();
+        if (!current.equals(validatorConfig)) {
+            if (validatorConfig!=null) {
+                log.info("Validator configuration changed, discarding " + outcomes.size() + " cached validation outcomes");
+            }
+            outcomes.clear();
+            if (validatorConfig!=null) {
+                snapshot.discard(null);
+            }
+            validatorConfig = current;
+        }
+    }
+
+    private void processValidationRequest(ValidationRequest msg) {
+        checkValidatorConfig();
+        msg.getRespondTo().tell(new ValidationResponse(msg, getOutcome(msg.getRequestObject())), getSelf());
+    }
+
+    private void processStoreValidation(StoreValidation msg) {
+        checkValidatorConfig();
+        outcomes.put(msg.validationKey, msg.outcome);
+        changed = true;
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof ValidationRequest) {
+            processValidationRequest((ValidationRequest) msg);
+        } else if (msg instanceof StoreValidation) {
+            processStoreValidation((StoreValidation) msg);
+        } else if (msg instanceof CacheSnapshot.WriteSnapshot) {
+            if (changed) {
+                writeSnapshot();
+            }
+            CacheSnapshot.completeWrite(getContext(), config, (CacheSnapshot.WriteSnapshot) msg);
+        } else {
+            unhandled(msg);
+        }
+    }
+}
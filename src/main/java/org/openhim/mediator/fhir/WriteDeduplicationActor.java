@@ -0,0 +1,214 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.ActorRef;
+import akka.actor.UntypedActor;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.FinishRequest;
+import org.openhim.mediator.engine.messages.MediatorRequestMessage;
+import org.openhim.mediator.engine.messages.SimpleMediatorRequest;
+import org.openhim.mediator.engine.messages.SimpleMediatorResponse;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers the responses to recent creates so that a client's retries get the original response back,
+ * instead of being validated and sent upstream again (creating a duplicate).
+ *
+ * The first request for a key is told to go ahead (a null {@link DeduplicationResponse}), retries that arrive while it
+ * is in flight are held back and answered with its result. Results are kept for post-deduplication-window seconds,
+ * except for server errors, which a retry should be able to get past.
+ *
+ * Writes identified by the client's Idempotency-Key carry a fingerprint of their body. A request that reuses a key for
+ * a different body is a client error rather than a retry, it's answered with {@link KeyReused}.
+ */
+public class WriteDeduplicationActor extends UntypedActor {
+    /**
+     * Lookup a write. The request object is the deduplication key, see {@link CacheKeys#writeKey(String, String, String)}.
+     */
+    public static class DeduplicationRequest extends SimpleMediatorRequest<String> {
+        final String fingerprint;
+
+        public DeduplicationRequest(ActorRef requestHandler, ActorRef respondTo, String writeKey) {
+            this(requestHandler, respondTo, writeKey, null);
+        }
+
+        /**
+         * @param fingerprint the {@link CacheKeys#fingerprint(Contents) fingerprint} of the body, if the key doesn't
+         *                    already identify it
+         */
+        public DeduplicationRequest(ActorRef requestHandler, ActorRef respondTo, String writeKey, String fingerprint) {
+            super(requestHandler, respondTo, writeKey);
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    /**
+     * The original response to send to the client, or null if the requester should process the write
+     * and report back with either {@link StoreResult} or {@link WriteFailed}.
+     */
+    public static class DeduplicationResponse extends SimpleMediatorResponse<FinishRequest> {
+        public DeduplicationResponse(MediatorRequestMessage originalRequest, FinishRequest responseObject) {
+            super(originalRequest, responseObject);
+        }
+    }
+
+    /**
+     * Sent to the requester instead of a {@link DeduplicationResponse} if its key was used for a write with a different body.
+     */
+    public static class KeyReused {
+    }
+
+    public static class StoreResult {
+        final String writeKey;
+        final FinishRequest response;
+
+        public StoreResult(String writeKey, FinishRequest response) {
+            this.writeKey = writeKey;
+            this.response = response;
+        }
+    }
+
+    public static class WriteFailed {
+        final String writeKey;
+
+        public WriteFailed(String writeKey) {
+            this.writeKey = writeKey;
+        }
+    }
+
+    private static class StoredResult {
+        final FinishRequest response;
+        final String fingerprint;
+        final long storedAt;
+
+        StoredResult(FinishRequest response, String fingerprint, long storedAt) {
+            this.response = response;
+            this.fingerprint = fingerprint;
+            this.storedAt = storedAt;
+        }
+    }
+
+
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private final MediatorConfig config;
+
+    // in the order stored, which is also the order in which they leave the window
+    private final Map<String, StoredResult> results = new LinkedHashMap<String, StoredResult>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, StoredResult> eldest) {
+            return size() > DynamicConfig.getInt(config, "post-deduplication-max-entries", 10000);
+        }
+    };
+    // write key -> retries waiting for the write in flight
+    private final Map<String, List<DeduplicationRequest>> inFlight = new HashMap<>();
+    // write key -> fingerprint of the write in flight
+    private final Map<String, String> inFlightFingerprints = new HashMap<>();
+
+
+    public WriteDeduplicationActor(MediatorConfig config) {
+        this.config = config;
+    }
+
+
+    private long getWindowMillis() {
+        return DynamicConfig.getLong(config, "post-deduplication-window", 600) * 1000;
+    }
+
+    private void expireResults() {
+        long oldest = System.currentTimeMillis() - getWindowMillis();
+        Iterator<StoredResult> it = results.values().iterator();
+        while (it.hasNext() && it.next().storedAt < oldest) {
+            it.remove();
+        }
+    }
+
+    private void processDeduplicationRequest(DeduplicationRequest msg) {
+        expireResults();
+
+        StoredResult result = results.get(msg.getRequestObject());
+        String fingerprint = result!=null ? result.fingerprint : inFlightFingerprints.get(msg.getRequestObject());
+        if (fingerprint!=null && msg.fingerprint!=null && !fingerprint.equals(msg.fingerprint)) {
+            log.info("Write " + msg.getRequestObject() + " reuses the key of a different write, rejecting it");
+            msg.getRespondTo().tell(new KeyReused(), getSelf());
+            return;
+        }
+
+        if (result!=null) {
+            log.debug("Write " + msg.getRequestObject() + " was already processed");
+            msg.getRespondTo().tell(new DeduplicationResponse(msg, result.response), getSelf());
+            return;
+        }
+
+        List<DeduplicationRequest> waiting = inFlight.get(msg.getRequestObject());
+        if (waiting!=null) {
+            waiting.add(msg);
+            return;
+        }
+
+        inFlight.put(msg.getRequestObject(), new ArrayList<DeduplicationRequest>());
+        if (msg.fingerprint!=null) {
+            inFlightFingerprints.put(msg.getRequestObject(), msg.fingerprint);
+        }
+        msg.getRespondTo().tell(new DeduplicationResponse(msg, null), getSelf());
+    }
+
+    private void processStoreResult(StoreResult msg) {
+        Integer status = msg.response.getResponseStatus();
+        if (status==null || status >= 500) {
+            processWriteFailed(new WriteFailed(msg.writeKey));
+            return;
+        }
+
+        results.put(msg.writeKey, new StoredResult(msg.response, inFlightFingerprints.remove(msg.writeKey), System.currentTimeMillis()));
+
+        List<DeduplicationRequest> waiting = inFlight.remove(msg.writeKey);
+        if (waiting!=null) {
+            if (!waiting.isEmpty()) {
+                log.info("Responding to " + waiting.size() + " retries of write " + msg.writeKey + " with the original result");
+            }
+            for (DeduplicationRequest request : waiting) {
+                request.getRespondTo().tell(new DeduplicationResponse(request, msg.response), getSelf());
+            }
+        }
+    }
+
+    private void processWriteFailed(WriteFailed msg) {
+        List<DeduplicationRequest> waiting = inFlight.remove(msg.writeKey);
+        if (waiting==null || waiting.isEmpty()) {
+            inFlightFingerprints.remove(msg.writeKey);
+        } else {
+            // the first retry goes ahead, the others wait for it. They all have the failed write's fingerprint, or
+            // they would have been rejected, so it's kept
+            DeduplicationRequest next = waiting.remove(0);
+            inFlight.put(msg.writeKey, waiting);
+            next.getRespondTo().tell(new DeduplicationResponse(next, null), getSelf());
+        }
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof DeduplicationRequest) {
+            processDeduplicationRequest((DeduplicationRequest) msg);
+        } else if (msg instanceof StoreResult) {
+            processStoreResult((StoreResult) msg);
+        } else if (msg instanceof WriteFailed) {
+            processWriteFailed((WriteFailed) msg);
+        } else {
+            unhandled(msg);
+        }
+    }
+}
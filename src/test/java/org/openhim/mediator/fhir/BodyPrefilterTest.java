@@ -0,0 +1,121 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import org.junit.Test;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.FinishRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import scala.concurrent.duration.Duration;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BodyPrefilterTest extends FhirProxyTestBase {
+
+    /**
+     * The sample resources, and JSON with escapes, numbers and nesting, should be checked like a parser would
+     */
+    @Test
+    public void testCheckJson() {
+        assertNull(BodyPrefilter.checkJson(patientJSON, 100));
+        assertNull(BodyPrefilter.checkJson(patientJSON_invalid, 100));
+        assertNull(BodyPrefilter.checkJson(patientSearchsetJSON, 100));
+        assertNull(BodyPrefilter.checkJson(observationSearchsetJSON, 100));
+        assertEquals(BodyPrefilter.Problem.MALFORMED, BodyPrefilter.checkJson(patientJSON_invalidSyntax, 100));
+        assertEquals(BodyPrefilter.Problem.MALFORMED, BodyPrefilter.checkJson(patientJSON.substring(0, patientJSON.length() / 2), 100));
+
+        // escapes
+        assertNull(BodyPrefilter.checkJson("{\"resourceType\":\"Patient\",\"id\":\"a\\\"b\\\\c\\/\\n\\u00e9\"}", 100));
+        assertEquals(BodyPrefilter.Problem.MALFORMED, BodyPrefilter.checkJson("{\"resourceType\":\"Patient\",\"id\":\"\\x\"}", 100));
+        assertEquals(BodyPrefilter.Problem.MALFORMED, BodyPrefilter.checkJson("{\"resourceType\":\"Patient\",\"id\":\"\\u00g0\"}", 100));
+        assertEquals(BodyPrefilter.Problem.MALFORMED, BodyPrefilter.checkJson("{\"resourceType\":\"Patient\",\"id\":\"a\nb\"}", 100));
+
+        // numbers and literals
+        assertNull(BodyPrefilter.checkJson("{\"resourceType\":\"Observation\",\"a\":[0,-1,1.5,2e10,-3.25E-2,true,false,null]}", 100));
+        for (String number : new String[]{"01", "1.", ".5", "-", "1e", "+1", "tru"}) {
+            assertEquals(number, BodyPrefilter.Problem.MALFORMED, BodyPrefilter.checkJson("{\"resourceType\":\"Observation\",\"a\":" + number + "}", 100));
+        }
+
+        // depth limits, the resource itself is 1 deep
+        String nested = "{\"resourceType\":\"Patient\",\"a\":{\"b\":[{}]}}";
+        assertNull(BodyPrefilter.checkJson(nested, 4));
+        assertEquals(BodyPrefilter.Problem.TOO_DEEP, BodyPrefilter.checkJson(nested, 3));
+
+        assertEquals(BodyPrefilter.Problem.NOT_A_RESOURCE, BodyPrefilter.checkJson("{\"a\":{\"resourceType\":\"Patient\"}}", 100));
+        assertEquals(BodyPrefilter.Problem.NOT_A_RESOURCE, BodyPrefilter.checkJson("[{\"resourceType\":\"Patient\"}]", 100));
+        assertEquals(BodyPrefilter.Problem.MALFORMED, BodyPrefilter.checkJson("{\"resourceType\":\"Patient\"} {}", 100));
+        assertEquals(BodyPrefilter.Problem.MALFORMED, BodyPrefilter.checkJson("{\"resourceType\":\"Patient\",}", 100));
+    }
+
+    /**
+     * The sample resource, and XML with namespace prefixes, CDATA, comments and nesting, should be checked like a parser
+     * would
+     */
+    @Test
+    public void testCheckXml() {
+        assertNull(BodyPrefilter.checkXml(patientXML, 100));
+        assertEquals(BodyPrefilter.Problem.MALFORMED, BodyPrefilter.checkXml(patientXML.substring(0, patientXML.length() / 2), 100));
+
+        // prefixed
+        assertNull(BodyPrefilter.checkXml("<f:Patient xmlns:f=\"http://hl7.org/fhir\"><f:id value=\"1\"/></f:Patient>", 100));
+        assertEquals(BodyPrefilter.Problem.NOT_A_RESOURCE, BodyPrefilter.checkXml("<f:patient xmlns:f=\"http://hl7.org/fhir\"/>", 100));
+        assertEquals(BodyPrefilter.Problem.NOT_A_RESOURCE, BodyPrefilter.checkXml("<f: xmlns:f=\"http://hl7.org/fhir\"/>", 100));
+        assertEquals(BodyPrefilter.Problem.MALFORMED, BodyPrefilter.checkXml("<f:Patient xmlns:f=\"http://hl7.org/fhir\"></Patient>", 100));
+
+        // CDATA, comments and processing instructions
+        assertNull(BodyPrefilter.checkXml("<?xml version=\"1.0\"?><!-- <Bad> --><Patient xmlns=\"http://hl7.org/fhir\"><text><div><![CDATA[</div> <b>]]></div></text></Patient><!-- end -->", 100));
+        assertEquals(BodyPrefilter.Problem.MALFORMED, BodyPrefilter.checkXml("<![CDATA[x]]><Patient/>", 100));
+        assertEquals(BodyPrefilter.Problem.MALFORMED, BodyPrefilter.checkXml("<Patient><!-- unterminated </Patient>", 100));
+        assertEquals(BodyPrefilter.Problem.MALFORMED, BodyPrefilter.checkXml("<!DOCTYPE Patient><Patient/>", 100));
+
+        // depth limits
+        String nested = "<Patient><a><b/></a></Patient>";
+        assertNull(BodyPrefilter.checkXml(nested, 2));
+        assertEquals(BodyPrefilter.Problem.TOO_DEEP, BodyPrefilter.checkXml(nested, 1));
+
+        assertEquals(BodyPrefilter.Problem.NOT_A_RESOURCE, BodyPrefilter.checkXml("<patient/>", 100));
+        assertEquals(BodyPrefilter.Problem.NOT_A_RESOURCE, BodyPrefilter.checkXml("text", 100));
+        assertEquals(BodyPrefilter.Problem.MALFORMED, BodyPrefilter.checkXml("<Patient/><Patient/>", 100));
+        assertEquals(BodyPrefilter.Problem.MALFORMED, BodyPrefilter.checkXml("<Patient><a></b></Patient>", 100));
+        assertEquals(BodyPrefilter.Problem.MALFORMED, BodyPrefilter.checkXml("<Patient a=\"x>", 100));
+    }
+
+    /**
+     * With the prefilter enabled, a malformed body should be rejected before it is parsed or passed upstream
+     */
+    @Test
+    public void testPrefilterRejectsMalformedBody() throws Throwable {
+        assertNull(BodyPrefilter.checkJson(patientJSON, 100));
+        assertNull(BodyPrefilter.checkJson(patientSearchsetJSON, 100));
+        assertNull(BodyPrefilter.checkXml(patientXML, 100));
+        assertEquals(BodyPrefilter.Problem.MALFORMED, BodyPrefilter.checkXml(patientXML.substring(0, patientXML.length() / 2), 100));
+        assertEquals(BodyPrefilter.Problem.TOO_DEEP, BodyPrefilter.checkJson(patientJSON, 2));
+
+        new FhirProxyTestKit(system, DSTU2FhirContext.class, TrapServer.class) {{
+            testConfig.getDynamicConfig().put("upstream-format", "Client");
+            testConfig.getDynamicConfig().put("validation-enabled", false);
+            testConfig.getDynamicConfig().put("request-prefilter", true);
+
+            try {
+                MediatorHTTPRequest POST_Request = POSTPatientRequest(Constants.FHIR_MIME_JSON, patientJSON_invalidSyntax);
+                fhirProxyHandler.tell(POST_Request, getRef());
+
+                Object result = expectMsgAnyClassOf(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class, ExceptError.class);
+                if (result instanceof ExceptError) {
+                    throw ((ExceptError) result).getError();
+                }
+                assertEquals(new Integer(400), ((FinishRequest) result).getResponseStatus());
+                assertTrue(((FinishRequest) result).getResponse().contains(BodyPrefilter.Problem.MALFORMED.getDetails()));
+            } finally {
+                testConfig.getDynamicConfig().remove("request-prefilter");
+                cleanup();
+            }
+        }};
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.ActorRef;
+import akka.actor.Props;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.OperationOutcome;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import com.google.gson.JsonParser;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Test;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.FinishRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.openhim.mediator.engine.testing.MockHTTPConnector;
+import scala.concurrent.duration.Duration;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class BulkIngestHandlerTest extends FhirProxyTestBase {
+
+    private static class IngestFhirServer extends MockHTTPConnector {
+        static final AtomicInteger requestCount = new AtomicInteger();
+        static volatile Map<String, String> lastHeaders;
+        private int entries;
+
+        @Override
+        public String getResponse() {
+            StringBuilder response = new StringBuilder("{\"resourceType\": \"Bundle\", \"type\": \"batch-response\", \"entry\": [");
+            for (int i=0; i<entries; i++) {
+                response.append(i>0 ? "," : "").append("{\"response\": {\"status\": \"201 Created\"}}");
+            }
+            return response.append("]}").toString();
+        }
+
+        @Override
+        public Integer getStatus() {
+            return 200;
+        }
+
+        @Override
+        public Map<String, String> getHeaders() {
+            return Collections.singletonMap("Content-Type", Constants.FHIR_MIME_JSON);
+        }
+
+        @Override
+        public void executeOnReceive(MediatorHTTPRequest request) {
+            assertEquals("/fhir", request.getPath());
+            entries = request.getBody().split("<request>").length - 1;
+            lastHeaders = request.getHeaders();
+            requestCount.incrementAndGet();
+        }
+    }
+
+    private static class RejectingIngestFhirServer extends IngestFhirServer {
+        @Override
+        public String getResponse() {
+            // the first create of each batch is rejected
+            return super.getResponse().replaceFirst("\\{\"response\": \\{\"status\": \"201 Created\"}}",
+                    "{\"resource\": {\"resourceType\": \"OperationOutcome\", \"issue\": [{\"severity\": \"error\", " +
+                    "\"code\": \"duplicate\", \"diagnostics\": \"Patient with this identifier already exists\"}]}, " +
+                    "\"response\": {\"status\": \"409 Conflict\"}}");
+        }
+    }
+
+
+    /**
+     * Each line of an NDJSON body should be created upstream in batches, with the invalid lines reported
+     */
+    @Test
+    public void testBulkIngestNDJSON() throws Throwable {
+        new FhirProxyTestKit(system, DSTU2FhirContext.class, IngestFhirServer.class) {{
+            testConfig.getDynamicConfig().put("upstream-format", "XML");
+            testConfig.getDynamicConfig().put("validation-enabled", true);
+            testConfig.getDynamicConfig().put("ingest-enabled", true);
+            testConfig.getDynamicConfig().put("ingest-batch-size", 2);
+            IngestFhirServer.requestCount.set(0);
+
+            try {
+                String patientLine = new JsonParser().parse(patientJSON).toString();
+                String ndjson = patientLine + "\n{\"resourceType\": \"Patient\", \n" + patientLine + "\n";
+                Map<String, String> headers = new HashMap<>();
+                headers.put("Content-Type", "application/fhir+ndjson");
+                headers.put("Authorization", "Bearer ingest-client");
+                headers.put("X-OpenHIM-TransactionID", "ingest-trx");
+                headers.put("X-Forwarded-For", "10.0.0.1");
+
+                MediatorHTTPRequest POST_Request = new MediatorHTTPRequest(
+                        getRef(), getRef(), "unit-test", "POST", "http", "localhost", 8604, "/fhir/$ingest", ndjson,
+                        headers, Collections.<Pair<String, String>>emptyList()
+                );
+                ActorRef handler = system.actorOf(Props.create(BulkIngestHandler.class, testConfig));
+                handler.tell(POST_Request, getRef());
+
+                Object result = expectMsgAnyClassOf(Duration.create(10, TimeUnit.SECONDS), FinishRequest.class, ExceptError.class);
+                if (result instanceof ExceptError) {
+                    throw ((ExceptError) result).getError();
+                }
+                assertEquals(new Integer(200), ((FinishRequest) result).getResponseStatus());
+                String report = ((FinishRequest) result).getResponse();
+                assertTrue(report, report.contains("2 resources created, 1 failed"));
+                assertTrue(report, report.contains("Line 2"));
+                assertEquals(2, IngestFhirServer.requestCount.get());
+
+                // the client's headers are passed on, as they are for every other upstream request
+                Map<String, String> upstreamHeaders = IngestFhirServer.lastHeaders;
+                assertEquals("Bearer ingest-client", upstreamHeaders.get("Authorization"));
+                assertEquals("ingest-trx", upstreamHeaders.get("X-OpenHIM-TransactionID"));
+                assertEquals("10.0.0.1", upstreamHeaders.get("X-Forwarded-For"));
+                assertEquals(Constants.FHIR_MIME_XML, upstreamHeaders.get("Accept"));
+                assertEquals(Constants.FHIR_MIME_XML, upstreamHeaders.get("Content-Type"));
+            } finally {
+                testConfig.getDynamicConfig().remove("ingest-enabled");
+                testConfig.getDynamicConfig().remove("ingest-batch-size");
+                cleanup();
+            }
+        }};
+    }
+
+    /**
+     * A resource that upstream refuses to create should be reported with the issues of upstream's OperationOutcome
+     */
+    @Test
+    public void testBulkIngestReportsUpstreamIssues() throws Throwable {
+        new FhirProxyTestKit(system, DSTU2FhirContext.class, RejectingIngestFhirServer.class) {{
+            testConfig.getDynamicConfig().put("upstream-format", "XML");
+            testConfig.getDynamicConfig().put("validation-enabled", false);
+            testConfig.getDynamicConfig().put("ingest-enabled", true);
+            testConfig.getDynamicConfig().put("ingest-batch-size", 2);
+            IngestFhirServer.requestCount.set(0);
+
+            try {
+                String patientLine = new JsonParser().parse(patientJSON).toString();
+                String ndjson = patientLine + "\n" + patientLine + "\n";
+
+                MediatorHTTPRequest POST_Request = new MediatorHTTPRequest(
+                        getRef(), getRef(), "unit-test", "POST", "http", "localhost", 8604, "/fhir/$ingest", ndjson,
+                        Collections.singletonMap("Content-Type", "application/fhir+ndjson"),
+                        Collections.<Pair<String, String>>emptyList()
+                );
+                ActorRef handler = system.actorOf(Props.create(BulkIngestHandler.class, testConfig));
+                handler.tell(POST_Request, getRef());
+
+                Object result = expectMsgAnyClassOf(Duration.create(10, TimeUnit.SECONDS), FinishRequest.class, ExceptError.class);
+                if (result instanceof ExceptError) {
+                    throw ((ExceptError) result).getError();
+                }
+                assertEquals(new Integer(200), ((FinishRequest) result).getResponseStatus());
+                String report = ((FinishRequest) result).getResponse();
+                assertTrue(report, report.contains("1 resources created, 1 failed"));
+                assertTrue(report, report.contains("Upstream responded with status 409: Patient with this identifier already exists"));
+            } finally {
+                testConfig.getDynamicConfig().remove("ingest-enabled");
+                testConfig.getDynamicConfig().remove("ingest-batch-size");
+                cleanup();
+            }
+        }};
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.ActorSelection;
+import akka.actor.ActorSystem;
+import akka.cluster.Cluster;
+import akka.cluster.Member;
+import akka.cluster.MemberStatus;
+import akka.testkit.JavaTestKit;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Test;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.FinishRequest;
+import org.openhim.mediator.engine.testing.MockLauncher;
+import org.openhim.mediator.engine.testing.TestingUtils;
+import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CacheClusterTest extends FhirProxyTestBase {
+
+    private static ActorSystem startClusterNode(ActorSystem seed) {
+        Properties props = new Properties();
+        props.setProperty("cluster.enabled", "true");
+        props.setProperty("cluster.host", "127.0.0.1");
+        props.setProperty("cluster.port", "0");
+        MediatorConfig clusterConfig = new MediatorConfig();
+        clusterConfig.setProperties(props);
+
+        ActorSystem node = ActorSystem.create("mediator", CacheCluster.actorSystemConfig(clusterConfig));
+        Cluster.get(node).join(Cluster.get(seed!=null ? seed : node).selfAddress());
+
+        List<MockLauncher.ActorToLaunch> caches = new ArrayList<>();
+        caches.add(new MockLauncher.ActorToLaunch("read-cache", TestReadCache.class));
+        caches.add(new MockLauncher.ActorToLaunch("conversion-cache", TestConversionCache.class));
+        TestingUtils.launchActors(node, testConfig.getName(), caches);
+        return node;
+    }
+
+    private static int upMembers(ActorSystem node) {
+        int up = 0;
+        for (Member member : Cluster.get(node).state().getMembers()) {
+            if (member.status()==MemberStatus.up()) {
+                up++;
+            }
+        }
+        return up;
+    }
+
+    /**
+     * Reads and converted bodies cached by one mediator instance should be served by the others in the cluster, and
+     * writes through any instance should discard them everywhere
+     */
+    @Test
+    public void testCachesSharedAcrossCluster() throws Throwable {
+        ActorSystem nodeA = null;
+        ActorSystem nodeB = null;
+        testConfig.getDynamicConfig().put("cluster-lookup-timeout", 2000);
+        testConfig.getDynamicConfig().put("conversion-cache-size", 1);
+
+        try {
+            nodeA = startClusterNode(null);
+            nodeB = startClusterNode(nodeA);
+            long joinedBy = System.currentTimeMillis() + 20000;
+            while ((upMembers(nodeA) < 2 || upMembers(nodeB) < 2) && System.currentTimeMillis() < joinedBy) {
+                Thread.sleep(100);
+            }
+            assertEquals(2, upMembers(nodeA));
+            assertEquals(2, upMembers(nodeB));
+            // let the caches see the members
+            Thread.sleep(200);
+
+            JavaTestKit probeA = new JavaTestKit(nodeA);
+            JavaTestKit probeB = new JavaTestKit(nodeB);
+            ActorSelection readCacheA = nodeA.actorSelection(testConfig.userPathFor("read-cache"));
+            ActorSelection readCacheB = nodeB.actorSelection(testConfig.userPathFor("read-cache"));
+            FiniteDuration timeout = Duration.create(5, TimeUnit.SECONDS);
+
+            // a handler on A fetches a read
+            String readKey = CacheKeys.requestKey("json", "/fhir/Patient/1", Collections.<Pair<String, String>>emptyList());
+            readCacheA.tell(new ReadCacheActor.ReadRequest(probeA.getRef(), probeA.getRef(), "/fhir/Patient/1", readKey), probeA.getRef());
+            assertNull(probeA.expectMsgClass(timeout, ReadCacheActor.ReadResponse.class).getResponseObject());
+            readCacheA.tell(new ReadCacheActor.StoreRead("/fhir/Patient/1", readKey, new FinishRequest(patientJSON, Constants.FHIR_MIME_JSON, 200), 60000), probeA.getRef());
+            probeA.expectNoMsg((FiniteDuration) probeA.dilated(Duration.create(300, TimeUnit.MILLISECONDS)));
+
+            // and B gets it without fetching it
+            readCacheB.tell(new ReadCacheActor.ReadRequest(probeB.getRef(), probeB.getRef(), "/fhir/Patient/1", readKey), probeB.getRef());
+            FinishRequest shared = probeB.expectMsgClass(timeout, ReadCacheActor.ReadResponse.class).getResponseObject();
+            assertNotNull(shared);
+            assertEquals(patientJSON, shared.getResponse());
+
+            // a write through B
+            readCacheB.tell(new ReadCacheActor.InvalidateReads("/fhir/Patient/1"), probeB.getRef());
+            probeB.expectNoMsg((FiniteDuration) probeB.dilated(Duration.create(300, TimeUnit.MILLISECONDS)));
+            readCacheA.tell(new ReadCacheActor.ReadRequest(probeA.getRef(), probeA.getRef(), "/fhir/Patient/1", readKey), probeA.getRef());
+            assertNull(probeA.expectMsgClass(timeout, ReadCacheActor.ReadResponse.class).getResponseObject());
+            readCacheA.tell(new ReadCacheActor.ReadFailed(readKey), probeA.getRef());
+
+            // a body converted on A
+            Contents converted = new Contents(Constants.FHIR_MIME_XML, patientXML);
+            String conversionKey = CacheKeys.conversionKey("DSTU2", new Contents(Constants.FHIR_MIME_JSON, patientJSON), Constants.FHIR_MIME_XML, null);
+            nodeA.actorSelection(testConfig.userPathFor("conversion-cache")).tell(new ConversionCacheActor.StoreConversion(conversionKey, converted), probeA.getRef());
+            probeA.expectNoMsg((FiniteDuration) probeA.dilated(Duration.create(300, TimeUnit.MILLISECONDS)));
+
+            nodeB.actorSelection(testConfig.userPathFor("conversion-cache")).tell(
+                    new ConversionCacheActor.ConversionRequest(probeB.getRef(), probeB.getRef(), conversionKey), probeB.getRef()
+            );
+            Contents sharedConversion = probeB.expectMsgClass(timeout, ConversionCacheActor.ConversionResponse.class).getResponseObject();
+            assertNotNull(sharedConversion);
+            assertEquals(patientXML, sharedConversion.content);
+        } finally {
+            testConfig.getDynamicConfig().remove("cluster-lookup-timeout");
+            testConfig.getDynamicConfig().remove("conversion-cache-size");
+            if (nodeB!=null) {
+                JavaTestKit.shutdownActorSystem(nodeB);
+            }
+            if (nodeA!=null) {
+                JavaTestKit.shutdownActorSystem(nodeA);
+            }
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSelection;
+import akka.actor.Props;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Test;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.FinishRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.openhim.mediator.engine.testing.MockLauncher;
+import org.skyscreamer.jsonassert.JSONAssert;
+import org.skyscreamer.jsonassert.JSONCompareMode;
+import scala.concurrent.duration.Duration;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CacheSnapshotTest extends FhirProxyTestBase {
+
+    /**
+     * Cached reads should be written to the snapshot and served from it after the cache is restarted
+     */
+    @Test
+    public void testCachedReadSnapshot() throws Throwable {
+        final List<MockLauncher.ActorToLaunch> readCache = Collections.singletonList(
+                new MockLauncher.ActorToLaunch("read-cache", TestReadCache.class)
+        );
+        final File directory = Files.createTempDirectory("cache-snapshots").toFile();
+        testConfig.getDynamicConfig().put("upstream-format", "XML");
+        testConfig.getDynamicConfig().put("validation-enabled", false);
+        testConfig.getDynamicConfig().put("read-cache-ttl", 60);
+        testConfig.getDynamicConfig().put("cache-snapshot-directory", directory.getAbsolutePath());
+        CountingXMLGetFhirServer.requestCount.set(0);
+
+        try {
+            for (int run=0; run<2; run++) {
+                final boolean restarted = run > 0;
+                new FhirProxyTestKit(system, DSTU2FhirContext.class, CountingXMLGetFhirServer.class, readCache) {{
+                    try {
+                        MediatorHTTPRequest GET_Request = new MediatorHTTPRequest(
+                                getRef(), getRef(), "unit-test", "GET", "http", "localhost", 8604, "/fhir/Patient/1", null,
+                                Collections.singletonMap("Accept", Constants.FHIR_MIME_JSON),
+                                Collections.<Pair<String, String>>emptyList()
+                        );
+                        ActorRef readHandler = system.actorOf(Props.create(CachedReadHandler.class, testConfig));
+                        readHandler.tell(GET_Request, getRef());
+
+                        Object result = expectMsgAnyClassOf(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class, ExceptError.class);
+                        if (result instanceof ExceptError) {
+                            throw ((ExceptError) result).getError();
+                        }
+                        assertEquals(new Integer(200), ((FinishRequest) result).getResponseStatus());
+                        JSONAssert.assertEquals(patientJSON, ((FinishRequest) result).getResponse(), JSONCompareMode.NON_EXTENSIBLE);
+                        assertEquals(1, CountingXMLGetFhirServer.requestCount.get());
+
+                        if (!restarted) {
+                            // as on shutdown
+                            ActorSelection cache = system.actorSelection(testConfig.userPathFor("read-cache"));
+                            cache.tell(new CacheSnapshot.WriteSnapshot(false), getRef());
+                            expectMsgClass(Duration.create(5, TimeUnit.SECONDS), CacheSnapshot.SnapshotWritten.class);
+                            assertTrue(new File(directory, "read-cache.snapshot").isFile());
+                        }
+                    } finally {
+                        cleanup();
+                    }
+                }};
+            }
+        } finally {
+            testConfig.getDynamicConfig().remove("read-cache-ttl");
+            testConfig.getDynamicConfig().remove("cache-snapshot-directory");
+            FileUtils.deleteQuietly(directory);
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(byte[] value) {
+        return value!=null ? new String(value, StandardCharsets.UTF_8) : null;
+    }
+
+    private File snapshotDirectory() throws IOException {
+        File directory = Files.createTempDirectory("cache-snapshots").toFile();
+        testConfig.getDynamicConfig().put("cache-snapshot-directory", directory.getAbsolutePath());
+        return directory;
+    }
+
+    private void writeSnapshot(CacheSnapshot snapshot, String version, String... keys) throws IOException {
+        CacheSnapshot.Writer writer = snapshot.startWriting(version, 100, 1024 * 1024);
+        for (String key : keys) {
+            writer.add(key.startsWith("patient") ? "/fhir/Patient/1" : null, key, bytes("value of " + key), 0);
+        }
+        snapshot.finishWriting(writer);
+    }
+
+    /**
+     * Entries should be taken from a snapshot once each, and only by a cache of the same version
+     */
+    @Test
+    public void testEntriesTakenOnce() throws Throwable {
+        File directory = snapshotDirectory();
+        try {
+            writeSnapshot(new CacheSnapshot(testConfig, system.log(), "test-cache", "v1"), "v1", "patient-json", "observation");
+
+            CacheSnapshot snapshot = new CacheSnapshot(testConfig, system.log(), "test-cache", "v1");
+            assertEquals("value of patient-json", string(snapshot.take("patient-json")));
+            assertNull(snapshot.take("patient-json"));
+            assertNull(snapshot.take("unknown"));
+            assertEquals("value of observation", string(snapshot.take("observation")));
+        } finally {
+            FileUtils.deleteQuietly(directory);
+        }
+    }
+
+    /**
+     * A snapshot written for another configuration should be discarded
+     */
+    @Test
+    public void testOtherVersionDiscarded() throws Throwable {
+        File directory = snapshotDirectory();
+        try {
+            writeSnapshot(new CacheSnapshot(testConfig, system.log(), "test-cache", "v1"), "v1", "patient-json");
+
+            CacheSnapshot snapshot = new CacheSnapshot(testConfig, system.log(), "test-cache", "v2");
+            assertNull(snapshot.take("patient-json"));
+            assertFalse(new File(directory, "test-cache.snapshot").exists());
+        } finally {
+            FileUtils.deleteQuietly(directory);
+        }
+    }
+
+    /**
+     * Expired entries should neither be loaded nor carried over
+     */
+    @Test
+    public void testExpiredEntriesSkipped() throws Throwable {
+        File directory = snapshotDirectory();
+        try {
+            CacheSnapshot snapshot = new CacheSnapshot(testConfig, system.log(), "test-cache", "v1");
+            CacheSnapshot.Writer writer = snapshot.startWriting("v1", 100, 1024 * 1024);
+            writer.add(null, "expired", bytes("stale"), System.currentTimeMillis() - 1000);
+            writer.add(null, "current", bytes("fresh"), System.currentTimeMillis() + 60000);
+            snapshot.finishWriting(writer);
+
+            snapshot = new CacheSnapshot(testConfig, system.log(), "test-cache", "v1");
+            assertNull(snapshot.take("expired"));
+            assertEquals("fresh", string(snapshot.take("current")));
+        } finally {
+            FileUtils.deleteQuietly(directory);
+        }
+    }
+
+    /**
+     * Discarding a group should only discard its entries
+     */
+    @Test
+    public void testDiscardGroup() throws Throwable {
+        File directory = snapshotDirectory();
+        try {
+            writeSnapshot(new CacheSnapshot(testConfig, system.log(), "test-cache", "v1"), "v1", "patient-json", "patient-xml", "observation");
+
+            CacheSnapshot snapshot = new CacheSnapshot(testConfig, system.log(), "test-cache", "v1");
+            snapshot.discard("/fhir/Patient/1");
+            assertNull(snapshot.take("patient-json"));
+            assertNull(snapshot.take("patient-xml"));
+            assertEquals("value of observation", string(snapshot.take("observation")));
+        } finally {
+            FileUtils.deleteQuietly(directory);
+        }
+    }
+
+    /**
+     * Discarding everything should remove the file, even once all of its entries have been taken into the cache
+     */
+    @Test
+    public void testDiscardAllAfterEntriesTaken() throws Throwable {
+        File directory = snapshotDirectory();
+        try {
+            writeSnapshot(new CacheSnapshot(testConfig, system.log(), "test-cache", "v1"), "v1", "patient-json");
+
+            CacheSnapshot snapshot = new CacheSnapshot(testConfig, system.log(), "test-cache", "v1");
+            assertNotNull(snapshot.take("patient-json"));
+            snapshot.discard(null);
+            assertFalse(new File(directory, "test-cache.snapshot").exists());
+
+            snapshot = new CacheSnapshot(testConfig, system.log(), "test-cache", "v1");
+            assertNull(snapshot.take("patient-json"));
+        } finally {
+            FileUtils.deleteQuietly(directory);
+        }
+    }
+
+    /**
+     * Entries that weren't taken should be carried over to the next snapshot, up to its bound, and taken ones shouldn't
+     */
+    @Test
+    public void testUntakenEntriesCarriedOver() throws Throwable {
+        File directory = snapshotDirectory();
+        try {
+            writeSnapshot(new CacheSnapshot(testConfig, system.log(), "test-cache", "v1"), "v1", "a", "b", "c");
+
+            CacheSnapshot snapshot = new CacheSnapshot(testConfig, system.log(), "test-cache", "v1");
+            assertNotNull(snapshot.take("a"));
+            CacheSnapshot.Writer writer = snapshot.startWriting("v1", 2, 1024 * 1024);
+            writer.add(null, "d", bytes("value of d"), 0);
+            snapshot.finishWriting(writer);
+
+            snapshot = new CacheSnapshot(testConfig, system.log(), "test-cache", "v1");
+            assertNull(snapshot.take("a"));
+            assertEquals("value of d", string(snapshot.take("d")));
+            // only one of b and c fits
+            int carried = (snapshot.take("b")!=null ? 1 : 0) + (snapshot.take("c")!=null ? 1 : 0);
+            assertEquals(1, carried);
+        } finally {
+            FileUtils.deleteQuietly(directory);
+        }
+    }
+
+    /**
+     * A truncated or foreign file should be discarded rather than fail the cache
+     */
+    @Test
+    public void testCorruptSnapshotDiscarded() throws Throwable {
+        File directory = snapshotDirectory();
+        try {
+            writeSnapshot(new CacheSnapshot(testConfig, system.log(), "test-cache", "v1"), "v1", "patient-json", "observation");
+            File file = new File(directory, "test-cache.snapshot");
+            byte[] contents = Files.readAllBytes(file.toPath());
+            Files.write(file.toPath(), Arrays.copyOf(contents, contents.length - 10));
+
+            CacheSnapshot snapshot = new CacheSnapshot(testConfig, system.log(), "test-cache", "v1");
+            assertNull(snapshot.take("observation"));
+            assertFalse(file.exists());
+
+            Files.write(file.toPath(), bytes("not a snapshot at all"));
+            snapshot = new CacheSnapshot(testConfig, system.log(), "test-cache", "v1");
+            assertNull(snapshot.take("patient-json"));
+            assertFalse(file.exists());
+        } finally {
+            FileUtils.deleteQuietly(directory);
+        }
+    }
+
+    /**
+     * Without a directory, there is nothing to write or read
+     */
+    @Test
+    public void testSnapshotsDisabled() throws Throwable {
+        CacheSnapshot snapshot = new CacheSnapshot(testConfig, system.log(), "test-cache", "v1");
+        assertNull(snapshot.startWriting("v1", 100, 1024));
+        assertNull(snapshot.take("patient-json"));
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSelection;
+import akka.actor.Props;
+import akka.testkit.JavaTestKit;
+import ca.uhn.fhir.model.dstu2.resource.OperationOutcome;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Test;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.FinishRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.openhim.mediator.engine.testing.MockLauncher;
+import org.skyscreamer.jsonassert.JSONAssert;
+import org.skyscreamer.jsonassert.JSONCompareMode;
+import scala.concurrent.duration.Duration;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CachedReadHandlerTest extends FhirProxyTestBase {
+
+    /**
+     * A repeated read should be served from the read cache, until the resource is written to
+     */
+    @Test
+    public void testCachedReadGETXMLToJSON() throws Throwable {
+        List<MockLauncher.ActorToLaunch> readCache = Collections.singletonList(
+                new MockLauncher.ActorToLaunch("read-cache", TestReadCache.class)
+        );
+
+        new FhirProxyTestKit(system, DSTU2FhirContext.class, CountingXMLGetFhirServer.class, readCache) {{
+            testConfig.getDynamicConfig().put("upstream-format", "XML");
+            testConfig.getDynamicConfig().put("validation-enabled", false);
+            testConfig.getDynamicConfig().put("read-cache-ttl", 60);
+            CountingXMLGetFhirServer.requestCount.set(0);
+
+            try {
+                MediatorHTTPRequest GET_Request = new MediatorHTTPRequest(
+                        getRef(), getRef(), "unit-test", "GET", "http", "localhost", 8604, "/fhir/Patient/1", null,
+                        Collections.singletonMap("Accept", Constants.FHIR_MIME_JSON),
+                        Collections.<Pair<String, String>>emptyList()
+                );
+
+                for (int i=0; i<2; i++) {
+                    ActorRef readHandler = system.actorOf(Props.create(CachedReadHandler.class, testConfig));
+                    readHandler.tell(GET_Request, getRef());
+
+                    Object result = expectMsgAnyClassOf(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class, ExceptError.class);
+                    if (result instanceof ExceptError) {
+                        throw ((ExceptError) result).getError();
+                    }
+                    assertEquals(new Integer(200), ((FinishRequest) result).getResponseStatus());
+                    JSONAssert.assertEquals(patientJSON, ((FinishRequest) result).getResponse(), JSONCompareMode.NON_EXTENSIBLE);
+                }
+                assertEquals(1, CountingXMLGetFhirServer.requestCount.get());
+
+                // as a write through the mediator would
+                ActorSelection cache = system.actorSelection(testConfig.userPathFor("read-cache"));
+                cache.tell(new ReadCacheActor.InvalidateReads("/fhir/Patient/1"), getRef());
+
+                ActorRef readHandler = system.actorOf(Props.create(CachedReadHandler.class, testConfig));
+                readHandler.tell(GET_Request, getRef());
+                expectMsgClass(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class);
+                assertEquals(2, CountingXMLGetFhirServer.requestCount.get());
+            } finally {
+                testConfig.getDynamicConfig().remove("read-cache-ttl");
+                cleanup();
+            }
+        }};
+    }
+
+    /**
+     * Reads fetched with one client's credentials should not be served to another client
+     */
+    @Test
+    public void testCachedReadNotSharedBetweenClients() throws Throwable {
+        List<MockLauncher.ActorToLaunch> readCache = Collections.singletonList(
+                new MockLauncher.ActorToLaunch("read-cache", TestReadCache.class)
+        );
+
+        new FhirProxyTestKit(system, DSTU2FhirContext.class, CountingXMLGetFhirServer.class, readCache) {{
+            testConfig.getDynamicConfig().put("upstream-format", "XML");
+            testConfig.getDynamicConfig().put("validation-enabled", false);
+            testConfig.getDynamicConfig().put("read-cache-ttl", 60);
+            CountingXMLGetFhirServer.requestCount.set(0);
+
+            try {
+                for (String authorization : Arrays.asList("Bearer client-a", "Bearer client-b", "Bearer client-a")) {
+                    Map<String, String> headers = new HashMap<>();
+                    headers.put("Accept", Constants.FHIR_MIME_JSON);
+                    headers.put("Authorization", authorization);
+                    MediatorHTTPRequest GET_Request = new MediatorHTTPRequest(
+                            getRef(), getRef(), "unit-test", "GET", "http", "localhost", 8604, "/fhir/Patient/1", null,
+                            headers, Collections.<Pair<String, String>>emptyList()
+                    );
+
+                    ActorRef readHandler = system.actorOf(Props.create(CachedReadHandler.class, testConfig));
+                    readHandler.tell(GET_Request, getRef());
+
+                    Object result = expectMsgAnyClassOf(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class, ExceptError.class);
+                    if (result instanceof ExceptError) {
+                        throw ((ExceptError) result).getError();
+                    }
+                    assertEquals(new Integer(200), ((FinishRequest) result).getResponseStatus());
+                }
+                // client-a's second read is served from its cached read
+                assertEquals(2, CountingXMLGetFhirServer.requestCount.get());
+            } finally {
+                testConfig.getDynamicConfig().remove("read-cache-ttl");
+                cleanup();
+            }
+        }};
+    }
+
+    /**
+     * A read that would be served from the read cache should still count towards the client's rate limit
+     */
+    @Test
+    public void testCachedReadRateLimited() throws Throwable {
+        List<MockLauncher.ActorToLaunch> actors = Arrays.asList(
+                new MockLauncher.ActorToLaunch("rate-limiter", TestRateLimiter.class),
+                new MockLauncher.ActorToLaunch("read-cache", TestReadCache.class)
+        );
+
+        new FhirProxyTestKit(system, DSTU2FhirContext.class, AcceptJSONGetFhirServer.class, actors) {{
+            testConfig.getDynamicConfig().put("upstream-format", "JSON");
+            testConfig.getDynamicConfig().put("rate-limit", 1);
+            testConfig.getDynamicConfig().put("read-cache-ttl", 60);
+
+            try {
+                ActorRef readHandler = system.actorOf(Props.create(CachedReadHandler.class, testConfig));
+                readHandler.tell(GETPatientRequest(Constants.FHIR_MIME_JSON), getRef());
+
+                Object result = expectMsgAnyClassOf(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class, ExceptError.class);
+                if (result instanceof ExceptError) {
+                    throw ((ExceptError) result).getError();
+                }
+                assertEquals(new Integer(200), ((FinishRequest) result).getResponseStatus());
+
+                // cached by now, but the client is out of tokens
+                ActorRef cachedReadHandler = system.actorOf(Props.create(CachedReadHandler.class, testConfig));
+                cachedReadHandler.tell(GETPatientRequest(Constants.FHIR_MIME_JSON), getRef());
+
+                FinishRequest throttled = expectMsgClass(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class);
+                assertEquals(new Integer(429), throttled.getResponseStatus());
+                assertEquals("1", throttled.getResponseHeaders().get("Retry-After"));
+                JSONAssert.assertEquals("{\"resourceType\": \"OperationOutcome\"}", throttled.getResponse(), JSONCompareMode.LENIENT);
+            } finally {
+                testConfig.getDynamicConfig().remove("rate-limit");
+                testConfig.getDynamicConfig().remove("read-cache-ttl");
+                cleanup();
+            }
+        }};
+    }
+    /**
+     * Coalesced reads should get the fetched result if it's a success or client error, and fetch for themselves if
+     * the fetch was unavailable, throttled or timed out
+     */
+    @Test
+    public void testCoalescedReadsNotSharedTransientFailures() throws Throwable {
+        new JavaTestKit(system) {{
+            ActorRef readCache = system.actorOf(Props.create(TestReadCache.class));
+            try {
+                for (int status : new int[]{503, 429, 504, 404, 200}) {
+                    JavaTestKit fetcher = new JavaTestKit(system);
+                    JavaTestKit waiter = new JavaTestKit(system);
+                    String readKey = "read-" + status;
+
+                    readCache.tell(new ReadCacheActor.ReadRequest(getRef(), fetcher.getRef(), "/fhir/Patient/1", readKey), getRef());
+                    assertNull(fetcher.expectMsgClass(ReadCacheActor.ReadResponse.class).getResponseObject());
+                    readCache.tell(new ReadCacheActor.ReadRequest(getRef(), waiter.getRef(), "/fhir/Patient/1", readKey), getRef());
+                    waiter.expectNoMsg(Duration.create(100, TimeUnit.MILLISECONDS));
+
+                    FinishRequest fetched = new FinishRequest("{}", Constants.FHIR_MIME_JSON, status);
+                    readCache.tell(new ReadCacheActor.StoreRead("/fhir/Patient/1", readKey, fetched, 0), getRef());
+
+                    FinishRequest shared = waiter.expectMsgClass(ReadCacheActor.ReadResponse.class).getResponseObject();
+                    if (status==404 || status==200) {
+                        assertSame(fetched, shared);
+                    } else {
+                        assertNull("should fetch for itself after a " + status, shared);
+                    }
+                }
+            } finally {
+                system.stop(readCache);
+            }
+        }};
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.model.dstu2.valueset.BundleTypeEnum;
+import org.apache.commons.io.IOUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Allocation of {@link ResourceCodec} conversions, against parsing and encoding with a new parser and a new writer
+ * every time as the mediator did before the codec reused parsers and pooled buffers.
+ *
+ * Each body is converted between JSON and XML on a single thread, and the bytes the thread allocated are measured with
+ * the ThreadMXBean after a warmup. The bodies are the test Patient and searchset, and a generated searchset of about
+ * 2.5M chars.
+ *
+ * Run with:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.openhim.mediator.fhir.CodecAllocationBenchmark [-Dexec.args="iterations"]
+ * </pre>
+ */
+public class CodecAllocationBenchmark {
+    private interface Conversion {
+        String convert(Contents contents, String contentType);
+    }
+
+    private static final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+
+    private static String resource(String name) throws IOException {
+        return IOUtils.toString(CodecAllocationBenchmark.class.getClassLoader().getResourceAsStream(name));
+    }
+
+    private static String largeSearchset(FhirContext fhirContext, Patient patient, int entries) {
+        Bundle bundle = new Bundle();
+        bundle.setType(BundleTypeEnum.SEARCH_RESULTS);
+        bundle.setTotal(entries);
+        for (int i=0; i<entries; i++) {
+            Patient copy = (Patient) fhirContext.newJsonParser().parseResource(fhirContext.newJsonParser().encodeResourceToString(patient));
+            copy.setId("Patient/" + i);
+            bundle.addEntry().setFullUrl("http://localhost/fhir/Patient/" + i).setResource(copy);
+        }
+        return fhirContext.newJsonParser().setPrettyPrint(true).encodeResourceToString(bundle);
+    }
+
+    /**
+     * @return the bytes allocated per conversion of the body to the other format and back
+     */
+    private static long measure(Conversion conversion, Contents json, int iterations) {
+        for (int i=0; i<Math.max(10, iterations / 10); i++) {
+            conversion.convert(new Contents(Constants.FHIR_MIME_XML, conversion.convert(json, Constants.FHIR_MIME_XML)), Constants.FHIR_MIME_JSON);
+        }
+
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i=0; i<iterations; i++) {
+            conversion.convert(new Contents(Constants.FHIR_MIME_XML, conversion.convert(json, Constants.FHIR_MIME_XML)), Constants.FHIR_MIME_JSON);
+        }
+        return (threads.getThreadAllocatedBytes(thread) - before) / iterations;
+    }
+
+    public static void main(String... args) throws IOException {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        final FhirContext fhirContext = FhirContext.forDstu2();
+        final ResourceCodec codec = new ResourceCodec(fhirContext);
+
+        String patientJSON = resource("fhir-patient.json");
+        Map<String, String> bodies = new LinkedHashMap<>();
+        bodies.put("patient", patientJSON);
+        bodies.put("searchset", resource("fhir-patient-searchset.json"));
+        bodies.put("large searchset", largeSearchset(fhirContext, (Patient) fhirContext.newJsonParser().parseResource(patientJSON), 500));
+
+        Conversion fresh = new Conversion() {
+            @Override
+            public String convert(Contents contents, String contentType) {
+                IBaseResource resource = codec.newParser(contents.contentType).parseResource(contents.content);
+                return codec.newParser(contentType).setPrettyPrint(true).encodeResourceToString(resource);
+            }
+        };
+        Conversion reused = new Conversion() {
+            @Override
+            public String convert(Contents contents, String contentType) {
+                return codec.convert(contents, contentType).content;
+            }
+        };
+
+        System.out.println(String.format("%-16s %12s %14s %14s %8s", "body", "chars", "fresh (B)", "reused (B)", "change"));
+        for (Map.Entry<String, String> body : bodies.entrySet()) {
+            Contents json = new Contents(Constants.FHIR_MIME_JSON, body.getValue());
+            // the large body is slow to convert, fewer iterations still give a stable average
+            int bodyIterations = body.getValue().length() > 100000 ? Math.max(5, iterations / 50) : iterations;
+            long freshBytes = measure(fresh, json, bodyIterations);
+            long reusedBytes = measure(reused, json, bodyIterations);
+            System.out.println(String.format("%-16s %12d %14d %14d %7.1f%%",
+                    body.getKey(), body.getValue().length(), freshBytes, reusedBytes, (reusedBytes - freshBytes) * 100.0 / freshBytes));
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSelection;
+import akka.actor.Props;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import org.junit.Test;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.FinishRequest;
+import org.openhim.mediator.engine.testing.MockLauncher;
+import org.skyscreamer.jsonassert.JSONAssert;
+import org.skyscreamer.jsonassert.JSONCompareMode;
+import scala.concurrent.duration.Duration;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ConversionCacheActorTest extends FhirProxyTestBase {
+
+    /**
+     * An upstream body that has been converted before should be answered with its cached conversion
+     */
+    @Test
+    public void testCachedConversion() throws Throwable {
+        List<MockLauncher.ActorToLaunch> conversionCache = Collections.singletonList(
+                new MockLauncher.ActorToLaunch("conversion-cache", TestConversionCache.class)
+        );
+
+        new FhirProxyTestKit(system, DSTU2FhirContext.class, AcceptXMLGetFhirServer.class, conversionCache) {{
+            testConfig.getDynamicConfig().put("upstream-format", "XML");
+            testConfig.getDynamicConfig().put("conversion-cache-size", 1);
+
+            try {
+                fhirProxyHandler.tell(GETPatientRequest(Constants.FHIR_MIME_JSON), getRef());
+
+                Object result = expectMsgAnyClassOf(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class, ExceptError.class);
+                if (result instanceof ExceptError) {
+                    throw ((ExceptError) result).getError();
+                }
+                assertEquals(new Integer(200), ((FinishRequest) result).getResponseStatus());
+                JSONAssert.assertEquals(patientJSON, ((FinishRequest) result).getResponse(), JSONCompareMode.LENIENT);
+
+                // a different conversion of the same body, the next request must use it rather than converting the body again
+                String conversionKey = CacheKeys.conversionKey("DSTU2", new Contents(Constants.FHIR_MIME_XML, patientXML), Constants.FHIR_MIME_JSON, null);
+                String converted = "{\"resourceType\": \"Patient\", \"id\": \"cached\"}";
+                ActorSelection cache = system.actorSelection(testConfig.userPathFor("conversion-cache"));
+                cache.tell(new ConversionCacheActor.StoreConversion(conversionKey, new Contents(Constants.FHIR_MIME_JSON, converted)), getRef());
+
+                ActorRef handler = system.actorOf(Props.create(FhirProxyHandler.class, testConfig));
+                handler.tell(GETPatientRequest(Constants.FHIR_MIME_JSON), getRef());
+
+                FinishRequest cached = expectMsgClass(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class);
+                assertEquals(new Integer(200), cached.getResponseStatus());
+                assertEquals(converted, cached.getResponse());
+            } finally {
+                testConfig.getDynamicConfig().remove("conversion-cache-size");
+                cleanup();
+            }
+        }};
+    }
+}
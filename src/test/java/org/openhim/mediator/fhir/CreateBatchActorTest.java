@@ -0,0 +1,168 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.ActorRef;
+import akka.actor.Props;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Test;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.FinishRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.openhim.mediator.engine.testing.MockHTTPConnector;
+import org.openhim.mediator.engine.testing.MockLauncher;
+import scala.concurrent.duration.Duration;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class CreateBatchActorTest extends FhirProxyTestBase {
+
+    private static class BatchFhirServer extends MockHTTPConnector {
+        static final AtomicInteger requestCount = new AtomicInteger();
+        static final AtomicReference<Map<String, String>> receivedHeaders = new AtomicReference<>();
+
+        @Override
+        public String getResponse() {
+            return "{\"resourceType\": \"Bundle\", \"type\": \"batch-response\", \"entry\": [" +
+                    "{\"response\": {\"status\": \"201 Created\", \"location\": \"Patient/1/_history/1\"}}, " +
+                    "{\"response\": {\"status\": \"201 Created\", \"location\": \"Patient/2/_history/1\"}}]}";
+        }
+
+        @Override
+        public Integer getStatus() {
+            return 200;
+        }
+
+        @Override
+        public Map<String, String> getHeaders() {
+            return Collections.singletonMap("Content-Type", Constants.FHIR_MIME_JSON);
+        }
+
+        @Override
+        public void executeOnReceive(MediatorHTTPRequest request) {
+            assertEquals("POST", request.getMethod());
+            assertEquals("/fhir", request.getPath());
+            assertTrue(request.getBody().contains("\"type\":\"batch\""));
+            receivedHeaders.set(request.getHeaders());
+            requestCount.incrementAndGet();
+        }
+    }
+
+    private static class TestCreateBatcher extends CreateBatchActor {
+        public TestCreateBatcher() {
+            super(testConfig);
+        }
+    }
+
+
+    /**
+     * Concurrent creates should be sent upstream as one batch, with each client receiving the response to its own entry
+     */
+    @Test
+    public void testConcurrentPOSTsBatched() throws Throwable {
+        List<MockLauncher.ActorToLaunch> batcher = Collections.singletonList(
+                new MockLauncher.ActorToLaunch("create-batcher", TestCreateBatcher.class)
+        );
+
+        new FhirProxyTestKit(system, DSTU2FhirContext.class, BatchFhirServer.class, batcher) {{
+            testConfig.getDynamicConfig().put("upstream-format", "JSON");
+            testConfig.getDynamicConfig().put("validation-enabled", false);
+            testConfig.getDynamicConfig().put("create-batch-size", 2);
+            testConfig.getDynamicConfig().put("create-batch-window", 5000);
+            BatchFhirServer.requestCount.set(0);
+
+            try {
+                for (int i=0; i<2; i++) {
+                    ActorRef handler = system.actorOf(Props.create(FhirProxyHandler.class, testConfig));
+                    handler.tell(POSTPatientRequest(Constants.FHIR_MIME_XML, patientXML), getRef());
+                }
+
+                Set<String> locations = new HashSet<>();
+                for (int i=0; i<2; i++) {
+                    Object result = expectMsgAnyClassOf(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class, ExceptError.class);
+                    if (result instanceof ExceptError) {
+                        throw ((ExceptError) result).getError();
+                    }
+                    assertEquals(new Integer(201), ((FinishRequest) result).getResponseStatus());
+                    locations.add(((FinishRequest) result).getResponseHeaders().get("Location"));
+                }
+
+                assertEquals(new HashSet<>(Arrays.asList("Patient/1/_history/1", "Patient/2/_history/1")), locations);
+                assertEquals(1, BatchFhirServer.requestCount.get());
+            } finally {
+                testConfig.getDynamicConfig().remove("create-batch-size");
+                testConfig.getDynamicConfig().remove("create-batch-window");
+                cleanup();
+            }
+        }};
+    }
+
+    /**
+     * Creates that only differ in the headers identifying each request should be batched, and sent with their headers
+     */
+    @Test
+    public void testBatchedPOSTsKeepHeaders() throws Throwable {
+        List<MockLauncher.ActorToLaunch> batcher = Collections.singletonList(
+                new MockLauncher.ActorToLaunch("create-batcher", TestCreateBatcher.class)
+        );
+
+        new FhirProxyTestKit(system, DSTU2FhirContext.class, BatchFhirServer.class, batcher) {{
+            testConfig.getDynamicConfig().put("upstream-format", "JSON");
+            testConfig.getDynamicConfig().put("validation-enabled", false);
+            testConfig.getDynamicConfig().put("create-batch-size", 2);
+            testConfig.getDynamicConfig().put("create-batch-window", 5000);
+            BatchFhirServer.requestCount.set(0);
+
+            try {
+                for (int i=0; i<2; i++) {
+                    Map<String, String> headers = new HashMap<>();
+                    headers.put("Content-Type", Constants.FHIR_MIME_JSON);
+                    headers.put("X-OpenHIM-ClientID", "client-a");
+                    headers.put("X-OpenHIM-TransactionID", "trx-" + i);
+                    headers.put("Prefer", "return=minimal");
+                    MediatorHTTPRequest POST_Request = new MediatorHTTPRequest(
+                            getRef(), getRef(), "unit-test", "POST", "http", "localhost", 8604, "/fhir/Patient", patientJSON,
+                            headers, Collections.<Pair<String, String>>emptyList()
+                    );
+                    ActorRef handler = system.actorOf(Props.create(FhirProxyHandler.class, testConfig));
+                    handler.tell(POST_Request, getRef());
+                }
+
+                for (int i=0; i<2; i++) {
+                    Object result = expectMsgAnyClassOf(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class, ExceptError.class);
+                    if (result instanceof ExceptError) {
+                        throw ((ExceptError) result).getError();
+                    }
+                    assertEquals(new Integer(201), ((FinishRequest) result).getResponseStatus());
+                }
+
+                assertEquals(1, BatchFhirServer.requestCount.get());
+                Map<String, String> received = BatchFhirServer.receivedHeaders.get();
+                assertEquals("client-a", received.get("X-OpenHIM-ClientID"));
+                assertEquals("return=minimal", received.get("Prefer"));
+                assertEquals(Constants.FHIR_MIME_JSON, received.get("Content-Type"));
+            } finally {
+                testConfig.getDynamicConfig().remove("create-batch-size");
+                testConfig.getDynamicConfig().remove("create-batch-window");
+                cleanup();
+            }
+        }};
+    }
+}
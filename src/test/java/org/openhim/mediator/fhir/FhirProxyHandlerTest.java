@@ -6,165 +6,33 @@
 
 package org.openhim.mediator.fhir;
 
-import akka.actor.Actor;
 import akka.actor.ActorRef;
-import akka.actor.ActorSystem;
 import akka.actor.Props;
-import akka.actor.UntypedActor;
-import akka.testkit.JavaTestKit;
-import ca.uhn.fhir.context.FhirContext;
-import org.apache.commons.io.IOUtils;
+import ca.uhn.fhir.model.dstu2.resource.OperationOutcome;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
 import org.apache.commons.lang3.tuple.Pair;
-import org.json.JSONException;
-import org.junit.AfterClass;
-import org.junit.BeforeClass;
 import org.junit.Test;
-import org.openhim.mediator.engine.MediatorConfig;
 import org.openhim.mediator.engine.messages.ExceptError;
 import org.openhim.mediator.engine.messages.FinishRequest;
 import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
 import org.openhim.mediator.engine.testing.MockHTTPConnector;
-import org.openhim.mediator.engine.testing.MockLauncher;
-import org.openhim.mediator.engine.testing.TestingUtils;
 import org.skyscreamer.jsonassert.JSONAssert;
 import org.skyscreamer.jsonassert.JSONCompareMode;
 import org.xmlunit.builder.DiffBuilder;
 import org.xmlunit.builder.Input;
 import org.xmlunit.diff.Diff;
 import scala.concurrent.duration.Duration;
-import scala.concurrent.duration.FiniteDuration;
 
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Properties;
 import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
-public class FhirProxyHandlerTest {
-
-    private abstract class FhirProxyTestKit extends JavaTestKit {
-        protected final ActorRef fhirProxyHandler;
-
-        public FhirProxyTestKit(ActorSystem actorSystem, Class<? extends Actor> context, Class<? extends MockHTTPConnector> upstreamMock) {
-            super(actorSystem);
-            List<MockLauncher.ActorToLaunch> testActors = new ArrayList<>();
-            testActors.add(new MockLauncher.ActorToLaunch("fhir-context", context));
-            testActors.add(new MockLauncher.ActorToLaunch("http-connector", upstreamMock));
-            TestingUtils.launchActors(system, testConfig.getName(), testActors);
-            expectNoMsg((FiniteDuration) dilated(Duration.create(20, TimeUnit.MILLISECONDS))); //delay a bit - the actors sometimes need a moment
-
-            fhirProxyHandler = system.actorOf(Props.create(FhirProxyHandler.class, testConfig));
-        }
-
-        protected void cleanup() {
-            TestingUtils.clearRootContext(system, testConfig.getName());
-            expectNoMsg((FiniteDuration) dilated(Duration.create(20, TimeUnit.MILLISECONDS)));
-        }
-
-
-        protected MediatorHTTPRequest POSTPatientRequest(String contentType, String body) {
-            return new MediatorHTTPRequest(
-                    getRef(),
-                    getRef(),
-                    "unit-test",
-                    "POST",
-                    "http",
-                    "localhost",
-                    8604,
-                    "/fhir/Patient",
-                    body,
-                    Collections.singletonMap("Content-Type", contentType),
-                    Collections.<Pair<String, String>>emptyList()
-            );
-        }
-
-        protected MediatorHTTPRequest GETPatientRequest(String accept) {
-            return new MediatorHTTPRequest(
-                    getRef(),
-                    getRef(),
-                    "unit-test",
-                    "GET",
-                    "http",
-                    "localhost",
-                    8604,
-                    "/fhir/Patient/1",
-                    null,
-                    Collections.singletonMap("Accept", accept),
-                    Collections.<Pair<String, String>>emptyList()
-            );
-        }
-
-        protected MediatorHTTPRequest GETPatientRequest_formatParam(String accept) {
-            return new MediatorHTTPRequest(
-                    getRef(),
-                    getRef(),
-                    "unit-test",
-                    "GET",
-                    "http",
-                    "localhost",
-                    8604,
-                    "/fhir/Patient/1",
-                    null,
-                    Collections.<String, String>emptyMap(),
-                    Collections.singletonList(Pair.of("_format", accept))
-            );
-        }
-    }
-
-    private static class DSTU2FhirContext extends UntypedActor {
-        @Override
-        public void onReceive(Object o) throws Exception {
-            if (o instanceof FhirContextActor.FhirContextRequest) {
-                getSender().tell(new FhirContextActor.FhirContextResponse(null, FhirContext.forDstu2()), getSelf());
-            } else {
-                unhandled(o);
-            }
-        }
-    }
-
-    private static class AcceptJSONCreateFhirServer extends MockHTTPConnector {
-        @Override
-        public String getResponse() {
-            return null;
-        }
-
-        @Override
-        public Integer getStatus() {
-            return 201;
-        }
-
-        @Override
-        public Map<String, String> getHeaders() {
-            return Collections.emptyMap();
-        }
-
-        @Override
-        public void executeOnReceive(MediatorHTTPRequest request) {
-            assertEquals(testConfig.getDynamicConfig().get("upstream-scheme"), request.getScheme());
-            assertEquals(testConfig.getDynamicConfig().get("upstream-host"), request.getHost());
-            assertEquals(testConfig.getDynamicConfig().get("upstream-port"), new Double(request.getPort()));
-            assertEquals(Constants.FHIR_MIME_JSON, request.getHeaders().get("Content-Type"));
-
-            if (request.getParams()!=null) {
-                for (Pair<String, String> param : request.getParams()) {
-                    if (param.getKey().equals("_format")) {
-                        fail("Mediator should not forward _format param");
-                    }
-                }
-            }
-
-            try {
-                JSONAssert.assertEquals(patientJSON, request.getBody(), JSONCompareMode.LENIENT);
-            } catch (JSONException ex) {
-                fail(ex.getMessage());
-            }
-        }
-    }
+public class FhirProxyHandlerTest extends FhirProxyTestBase {
 
     private static class AcceptXMLCreateFhirServer extends MockHTTPConnector {
         @Override
@@ -207,126 +75,6 @@ public class FhirProxyHandlerTest {
         }
     }
 
-    private static class AcceptJSONGetFhirServer extends MockHTTPConnector {
-        @Override
-        public String getResponse() {
-            return patientJSON;
-        }
-
-        @Override
-        public Integer getStatus() {
-            return 200;
-        }
-
-        @Override
-        public Map<String, String> getHeaders() {
-            return Collections.singletonMap("Content-Type", Constants.FHIR_MIME_JSON);
-        }
-
-        @Override
-        public void executeOnReceive(MediatorHTTPRequest request) {
-            assertEquals(testConfig.getDynamicConfig().get("upstream-scheme"), request.getScheme());
-            assertEquals(testConfig.getDynamicConfig().get("upstream-host"), request.getHost());
-            assertEquals(testConfig.getDynamicConfig().get("upstream-port"), new Double(request.getPort()));
-            assertEquals(Constants.FHIR_MIME_JSON, request.getHeaders().get("Accept"));
-
-            if (request.getParams()!=null) {
-                for (Pair<String, String> param : request.getParams()) {
-                    if (param.getKey().equals("_format")) {
-                        fail("Mediator should not forward _format param");
-                    }
-                }
-            }
-        }
-    }
-
-    private static class AcceptXMLGetFhirServer extends MockHTTPConnector {
-        @Override
-        public String getResponse() {
-            return patientXML;
-        }
-
-        @Override
-        public Integer getStatus() {
-            return 200;
-        }
-
-        @Override
-        public Map<String, String> getHeaders() {
-            return Collections.singletonMap("Content-Type", Constants.FHIR_MIME_XML);
-        }
-
-        @Override
-        public void executeOnReceive(MediatorHTTPRequest request) {
-            assertEquals(testConfig.getDynamicConfig().get("upstream-scheme"), request.getScheme());
-            assertEquals(testConfig.getDynamicConfig().get("upstream-host"), request.getHost());
-            assertEquals(testConfig.getDynamicConfig().get("upstream-port"), new Double(request.getPort()));
-            assertEquals(Constants.FHIR_MIME_XML, request.getHeaders().get("Accept"));
-
-            if (request.getParams()!=null) {
-                for (Pair<String, String> param : request.getParams()) {
-                    if (param.getKey().equals("_format")) {
-                        fail("Mediator should not forward _format param");
-                    }
-                }
-            }
-        }
-    }
-
-    private static class TrapServer extends MockHTTPConnector {
-        @Override
-        public String getResponse() {
-            return null;
-        }
-
-        @Override
-        public Integer getStatus() {
-            return null;
-        }
-
-        @Override
-        public Map<String, String> getHeaders() {
-            return null;
-        }
-
-        @Override
-        public void executeOnReceive(MediatorHTTPRequest mediatorHTTPRequest) {
-            fail();
-        }
-    }
-
-    static ActorSystem system;
-    static final MediatorConfig testConfig = new MediatorConfig("fhir-proxy-handler", "localhost", 8604);
-
-    static String patientJSON;
-    static String patientXML;
-    static String patientJSON_invalid;
-    static String patientJSON_invalidSyntax;
-
-
-    @BeforeClass
-    public static void setup() throws IOException {
-        system = ActorSystem.create();
-        testConfig.getDynamicConfig().put("fhir-context", "DSTU2");
-        testConfig.getDynamicConfig().put("upstream-scheme", "http");
-        testConfig.getDynamicConfig().put("upstream-host", "localhost");
-        testConfig.getDynamicConfig().put("upstream-port", 80d);
-
-        patientJSON = IOUtils.toString(FhirProxyHandlerTest.class.getClassLoader().getResourceAsStream("fhir-patient.json"));
-        patientXML = IOUtils.toString(FhirProxyHandlerTest.class.getClassLoader().getResourceAsStream("fhir-patient.xml"));
-        patientJSON_invalid = IOUtils.toString(FhirProxyHandlerTest.class.getClassLoader().getResourceAsStream("fhir-patient-invalid.json"));
-        patientJSON_invalidSyntax = IOUtils.toString(FhirProxyHandlerTest.class.getClassLoader().getResourceAsStream("fhir-patient-invalid-syntax.json"));
-    }
-
-    @AfterClass
-    public static void teardown() {
-        JavaTestKit.shutdownActorSystem(system);
-        system = null;
-    }
-
-
-
-
     /**
      * If upstream format is 'Client' and validation is disabled, the proxy acts as a pass-through
      */
@@ -687,6 +435,42 @@ public class FhirProxyHandlerTest {
         }};
     }
 
+    /**
+     * Large bodies should be converted while they're validated, and not forwarded if they fail validation
+     */
+    @Test
+    public void testPOSTJSONToXMLConvertedWhileValidating() throws Throwable {
+        new FhirProxyTestKit(system, DSTU2FhirContext.class, AcceptXMLCreateFhirServer.class) {{
+            testConfig.getDynamicConfig().put("upstream-format", "XML");
+            testConfig.getDynamicConfig().put("validation-enabled", true);
+            testConfig.getDynamicConfig().put("parallel-conversion-min-size", 1L);
+
+            try {
+                MediatorHTTPRequest POST_Request = POSTPatientRequest(Constants.FHIR_MIME_JSON, patientJSON);
+                fhirProxyHandler.tell(POST_Request, getRef());
+
+                Object result = expectMsgAnyClassOf(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class, ExceptError.class);
+                if (result instanceof ExceptError) {
+                    throw ((ExceptError)result).getError();
+                }
+                assertEquals(new Integer(201), ((FinishRequest)result).getResponseStatus());
+
+                ActorRef invalidHandler = system.actorOf(Props.create(FhirProxyHandler.class, testConfig));
+                invalidHandler.tell(POSTPatientRequest(Constants.FHIR_MIME_JSON, patientJSON_invalid), getRef());
+
+                result = expectMsgAnyClassOf(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class, ExceptError.class);
+                if (result instanceof ExceptError) {
+                    throw ((ExceptError)result).getError();
+                }
+                assertEquals(new Integer(400), ((FinishRequest)result).getResponseStatus());
+                JSONAssert.assertEquals("{\"resourceType\": \"OperationOutcome\"}", ((FinishRequest)result).getResponse(), JSONCompareMode.LENIENT);
+            } finally {
+                testConfig.getDynamicConfig().remove("parallel-conversion-min-size");
+                cleanup();
+            }
+        }};
+    }
+
     /**
      * Test POST JSON -> XML conversion - specified with _format param
      */
@@ -1030,4 +814,35 @@ public class FhirProxyHandlerTest {
             }
         }};
     }
+
+    /**
+     * A read that upstream doesn't respond to within its time budget should be answered with a 504
+     */
+    @Test
+    public void testGETDeadlineExceeded() throws Throwable {
+        new FhirProxyTestKit(system, DSTU2FhirContext.class, StallingJSONGetFhirServer.class) {{
+            testConfig.getDynamicConfig().put("upstream-format", "JSON");
+            testConfig.getDynamicConfig().put("timeout-read", 200);
+            StallingJSONGetFhirServer.requestCount.set(0);
+
+            try {
+                MediatorHTTPRequest GET_Request = new MediatorHTTPRequest(
+                        getRef(), getRef(), "unit-test", "GET", "http", "localhost", 8604, "/fhir/Patient/1", null,
+                        Collections.singletonMap("Accept", Constants.FHIR_MIME_JSON),
+                        Collections.<Pair<String, String>>emptyList()
+                );
+                fhirProxyHandler.tell(GET_Request, getRef());
+
+                Object result = expectMsgAnyClassOf(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class, ExceptError.class);
+                if (result instanceof ExceptError) {
+                    throw ((ExceptError) result).getError();
+                }
+                assertEquals(new Integer(504), ((FinishRequest) result).getResponseStatus());
+                assertTrue(((FinishRequest) result).getResponse().contains("OperationOutcome"));
+            } finally {
+                testConfig.getDynamicConfig().remove("timeout-read");
+                cleanup();
+            }
+        }};
+    }
 }
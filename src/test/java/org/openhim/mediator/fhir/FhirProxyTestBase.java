@@ -0,0 +1,352 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.Actor;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.actor.UntypedActor;
+import akka.testkit.JavaTestKit;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.json.JSONException;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.openhim.mediator.engine.testing.MockHTTPConnector;
+import org.openhim.mediator.engine.testing.MockLauncher;
+import org.openhim.mediator.engine.testing.TestingUtils;
+import org.skyscreamer.jsonassert.JSONAssert;
+import org.skyscreamer.jsonassert.JSONCompareMode;
+import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * The actor system, configuration, sample resources and mock upstream servers shared by the mediator's tests.
+ */
+public abstract class FhirProxyTestBase {
+
+    abstract class FhirProxyTestKit extends JavaTestKit {
+        protected final ActorRef fhirProxyHandler;
+
+        public FhirProxyTestKit(ActorSystem actorSystem, Class<? extends Actor> context, Class<? extends MockHTTPConnector> upstreamMock) {
+            this(actorSystem, context, upstreamMock, Collections.<MockLauncher.ActorToLaunch>emptyList());
+        }
+
+        public FhirProxyTestKit(ActorSystem actorSystem, Class<? extends Actor> context, Class<? extends MockHTTPConnector> upstreamMock,
+                                List<MockLauncher.ActorToLaunch> otherActors) {
+            super(actorSystem);
+            List<MockLauncher.ActorToLaunch> testActors = new ArrayList<>();
+            testActors.add(new MockLauncher.ActorToLaunch("fhir-context", context));
+            testActors.add(new MockLauncher.ActorToLaunch("http-connector", upstreamMock));
+            testActors.addAll(otherActors);
+            TestingUtils.launchActors(system, testConfig.getName(), testActors);
+            expectNoMsg((FiniteDuration) dilated(Duration.create(20, TimeUnit.MILLISECONDS))); //delay a bit - the actors sometimes need a moment
+
+            fhirProxyHandler = system.actorOf(Props.create(FhirProxyHandler.class, testConfig));
+        }
+
+        protected void cleanup() {
+            TestingUtils.clearRootContext(system, testConfig.getName());
+            expectNoMsg((FiniteDuration) dilated(Duration.create(20, TimeUnit.MILLISECONDS)));
+        }
+
+
+        protected MediatorHTTPRequest POSTPatientRequest(String contentType, String body) {
+            return new MediatorHTTPRequest(
+                    getRef(),
+                    getRef(),
+                    "unit-test",
+                    "POST",
+                    "http",
+                    "localhost",
+                    8604,
+                    "/fhir/Patient",
+                    body,
+                    Collections.singletonMap("Content-Type", contentType),
+                    Collections.<Pair<String, String>>emptyList()
+            );
+        }
+
+        protected MediatorHTTPRequest GETPatientRequest(String accept) {
+            return new MediatorHTTPRequest(
+                    getRef(),
+                    getRef(),
+                    "unit-test",
+                    "GET",
+                    "http",
+                    "localhost",
+                    8604,
+                    "/fhir/Patient/1",
+                    null,
+                    Collections.singletonMap("Accept", accept),
+                    Collections.<Pair<String, String>>emptyList()
+            );
+        }
+
+        protected MediatorHTTPRequest GETPatientRequest_formatParam(String accept) {
+            return new MediatorHTTPRequest(
+                    getRef(),
+                    getRef(),
+                    "unit-test",
+                    "GET",
+                    "http",
+                    "localhost",
+                    8604,
+                    "/fhir/Patient/1",
+                    null,
+                    Collections.<String, String>emptyMap(),
+                    Collections.singletonList(Pair.of("_format", accept))
+            );
+        }
+    }
+
+    static class DSTU2FhirContext extends UntypedActor {
+        @Override
+        public void onReceive(Object o) throws Exception {
+            if (o instanceof FhirContextActor.FhirContextRequest) {
+                getSender().tell(new FhirContextActor.FhirContextResponse(null, FhirContext.forDstu2()), getSelf());
+            } else {
+                unhandled(o);
+            }
+        }
+    }
+
+    static class AcceptJSONCreateFhirServer extends MockHTTPConnector {
+        @Override
+        public String getResponse() {
+            return null;
+        }
+
+        @Override
+        public Integer getStatus() {
+            return 201;
+        }
+
+        @Override
+        public Map<String, String> getHeaders() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public void executeOnReceive(MediatorHTTPRequest request) {
+            assertEquals(testConfig.getDynamicConfig().get("upstream-scheme"), request.getScheme());
+            assertEquals(testConfig.getDynamicConfig().get("upstream-host"), request.getHost());
+            assertEquals(testConfig.getDynamicConfig().get("upstream-port"), new Double(request.getPort()));
+            assertEquals(Constants.FHIR_MIME_JSON, request.getHeaders().get("Content-Type"));
+
+            if (request.getParams()!=null) {
+                for (Pair<String, String> param : request.getParams()) {
+                    if (param.getKey().equals("_format")) {
+                        fail("Mediator should not forward _format param");
+                    }
+                }
+            }
+
+            try {
+                JSONAssert.assertEquals(patientJSON, request.getBody(), JSONCompareMode.LENIENT);
+            } catch (JSONException ex) {
+                fail(ex.getMessage());
+            }
+        }
+    }
+
+    static class AcceptJSONGetFhirServer extends MockHTTPConnector {
+        @Override
+        public String getResponse() {
+            return patientJSON;
+        }
+
+        @Override
+        public Integer getStatus() {
+            return 200;
+        }
+
+        @Override
+        public Map<String, String> getHeaders() {
+            return Collections.singletonMap("Content-Type", Constants.FHIR_MIME_JSON);
+        }
+
+        @Override
+        public void executeOnReceive(MediatorHTTPRequest request) {
+            assertEquals(testConfig.getDynamicConfig().get("upstream-scheme"), request.getScheme());
+            assertEquals(testConfig.getDynamicConfig().get("upstream-host"), request.getHost());
+            assertEquals(testConfig.getDynamicConfig().get("upstream-port"), new Double(request.getPort()));
+            assertEquals(Constants.FHIR_MIME_JSON, request.getHeaders().get("Accept"));
+
+            if (request.getParams()!=null) {
+                for (Pair<String, String> param : request.getParams()) {
+                    if (param.getKey().equals("_format")) {
+                        fail("Mediator should not forward _format param");
+                    }
+                }
+            }
+        }
+    }
+
+    static class AcceptXMLGetFhirServer extends MockHTTPConnector {
+        @Override
+        public String getResponse() {
+            return patientXML;
+        }
+
+        @Override
+        public Integer getStatus() {
+            return 200;
+        }
+
+        @Override
+        public Map<String, String> getHeaders() {
+            return Collections.singletonMap("Content-Type", Constants.FHIR_MIME_XML);
+        }
+
+        @Override
+        public void executeOnReceive(MediatorHTTPRequest request) {
+            assertEquals(testConfig.getDynamicConfig().get("upstream-scheme"), request.getScheme());
+            assertEquals(testConfig.getDynamicConfig().get("upstream-host"), request.getHost());
+            assertEquals(testConfig.getDynamicConfig().get("upstream-port"), new Double(request.getPort()));
+            assertEquals(Constants.FHIR_MIME_XML, request.getHeaders().get("Accept"));
+
+            if (request.getParams()!=null) {
+                for (Pair<String, String> param : request.getParams()) {
+                    if (param.getKey().equals("_format")) {
+                        fail("Mediator should not forward _format param");
+                    }
+                }
+            }
+        }
+    }
+
+    static class CountingXMLGetFhirServer extends AcceptXMLGetFhirServer {
+        static final AtomicInteger requestCount = new AtomicInteger();
+
+        @Override
+        public void executeOnReceive(MediatorHTTPRequest request) {
+            super.executeOnReceive(request);
+            requestCount.incrementAndGet();
+        }
+    }
+
+    static class TestReadCache extends ReadCacheActor {
+        public TestReadCache() {
+            super(testConfig);
+        }
+    }
+
+    /**
+     * Never responds to the first request, as if it were stuck behind a GC pause
+     */
+    static class StallingJSONGetFhirServer extends AcceptJSONGetFhirServer {
+        static final AtomicInteger requestCount = new AtomicInteger();
+
+        @Override
+        public void onReceive(Object msg) throws Exception {
+            if (msg instanceof MediatorHTTPRequest && requestCount.incrementAndGet()==1) {
+                return;
+            }
+            super.onReceive(msg);
+        }
+    }
+
+    static class TestRateLimiter extends RateLimitActor {
+        public TestRateLimiter() {
+            super(testConfig);
+        }
+    }
+
+    static class TestUpstreamCircuitBreaker extends UpstreamCircuitBreakerActor {
+        public TestUpstreamCircuitBreaker() {
+            super(testConfig);
+        }
+    }
+
+    static class TestConversionCache extends ConversionCacheActor {
+        public TestConversionCache() {
+            super(testConfig);
+        }
+    }
+
+    static class TrapServer extends MockHTTPConnector {
+        @Override
+        public String getResponse() {
+            return null;
+        }
+
+        @Override
+        public Integer getStatus() {
+            return null;
+        }
+
+        @Override
+        public Map<String, String> getHeaders() {
+            return null;
+        }
+
+        @Override
+        public void executeOnReceive(MediatorHTTPRequest mediatorHTTPRequest) {
+            fail();
+        }
+    }
+
+    static ActorSystem system;
+    static final MediatorConfig testConfig = new MediatorConfig("fhir-proxy-handler", "localhost", 8604);
+
+    static String patientJSON;
+    static String patientXML;
+    static String patientJSON_invalid;
+    static String patientJSON_invalidSyntax;
+    static String patientSearchsetJSON;
+    static String observationSearchsetJSON;
+
+
+    @BeforeClass
+    public static void setup() throws IOException {
+        // Saxon (a dependency of the instance validator) registers itself as the XSLT transformer, which xmlunit can't use
+        System.setProperty("javax.xml.transform.TransformerFactory", "com.sun.org.apache.xalan.internal.xsltc.trax.TransformerFactoryImpl");
+        system = ActorSystem.create();
+
+        patientJSON = IOUtils.toString(FhirProxyTestBase.class.getClassLoader().getResourceAsStream("fhir-patient.json"));
+        patientXML = IOUtils.toString(FhirProxyTestBase.class.getClassLoader().getResourceAsStream("fhir-patient.xml"));
+        patientJSON_invalid = IOUtils.toString(FhirProxyTestBase.class.getClassLoader().getResourceAsStream("fhir-patient-invalid.json"));
+        patientJSON_invalidSyntax = IOUtils.toString(FhirProxyTestBase.class.getClassLoader().getResourceAsStream("fhir-patient-invalid-syntax.json"));
+        patientSearchsetJSON = IOUtils.toString(FhirProxyTestBase.class.getClassLoader().getResourceAsStream("fhir-patient-searchset.json"));
+        observationSearchsetJSON = IOUtils.toString(FhirProxyTestBase.class.getClassLoader().getResourceAsStream("fhir-observation-searchset.json"));
+    }
+
+    /**
+     * The config is shared by every test, start each one without the settings of the others
+     */
+    @Before
+    public void resetConfig() {
+        testConfig.getDynamicConfig().clear();
+        testConfig.getDynamicConfig().put("fhir-context", "DSTU2");
+        testConfig.getDynamicConfig().put("upstream-scheme", "http");
+        testConfig.getDynamicConfig().put("upstream-host", "localhost");
+        testConfig.getDynamicConfig().put("upstream-port", 80d);
+    }
+
+    @AfterClass
+    public static void teardown() {
+        JavaTestKit.shutdownActorSystem(system);
+        system = null;
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.ActorRef;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Test;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.FinishRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.openhim.mediator.engine.testing.MockLauncher;
+import scala.concurrent.duration.Duration;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class HedgedReadActorTest extends FhirProxyTestBase {
+
+    private static class TestHedgedReads extends HedgedReadActor {
+        public TestHedgedReads() {
+            super(testConfig);
+        }
+    }
+
+    /**
+     * Fails the read after 200ms, and responds to its hedge (or fails it, with failHedge) 300ms after it's sent
+     */
+    private static class FailingReadFhirServer extends AcceptJSONGetFhirServer {
+        static final AtomicInteger requestCount = new AtomicInteger();
+        static volatile boolean failHedge;
+
+        private static class Delayed {
+            final MediatorHTTPRequest request;
+            final boolean fail;
+
+            Delayed(MediatorHTTPRequest request, boolean fail) {
+                this.request = request;
+                this.fail = fail;
+            }
+        }
+
+        @Override
+        public void onReceive(Object msg) throws Exception {
+            if (msg instanceof MediatorHTTPRequest) {
+                boolean read = requestCount.incrementAndGet()==1;
+                getContext().system().scheduler().scheduleOnce(
+                        Duration.create(read ? 200 : 300, TimeUnit.MILLISECONDS), getSelf(),
+                        new Delayed((MediatorHTTPRequest) msg, read || failHedge), getContext().dispatcher(), getSelf()
+                );
+            } else if (msg instanceof Delayed && ((Delayed) msg).fail) {
+                ((Delayed) msg).request.getRequestHandler().tell(new ExceptError(new IOException("Connection reset")), getSelf());
+            } else if (msg instanceof Delayed) {
+                super.onReceive(((Delayed) msg).request);
+            } else {
+                super.onReceive(msg);
+            }
+        }
+    }
+
+    private static class CountingUpstreamCircuitBreaker extends UpstreamCircuitBreakerActor {
+        static final AtomicInteger requestCount = new AtomicInteger();
+        static final AtomicInteger outcomeCount = new AtomicInteger();
+
+        public CountingUpstreamCircuitBreaker() {
+            super(testConfig);
+        }
+
+        @Override
+        public void onReceive(Object msg) throws Exception {
+            if (msg instanceof MediatorHTTPRequest) {
+                requestCount.incrementAndGet();
+            } else if (msg instanceof CallOutcome) {
+                outcomeCount.incrementAndGet();
+            }
+            super.onReceive(msg);
+        }
+    }
+
+    private MediatorHTTPRequest GETRequest(ActorRef ref) {
+        return new MediatorHTTPRequest(
+                ref, ref, "unit-test", "GET", "http", "localhost", 8604, "/fhir/Patient/1", null,
+                Collections.singletonMap("Accept", Constants.FHIR_MIME_JSON),
+                Collections.<Pair<String, String>>emptyList()
+        );
+    }
+
+
+    /**
+     * A read that upstream is slow to respond to should be answered by its hedge
+     */
+    @Test
+    public void testHedgedGET() throws Throwable {
+        List<MockLauncher.ActorToLaunch> hedging = Collections.singletonList(
+                new MockLauncher.ActorToLaunch("upstream-hedging", TestHedgedReads.class)
+        );
+
+        new FhirProxyTestKit(system, DSTU2FhirContext.class, StallingJSONGetFhirServer.class, hedging) {{
+            testConfig.getDynamicConfig().put("upstream-format", "JSON");
+            testConfig.getDynamicConfig().put("hedge-delay", 100);
+            StallingJSONGetFhirServer.requestCount.set(0);
+
+            try {
+                fhirProxyHandler.tell(GETRequest(getRef()), getRef());
+
+                Object result = expectMsgAnyClassOf(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class, ExceptError.class);
+                if (result instanceof ExceptError) {
+                    throw ((ExceptError) result).getError();
+                }
+                assertEquals(new Integer(200), ((FinishRequest) result).getResponseStatus());
+                assertEquals(2, StallingJSONGetFhirServer.requestCount.get());
+            } finally {
+                testConfig.getDynamicConfig().remove("hedge-delay");
+                cleanup();
+            }
+        }};
+    }
+
+    /**
+     * A hedged read that fails while its hedge is still in flight should be answered by the hedge
+     */
+    @Test
+    public void testFailedReadAnsweredByHedge() throws Throwable {
+        List<MockLauncher.ActorToLaunch> hedging = Collections.singletonList(
+                new MockLauncher.ActorToLaunch("upstream-hedging", TestHedgedReads.class)
+        );
+
+        new FhirProxyTestKit(system, DSTU2FhirContext.class, FailingReadFhirServer.class, hedging) {{
+            testConfig.getDynamicConfig().put("upstream-format", "JSON");
+            testConfig.getDynamicConfig().put("hedge-delay", 100);
+            FailingReadFhirServer.requestCount.set(0);
+            FailingReadFhirServer.failHedge = false;
+
+            try {
+                fhirProxyHandler.tell(GETRequest(getRef()), getRef());
+
+                Object result = expectMsgAnyClassOf(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class, ExceptError.class);
+                if (result instanceof ExceptError) {
+                    throw ((ExceptError) result).getError();
+                }
+                assertEquals(new Integer(200), ((FinishRequest) result).getResponseStatus());
+                assertEquals(2, FailingReadFhirServer.requestCount.get());
+            } finally {
+                testConfig.getDynamicConfig().remove("hedge-delay");
+                cleanup();
+            }
+        }};
+    }
+
+    /**
+     * A hedged read should only fail once both the read and its hedge have failed
+     */
+    @Test
+    public void testHedgedReadFailsOnceBothFail() throws Throwable {
+        List<MockLauncher.ActorToLaunch> hedging = Collections.singletonList(
+                new MockLauncher.ActorToLaunch("upstream-hedging", TestHedgedReads.class)
+        );
+
+        new FhirProxyTestKit(system, DSTU2FhirContext.class, FailingReadFhirServer.class, hedging) {{
+            testConfig.getDynamicConfig().put("upstream-format", "JSON");
+            testConfig.getDynamicConfig().put("hedge-delay", 100);
+            FailingReadFhirServer.requestCount.set(0);
+            FailingReadFhirServer.failHedge = true;
+
+            try {
+                fhirProxyHandler.tell(GETRequest(getRef()), getRef());
+
+                // the read fails after 200ms, the hedge 400ms in
+                expectNoMsg(Duration.create(300, TimeUnit.MILLISECONDS));
+                expectMsgClass(Duration.create(5, TimeUnit.SECONDS), ExceptError.class);
+                expectNoMsg(Duration.create(300, TimeUnit.MILLISECONDS));
+                assertEquals(2, FailingReadFhirServer.requestCount.get());
+            } finally {
+                testConfig.getDynamicConfig().remove("hedge-delay");
+                FailingReadFhirServer.failHedge = false;
+                cleanup();
+            }
+        }};
+    }
+
+    /**
+     * The hedge should go through the circuit breaker like the read, and the outcome of both be reported
+     */
+    @Test
+    public void testHedgeThroughCircuitBreaker() throws Throwable {
+        List<MockLauncher.ActorToLaunch> actors = Arrays.asList(
+                new MockLauncher.ActorToLaunch("upstream-hedging", TestHedgedReads.class),
+                new MockLauncher.ActorToLaunch("upstream-breaker", CountingUpstreamCircuitBreaker.class)
+        );
+
+        new FhirProxyTestKit(system, DSTU2FhirContext.class, StallingJSONGetFhirServer.class, actors) {{
+            testConfig.getDynamicConfig().put("upstream-format", "JSON");
+            testConfig.getDynamicConfig().put("hedge-delay", 100);
+            testConfig.getDynamicConfig().put("circuit-breaker-failure-rate", 50);
+            StallingJSONGetFhirServer.requestCount.set(0);
+            CountingUpstreamCircuitBreaker.requestCount.set(0);
+            CountingUpstreamCircuitBreaker.outcomeCount.set(0);
+
+            try {
+                fhirProxyHandler.tell(GETRequest(getRef()), getRef());
+
+                Object result = expectMsgAnyClassOf(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class, ExceptError.class);
+                if (result instanceof ExceptError) {
+                    throw ((ExceptError) result).getError();
+                }
+                assertEquals(new Integer(200), ((FinishRequest) result).getResponseStatus());
+                assertEquals(2, StallingJSONGetFhirServer.requestCount.get());
+                assertEquals(2, CountingUpstreamCircuitBreaker.requestCount.get());
+
+                // the stalled read is abandoned rather than left in flight
+                expectNoMsg(Duration.create(100, TimeUnit.MILLISECONDS));
+                assertEquals(2, CountingUpstreamCircuitBreaker.outcomeCount.get());
+            } finally {
+                testConfig.getDynamicConfig().remove("hedge-delay");
+                testConfig.getDynamicConfig().remove("circuit-breaker-failure-rate");
+                cleanup();
+            }
+        }};
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.ActorRef;
+import akka.actor.Props;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Test;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.FinishRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.openhim.mediator.engine.testing.MockHTTPConnector;
+import org.openhim.mediator.engine.testing.MockLauncher;
+import org.skyscreamer.jsonassert.JSONAssert;
+import org.skyscreamer.jsonassert.JSONCompareMode;
+import scala.concurrent.duration.Duration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class IncludeAssemblerTest extends FhirProxyTestBase {
+
+    /**
+     * An upstream server without _include support, with Observations of Patient/example
+     */
+    private static class IncludeFhirServer extends MockHTTPConnector {
+        static final AtomicInteger requestCount = new AtomicInteger();
+        private String path;
+
+        @Override
+        public String getResponse() {
+            return path.equals("/fhir/Observation") ? observationSearchsetJSON : patientJSON;
+        }
+
+        @Override
+        public Integer getStatus() {
+            return path.equals("/fhir/Observation") || path.equals("/fhir/Patient/example") ? 200 : 404;
+        }
+
+        @Override
+        public Map<String, String> getHeaders() {
+            return Collections.singletonMap("Content-Type", Constants.FHIR_MIME_JSON);
+        }
+
+        @Override
+        public void executeOnReceive(MediatorHTTPRequest request) {
+            path = request.getPath();
+            for (Pair<String, String> param : request.getParams()) {
+                if (param.getKey().startsWith("_include")) {
+                    fail("Mediator should not forward _include params");
+                }
+            }
+            requestCount.incrementAndGet();
+        }
+    }
+
+
+    /**
+     * The resources referenced by the matches of a search should be fetched once each and added to the searchset, and
+     * shared with client reads through the read cache
+     */
+    @Test
+    public void testSearchIncludesAssembled() throws Throwable {
+        List<MockLauncher.ActorToLaunch> readCache = Collections.singletonList(
+                new MockLauncher.ActorToLaunch("read-cache", TestReadCache.class)
+        );
+
+        new FhirProxyTestKit(system, DSTU2FhirContext.class, IncludeFhirServer.class, readCache) {{
+            testConfig.getDynamicConfig().put("upstream-format", "Client");
+            testConfig.getDynamicConfig().put("validation-enabled", false);
+            testConfig.getDynamicConfig().put("include-max-resources", 10);
+            testConfig.getDynamicConfig().put("read-cache-ttl", 60);
+            IncludeFhirServer.requestCount.set(0);
+
+            try {
+                List<Pair<String, String>> params = new ArrayList<>();
+                params.add(Pair.of("subject", "Patient/example"));
+                params.add(Pair.of("_include", "Observation:subject"));
+                params.add(Pair.of("_include", "Observation:performer"));
+                MediatorHTTPRequest search = new MediatorHTTPRequest(
+                        getRef(), getRef(), "unit-test", "GET", "http", "localhost", 8604, "/fhir/Observation", null,
+                        Collections.singletonMap("Accept", Constants.FHIR_MIME_JSON),
+                        params
+                );
+                fhirProxyHandler.tell(search, getRef());
+
+                Object result = expectMsgAnyClassOf(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class, ExceptError.class);
+                if (result instanceof ExceptError) {
+                    throw ((ExceptError) result).getError();
+                }
+                assertEquals(new Integer(200), ((FinishRequest) result).getResponseStatus());
+
+                Bundle bundle = FhirContext.forDstu2().newJsonParser().parseResource(
+                        Bundle.class, ((FinishRequest) result).getResponse()
+                );
+                assertEquals(3, bundle.getEntry().size());
+                Bundle.Entry included = bundle.getEntry().get(2);
+                assertEquals("Patient/example", included.getResource().getIdElement().toUnqualifiedVersionless().getValue());
+                assertEquals("include", included.getSearch().getMode());
+                assertEquals("http://localhost/fhir/Patient/example", included.getFullUrl());
+                // following the link resolves the includes again
+                assertEquals("http://localhost/fhir/Observation?subject=Patient/example&_include=Observation%3Asubject&_include=Observation%3Aperformer",
+                        bundle.getLink("self").getUrl());
+                // the search and a single read of the patient, the performer is on another server
+                assertEquals(2, IncludeFhirServer.requestCount.get());
+
+                MediatorHTTPRequest read = new MediatorHTTPRequest(
+                        getRef(), getRef(), "unit-test", "GET", "http", "localhost", 8604, "/fhir/Patient/example", null,
+                        Collections.singletonMap("Accept", Constants.FHIR_MIME_JSON),
+                        Collections.<Pair<String, String>>emptyList()
+                );
+                ActorRef readHandler = system.actorOf(Props.create(CachedReadHandler.class, testConfig));
+                readHandler.tell(read, getRef());
+
+                result = expectMsgAnyClassOf(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class, ExceptError.class);
+                if (result instanceof ExceptError) {
+                    throw ((ExceptError) result).getError();
+                }
+                JSONAssert.assertEquals(patientJSON, ((FinishRequest) result).getResponse(), JSONCompareMode.NON_EXTENSIBLE);
+                assertEquals(2, IncludeFhirServer.requestCount.get());
+            } finally {
+                testConfig.getDynamicConfig().remove("include-max-resources");
+                testConfig.getDynamicConfig().remove("read-cache-ttl");
+                cleanup();
+            }
+        }};
+    }
+}
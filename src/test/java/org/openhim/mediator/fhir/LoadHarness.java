@@ -0,0 +1,496 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.ActorSystem;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.model.dstu2.valueset.BundleTypeEnum;
+import ca.uhn.fhir.model.dstu2.valueset.HTTPVerbEnum;
+import ca.uhn.fhir.rest.server.Constants;
+import com.google.gson.GsonBuilder;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.MediatorServer;
+import org.openhim.mediator.engine.RegistrationConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * End-to-end load harness for the mediator.
+ *
+ * Starts a real {@link MediatorServer}, wired as in {@link MediatorMain}, against an in-process {@link StubFhirServer}
+ * and drives a weighted mix of requests at fixed rates. For every combination of validation setting and rate a phase
+ * is run (after a warmup) and its throughput, latency percentiles, GC pauses and allocation are written to a JSON report.
+ *
+ * Requests are issued open loop: latency is measured from when a request was scheduled to be sent, so that a
+ * saturated mediator shows up in the percentiles rather than silently lowering the request rate.
+ *
+ * Run with:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.openhim.mediator.fhir.LoadHarness [-Dexec.args="--conf my.properties"]
+ * </pre>
+ * See load-harness.properties for the settings, any of which can also be overridden with a system property.
+ */
+public class LoadHarness {
+    private static class Scenario {
+        final String name;
+        final int weight;
+        final String method;
+        final String path;
+        final String mimeType;
+        final String body;
+
+        Scenario(String name, int weight, String method, String path, String mimeType, String body) {
+            this.name = name;
+            this.weight = weight;
+            this.method = method;
+            this.path = path;
+            this.mimeType = mimeType;
+            this.body = body;
+        }
+    }
+
+    private static class Phase {
+        final long[] latencies;
+        final int[] scenarios;
+        final AtomicInteger recorded = new AtomicInteger();
+        final AtomicInteger[] errors;
+        final AtomicReferenceArray<String> lastErrors;
+
+        Phase(int requests, int scenarioCount) {
+            latencies = new long[requests];
+            scenarios = new int[requests];
+            lastErrors = new AtomicReferenceArray<>(scenarioCount);
+            errors = new AtomicInteger[scenarioCount];
+            for (int i=0; i<scenarioCount; i++) {
+                errors[i] = new AtomicInteger();
+            }
+        }
+
+        void record(int scenario, long latencyNanos, String error) {
+            int i = recorded.getAndIncrement();
+            latencies[i] = latencyNanos;
+            scenarios[i] = scenario;
+            if (error!=null) {
+                errors[scenario].incrementAndGet();
+                lastErrors.set(scenario, error);
+            }
+        }
+    }
+
+
+    private final Properties props;
+    private final List<Scenario> mix;
+    private final int[] cumulativeWeights;
+    private final Random random = new Random();
+    private final String mediatorUrl;
+    private CloseableHttpClient httpClient;
+    private ExecutorService driver;
+
+
+    private LoadHarness(Properties props, List<Scenario> mix) {
+        this.props = props;
+        this.mix = mix;
+        this.cumulativeWeights = new int[mix.size()];
+        int total = 0;
+        for (int i=0; i<mix.size(); i++) {
+            total += mix.get(i).weight;
+            cumulativeWeights[i] = total;
+        }
+        this.mediatorUrl = "http://localhost:" + props.getProperty("load.mediator.port");
+    }
+
+
+    private static Properties loadProperties(String[] args) throws Exception {
+        Properties props = new Properties();
+        InputStream defaults = LoadHarness.class.getClassLoader().getResourceAsStream("load-harness.properties");
+        try {
+            props.load(defaults);
+        } finally {
+            IOUtils.closeQuietly(defaults);
+        }
+
+        if (args.length==2 && args[0].equals("--conf")) {
+            InputStream in = FileUtils.openInputStream(new File(args[1]));
+            try {
+                props.load(in);
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+        }
+
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("load.")) {
+                props.setProperty(name, System.getProperty(name));
+            }
+        }
+        return props;
+    }
+
+    private static int intProperty(Properties props, String name) {
+        return Integer.parseInt(props.getProperty(name).trim());
+    }
+
+    /**
+     * Parse a mix such as "40:read-json,10:search-xml-50". Kinds are read, search (size is the number of entries
+     * returned, default 10), create and batch (size is the number of entries sent, default 10).
+     */
+    private static List<Scenario> parseMix(String spec) {
+        FhirContext fhirContext = FhirContext.forDstu2();
+        Patient patient;
+        try {
+            patient = StubFhirServer.loadPatient(fhirContext);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+
+        List<Scenario> mix = new ArrayList<>();
+        for (String entry : spec.split(",")) {
+            String[] weightAndName = entry.trim().split(":");
+            int weight = Integer.parseInt(weightAndName[0]);
+            String name = weightAndName[1];
+            String[] parts = name.split("-");
+            String kind = parts[0];
+            boolean xml = "xml".equalsIgnoreCase(parts[1]);
+            int size = parts.length>2 ? Integer.parseInt(parts[2]) : 10;
+            String mimeType = xml ? Constants.CT_FHIR_XML : Constants.CT_FHIR_JSON;
+
+            switch (kind) {
+                case "read":
+                    mix.add(new Scenario(name, weight, "GET", "/fhir/Patient/1", mimeType, null));
+                    break;
+                case "search":
+                    mix.add(new Scenario(name, weight, "GET", "/fhir/Patient?family=Chalmers&_count=" + size, mimeType, null));
+                    break;
+                case "create":
+                    String patientBody = xml ? fhirContext.newXmlParser().encodeResourceToString(patient) : fhirContext.newJsonParser().encodeResourceToString(patient);
+                    mix.add(new Scenario(name, weight, "POST", "/fhir/Patient", mimeType, patientBody));
+                    break;
+                case "batch":
+                    Bundle batch = new Bundle();
+                    batch.setType(BundleTypeEnum.BATCH);
+                    for (int i=0; i<size; i++) {
+                        Bundle.Entry batchEntry = batch.addEntry().setResource(patient);
+                        batchEntry.getRequest().setMethod(HTTPVerbEnum.POST).setUrl("Patient");
+                    }
+                    String batchBody = xml ? fhirContext.newXmlParser().encodeResourceToString(batch) : fhirContext.newJsonParser().encodeResourceToString(batch);
+                    mix.add(new Scenario(name, weight, "POST", "/fhir", mimeType, batchBody));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown request kind '" + kind + "' in " + entry);
+            }
+        }
+        return mix;
+    }
+
+    static Object dynamicConfigValue(String value) {
+        if ("true".equalsIgnoreCase(value) || "false".equalsIgnoreCase(value)) {
+            return Boolean.valueOf(value);
+        }
+        try {
+            return Double.valueOf(value);
+        } catch (NumberFormatException ex) {
+            return value;
+        }
+    }
+
+    private MediatorConfig buildMediatorConfig() throws Exception {
+        MediatorConfig config = new MediatorConfig();
+        config.setName("fhir-proxy-load-harness");
+        config.setServerHost("localhost");
+        config.setServerPort(intProperty(props, "load.mediator.port"));
+        config.setRootTimeout(60000);
+        config.setRoutingTable(MediatorMain.buildRoutingTable());
+        config.setStartupActors(MediatorMain.buildStartupActorsConfig());
+
+        InputStream regInfo = LoadHarness.class.getClassLoader().getResourceAsStream("mediator-registration-info.json");
+        config.setRegistrationConfig(new RegistrationConfig(regInfo));
+
+        config.getDynamicConfig().put("upstream-scheme", "http");
+        config.getDynamicConfig().put("upstream-host", "localhost");
+        config.getDynamicConfig().put("upstream-port", Double.valueOf(props.getProperty("load.stub.port")));
+        config.getDynamicConfig().put("upstream-format", props.getProperty("load.upstream-format"));
+
+        // load.config.<param> overrides any other mediator config
+        for (String name : props.stringPropertyNames()) {
+            if (name.startsWith("load.config.")) {
+                config.getDynamicConfig().put(name.substring("load.config.".length()), dynamicConfigValue(props.getProperty(name)));
+            }
+        }
+
+        return config;
+    }
+
+    private int nextScenario() {
+        int r = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        for (int i=0; i<cumulativeWeights.length; i++) {
+            if (r < cumulativeWeights[i]) {
+                return i;
+            }
+        }
+        return cumulativeWeights.length - 1;
+    }
+
+    private HttpUriRequest buildRequest(Scenario scenario) {
+        if ("GET".equals(scenario.method)) {
+            HttpGet get = new HttpGet(mediatorUrl + scenario.path);
+            get.setHeader("Accept", scenario.mimeType);
+            return get;
+        }
+
+        HttpPost post = new HttpPost(mediatorUrl + scenario.path);
+        post.setHeader("Accept", scenario.mimeType);
+        post.setHeader("Content-Type", scenario.mimeType + ";charset=UTF-8");
+        post.setEntity(new StringEntity(scenario.body, StandardCharsets.UTF_8));
+        return post;
+    }
+
+    /**
+     * Issue requests at a fixed rate for the given duration and wait for them to complete
+     */
+    private Phase drive(int rate, int seconds) throws InterruptedException {
+        final int requests = rate * seconds;
+        final Phase phase = new Phase(requests, mix.size());
+        final CountDownLatch done = new CountDownLatch(requests);
+        long period = TimeUnit.SECONDS.toNanos(1) / rate;
+        long start = System.nanoTime();
+
+        for (int i=0; i<requests; i++) {
+            final long intendedStart = start + i*period;
+            final int scenario = nextScenario();
+            final HttpUriRequest request = buildRequest(mix.get(scenario));
+
+            long wait = intendedStart - System.nanoTime();
+            while (wait > 0) {
+                LockSupport.parkNanos(wait);
+                wait = intendedStart - System.nanoTime();
+            }
+
+            driver.execute(new Runnable() {
+                @Override
+                public void run() {
+                    String error = null;
+                    try {
+                        HttpResponse response = httpClient.execute(request);
+                        EntityUtils.consume(response.getEntity());
+                        if (response.getStatusLine().getStatusCode() >= 400) {
+                            error = response.getStatusLine().toString();
+                        }
+                    } catch (Exception ex) {
+                        error = ex.getCause()!=null ? ex + ": " + ex.getCause() : ex.toString();
+                    }
+                    phase.record(scenario, System.nanoTime() - intendedStart, error);
+                    done.countDown();
+                }
+            });
+        }
+
+        if (!done.await(2, TimeUnit.MINUTES)) {
+            System.err.println("Timed out waiting for " + done.getCount() + " outstanding requests");
+        }
+        return phase;
+    }
+
+    static Map<String, Object> latencySummary(long[] latencies, int count) {
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+
+        long sum = 0;
+        for (long latency : sorted) {
+            sum += latency;
+        }
+
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("mean", count>0 ? millis(sum / count) : 0);
+        summary.put("p50", percentile(sorted, 0.5));
+        summary.put("p99", percentile(sorted, 0.99));
+        summary.put("p999", percentile(sorted, 0.999));
+        summary.put("max", count>0 ? millis(sorted[count - 1]) : 0);
+        return summary;
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length==0) {
+            return 0;
+        }
+        int i = (int) Math.ceil(p * sorted.length) - 1;
+        return millis(sorted[Math.max(0, Math.min(i, sorted.length - 1))]);
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1000000.0;
+    }
+
+    private Map<String, Object> report(boolean validation, int rate, int seconds, Phase phase, RuntimeMetrics.Snapshot runtime, long elapsedNanos) {
+        int count = phase.recorded.get();
+        int errors = 0;
+        for (AtomicInteger e : phase.errors) {
+            errors += e.get();
+        }
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("validation", validation);
+        result.put("targetRate", rate);
+        result.put("durationSeconds", seconds);
+        result.put("requests", count);
+        result.put("errors", errors);
+        result.put("throughput", count / (elapsedNanos / 1e9));
+        result.put("latencyMillis", latencySummary(phase.latencies, count));
+
+        Map<String, Object> byScenario = new LinkedHashMap<>();
+        for (int s=0; s<mix.size(); s++) {
+            long[] latencies = new long[count];
+            int n = 0;
+            for (int i=0; i<count; i++) {
+                if (phase.scenarios[i]==s) {
+                    latencies[n++] = phase.latencies[i];
+                }
+            }
+            Map<String, Object> scenario = new LinkedHashMap<>();
+            scenario.put("requests", n);
+            scenario.put("errors", phase.errors[s].get());
+            if (phase.lastErrors.get(s)!=null) {
+                scenario.put("lastError", phase.lastErrors.get(s));
+            }
+            scenario.put("latencyMillis", latencySummary(latencies, n));
+            byScenario.put(mix.get(s).name, scenario);
+        }
+        result.put("scenarios", byScenario);
+
+        Map<String, Object> gc = new LinkedHashMap<>();
+        gc.put("collections", runtime.gcCollections);
+        gc.put("totalPauseMillis", runtime.gcTotalPauseMillis);
+        gc.put("maxPauseMillis", runtime.gcMaxPauseMillis);
+        result.put("gc", gc);
+
+        Map<String, Object> allocation = new LinkedHashMap<>();
+        allocation.put("bytes", runtime.allocatedBytes);
+        allocation.put("bytesPerSecond", runtime.allocatedBytes / (elapsedNanos / 1e9));
+        allocation.put("bytesPerRequest", count>0 ? runtime.allocatedBytes / count : 0);
+        result.put("allocation", allocation);
+
+        return result;
+    }
+
+    private void run() throws Exception {
+        final int connections = intProperty(props, "load.connections");
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(connections);
+        connectionManager.setDefaultMaxPerRoute(connections);
+        httpClient = HttpClients.custom().setConnectionManager(connectionManager).build();
+
+        driver = Executors.newFixedThreadPool(connections, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "load-driver-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        StubFhirServer stub = new StubFhirServer(
+                "localhost", intProperty(props, "load.stub.port"),
+                intProperty(props, "load.stub.latency-ms"), intProperty(props, "load.stub.latency-jitter-ms")
+        );
+        stub.start();
+
+        MediatorConfig config = buildMediatorConfig();
+        ActorSystem system = ActorSystem.create("mediator");
+        MediatorMain.initInboxExtension(system);
+        MediatorServer server = new MediatorServer(system, config);
+        server.start(false);
+
+        RuntimeMetrics metrics = new RuntimeMetrics();
+        List<Map<String, Object>> phases = new ArrayList<>();
+        int warmup = intProperty(props, "load.warmup-seconds");
+        int seconds = intProperty(props, "load.duration-seconds");
+
+        try {
+            for (String validation : props.getProperty("load.validation").split(",")) {
+                for (String rateValue : props.getProperty("load.rates").split(",")) {
+                    boolean validationEnabled = Boolean.parseBoolean(validation.trim());
+                    int rate = Integer.parseInt(rateValue.trim());
+                    config.getDynamicConfig().put("validation-enabled", validationEnabled);
+
+                    System.out.println(String.format("Phase: validation=%s rate=%d/s (warmup %ds, measure %ds)", validationEnabled, rate, warmup, seconds));
+                    if (warmup > 0) {
+                        drive(rate, warmup);
+                    }
+
+                    System.gc();
+                    metrics.start();
+                    long started = System.nanoTime();
+                    Phase phase = drive(rate, seconds);
+                    long elapsed = System.nanoTime() - started;
+                    phases.add(report(validationEnabled, rate, seconds, phase, metrics.stop(), elapsed));
+                }
+            }
+        } finally {
+            server.stop();
+            system.shutdown();
+            stub.stop();
+            driver.shutdownNow();
+            httpClient.close();
+        }
+
+        Map<String, Object> settings = new LinkedHashMap<>();
+        for (String name : new TreeSet<>(props.stringPropertyNames())) {
+            settings.put(name, props.getProperty(name));
+        }
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("timestamp", System.currentTimeMillis());
+        report.put("javaVersion", System.getProperty("java.version"));
+        report.put("availableProcessors", Runtime.getRuntime().availableProcessors());
+        report.put("settings", settings);
+        report.put("phases", phases);
+
+        String json = new GsonBuilder().setPrettyPrinting().create().toJson(report);
+        File reportFile = new File(props.getProperty("load.report"));
+        FileUtils.writeStringToFile(reportFile, json, StandardCharsets.UTF_8.name());
+        System.out.println(json);
+        System.out.println("Report written to " + reportFile.getAbsolutePath());
+    }
+
+    public static void main(String... args) throws Exception {
+        Properties props = loadProperties(args);
+        new LoadHarness(props, parseMix(props.getProperty("load.mix"))).run();
+        System.exit(0);
+    }
+}
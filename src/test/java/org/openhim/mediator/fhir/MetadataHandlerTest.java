@@ -0,0 +1,216 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.ActorRef;
+import akka.actor.Props;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Test;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.FinishRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.openhim.mediator.engine.testing.MockHTTPConnector;
+import org.openhim.mediator.engine.testing.MockLauncher;
+import scala.concurrent.duration.Duration;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class MetadataHandlerTest extends FhirProxyTestBase {
+
+    private static class MetadataFhirServer extends MockHTTPConnector {
+        static final AtomicInteger requestCount = new AtomicInteger();
+
+        @Override
+        public String getResponse() {
+            return "{\"resourceType\": \"Conformance\", \"status\": \"active\", \"fhirVersion\": \"1.0.2\"}";
+        }
+
+        @Override
+        public Integer getStatus() {
+            return 200;
+        }
+
+        @Override
+        public Map<String, String> getHeaders() {
+            return Collections.singletonMap("Content-Type", Constants.FHIR_MIME_JSON);
+        }
+
+        @Override
+        public void executeOnReceive(MediatorHTTPRequest request) {
+            assertEquals("/fhir/metadata", request.getPath());
+            requestCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Only serves the conformance statement to authenticated requests
+     */
+    private static class AuthenticatingMetadataFhirServer extends MetadataFhirServer {
+        static final AtomicInteger unauthenticatedCount = new AtomicInteger();
+        private boolean authenticated;
+
+        @Override
+        public String getResponse() {
+            return authenticated ? super.getResponse() : "Unauthorized";
+        }
+
+        @Override
+        public Integer getStatus() {
+            return authenticated ? 200 : 401;
+        }
+
+        @Override
+        public Map<String, String> getHeaders() {
+            return authenticated ? super.getHeaders() : Collections.singletonMap("Content-Type", "text/plain");
+        }
+
+        @Override
+        public void executeOnReceive(MediatorHTTPRequest request) {
+            super.executeOnReceive(request);
+            authenticated = request.getHeaders().get("Authorization")!=null;
+            if (!authenticated) {
+                unauthenticatedCount.incrementAndGet();
+            }
+        }
+    }
+
+    private static class TestMetadataCache extends MetadataCacheActor {
+        public TestMetadataCache() {
+            super(testConfig);
+        }
+    }
+
+
+    /**
+     * The conformance statement should be fetched once and then served from the cache, in either format
+     */
+    @Test
+    public void testMetadataServedFromCache() throws Throwable {
+        List<MockLauncher.ActorToLaunch> metadataCache = Collections.singletonList(
+                new MockLauncher.ActorToLaunch("metadata-cache", TestMetadataCache.class)
+        );
+
+        new FhirProxyTestKit(system, DSTU2FhirContext.class, MetadataFhirServer.class, metadataCache) {{
+            testConfig.getDynamicConfig().put("upstream-format", "JSON");
+            MetadataFhirServer.requestCount.set(0);
+
+            try {
+                String[] accepts = {Constants.FHIR_MIME_JSON, Constants.FHIR_MIME_XML};
+                for (String accept : accepts) {
+                    MediatorHTTPRequest GET_Request = new MediatorHTTPRequest(
+                            getRef(), getRef(), "unit-test", "GET", "http", "localhost", 8604, "/fhir/metadata", null,
+                            Collections.singletonMap("Accept", accept),
+                            Collections.<Pair<String, String>>emptyList()
+                    );
+                    ActorRef metadataHandler = system.actorOf(Props.create(MetadataHandler.class, testConfig));
+                    metadataHandler.tell(GET_Request, getRef());
+
+                    Object result = expectMsgAnyClassOf(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class, ExceptError.class);
+                    if (result instanceof ExceptError) {
+                        throw ((ExceptError) result).getError();
+                    }
+                    assertEquals(new Integer(200), ((FinishRequest) result).getResponseStatus());
+                    assertEquals(accept, ((FinishRequest) result).getResponseMimeType());
+                    assertTrue(((FinishRequest) result).getResponse().contains("Conformance"));
+                }
+
+                assertEquals(1, MetadataFhirServer.requestCount.get());
+            } finally {
+                cleanup();
+            }
+        }};
+    }
+
+    /**
+     * With the metadata cache switched off, every request for the conformance statement should go upstream
+     */
+    @Test
+    public void testMetadataCacheDisabled() throws Throwable {
+        List<MockLauncher.ActorToLaunch> metadataCache = Collections.singletonList(
+                new MockLauncher.ActorToLaunch("metadata-cache", TestMetadataCache.class)
+        );
+
+        new FhirProxyTestKit(system, DSTU2FhirContext.class, MetadataFhirServer.class, metadataCache) {{
+            testConfig.getDynamicConfig().put("upstream-format", "JSON");
+            testConfig.getDynamicConfig().put("metadata-cache-enabled", false);
+            MetadataFhirServer.requestCount.set(0);
+
+            try {
+                for (int i=0; i<2; i++) {
+                    MediatorHTTPRequest GET_Request = new MediatorHTTPRequest(
+                            getRef(), getRef(), "unit-test", "GET", "http", "localhost", 8604, "/fhir/metadata", null,
+                            Collections.singletonMap("Accept", Constants.FHIR_MIME_JSON),
+                            Collections.<Pair<String, String>>emptyList()
+                    );
+                    ActorRef metadataHandler = system.actorOf(Props.create(MetadataHandler.class, testConfig));
+                    metadataHandler.tell(GET_Request, getRef());
+
+                    Object result = expectMsgAnyClassOf(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class, ExceptError.class);
+                    if (result instanceof ExceptError) {
+                        throw ((ExceptError) result).getError();
+                    }
+                    assertEquals(new Integer(200), ((FinishRequest) result).getResponseStatus());
+                }
+
+                assertEquals(2, MetadataFhirServer.requestCount.get());
+            } finally {
+                testConfig.getDynamicConfig().remove("metadata-cache-enabled");
+                cleanup();
+            }
+        }};
+    }
+    /**
+     * The statement is fetched without credentials. If upstream requires them, requests should be handled with their
+     * own, without trying to fetch it again for every request
+     */
+    @Test
+    public void testFailedFetchNotRetriedForEveryRequest() throws Throwable {
+        List<MockLauncher.ActorToLaunch> metadataCache = Collections.singletonList(
+                new MockLauncher.ActorToLaunch("metadata-cache", TestMetadataCache.class)
+        );
+
+        new FhirProxyTestKit(system, DSTU2FhirContext.class, AuthenticatingMetadataFhirServer.class, metadataCache) {{
+            testConfig.getDynamicConfig().put("upstream-format", "JSON");
+            testConfig.getDynamicConfig().put("validation-enabled", false);
+            MetadataFhirServer.requestCount.set(0);
+            AuthenticatingMetadataFhirServer.unauthenticatedCount.set(0);
+
+            try {
+                Map<String, String> headers = new HashMap<>();
+                headers.put("Accept", Constants.FHIR_MIME_JSON);
+                headers.put("Authorization", "Bearer client-a");
+
+                for (int i=0; i<3; i++) {
+                    MediatorHTTPRequest GET_Request = new MediatorHTTPRequest(
+                            getRef(), getRef(), "unit-test", "GET", "http", "localhost", 8604, "/fhir/metadata", null,
+                            headers, Collections.<Pair<String, String>>emptyList()
+                    );
+                    ActorRef metadataHandler = system.actorOf(Props.create(MetadataHandler.class, testConfig));
+                    metadataHandler.tell(GET_Request, getRef());
+
+                    Object result = expectMsgAnyClassOf(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class, ExceptError.class);
+                    if (result instanceof ExceptError) {
+                        throw ((ExceptError) result).getError();
+                    }
+                    assertEquals(new Integer(200), ((FinishRequest) result).getResponseStatus());
+                }
+
+                assertEquals(1, AuthenticatingMetadataFhirServer.unauthenticatedCount.get());
+                assertEquals(4, MetadataFhirServer.requestCount.get());
+            } finally {
+                cleanup();
+            }
+        }};
+    }
+}
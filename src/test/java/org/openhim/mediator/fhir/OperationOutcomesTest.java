@@ -0,0 +1,37 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.dstu2.resource.OperationOutcome;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class OperationOutcomesTest extends FhirProxyTestBase {
+
+    /**
+     * Templated OperationOutcomes should be the same as fully encoded ones, whatever their details
+     */
+    @Test
+    public void testOperationOutcomeTemplates() throws Throwable {
+        FhirContext fhirContext = FhirContext.forDstu2();
+        String details = "Unexpected \"char\" <at> line 1 & col 2\n\\";
+
+        for (String contentType : Arrays.asList(Constants.FHIR_MIME_JSON, Constants.FHIR_MIME_XML)) {
+            // the first encodes the template, the second uses it
+            OperationOutcomes.encode(fhirContext, OperationOutcomes.Kind.OVERLOADED, contentType);
+            String templated = OperationOutcomes.encode(fhirContext, details, contentType);
+
+            OperationOutcome outcome = (OperationOutcome) new ResourceCodec(fhirContext).parse(new Contents(contentType, templated));
+            assertEquals(1, outcome.getIssue().size());
+            assertEquals(details, outcome.getIssue().get(0).getDiagnostics());
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.ActorRef;
+import akka.actor.Props;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.model.primitive.IdDt;
+import org.apache.commons.io.FileUtils;
+import org.hl7.fhir.instance.hapi.validation.DefaultProfileValidationSupport;
+import org.hl7.fhir.instance.model.ElementDefinition;
+import org.hl7.fhir.instance.model.Enumerations;
+import org.hl7.fhir.instance.model.Reference;
+import org.hl7.fhir.instance.model.StructureDefinition;
+import org.hl7.fhir.instance.model.ValueSet;
+import org.junit.Test;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.FinishRequest;
+import org.openhim.mediator.engine.testing.MockLauncher;
+import scala.concurrent.duration.Duration;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ProfileValidatorActorTest extends FhirProxyTestBase {
+
+    private static class TestProfileValidator extends ProfileValidatorActor {
+        public TestProfileValidator() {
+            super(testConfig);
+        }
+    }
+
+
+    /**
+     * Writes a profile of Patient that requires a marital status from a local code system
+     */
+    private static File writeNationalPatientProfile(String profileUrl) throws IOException {
+        FhirContext hl7OrgContext = FhirContext.forDstu2Hl7Org();
+        File directory = Files.createTempDirectory("profiles").toFile();
+
+        ValueSet maritalStatus = new ValueSet();
+        maritalStatus.setUrl("http://example.org/fhir/ValueSet/marital-status");
+        maritalStatus.setStatus(Enumerations.ConformanceResourceStatus.ACTIVE);
+        maritalStatus.setCodeSystem(new ValueSet.ValueSetCodeSystemComponent().setSystem("http://example.org/fhir/marital-status"));
+        maritalStatus.getCodeSystem().addConcept().setCode("M").setDisplay("Married");
+        maritalStatus.getCodeSystem().addConcept().setCode("S").setDisplay("Single");
+        FileUtils.writeStringToFile(new File(directory, "marital-status.json"),
+                hl7OrgContext.newJsonParser().encodeResourceToString(maritalStatus), StandardCharsets.UTF_8);
+
+        StructureDefinition profile = new DefaultProfileValidationSupport().fetchResource(
+                hl7OrgContext, StructureDefinition.class, "http://hl7.org/fhir/StructureDefinition/Patient");
+        profile.setUrl(profileUrl);
+        profile.setBase("http://hl7.org/fhir/StructureDefinition/Patient");
+        for (ElementDefinition element : profile.getSnapshot().getElement()) {
+            if ("Patient.maritalStatus".equals(element.getPath())) {
+                element.setMin(1);
+                element.getBinding().setStrength(Enumerations.BindingStrength.REQUIRED).setValueSet(new Reference(maritalStatus.getUrl()));
+            }
+        }
+        FileUtils.writeStringToFile(new File(directory, "national-patient.xml"),
+                hl7OrgContext.newXmlParser().encodeResourceToString(profile), StandardCharsets.UTF_8);
+
+        return directory;
+    }
+
+    private static String nationalPatientJSON(String profileUrl, String maritalStatus) {
+        ResourceCodec codec = new ResourceCodec(FhirContext.forDstu2());
+        Patient patient = (Patient) codec.parse(new Contents(Constants.FHIR_MIME_JSON, patientJSON));
+        ResourceMetadataKeyEnum.PROFILES.put(patient, Collections.singletonList(new IdDt(profileUrl)));
+        if (maritalStatus!=null) {
+            patient.getMaritalStatus().addCoding().setSystem("http://example.org/fhir/marital-status").setCode(maritalStatus);
+        }
+        return codec.encode(patient, Constants.FHIR_MIME_JSON).content;
+    }
+
+    /**
+     * Bodies should be validated against the local profiles they declare, including their codes
+     */
+    @Test
+    public void testProfileValidation() throws Throwable {
+        final String profileUrl = "http://example.org/fhir/StructureDefinition/national-patient";
+        File profiles = writeNationalPatientProfile(profileUrl);
+        testConfig.getDynamicConfig().put("validation-profiles-directory", profiles.getAbsolutePath());
+
+        List<MockLauncher.ActorToLaunch> profileValidators = Collections.singletonList(
+                new MockLauncher.ActorToLaunch("profile-validators", TestProfileValidator.class)
+        );
+
+        try {
+            new FhirProxyTestKit(system, DSTU2FhirContext.class, AcceptJSONCreateFhirServer.class, profileValidators) {{
+                testConfig.getDynamicConfig().put("upstream-format", "JSON");
+                testConfig.getDynamicConfig().put("validation-enabled", true);
+
+                try {
+                    // no marital status
+                    fhirProxyHandler.tell(POSTPatientRequest(Constants.FHIR_MIME_JSON, nationalPatientJSON(profileUrl, null)), getRef());
+                    // waits for the profiles to be loaded
+                    FinishRequest missing = expectMsgClass(Duration.create(60, TimeUnit.SECONDS), FinishRequest.class);
+                    assertEquals(new Integer(400), missing.getResponseStatus());
+                    assertTrue(missing.getResponse(), missing.getResponse().contains("maritalStatus"));
+
+                    // a code that isn't in the local code system
+                    ActorRef unknownCodeHandler = system.actorOf(Props.create(FhirProxyHandler.class, testConfig));
+                    unknownCodeHandler.tell(POSTPatientRequest(Constants.FHIR_MIME_JSON, nationalPatientJSON(profileUrl, "X")), getRef());
+                    FinishRequest unknownCode = expectMsgClass(Duration.create(10, TimeUnit.SECONDS), FinishRequest.class);
+                    assertEquals(new Integer(400), unknownCode.getResponseStatus());
+
+                    ActorRef validHandler = system.actorOf(Props.create(FhirProxyHandler.class, testConfig));
+                    validHandler.tell(POSTPatientRequest(Constants.FHIR_MIME_JSON, nationalPatientJSON(profileUrl, "M")), getRef());
+                    Object result = expectMsgAnyClassOf(Duration.create(10, TimeUnit.SECONDS), FinishRequest.class, ExceptError.class);
+                    if (result instanceof ExceptError) {
+                        throw ((ExceptError) result).getError();
+                    }
+                    assertEquals(((FinishRequest) result).getResponse(), new Integer(201), ((FinishRequest) result).getResponseStatus());
+                } finally {
+                    cleanup();
+                }
+            }};
+        } finally {
+            testConfig.getDynamicConfig().remove("validation-profiles-directory");
+            FileUtils.deleteQuietly(profiles);
+        }
+    }
+}
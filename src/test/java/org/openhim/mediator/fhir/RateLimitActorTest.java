@@ -0,0 +1,207 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.ActorRef;
+import akka.actor.Props;
+import akka.testkit.JavaTestKit;
+import ca.uhn.fhir.model.dstu2.resource.OperationOutcome;
+import org.junit.Test;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.FinishRequest;
+import org.openhim.mediator.engine.testing.MockLauncher;
+import org.skyscreamer.jsonassert.JSONAssert;
+import org.skyscreamer.jsonassert.JSONCompareMode;
+import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RateLimitActorTest extends FhirProxyTestBase {
+
+    /**
+     * A client that is over its rate limit should receive a 429
+     */
+    @Test
+    public void testRateLimitedClient() throws Throwable {
+        List<MockLauncher.ActorToLaunch> rateLimiter = Collections.singletonList(
+                new MockLauncher.ActorToLaunch("rate-limiter", TestRateLimiter.class)
+        );
+
+        new FhirProxyTestKit(system, DSTU2FhirContext.class, AcceptJSONGetFhirServer.class, rateLimiter) {{
+            testConfig.getDynamicConfig().put("upstream-format", "JSON");
+            testConfig.getDynamicConfig().put("rate-limit", 1);
+
+            try {
+                fhirProxyHandler.tell(GETPatientRequest(Constants.FHIR_MIME_JSON), getRef());
+
+                Object result = expectMsgAnyClassOf(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class, ExceptError.class);
+                if (result instanceof ExceptError) {
+                    throw ((ExceptError) result).getError();
+                }
+                assertEquals(new Integer(200), ((FinishRequest) result).getResponseStatus());
+
+                ActorRef handler = system.actorOf(Props.create(FhirProxyHandler.class, testConfig));
+                handler.tell(GETPatientRequest(Constants.FHIR_MIME_JSON), getRef());
+
+                FinishRequest throttled = expectMsgClass(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class);
+                assertEquals(new Integer(429), throttled.getResponseStatus());
+                assertEquals("1", throttled.getResponseHeaders().get("Retry-After"));
+                JSONAssert.assertEquals("{\"resourceType\": \"OperationOutcome\"}", throttled.getResponse(), JSONCompareMode.LENIENT);
+            } finally {
+                testConfig.getDynamicConfig().remove("rate-limit");
+                cleanup();
+            }
+        }};
+    }
+
+    private abstract class RateLimiterTestKit extends JavaTestKit {
+        protected final ActorRef rateLimiter;
+
+        RateLimiterTestKit() {
+            super(system);
+            rateLimiter = system.actorOf(Props.create(TestRateLimiter.class));
+        }
+
+        protected JavaTestKit admit(String clientId) {
+            JavaTestKit handler = new JavaTestKit(system);
+            rateLimiter.tell(new RateLimitActor.Admit(clientId), handler.getRef());
+            return handler;
+        }
+
+        protected void expectAdmitted(JavaTestKit handler) {
+            handler.expectMsgClass(Duration.create(1, TimeUnit.SECONDS), RateLimitActor.Admitted.class);
+        }
+
+        protected long expectThrottled(JavaTestKit handler) {
+            return handler.expectMsgClass(Duration.create(1, TimeUnit.SECONDS), RateLimitActor.Throttled.class).getRetryAfterSeconds();
+        }
+
+        protected void expectWaiting(JavaTestKit handler) {
+            handler.expectNoMsg((FiniteDuration) dilated(Duration.create(100, TimeUnit.MILLISECONDS)));
+        }
+
+        protected void release(JavaTestKit handler) {
+            rateLimiter.tell(new RateLimitActor.Release(), handler.getRef());
+        }
+    }
+
+    /**
+     * A client should be admitted up to its burst, then throttled until its bucket refills
+     */
+    @Test
+    public void testThrottledAfterBurst() throws Throwable {
+        testConfig.getDynamicConfig().put("rate-limit", 1);
+        testConfig.getDynamicConfig().put("rate-limit-burst", 2);
+
+        new RateLimiterTestKit() {{
+            expectAdmitted(admit("emr"));
+            expectAdmitted(admit("emr"));
+            assertEquals(1, expectThrottled(admit("emr")));
+
+            Thread.sleep(1100);
+            expectAdmitted(admit("emr"));
+        }};
+    }
+
+    /**
+     * Each client should have its own bucket, clients without an identity share one
+     */
+    @Test
+    public void testClientsLimitedSeparately() throws Throwable {
+        testConfig.getDynamicConfig().put("rate-limit", 1);
+
+        new RateLimiterTestKit() {{
+            expectAdmitted(admit("emr"));
+            expectThrottled(admit("emr"));
+            expectAdmitted(admit("lab"));
+
+            expectAdmitted(admit(null));
+            expectThrottled(admit(null));
+        }};
+    }
+
+    /**
+     * A client's weight should scale its rate and burst, invalid weights are ignored
+     */
+    @Test
+    public void testWeightsScaleLimits() throws Throwable {
+        testConfig.getDynamicConfig().put("rate-limit", 1);
+        testConfig.getDynamicConfig().put("rate-limit-weights", "emr=3, lab=lots");
+
+        new RateLimiterTestKit() {{
+            for (int i=0; i<3; i++) {
+                expectAdmitted(admit("emr"));
+            }
+            expectThrottled(admit("emr"));
+
+            expectAdmitted(admit("lab"));
+            expectThrottled(admit("lab"));
+        }};
+    }
+
+    /**
+     * Over rate-limit-max-concurrent, requests should wait until one is released
+     */
+    @Test
+    public void testConcurrencyLimited() throws Throwable {
+        testConfig.getDynamicConfig().put("rate-limit-max-concurrent", 1);
+
+        new RateLimiterTestKit() {{
+            JavaTestKit first = admit("emr");
+            expectAdmitted(first);
+            JavaTestKit second = admit("emr");
+            JavaTestKit third = admit("emr");
+            expectWaiting(second);
+
+            // the second gives up while waiting, e.g. its deadline passed, so its place goes to the third
+            release(second);
+            release(first);
+            expectAdmitted(third);
+            expectWaiting(second);
+
+            // releasing twice, or without having been admitted, shouldn't free up a place
+            release(first);
+            release(second);
+            JavaTestKit fourth = admit("emr");
+            expectWaiting(fourth);
+            release(third);
+            expectAdmitted(fourth);
+        }};
+    }
+
+    /**
+     * A client with a backlog shouldn't hold up another client's request
+     */
+    @Test
+    public void testFairQueuing() throws Throwable {
+        testConfig.getDynamicConfig().put("rate-limit-max-concurrent", 1);
+
+        new RateLimiterTestKit() {{
+            JavaTestKit first = admit("sync-job");
+            expectAdmitted(first);
+            List<JavaTestKit> backlog = new ArrayList<>();
+            for (int i=0; i<3; i++) {
+                backlog.add(admit("sync-job"));
+            }
+            JavaTestKit interactive = admit("emr");
+            expectWaiting(interactive);
+
+            release(first);
+            expectAdmitted(interactive);
+            expectWaiting(backlog.get(0));
+
+            release(interactive);
+            expectAdmitted(backlog.get(0));
+        }};
+    }
+}
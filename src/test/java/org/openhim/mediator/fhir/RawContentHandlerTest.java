@@ -0,0 +1,204 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSelection;
+import akka.actor.Props;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Test;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.FinishRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.openhim.mediator.engine.testing.MockHTTPConnector;
+import org.openhim.mediator.engine.testing.MockLauncher;
+import org.skyscreamer.jsonassert.JSONAssert;
+import org.skyscreamer.jsonassert.JSONCompareMode;
+import scala.concurrent.duration.Duration;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class RawContentHandlerTest extends FhirProxyTestBase {
+
+    private static final String pdf = "%PDF-1.4 not really";
+
+    private static class PdfServer extends MockHTTPConnector {
+        static final AtomicInteger requestCount = new AtomicInteger();
+
+        @Override
+        public String getResponse() {
+            return pdf;
+        }
+
+        @Override
+        public Integer getStatus() {
+            return 200;
+        }
+
+        @Override
+        public Map<String, String> getHeaders() {
+            return Collections.singletonMap("Content-Type", "application/pdf");
+        }
+
+        @Override
+        public void executeOnReceive(MediatorHTTPRequest request) {
+            assertEquals(testConfig.getDynamicConfig().get("upstream-host"), request.getHost());
+            assertEquals(testConfig.getDynamicConfig().get("upstream-port"), new Double(request.getPort()));
+            assertEquals("/fhir/Binary/1", request.getPath());
+            requestCount.incrementAndGet();
+        }
+    }
+
+
+    private MediatorHTTPRequest binaryRequest(ActorRef testRef, String method, String body) {
+        return new MediatorHTTPRequest(
+                testRef, testRef, "unit-test", method, "http", "localhost", 8604, "/fhir/Binary/1", body,
+                Collections.singletonMap("PUT".equals(method) ? "Content-Type" : "Accept", "application/pdf"),
+                Collections.<Pair<String, String>>emptyList()
+        );
+    }
+
+    private static FinishRequest expectFinishRequest(FhirProxyTestKit kit) throws Throwable {
+        Object result = kit.expectMsgAnyClassOf(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class, ExceptError.class);
+        if (result instanceof ExceptError) {
+            throw ((ExceptError) result).getError();
+        }
+        return (FinishRequest) result;
+    }
+
+    /**
+     * Binary content should be passed through as is
+     */
+    @Test
+    public void testBinaryGETPassedThrough() throws Throwable {
+        new FhirProxyTestKit(system, DSTU2FhirContext.class, PdfServer.class) {{
+            try {
+                ActorRef handler = system.actorOf(Props.create(RawContentHandler.class, testConfig));
+                handler.tell(binaryRequest(getRef(), "GET", null), getRef());
+
+                FinishRequest result = expectFinishRequest(this);
+                assertEquals(new Integer(200), result.getResponseStatus());
+                assertEquals(pdf, result.getResponse());
+                assertEquals("application/pdf", result.getResponseHeaders().get("Content-Type"));
+            } finally {
+                cleanup();
+            }
+        }};
+    }
+
+    /**
+     * Writing a Binary should discard its cached reads
+     */
+    @Test
+    public void testBinaryPUTInvalidatesCachedReads() throws Throwable {
+        List<MockLauncher.ActorToLaunch> readCache = Collections.singletonList(
+                new MockLauncher.ActorToLaunch("read-cache", TestReadCache.class)
+        );
+
+        new FhirProxyTestKit(system, DSTU2FhirContext.class, PdfServer.class, readCache) {{
+            testConfig.getDynamicConfig().put("read-cache-ttl", 60);
+
+            try {
+                ActorSelection cache = system.actorSelection(testConfig.userPathFor("read-cache"));
+                FinishRequest cached = new FinishRequest("{}", Constants.FHIR_MIME_JSON, 200);
+                cache.tell(new ReadCacheActor.StoreRead("/fhir/Binary/1", "binary-read", cached, 60000), getRef());
+                cache.tell(new ReadCacheActor.ReadRequest(getRef(), getRef(), "/fhir/Binary/1", "binary-read"), getRef());
+                assertSame(cached, expectMsgClass(ReadCacheActor.ReadResponse.class).getResponseObject());
+
+                ActorRef handler = system.actorOf(Props.create(RawContentHandler.class, testConfig));
+                handler.tell(binaryRequest(getRef(), "PUT", pdf), getRef());
+                assertEquals(new Integer(200), expectFinishRequest(this).getResponseStatus());
+
+                cache.tell(new ReadCacheActor.ReadRequest(getRef(), getRef(), "/fhir/Binary/1", "binary-read"), getRef());
+                assertNull(expectMsgClass(ReadCacheActor.ReadResponse.class).getResponseObject());
+            } finally {
+                cleanup();
+            }
+        }};
+    }
+
+    /**
+     * Binary requests should count towards the client's rate limit
+     */
+    @Test
+    public void testBinaryRateLimited() throws Throwable {
+        List<MockLauncher.ActorToLaunch> rateLimiter = Collections.singletonList(
+                new MockLauncher.ActorToLaunch("rate-limiter", TestRateLimiter.class)
+        );
+
+        new FhirProxyTestKit(system, DSTU2FhirContext.class, PdfServer.class, rateLimiter) {{
+            testConfig.getDynamicConfig().put("rate-limit", 1);
+            PdfServer.requestCount.set(0);
+
+            try {
+                for (int expected : Arrays.asList(200, 429)) {
+                    ActorRef handler = system.actorOf(Props.create(RawContentHandler.class, testConfig));
+                    handler.tell(binaryRequest(getRef(), "GET", null), getRef());
+
+                    FinishRequest result = expectFinishRequest(this);
+                    assertEquals(new Integer(expected), result.getResponseStatus());
+                    if (expected==429) {
+                        assertEquals("1", result.getResponseHeaders().get("Retry-After"));
+                        // the client's format isn't FHIR, the OperationOutcome is JSON
+                        assertEquals(Constants.FHIR_MIME_JSON, result.getResponseHeaders().get("Content-Type"));
+                        JSONAssert.assertEquals("{\"resourceType\": \"OperationOutcome\"}", result.getResponse(), JSONCompareMode.LENIENT);
+                    }
+                }
+                assertEquals(1, PdfServer.requestCount.get());
+            } finally {
+                cleanup();
+            }
+        }};
+    }
+
+    /**
+     * Binary requests should fail fast while the upstream circuit breaker is open, and count towards it when it isn't
+     */
+    @Test
+    public void testBinaryCircuitOpen() throws Throwable {
+        List<MockLauncher.ActorToLaunch> breaker = Collections.singletonList(
+                new MockLauncher.ActorToLaunch("upstream-breaker", TestUpstreamCircuitBreaker.class)
+        );
+
+        new FhirProxyTestKit(system, DSTU2FhirContext.class, PdfServer.class, breaker) {{
+            testConfig.getDynamicConfig().put("circuit-breaker-failure-rate", 50);
+            PdfServer.requestCount.set(0);
+
+            try {
+                ActorRef handler = system.actorOf(Props.create(RawContentHandler.class, testConfig));
+                handler.tell(binaryRequest(getRef(), "GET", null), getRef());
+                assertEquals(new Integer(200), expectFinishRequest(this).getResponseStatus());
+
+                // with the successful read, 5 of 10 calls have failed
+                ActorSelection upstreamBreaker = system.actorSelection(testConfig.userPathFor("upstream-breaker"));
+                for (int i=0; i<4; i++) {
+                    upstreamBreaker.tell(new UpstreamCircuitBreakerActor.CallOutcome(true), getRef());
+                }
+                for (int i=0; i<5; i++) {
+                    upstreamBreaker.tell(new UpstreamCircuitBreakerActor.CallOutcome(false), getRef());
+                }
+                handler = system.actorOf(Props.create(RawContentHandler.class, testConfig));
+                handler.tell(binaryRequest(getRef(), "GET", null), getRef());
+
+                FinishRequest result = expectFinishRequest(this);
+                assertEquals(new Integer(503), result.getResponseStatus());
+                assertNotNull(result.getResponseHeaders().get("Retry-After"));
+                JSONAssert.assertEquals("{\"resourceType\": \"OperationOutcome\"}", result.getResponse(), JSONCompareMode.LENIENT);
+                assertEquals(1, PdfServer.requestCount.get());
+            } finally {
+                cleanup();
+            }
+        }};
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.glassfish.grizzly.http.server.HttpHandler;
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.grizzly.http.server.NetworkListener;
+import org.glassfish.grizzly.http.server.Request;
+import org.glassfish.grizzly.http.server.Response;
+import org.glassfish.grizzly.threadpool.ThreadPoolConfig;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-process upstream FHIR server for the {@link TrafficReplay}, that serves the upstream responses of captured
+ * exchanges.
+ *
+ * Requests are matched to the captured upstream requests by method, path and params (in any order). Requests that were
+ * captured several times are served their responses in turn. Responses are delayed by the upstream time that was
+ * captured with them, unless that's turned off, without holding a worker thread. Requests that weren't captured are
+ * responded to with a 404 and counted.
+ */
+public class ReplayFhirServer {
+    public static final String THREAD_PREFIX = "replay-stub-";
+
+    private static final Set<String> SKIPPED_HEADERS = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+    static {
+        SKIPPED_HEADERS.addAll(Arrays.asList("Content-Length", "Transfer-Encoding", "Connection", "Date"));
+    }
+
+    private static class Captured {
+        final TrafficLog.Response response;
+        final long upstreamMillis;
+
+        Captured(TrafficLog.Response response, long upstreamMillis) {
+            this.response = response;
+            this.upstreamMillis = upstreamMillis;
+        }
+    }
+
+    private final HttpServer httpServer = new HttpServer();
+    private final ScheduledExecutorService delays;
+    private final boolean capturedLatency;
+
+    private final Map<String, List<Captured>> responses = new HashMap<>();
+    private final ConcurrentMap<String, AtomicInteger> served = new ConcurrentHashMap<>();
+    private final AtomicInteger unmatched = new AtomicInteger();
+
+
+    public ReplayFhirServer(String host, int port, List<TrafficLog.Exchange> exchanges, boolean capturedLatency) {
+        this.capturedLatency = capturedLatency;
+
+        for (TrafficLog.Exchange exchange : exchanges) {
+            if (exchange.upstreamRequest==null || exchange.upstreamResponse==null) {
+                continue;
+            }
+            String key = requestKey(exchange.upstreamRequest.method, exchange.upstreamRequest.path, exchange.upstreamRequest.params);
+            List<Captured> captured = responses.get(key);
+            if (captured==null) {
+                captured = new ArrayList<>();
+                responses.put(key, captured);
+                served.put(key, new AtomicInteger());
+            }
+            captured.add(new Captured(exchange.upstreamResponse, exchange.upstreamMillis));
+        }
+
+        delays = Executors.newScheduledThreadPool(2, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, THREAD_PREFIX + "delay-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        NetworkListener listener = new NetworkListener("replay-fhir-server", host, port);
+        listener.getTransport().setWorkerThreadPoolConfig(
+                ThreadPoolConfig.defaultConfig().copy().setPoolName(THREAD_PREFIX + "worker").setCorePoolSize(4).setMaxPoolSize(4)
+        );
+        listener.getTransport().setKernelThreadPoolConfig(
+                ThreadPoolConfig.defaultConfig().copy().setPoolName(THREAD_PREFIX + "kernel").setCorePoolSize(1).setMaxPoolSize(1)
+        );
+        httpServer.addListener(listener);
+        httpServer.getServerConfiguration().addHttpHandler(new HttpHandler() {
+            @Override
+            public void service(Request request, Response response) throws Exception {
+                handle(request, response);
+            }
+        });
+    }
+
+
+    static String requestKey(String method, String path, List<Pair<String, String>> params) {
+        List<String> sorted = new ArrayList<>();
+        if (params!=null) {
+            for (Pair<String, String> param : params) {
+                sorted.add(param.getKey() + "=" + param.getValue());
+            }
+        }
+        Collections.sort(sorted);
+
+        StringBuilder key = new StringBuilder(method.toUpperCase()).append(' ').append(path);
+        for (String param : sorted) {
+            key.append('&').append(param);
+        }
+        return key.toString();
+    }
+
+    public int getUnmatchedCount() {
+        return unmatched.get();
+    }
+
+    public void start() throws IOException {
+        httpServer.start();
+    }
+
+    public void stop() {
+        httpServer.shutdownNow();
+        delays.shutdownNow();
+    }
+
+    private void handle(Request request, final Response response) {
+        List<Pair<String, String>> params = new ArrayList<>();
+        for (String name : request.getParameterNames()) {
+            for (String value : request.getParameterValues(name)) {
+                params.add(Pair.of(name, value));
+            }
+        }
+        String key = requestKey(request.getMethod().getMethodString(), request.getRequestURI(), params);
+
+        List<Captured> captured = responses.get(key);
+        if (captured==null) {
+            unmatched.incrementAndGet();
+            response.setStatus(404);
+            return;
+        }
+        final Captured next = captured.get((served.get(key).getAndIncrement() & Integer.MAX_VALUE) % captured.size());
+
+        Runnable respond = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    response.setStatus(next.response.status);
+                    for (Map.Entry<String, String> header : next.response.headers.entrySet()) {
+                        if (!SKIPPED_HEADERS.contains(header.getKey())) {
+                            response.setHeader(header.getKey(), header.getValue());
+                        }
+                    }
+                    if (next.response.body!=null) {
+                        byte[] body = next.response.body.getBytes(StandardCharsets.UTF_8);
+                        response.setContentLength(body.length);
+                        response.getOutputStream().write(body);
+                    }
+                } catch (IOException ex) {
+                    response.setStatus(500);
+                } finally {
+                    response.resume();
+                }
+            }
+        };
+
+        response.suspend();
+        if (capturedLatency && next.upstreamMillis > 0) {
+            delays.schedule(respond, next.upstreamMillis, TimeUnit.MILLISECONDS);
+        } else {
+            respond.run();
+        }
+    }
+}
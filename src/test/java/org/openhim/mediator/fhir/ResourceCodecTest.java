@@ -0,0 +1,86 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.model.dstu2.valueset.BundleTypeEnum;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ResourceCodecTest {
+
+    /**
+     * Buffers should come from the smallest class they fit in, and only a few of each class should be kept
+     */
+    @Test
+    public void testBufferPoolSizeClasses() {
+        ResourceCodec.BufferPool pool = new ResourceCodec.BufferPool();
+        int smallest = ResourceCodec.BufferPool.CLASS_CHARS[0];
+        int largest = ResourceCodec.BufferPool.CLASS_CHARS[ResourceCodec.BufferPool.CLASS_CHARS.length - 1];
+
+        assertEquals(smallest, pool.acquire(1).length);
+        assertEquals(smallest * 4, pool.acquire(smallest + 1).length);
+        assertEquals(largest + 1, pool.acquire(largest + 1).length);
+
+        char[] buffer = pool.acquire(smallest);
+        pool.release(buffer);
+        assertSame(buffer, pool.acquire(smallest));
+
+        List<char[]> released = new ArrayList<>();
+        for (int i=0; i<20; i++) {
+            released.add(pool.acquire(largest));
+        }
+        for (char[] b : released) {
+            pool.release(b);
+        }
+        int reused = 0;
+        for (int i=0; i<20; i++) {
+            char[] b = pool.acquire(largest);
+            for (char[] r : released) {
+                if (r==b) {
+                    reused++;
+                }
+            }
+        }
+        assertEquals(2, reused);
+    }
+
+    /**
+     * Conversions should encode the same as HAPI, for bodies smaller and larger than the buffer classes
+     */
+    @Test
+    public void testConvertSameAsParser() throws Exception {
+        FhirContext fhirContext = FhirContext.forDstu2();
+        ResourceCodec codec = new ResourceCodec(fhirContext);
+        String patientJSON = IOUtils.toString(getClass().getClassLoader().getResourceAsStream("fhir-patient.json"));
+        Patient patient = (Patient) fhirContext.newJsonParser().parseResource(patientJSON);
+
+        Bundle bundle = new Bundle();
+        bundle.setType(BundleTypeEnum.SEARCH_RESULTS);
+        for (int i=0; i<4000; i++) {
+            bundle.addEntry().setFullUrl("http://localhost/fhir/Patient/" + i).setResource(patient);
+        }
+        String bundleJSON = fhirContext.newJsonParser().encodeResourceToString(bundle);
+        assertTrue(bundleJSON.length() > ResourceCodec.BufferPool.CLASS_CHARS[ResourceCodec.BufferPool.CLASS_CHARS.length - 1]);
+
+        for (String json : new String[]{patientJSON, bundleJSON}) {
+            String expected = fhirContext.newXmlParser().setPrettyPrint(true).encodeResourceToString(fhirContext.newJsonParser().parseResource(json));
+            // twice, the second with pooled buffers
+            for (int i=0; i<2; i++) {
+                Contents xml = codec.convert(new Contents(Constants.FHIR_MIME_JSON, json), Constants.FHIR_MIME_XML);
+                assertEquals(expected, xml.content);
+            }
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.ActorRef;
+import akka.actor.Props;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Test;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.FinishRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.openhim.mediator.engine.testing.MockHTTPConnector;
+import org.openhim.mediator.engine.testing.MockLauncher;
+import scala.concurrent.duration.Duration;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class ResourceVersionActorTest extends FhirProxyTestBase {
+
+    private static class VersionedJSONFhirServer extends MockHTTPConnector {
+        static final AtomicReference<String> receivedIfMatch = new AtomicReference<>();
+
+        @Override
+        public String getResponse() {
+            // no version headers, only the resource's meta
+            return patientJSON.replaceFirst("\"id\": \"example\",",
+                    "\"id\": \"example\", \"meta\": {\"versionId\": \"2\", \"lastUpdated\": \"2016-03-01T10:00:00Z\"},");
+        }
+
+        @Override
+        public Integer getStatus() {
+            return 200;
+        }
+
+        @Override
+        public Map<String, String> getHeaders() {
+            return Collections.singletonMap("Content-Type", Constants.FHIR_MIME_JSON);
+        }
+
+        @Override
+        public void executeOnReceive(MediatorHTTPRequest request) {
+            if ("PUT".equals(request.getMethod())) {
+                receivedIfMatch.set(request.getHeaders().get("If-Match"));
+            }
+        }
+    }
+
+    private static class TestResourceVersions extends ResourceVersionActor {
+        public TestResourceVersions() {
+            super(testConfig);
+        }
+    }
+
+
+    /**
+     * A conditional read of a converted resource should be answered with a 304 without going upstream
+     */
+    @Test
+    public void testConditionalGETXMLToJSON_notModified() throws Throwable {
+        List<MockLauncher.ActorToLaunch> resourceVersions = Collections.singletonList(
+                new MockLauncher.ActorToLaunch("resource-versions", TestResourceVersions.class)
+        );
+
+        new FhirProxyTestKit(system, DSTU2FhirContext.class, CountingXMLGetFhirServer.class, resourceVersions) {{
+            testConfig.getDynamicConfig().put("upstream-format", "XML");
+            testConfig.getDynamicConfig().put("validation-enabled", false);
+            testConfig.getDynamicConfig().put("conditional-get-enabled", true);
+            CountingXMLGetFhirServer.requestCount.set(0);
+
+            try {
+                MediatorHTTPRequest GET_Request = new MediatorHTTPRequest(
+                        getRef(), getRef(), "unit-test", "GET", "http", "localhost", 8604, "/fhir/Patient/1", null,
+                        Collections.singletonMap("Accept", Constants.FHIR_MIME_JSON),
+                        Collections.<Pair<String, String>>emptyList()
+                );
+                fhirProxyHandler.tell(GET_Request, getRef());
+
+                Object result = expectMsgAnyClassOf(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class, ExceptError.class);
+                if (result instanceof ExceptError) {
+                    throw ((ExceptError) result).getError();
+                }
+                assertEquals(new Integer(200), ((FinishRequest) result).getResponseStatus());
+                String etag = ((FinishRequest) result).getResponseHeaders().get("ETag");
+                assertNotNull(etag);
+
+                Map<String, String> conditionalHeaders = new HashMap<>();
+                conditionalHeaders.put("Accept", Constants.FHIR_MIME_JSON);
+                conditionalHeaders.put("If-None-Match", etag);
+                MediatorHTTPRequest conditionalGET_Request = new MediatorHTTPRequest(
+                        getRef(), getRef(), "unit-test", "GET", "http", "localhost", 8604, "/fhir/Patient/1", null,
+                        conditionalHeaders, Collections.<Pair<String, String>>emptyList()
+                );
+                ActorRef conditionalHandler = system.actorOf(Props.create(FhirProxyHandler.class, testConfig));
+                conditionalHandler.tell(conditionalGET_Request, getRef());
+
+                result = expectMsgAnyClassOf(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class, ExceptError.class);
+                if (result instanceof ExceptError) {
+                    throw ((ExceptError) result).getError();
+                }
+                assertEquals(new Integer(304), ((FinishRequest) result).getResponseStatus());
+                assertEquals(etag, ((FinishRequest) result).getResponseHeaders().get("ETag"));
+                assertEquals(1, CountingXMLGetFhirServer.requestCount.get());
+            } finally {
+                testConfig.getDynamicConfig().remove("conditional-get-enabled");
+                cleanup();
+            }
+        }};
+    }
+
+    /**
+     * A version seen by one client shouldn't answer another client's conditional read, upstream decides whether that
+     * client may read the resource
+     */
+    @Test
+    public void testConditionalGETNotAnsweredForOtherClients() throws Throwable {
+        List<MockLauncher.ActorToLaunch> resourceVersions = Collections.singletonList(
+                new MockLauncher.ActorToLaunch("resource-versions", TestResourceVersions.class)
+        );
+
+        new FhirProxyTestKit(system, DSTU2FhirContext.class, CountingXMLGetFhirServer.class, resourceVersions) {{
+            testConfig.getDynamicConfig().put("upstream-format", "XML");
+            testConfig.getDynamicConfig().put("validation-enabled", false);
+            testConfig.getDynamicConfig().put("conditional-get-enabled", true);
+            CountingXMLGetFhirServer.requestCount.set(0);
+
+            try {
+                Map<String, String> headers = new HashMap<>();
+                headers.put("Accept", Constants.FHIR_MIME_JSON);
+                headers.put("X-OpenHIM-ClientID", "client-a");
+                MediatorHTTPRequest GET_Request = new MediatorHTTPRequest(
+                        getRef(), getRef(), "unit-test", "GET", "http", "localhost", 8604, "/fhir/Patient/1", null,
+                        headers, Collections.<Pair<String, String>>emptyList()
+                );
+                fhirProxyHandler.tell(GET_Request, getRef());
+
+                Object result = expectMsgAnyClassOf(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class, ExceptError.class);
+                if (result instanceof ExceptError) {
+                    throw ((ExceptError) result).getError();
+                }
+                String etag = ((FinishRequest) result).getResponseHeaders().get("ETag");
+                assertNotNull(etag);
+
+                Map<String, String> conditionalHeaders = new HashMap<>();
+                conditionalHeaders.put("Accept", Constants.FHIR_MIME_JSON);
+                conditionalHeaders.put("X-OpenHIM-ClientID", "client-b");
+                conditionalHeaders.put("If-None-Match", etag);
+                MediatorHTTPRequest conditionalGET_Request = new MediatorHTTPRequest(
+                        getRef(), getRef(), "unit-test", "GET", "http", "localhost", 8604, "/fhir/Patient/1", null,
+                        conditionalHeaders, Collections.<Pair<String, String>>emptyList()
+                );
+                ActorRef conditionalHandler = system.actorOf(Props.create(FhirProxyHandler.class, testConfig));
+                conditionalHandler.tell(conditionalGET_Request, getRef());
+
+                result = expectMsgAnyClassOf(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class, ExceptError.class);
+                if (result instanceof ExceptError) {
+                    throw ((ExceptError) result).getError();
+                }
+                // upstream was asked, and the client's tag was current
+                assertEquals(2, CountingXMLGetFhirServer.requestCount.get());
+                assertEquals(new Integer(304), ((FinishRequest) result).getResponseStatus());
+            } finally {
+                testConfig.getDynamicConfig().remove("conditional-get-enabled");
+                cleanup();
+            }
+        }};
+    }
+
+    /**
+     * The ETag of a converted resource should name its upstream version, so that an update conditional on it isn't
+     * rejected upstream
+     */
+    @Test
+    public void testConvertedETagUsableForIfMatch() throws Throwable {
+        List<MockLauncher.ActorToLaunch> resourceVersions = Collections.singletonList(
+                new MockLauncher.ActorToLaunch("resource-versions", TestResourceVersions.class)
+        );
+
+        new FhirProxyTestKit(system, DSTU2FhirContext.class, VersionedJSONFhirServer.class, resourceVersions) {{
+            testConfig.getDynamicConfig().put("upstream-format", "JSON");
+            testConfig.getDynamicConfig().put("validation-enabled", false);
+            testConfig.getDynamicConfig().put("conditional-get-enabled", true);
+            VersionedJSONFhirServer.receivedIfMatch.set(null);
+
+            try {
+                MediatorHTTPRequest GET_Request = new MediatorHTTPRequest(
+                        getRef(), getRef(), "unit-test", "GET", "http", "localhost", 8604, "/fhir/Patient/1", null,
+                        Collections.singletonMap("Accept", Constants.FHIR_MIME_XML),
+                        Collections.<Pair<String, String>>emptyList()
+                );
+                fhirProxyHandler.tell(GET_Request, getRef());
+
+                Object result = expectMsgAnyClassOf(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class, ExceptError.class);
+                if (result instanceof ExceptError) {
+                    throw ((ExceptError) result).getError();
+                }
+                assertEquals(new Integer(200), ((FinishRequest) result).getResponseStatus());
+                String etag = ((FinishRequest) result).getResponseHeaders().get("ETag");
+                assertTrue(etag, etag.startsWith("\"2+"));
+                assertEquals("Tue, 01 Mar 2016 10:00:00 GMT", ((FinishRequest) result).getResponseHeaders().get("Last-Modified"));
+
+                Map<String, String> updateHeaders = new HashMap<>();
+                updateHeaders.put("Content-Type", Constants.FHIR_MIME_JSON);
+                updateHeaders.put("If-Match", etag);
+                MediatorHTTPRequest PUT_Request = new MediatorHTTPRequest(
+                        getRef(), getRef(), "unit-test", "PUT", "http", "localhost", 8604, "/fhir/Patient/1", patientJSON,
+                        updateHeaders, Collections.<Pair<String, String>>emptyList()
+                );
+                ActorRef updateHandler = system.actorOf(Props.create(FhirProxyHandler.class, testConfig));
+                updateHandler.tell(PUT_Request, getRef());
+
+                result = expectMsgAnyClassOf(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class, ExceptError.class);
+                if (result instanceof ExceptError) {
+                    throw ((ExceptError) result).getError();
+                }
+                assertEquals(new Integer(200), ((FinishRequest) result).getResponseStatus());
+                assertEquals("W/\"2\"", VersionedJSONFhirServer.receivedIfMatch.get());
+            } finally {
+                testConfig.getDynamicConfig().remove("conditional-get-enabled");
+                cleanup();
+            }
+        }};
+    }
+}
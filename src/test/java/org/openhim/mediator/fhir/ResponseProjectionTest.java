@@ -0,0 +1,138 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.ActorRef;
+import akka.actor.Props;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Test;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.FinishRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.skyscreamer.jsonassert.JSONAssert;
+import org.skyscreamer.jsonassert.JSONCompareMode;
+import scala.concurrent.duration.Duration;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ResponseProjectionTest extends FhirProxyTestBase {
+
+    /**
+     * _summary should be applied by the mediator when converting the response
+     */
+    @Test
+    public void testGETXMLToJSON_summary() throws Throwable {
+        new FhirProxyTestKit(system, DSTU2FhirContext.class, AcceptXMLGetFhirServer.class) {{
+            testConfig.getDynamicConfig().put("upstream-format", "XML");
+            testConfig.getDynamicConfig().put("validation-enabled", false);
+
+            try {
+                MediatorHTTPRequest GET_Request = new MediatorHTTPRequest(
+                        getRef(), getRef(), "unit-test", "GET", "http", "localhost", 8604, "/fhir/Patient/1", null,
+                        Collections.singletonMap("Accept", Constants.FHIR_MIME_JSON),
+                        Collections.singletonList(Pair.of("_summary", "true"))
+                );
+                fhirProxyHandler.tell(GET_Request, getRef());
+
+                Object result = expectMsgAnyClassOf(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class, ExceptError.class);
+                if (result instanceof ExceptError) {
+                    throw ((ExceptError) result).getError();
+                }
+
+                assertEquals(new Integer(200), ((FinishRequest) result).getResponseStatus());
+                String body = ((FinishRequest) result).getResponse();
+                assertFalse("narrative should not be in summary", body.contains("\"text\""));
+                assertTrue(body.contains("SUBSETTED"));
+                JSONAssert.assertEquals("{\"resourceType\": \"Patient\", \"gender\": \"male\"}", body, JSONCompareMode.LENIENT);
+            } finally {
+                cleanup();
+            }
+        }};
+    }
+
+    /**
+     * _elements should only be applied to passed through responses if enabled
+     */
+    @Test
+    public void testGETJSONToJSON_elements() throws Throwable {
+        new FhirProxyTestKit(system, DSTU2FhirContext.class, AcceptJSONGetFhirServer.class) {{
+            testConfig.getDynamicConfig().put("upstream-format", "JSON");
+            testConfig.getDynamicConfig().put("validation-enabled", false);
+
+            try {
+                MediatorHTTPRequest GET_Request = new MediatorHTTPRequest(
+                        getRef(), getRef(), "unit-test", "GET", "http", "localhost", 8604, "/fhir/Patient/1", null,
+                        Collections.singletonMap("Accept", Constants.FHIR_MIME_JSON),
+                        Collections.singletonList(Pair.of("_elements", "gender,birthDate"))
+                );
+                fhirProxyHandler.tell(GET_Request, getRef());
+
+                Object result = expectMsgAnyClassOf(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class, ExceptError.class);
+                if (result instanceof ExceptError) {
+                    throw ((ExceptError) result).getError();
+                }
+                assertTrue("passthrough should be untouched by default", ((FinishRequest) result).getResponse().contains("\"name\""));
+
+                testConfig.getDynamicConfig().put("response-projection", "All");
+                ActorRef projectingHandler = system.actorOf(Props.create(FhirProxyHandler.class, testConfig));
+                projectingHandler.tell(GET_Request, getRef());
+
+                result = expectMsgAnyClassOf(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class, ExceptError.class);
+                if (result instanceof ExceptError) {
+                    throw ((ExceptError) result).getError();
+                }
+
+                String body = ((FinishRequest) result).getResponse();
+                assertFalse(body.contains("\"name\""));
+                JSONAssert.assertEquals("{\"resourceType\": \"Patient\", \"gender\": \"male\", \"birthDate\": \"1974-12-25\"}", body, JSONCompareMode.LENIENT);
+            } finally {
+                testConfig.getDynamicConfig().remove("response-projection");
+                cleanup();
+            }
+        }};
+    }
+
+    /**
+     * _summary=text should keep the id, meta and mandatory top level elements along with the narrative
+     */
+    @Test
+    public void testSummaryTextKeepsMandatoryElements() throws Throwable {
+        ResourceCodec codec = new ResourceCodec(FhirContext.forDstu2());
+        ResponseProjection projection = ResponseProjection.fromParams(Collections.singletonList(Pair.of("_summary", "text")));
+
+        String body = codec.convert(new Contents(Constants.FHIR_MIME_JSON, observationSearchsetJSON), Constants.FHIR_MIME_JSON, projection).content;
+        assertFalse(body.contains("valueQuantity"));
+        assertFalse(body.contains("\"subject\""));
+        JSONAssert.assertEquals("{\"resourceType\": \"Bundle\", \"total\": 2, \"entry\": [" +
+                "{\"resource\": {\"resourceType\": \"Observation\", \"id\": \"weight\", \"status\": \"final\", \"code\": {}}}," +
+                "{\"resource\": {\"resourceType\": \"Observation\", \"id\": \"height\", \"status\": \"final\", \"code\": {}}}]}",
+                body, JSONCompareMode.LENIENT);
+    }
+
+    /**
+     * _summary=count should only be applied to searchsets, anything else is passed on unprojected
+     */
+    @Test
+    public void testSummaryCountOnlyForSearchsets() throws Throwable {
+        ResourceCodec codec = new ResourceCodec(FhirContext.forDstu2());
+        ResponseProjection projection = ResponseProjection.fromParams(Collections.singletonList(Pair.of("_summary", "count")));
+
+        String searchset = codec.convert(new Contents(Constants.FHIR_MIME_JSON, patientSearchsetJSON), Constants.FHIR_MIME_JSON, projection).content;
+        assertFalse(searchset.contains("\"entry\""));
+        JSONAssert.assertEquals("{\"resourceType\": \"Bundle\", \"type\": \"searchset\"}", searchset, JSONCompareMode.LENIENT);
+
+        Patient patient = (Patient) codec.parse(new Contents(Constants.FHIR_MIME_JSON, patientJSON));
+        assertFalse(projection.isSupportedFor(patient));
+        String body = codec.convert(new Contents(Constants.FHIR_MIME_JSON, patientJSON), Constants.FHIR_MIME_JSON, projection).content;
+        JSONAssert.assertEquals(patientJSON, body, JSONCompareMode.STRICT);
+    }
+}
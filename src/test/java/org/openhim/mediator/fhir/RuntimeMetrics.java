@@ -0,0 +1,116 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * GC pauses and allocation for a phase of the {@link LoadHarness}.
+ *
+ * Pauses are collected from the collectors' notifications. Allocation is summed per thread, excluding the threads of
+ * the harness itself (names starting with 'load-'), so that it mostly reflects the mediator.
+ */
+public class RuntimeMetrics {
+    public static class Snapshot {
+        public final long gcCollections;
+        public final long gcTotalPauseMillis;
+        public final long gcMaxPauseMillis;
+        public final long allocatedBytes;
+
+        Snapshot(long gcCollections, long gcTotalPauseMillis, long gcMaxPauseMillis, long allocatedBytes) {
+            this.gcCollections = gcCollections;
+            this.gcTotalPauseMillis = gcTotalPauseMillis;
+            this.gcMaxPauseMillis = gcMaxPauseMillis;
+            this.allocatedBytes = allocatedBytes;
+        }
+    }
+
+    private final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private final List<Long> pauses = new ArrayList<>();
+    private Map<Long, Long> allocationAtStart = new HashMap<>();
+
+
+    public RuntimeMetrics() {
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (gc instanceof NotificationEmitter) {
+                ((NotificationEmitter) gc).addNotificationListener(new NotificationListener() {
+                    @Override
+                    public void handleNotification(Notification notification, Object handback) {
+                        if (GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                            GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                            synchronized (pauses) {
+                                pauses.add(info.getGcInfo().getDuration());
+                            }
+                        }
+                    }
+                }, null, null);
+            }
+        }
+        if (threads.isThreadAllocatedMemorySupported()) {
+            threads.setThreadAllocatedMemoryEnabled(true);
+        }
+    }
+
+
+    public void start() {
+        synchronized (pauses) {
+            pauses.clear();
+        }
+        allocationAtStart = allocatedPerThread();
+    }
+
+    public Snapshot stop() {
+        long allocated = 0;
+        for (Map.Entry<Long, Long> thread : allocatedPerThread().entrySet()) {
+            Long atStart = allocationAtStart.get(thread.getKey());
+            allocated += thread.getValue() - (atStart!=null ? atStart : 0);
+        }
+
+        long total = 0;
+        long max = 0;
+        int count;
+        synchronized (pauses) {
+            count = pauses.size();
+            for (long pause : pauses) {
+                total += pause;
+                max = Math.max(max, pause);
+            }
+        }
+
+        return new Snapshot(count, total, max, allocated);
+    }
+
+    private Map<Long, Long> allocatedPerThread() {
+        Map<Long, Long> result = new HashMap<>();
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            return result;
+        }
+
+        long[] ids = threads.getAllThreadIds();
+        long[] allocated = threads.getThreadAllocatedBytes(ids);
+        ThreadInfo[] infos = threads.getThreadInfo(ids);
+
+        for (int i=0; i<ids.length; i++) {
+            if (infos[i]!=null && allocated[i]>=0 && !infos[i].getThreadName().startsWith("load-")) {
+                result.put(ids[i], allocated[i]);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.ActorRef;
+import akka.actor.Props;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Test;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.FinishRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.openhim.mediator.engine.testing.MockHTTPConnector;
+import org.openhim.mediator.engine.testing.MockLauncher;
+import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SearchPagePrefetcherTest extends FhirProxyTestBase {
+
+    private static class SearchsetFhirServer extends MockHTTPConnector {
+        static final AtomicInteger requestCount = new AtomicInteger();
+
+        @Override
+        public String getResponse() {
+            return patientSearchsetJSON;
+        }
+
+        @Override
+        public Integer getStatus() {
+            return 200;
+        }
+
+        @Override
+        public Map<String, String> getHeaders() {
+            Map<String, String> headers = new HashMap<>();
+            headers.put("Content-Type", Constants.FHIR_MIME_JSON);
+            headers.put("Cache-Control", "private, max-age=60");
+            return headers;
+        }
+
+        @Override
+        public void executeOnReceive(MediatorHTTPRequest request) {
+            requestCount.incrementAndGet();
+        }
+    }
+
+    private static class TestSearchPageCache extends SearchPageCacheActor {
+        public TestSearchPageCache() {
+            super(testConfig);
+        }
+    }
+
+
+    /**
+     * The page following a searchset should be prefetched and served from memory when the client follows the link
+     */
+    @Test
+    public void testSearchNextPageServedFromPrefetch() throws Throwable {
+        List<MockLauncher.ActorToLaunch> pageCache = Collections.singletonList(
+                new MockLauncher.ActorToLaunch("search-page-cache", TestSearchPageCache.class)
+        );
+
+        new FhirProxyTestKit(system, DSTU2FhirContext.class, SearchsetFhirServer.class, pageCache) {{
+            testConfig.getDynamicConfig().put("upstream-format", "JSON");
+            testConfig.getDynamicConfig().put("validation-enabled", false);
+            testConfig.getDynamicConfig().put("search-prefetch-pages", 1);
+            SearchsetFhirServer.requestCount.set(0);
+
+            try {
+                MediatorHTTPRequest search = new MediatorHTTPRequest(
+                        getRef(), getRef(), "unit-test", "GET", "http", "localhost", 8604, "/fhir/Patient", null,
+                        Collections.singletonMap("Accept", Constants.FHIR_MIME_XML),
+                        Collections.singletonList(Pair.of("name", "Chalmers"))
+                );
+                fhirProxyHandler.tell(search, getRef());
+
+                Object result = expectMsgAnyClassOf(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class, ExceptError.class);
+                if (result instanceof ExceptError) {
+                    throw ((ExceptError) result).getError();
+                }
+                assertEquals(new Integer(200), ((FinishRequest) result).getResponseStatus());
+
+                // give the prefetch a moment to complete
+                expectNoMsg((FiniteDuration) dilated(Duration.create(500, TimeUnit.MILLISECONDS)));
+                assertEquals(2, SearchsetFhirServer.requestCount.get());
+
+                List<Pair<String, String>> pageParams = new ArrayList<>();
+                pageParams.add(Pair.of("_getpagesoffset", "1"));
+                pageParams.add(Pair.of("_getpages", "a1b2c3"));
+                pageParams.add(Pair.of("_count", "1"));
+                MediatorHTTPRequest nextPage = new MediatorHTTPRequest(
+                        getRef(), getRef(), "unit-test", "GET", "http", "localhost", 8604, "/fhir", null,
+                        Collections.singletonMap("Accept", Constants.FHIR_MIME_XML),
+                        pageParams
+                );
+                ActorRef nextPageHandler = system.actorOf(Props.create(FhirProxyHandler.class, testConfig));
+                nextPageHandler.tell(nextPage, getRef());
+
+                result = expectMsgAnyClassOf(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class, ExceptError.class);
+                if (result instanceof ExceptError) {
+                    throw ((ExceptError) result).getError();
+                }
+                assertEquals(new Integer(200), ((FinishRequest) result).getResponseStatus());
+                assertEquals(Constants.FHIR_MIME_XML, ((FinishRequest) result).getResponseMimeType());
+                assertTrue(((FinishRequest) result).getResponse().contains("<Bundle"));
+                assertEquals("private, max-age=60", ((FinishRequest) result).getResponseHeaders().get("Cache-Control"));
+                assertEquals(2, SearchsetFhirServer.requestCount.get());
+
+                // the page was prefetched for another client
+                Map<String, String> otherClientHeaders = new HashMap<>();
+                otherClientHeaders.put("Accept", Constants.FHIR_MIME_XML);
+                otherClientHeaders.put("X-OpenHIM-ClientID", "other-client");
+                MediatorHTTPRequest otherClientPage = new MediatorHTTPRequest(
+                        getRef(), getRef(), "unit-test", "GET", "http", "localhost", 8604, "/fhir", null,
+                        otherClientHeaders, pageParams
+                );
+                ActorRef otherClientHandler = system.actorOf(Props.create(FhirProxyHandler.class, testConfig));
+                otherClientHandler.tell(otherClientPage, getRef());
+
+                result = expectMsgAnyClassOf(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class, ExceptError.class);
+                if (result instanceof ExceptError) {
+                    throw ((ExceptError) result).getError();
+                }
+                assertEquals(new Integer(200), ((FinishRequest) result).getResponseStatus());
+                // fetched upstream, after which the page following it may already be prefetched for that client
+                assertTrue(SearchsetFhirServer.requestCount.get() >= 3);
+            } finally {
+                testConfig.getDynamicConfig().remove("search-prefetch-pages");
+                cleanup();
+            }
+        }};
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Test;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.FinishRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import scala.concurrent.duration.Duration;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class StageEventsTest extends FhirProxyTestBase {
+
+    /**
+     * The stages of handling a request should be recorded as JFR events, with the request's transaction ID
+     */
+    @Test
+    public void testStageEventsRecorded() throws Throwable {
+        final Recording recording = new Recording();
+        recording.enable("org.openhim.mediator.fhir.*");
+        final File dump = File.createTempFile("stages", ".jfr");
+
+        new FhirProxyTestKit(system, DSTU2FhirContext.class, CountingXMLGetFhirServer.class) {{
+            testConfig.getDynamicConfig().put("upstream-format", "XML");
+            testConfig.getDynamicConfig().put("validation-enabled", false);
+
+            try {
+                Map<String, String> headers = new HashMap<>();
+                headers.put("Accept", Constants.FHIR_MIME_JSON);
+                headers.put("X-OpenHIM-TransactionID", "trx-stages");
+                MediatorHTTPRequest GET_Request = new MediatorHTTPRequest(
+                        getRef(), getRef(), "unit-test", "GET", "http", "localhost", 8604, "/fhir/Patient/1", null,
+                        headers, Collections.<Pair<String, String>>emptyList()
+                );
+
+                recording.start();
+                fhirProxyHandler.tell(GET_Request, getRef());
+                Object result = expectMsgAnyClassOf(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class, ExceptError.class);
+                if (result instanceof ExceptError) {
+                    throw ((ExceptError) result).getError();
+                }
+                assertEquals(new Integer(200), ((FinishRequest) result).getResponseStatus());
+                recording.stop();
+                recording.dump(dump.toPath());
+
+                Map<String, RecordedEvent> events = new HashMap<>();
+                for (RecordedEvent event : RecordingFile.readAllEvents(dump.toPath())) {
+                    if ("trx-stages".equals(event.getString("transactionId"))) {
+                        events.put(event.getEventType().getName().replace("org.openhim.mediator.fhir.", ""), event);
+                    }
+                }
+                assertEquals(
+                        new HashSet<>(Arrays.asList("ContextAcquisition", "UpstreamWait", "Convert", "Parse", "Encode", "ClientResponse")),
+                        events.keySet()
+                );
+                RecordedEvent convert = events.get("Convert");
+                assertEquals("Patient", convert.getString("resourceType"));
+                assertEquals("xml", convert.getString("sourceFormat"));
+                assertEquals("json", convert.getString("targetFormat"));
+                assertTrue(convert.getLong("bodySize") > 0);
+                assertEquals(200, events.get("ClientResponse").getInt("status"));
+            } finally {
+                recording.close();
+                FileUtils.deleteQuietly(dump);
+                cleanup();
+            }
+        }};
+    }
+}
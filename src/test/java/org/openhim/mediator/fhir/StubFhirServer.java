@@ -0,0 +1,238 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.model.dstu2.valueset.BundleTypeEnum;
+import ca.uhn.fhir.rest.server.Constants;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.glassfish.grizzly.http.server.HttpHandler;
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.grizzly.http.server.NetworkListener;
+import org.glassfish.grizzly.http.server.Request;
+import org.glassfish.grizzly.http.server.Response;
+import org.glassfish.grizzly.threadpool.ThreadPoolConfig;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-process upstream FHIR server for the {@link LoadHarness}.
+ *
+ * Responds to reads, searches, creates and batches with canned DSTU2 payloads in the format asked for by the Accept
+ * header. Search and batch responses contain as many entries as requested (_count, or the entries in the batch).
+ * Payloads are encoded once and responses are delayed without holding a worker thread, so that the stub itself
+ * contributes as little as possible to the measurements.
+ */
+public class StubFhirServer {
+    public static final String THREAD_PREFIX = "load-stub-";
+
+    private final FhirContext fhirContext = FhirContext.forDstu2();
+    private final HttpServer httpServer = new HttpServer();
+    private final ScheduledExecutorService delays;
+    private final Random random = new Random();
+
+    private final int latencyMillis;
+    private final int latencyJitterMillis;
+    private final Patient patient;
+    private final ConcurrentMap<String, byte[]> payloads = new ConcurrentHashMap<>();
+
+
+    public StubFhirServer(String host, int port, int latencyMillis, int latencyJitterMillis) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.latencyJitterMillis = latencyJitterMillis;
+
+        patient = loadPatient(fhirContext);
+
+        delays = Executors.newScheduledThreadPool(2, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, THREAD_PREFIX + "delay-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        NetworkListener listener = new NetworkListener("stub-fhir-server", host, port);
+        listener.getTransport().setWorkerThreadPoolConfig(
+                ThreadPoolConfig.defaultConfig().copy().setPoolName(THREAD_PREFIX + "worker").setCorePoolSize(4).setMaxPoolSize(4)
+        );
+        listener.getTransport().setKernelThreadPoolConfig(
+                ThreadPoolConfig.defaultConfig().copy().setPoolName(THREAD_PREFIX + "kernel").setCorePoolSize(1).setMaxPoolSize(1)
+        );
+        httpServer.addListener(listener);
+        httpServer.getServerConfiguration().addHttpHandler(new HttpHandler() {
+            @Override
+            public void service(Request request, Response response) throws Exception {
+                handle(request, response);
+            }
+        });
+    }
+
+
+    /**
+     * The patient used for all payloads. Accents are stripped from the example, since the engine (3.0.0) sets the
+     * Content-Length of responses to the number of characters rather than bytes, which breaks persistent connections.
+     */
+    static Patient loadPatient(FhirContext fhirContext) throws IOException {
+        InputStream in = StubFhirServer.class.getClassLoader().getResourceAsStream("fhir-patient.json");
+        try {
+            String json = StringUtils.stripAccents(IOUtils.toString(in, StandardCharsets.UTF_8));
+            return fhirContext.newJsonParser().parseResource(Patient.class, json);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    public void start() throws IOException {
+        httpServer.start();
+    }
+
+    public void stop() {
+        httpServer.shutdownNow();
+        delays.shutdownNow();
+    }
+
+    private void handle(Request request, final Response response) throws IOException {
+        String method = request.getMethod().getMethodString();
+        String path = request.getRequestURI();
+        boolean xml = request.getHeader("Accept")!=null && request.getHeader("Accept").contains("xml");
+        String requestBody = "POST".equals(method) ? IOUtils.toString(request.getInputStream(), StandardCharsets.UTF_8) : null;
+
+        final int status;
+        final String location;
+        final byte[] body;
+
+        if ("GET".equals(method) && path.matches(".*/Patient/[^/]+")) {
+            status = 200;
+            location = null;
+            body = payload("read", 1, xml);
+        } else if ("GET".equals(method) && path.endsWith("/Patient")) {
+            status = 200;
+            location = null;
+            body = payload("searchset", parseInt(request.getParameter("_count"), 10), xml);
+        } else if ("POST".equals(method) && path.endsWith("/Patient")) {
+            status = 201;
+            location = path + "/" + random.nextInt(100000) + "/_history/1";
+            body = null;
+        } else if ("POST".equals(method)) {
+            status = 200;
+            location = null;
+            body = payload("batch-response", countEntries(requestBody), xml);
+        } else {
+            status = 404;
+            location = null;
+            body = null;
+        }
+
+        final String contentType = xml ? Constants.CT_FHIR_XML : Constants.CT_FHIR_JSON;
+        Runnable respond = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    response.setStatus(status);
+                    if (location!=null) {
+                        response.setHeader("Location", location);
+                    }
+                    if (body!=null) {
+                        response.setContentType(contentType + ";charset=UTF-8");
+                        response.setContentLength(body.length);
+                        response.getOutputStream().write(body);
+                    }
+                } catch (IOException ex) {
+                    response.setStatus(500);
+                } finally {
+                    response.resume();
+                }
+            }
+        };
+
+        int delay = latencyMillis + (latencyJitterMillis > 0 ? random.nextInt(latencyJitterMillis + 1) : 0);
+        response.suspend();
+        if (delay > 0) {
+            delays.schedule(respond, delay, TimeUnit.MILLISECONDS);
+        } else {
+            respond.run();
+        }
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        try {
+            return value!=null ? Integer.parseInt(value) : defaultValue;
+        } catch (NumberFormatException ex) {
+            return defaultValue;
+        }
+    }
+
+    private static int countEntries(String body) {
+        if (body==null) {
+            return 0;
+        }
+        // good enough for the bundles generated by the harness, and much cheaper than parsing
+        String marker = body.trim().startsWith("<") ? "<request>" : "\"request\"";
+        int count = 0;
+        int i = body.indexOf(marker);
+        while (i >= 0) {
+            count++;
+            i = body.indexOf(marker, i + marker.length());
+        }
+        return count;
+    }
+
+    private byte[] payload(String kind, int size, boolean xml) {
+        String key = kind + "|" + size + "|" + xml;
+        byte[] payload = payloads.get(key);
+        if (payload==null) {
+            String encoded;
+            if ("read".equals(kind)) {
+                encoded = xml ? fhirContext.newXmlParser().encodeResourceToString(patient) : fhirContext.newJsonParser().encodeResourceToString(patient);
+            } else {
+                Bundle bundle = "searchset".equals(kind) ? searchset(size) : batchResponse(size);
+                encoded = xml ? fhirContext.newXmlParser().encodeResourceToString(bundle) : fhirContext.newJsonParser().encodeResourceToString(bundle);
+            }
+            payload = encoded.getBytes(StandardCharsets.UTF_8);
+            payloads.putIfAbsent(key, payload);
+        }
+        return payload;
+    }
+
+    private Bundle searchset(int size) {
+        Bundle bundle = new Bundle();
+        bundle.setType(BundleTypeEnum.SEARCH_RESULTS);
+        bundle.setTotal(size);
+        String encodedPatient = fhirContext.newJsonParser().encodeResourceToString(patient);
+        for (int i=0; i<size; i++) {
+            Patient entry = fhirContext.newJsonParser().parseResource(Patient.class, encodedPatient);
+            entry.setId("Patient/" + (i + 1));
+            bundle.addEntry().setFullUrl("http://localhost/fhir/Patient/" + (i + 1)).setResource(entry);
+        }
+        return bundle;
+    }
+
+    private static Bundle batchResponse(int size) {
+        Bundle bundle = new Bundle();
+        bundle.setType(BundleTypeEnum.BATCH_RESPONSE);
+        for (int i=0; i<size; i++) {
+            bundle.addEntry().getResponse().setStatus("201 Created").setLocation("Patient/" + (i + 1) + "/_history/1");
+        }
+        return bundle;
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.ActorRef;
+import akka.actor.Props;
+import akka.testkit.JavaTestKit;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Test;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.FinishRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.openhim.mediator.engine.testing.MockHTTPConnector;
+import org.openhim.mediator.engine.testing.MockLauncher;
+import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TrafficRecorderActorTest extends FhirProxyTestBase {
+
+    private static class TestTrafficRecorder extends TrafficRecorderActor {
+        public TestTrafficRecorder() {
+            super(testConfig);
+        }
+    }
+
+    /**
+     * Serves a Binary in its native format, with a session cookie
+     */
+    private static class CookieBinaryServer extends MockHTTPConnector {
+        @Override
+        public String getResponse() {
+            return "%PDF-1.4 not really";
+        }
+
+        @Override
+        public Integer getStatus() {
+            return 200;
+        }
+
+        @Override
+        public Map<String, String> getHeaders() {
+            Map<String, String> headers = new HashMap<>();
+            headers.put("Content-Type", "application/pdf");
+            headers.put("Set-Cookie", "session=secret");
+            return headers;
+        }
+
+        @Override
+        public void executeOnReceive(MediatorHTTPRequest request) {
+            assertEquals("/fhir/Binary/1", request.getPath());
+        }
+    }
+
+
+    /**
+     * @return the exchanges captured so far, once there are as many as expected
+     */
+    private static List<TrafficLog.Exchange> readExchanges(JavaTestKit kit, File directory, int expected) throws IOException {
+        List<TrafficLog.Exchange> exchanges = new ArrayList<>();
+        for (int i=0; i<50 && exchanges.size() < expected; i++) {
+            kit.expectNoMsg((FiniteDuration) kit.dilated(Duration.create(50, TimeUnit.MILLISECONDS)));
+            exchanges.clear();
+            File[] logs = directory.listFiles();
+            if (logs!=null && logs.length==1) {
+                TrafficLog.Reader reader = new TrafficLog.Reader(logs[0]);
+                try {
+                    TrafficLog.Exchange exchange;
+                    while ((exchange = reader.next())!=null) {
+                        exchanges.add(exchange);
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+        }
+        return exchanges;
+    }
+
+
+    /**
+     * A sampled request should be written to the traffic log with its upstream response, without its credentials
+     */
+    @Test
+    public void testTrafficCaptured() throws Throwable {
+        final File directory = Files.createTempDirectory("traffic").toFile();
+        List<MockLauncher.ActorToLaunch> recorder = Collections.singletonList(
+                new MockLauncher.ActorToLaunch("traffic-recorder", TestTrafficRecorder.class)
+        );
+
+        try {
+            new FhirProxyTestKit(system, DSTU2FhirContext.class, AcceptJSONGetFhirServer.class, recorder) {{
+                testConfig.getDynamicConfig().put("upstream-format", "JSON");
+                testConfig.getDynamicConfig().put("traffic-capture-percent", 100);
+                testConfig.getDynamicConfig().put("traffic-capture-directory", directory.getAbsolutePath());
+
+                try {
+                    Map<String, String> headers = new HashMap<>();
+                    headers.put("Accept", Constants.FHIR_MIME_JSON);
+                    headers.put("Authorization", "Basic dGVzdDp0ZXN0");
+                    headers.put("X-OpenHIM-TransactionID", "trx-1");
+                    fhirProxyHandler.tell(new MediatorHTTPRequest(
+                            getRef(), getRef(), "unit-test", "GET", "http", "localhost", 8604, "/fhir/Patient/1", null,
+                            headers, Collections.<Pair<String, String>>emptyList()
+                    ), getRef());
+
+                    Object result = expectMsgAnyClassOf(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class, ExceptError.class);
+                    if (result instanceof ExceptError) {
+                        throw ((ExceptError) result).getError();
+                    }
+                    assertEquals(new Integer(200), ((FinishRequest) result).getResponseStatus());
+
+                    List<TrafficLog.Exchange> exchanges = readExchanges(this, directory, 1);
+                    assertEquals("the exchange should have been captured", 1, exchanges.size());
+                    TrafficLog.Exchange exchange = exchanges.get(0);
+                    assertEquals("trx-1", exchange.transactionId);
+                    assertEquals("GET", exchange.request.method);
+                    assertEquals("/fhir/Patient/1", exchange.request.path);
+                    assertEquals(Constants.FHIR_MIME_JSON, exchange.request.headers.get("Accept"));
+                    assertNull(exchange.request.headers.get("Authorization"));
+                    assertEquals("/fhir/Patient/1", exchange.upstreamRequest.path);
+                    assertEquals(200, exchange.upstreamResponse.status);
+                    assertEquals(patientJSON, exchange.upstreamResponse.body);
+                    assertTrue(exchange.upstreamMillis >= 0);
+                    assertEquals(200, exchange.status);
+                } finally {
+                    testConfig.getDynamicConfig().remove("traffic-capture-percent");
+                    testConfig.getDynamicConfig().remove("traffic-capture-directory");
+                    cleanup();
+                }
+            }};
+        } finally {
+            FileUtils.deleteQuietly(directory);
+        }
+    }
+    /**
+     * Reads answered from the read cache should be captured too, without an upstream call
+     */
+    @Test
+    public void testCachedReadCaptured() throws Throwable {
+        final File directory = Files.createTempDirectory("traffic").toFile();
+        List<MockLauncher.ActorToLaunch> actors = Arrays.asList(
+                new MockLauncher.ActorToLaunch("traffic-recorder", TestTrafficRecorder.class),
+                new MockLauncher.ActorToLaunch("read-cache", TestReadCache.class)
+        );
+
+        try {
+            new FhirProxyTestKit(system, DSTU2FhirContext.class, AcceptJSONGetFhirServer.class, actors) {{
+                testConfig.getDynamicConfig().put("upstream-format", "JSON");
+                testConfig.getDynamicConfig().put("read-cache-ttl", 60);
+                testConfig.getDynamicConfig().put("traffic-capture-percent", 100);
+                testConfig.getDynamicConfig().put("traffic-capture-directory", directory.getAbsolutePath());
+
+                try {
+                    for (int i=0; i<2; i++) {
+                        ActorRef readHandler = system.actorOf(Props.create(CachedReadHandler.class, testConfig));
+                        readHandler.tell(GETPatientRequest(Constants.FHIR_MIME_JSON), getRef());
+
+                        Object result = expectMsgAnyClassOf(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class, ExceptError.class);
+                        if (result instanceof ExceptError) {
+                            throw ((ExceptError) result).getError();
+                        }
+                        assertEquals(new Integer(200), ((FinishRequest) result).getResponseStatus());
+                    }
+
+                    List<TrafficLog.Exchange> exchanges = readExchanges(this, directory, 2);
+                    assertEquals("each read should have been captured once", 2, exchanges.size());
+                    // fetched by the handler the read was handed over to
+                    assertEquals("/fhir/Patient/1", exchanges.get(0).request.path);
+                    assertNotNull(exchanges.get(0).upstreamResponse);
+                    // from the cache
+                    assertEquals("/fhir/Patient/1", exchanges.get(1).request.path);
+                    assertNull(exchanges.get(1).upstreamRequest);
+                    assertNull(exchanges.get(1).upstreamResponse);
+                    assertEquals(200, exchanges.get(1).status);
+                } finally {
+                    cleanup();
+                }
+            }};
+        } finally {
+            FileUtils.deleteQuietly(directory);
+        }
+    }
+
+    /**
+     * Binary requests should be captured with their upstream call, without the cookies upstream set
+     */
+    @Test
+    public void testBinaryCapturedWithoutCookies() throws Throwable {
+        final File directory = Files.createTempDirectory("traffic").toFile();
+        List<MockLauncher.ActorToLaunch> recorder = Collections.singletonList(
+                new MockLauncher.ActorToLaunch("traffic-recorder", TestTrafficRecorder.class)
+        );
+
+        try {
+            new FhirProxyTestKit(system, DSTU2FhirContext.class, CookieBinaryServer.class, recorder) {{
+                testConfig.getDynamicConfig().put("traffic-capture-percent", 100);
+                testConfig.getDynamicConfig().put("traffic-capture-directory", directory.getAbsolutePath());
+
+                try {
+                    Map<String, String> headers = new HashMap<>();
+                    headers.put("Accept", "application/pdf");
+                    headers.put("Cookie", "session=secret");
+                    ActorRef handler = system.actorOf(Props.create(RawContentHandler.class, testConfig));
+                    handler.tell(new MediatorHTTPRequest(
+                            getRef(), getRef(), "unit-test", "GET", "http", "localhost", 8604, "/fhir/Binary/1", null,
+                            headers, Collections.<Pair<String, String>>emptyList()
+                    ), getRef());
+
+                    Object result = expectMsgAnyClassOf(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class, ExceptError.class);
+                    if (result instanceof ExceptError) {
+                        throw ((ExceptError) result).getError();
+                    }
+                    assertEquals(new Integer(200), ((FinishRequest) result).getResponseStatus());
+
+                    List<TrafficLog.Exchange> exchanges = readExchanges(this, directory, 1);
+                    assertEquals(1, exchanges.size());
+                    TrafficLog.Exchange exchange = exchanges.get(0);
+                    assertNull(exchange.request.headers.get("Cookie"));
+                    assertEquals("/fhir/Binary/1", exchange.upstreamRequest.path);
+                    assertNull(exchange.upstreamRequest.headers.get("Cookie"));
+                    assertEquals("application/pdf", exchange.upstreamResponse.headers.get("Content-Type"));
+                    assertNull(exchange.upstreamResponse.headers.get("Set-Cookie"));
+                    assertEquals(200, exchange.status);
+                } finally {
+                    cleanup();
+                }
+            }};
+        } finally {
+            FileUtils.deleteQuietly(directory);
+        }
+    }
+}
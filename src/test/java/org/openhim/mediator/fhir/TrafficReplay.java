@@ -0,0 +1,323 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.ActorSystem;
+import com.google.gson.GsonBuilder;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.MediatorServer;
+import org.openhim.mediator.engine.RegistrationConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays traffic captured by the mediator (see {@link TrafficRecorderActor}) for reproducing production performance
+ * problems.
+ *
+ * Starts a real {@link MediatorServer}, wired as in {@link MediatorMain}, against a {@link ReplayFhirServer} that serves
+ * the captured upstream responses, and sends the captured client requests at their original pace, or scaled by
+ * --speed (2 sends them twice as fast, 0 as fast as the connections allow). The log is replayed once to warm up the
+ * mediator before it's measured. The replayed latencies are reported alongside the captured ones, with the requests
+ * that didn't get the status that they got when they were captured.
+ *
+ * Run with:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.openhim.mediator.fhir.TrafficReplay -Dexec.args="--log traffic [--speed 2]"
+ * </pre>
+ * where the log is a traffic log file or a directory of them. The mediator config that the traffic was captured with
+ * (e.g. upstream-format) can be set with -Dreplay.config.&lt;param&gt;=value, and the ports and the like with the other
+ * replay.* system properties, see the defaults below.
+ */
+public class TrafficReplay {
+    private static class Pass {
+        final long[] latencies;
+        final AtomicInteger recorded = new AtomicInteger();
+        final AtomicInteger errors = new AtomicInteger();
+        final AtomicInteger statusMismatches = new AtomicInteger();
+        long elapsedNanos;
+
+        Pass(int requests) {
+            latencies = new long[requests];
+        }
+    }
+
+    private static final Set<String> SKIPPED_HEADERS = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+    static {
+        SKIPPED_HEADERS.addAll(Arrays.asList("Content-Length", "Host", "Transfer-Encoding", "Connection"));
+    }
+
+    private final List<TrafficLog.Exchange> exchanges;
+    private final double speed;
+    private final int mediatorPort;
+    private final String mediatorUrl;
+    private CloseableHttpClient httpClient;
+    private ExecutorService driver;
+
+
+    private TrafficReplay(List<TrafficLog.Exchange> exchanges, double speed) {
+        this.exchanges = exchanges;
+        this.speed = speed;
+        this.mediatorPort = Integer.getInteger("replay.mediator.port", 18606);
+        this.mediatorUrl = "http://localhost:" + mediatorPort;
+    }
+
+
+    /**
+     * @return the exchanges in the log file, or all the log files in the directory, in the order that they were received
+     */
+    static List<TrafficLog.Exchange> loadExchanges(File log) throws IOException {
+        List<File> files = new ArrayList<>();
+        if (log.isDirectory()) {
+            File[] listed = log.listFiles();
+            if (listed!=null) {
+                for (File file : listed) {
+                    if (file.getName().endsWith(TrafficLog.FILE_SUFFIX)) {
+                        files.add(file);
+                    }
+                }
+            }
+        } else {
+            files.add(log);
+        }
+
+        List<TrafficLog.Exchange> exchanges = new ArrayList<>();
+        for (File file : files) {
+            TrafficLog.Reader reader = new TrafficLog.Reader(file);
+            try {
+                TrafficLog.Exchange exchange;
+                while ((exchange = reader.next())!=null) {
+                    exchanges.add(exchange);
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
+        Collections.sort(exchanges, new Comparator<TrafficLog.Exchange>() {
+            @Override
+            public int compare(TrafficLog.Exchange a, TrafficLog.Exchange b) {
+                return Long.compare(a.receivedAt, b.receivedAt);
+            }
+        });
+        return exchanges;
+    }
+
+    private MediatorConfig buildMediatorConfig(int stubPort) throws Exception {
+        MediatorConfig config = new MediatorConfig();
+        config.setName("fhir-proxy-replay");
+        config.setServerHost("localhost");
+        config.setServerPort(mediatorPort);
+        config.setRootTimeout(60000);
+        config.setRoutingTable(MediatorMain.buildRoutingTable());
+        config.setStartupActors(MediatorMain.buildStartupActorsConfig());
+
+        InputStream regInfo = TrafficReplay.class.getClassLoader().getResourceAsStream("mediator-registration-info.json");
+        config.setRegistrationConfig(new RegistrationConfig(regInfo));
+
+        config.getDynamicConfig().put("upstream-scheme", "http");
+        config.getDynamicConfig().put("upstream-host", "localhost");
+        config.getDynamicConfig().put("upstream-port", (double) stubPort);
+
+        // replay.config.<param> overrides any other mediator config
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("replay.config.")) {
+                config.getDynamicConfig().put(name.substring("replay.config.".length()), LoadHarness.dynamicConfigValue(System.getProperty(name)));
+            }
+        }
+
+        return config;
+    }
+
+    private HttpUriRequest buildRequest(TrafficLog.Request captured) throws Exception {
+        URIBuilder uri = new URIBuilder(mediatorUrl + captured.path);
+        for (Pair<String, String> param : captured.params) {
+            uri.addParameter(param.getKey(), param.getValue());
+        }
+
+        RequestBuilder request = RequestBuilder.create(captured.method).setUri(uri.build());
+        for (Map.Entry<String, String> header : captured.headers.entrySet()) {
+            if (!SKIPPED_HEADERS.contains(header.getKey())) {
+                request.addHeader(header.getKey(), header.getValue());
+            }
+        }
+        if (captured.body!=null) {
+            request.setEntity(new StringEntity(captured.body, StandardCharsets.UTF_8));
+        }
+        return request.build();
+    }
+
+    /**
+     * Send the captured requests at their (scaled) pace and wait for them to complete
+     */
+    private Pass replay() throws Exception {
+        final Pass pass = new Pass(exchanges.size());
+        final CountDownLatch done = new CountDownLatch(exchanges.size());
+        long first = exchanges.get(0).receivedAt;
+        long start = System.nanoTime();
+
+        for (final TrafficLog.Exchange exchange : exchanges) {
+            final long intendedStart = speed > 0 ? start + (long) (TimeUnit.MILLISECONDS.toNanos(exchange.receivedAt - first) / speed) : System.nanoTime();
+            final HttpUriRequest request = buildRequest(exchange.request);
+
+            long wait = intendedStart - System.nanoTime();
+            while (wait > 0) {
+                LockSupport.parkNanos(wait);
+                wait = intendedStart - System.nanoTime();
+            }
+
+            driver.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        HttpResponse response = httpClient.execute(request);
+                        EntityUtils.consume(response.getEntity());
+                        if (response.getStatusLine().getStatusCode()!=exchange.status) {
+                            pass.statusMismatches.incrementAndGet();
+                        }
+                    } catch (Exception ex) {
+                        pass.errors.incrementAndGet();
+                    }
+                    pass.latencies[pass.recorded.getAndIncrement()] = System.nanoTime() - intendedStart;
+                    done.countDown();
+                }
+            });
+        }
+
+        if (!done.await(2, TimeUnit.MINUTES)) {
+            System.err.println("Timed out waiting for " + done.getCount() + " outstanding requests");
+        }
+        pass.elapsedNanos = System.nanoTime() - start;
+        return pass;
+    }
+
+    private void run() throws Exception {
+        int connections = Integer.getInteger("replay.connections", 64);
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(connections);
+        connectionManager.setDefaultMaxPerRoute(connections);
+        httpClient = HttpClients.custom().setConnectionManager(connectionManager).build();
+
+        driver = Executors.newFixedThreadPool(connections, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "replay-driver-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        int stubPort = Integer.getInteger("replay.stub.port", 18607);
+        boolean capturedLatency = Boolean.parseBoolean(System.getProperty("replay.stub.captured-latency", "true"));
+        ReplayFhirServer stub = new ReplayFhirServer("localhost", stubPort, exchanges, capturedLatency);
+        stub.start();
+
+        ActorSystem system = ActorSystem.create("mediator");
+        MediatorMain.initInboxExtension(system);
+        MediatorServer server = new MediatorServer(system, buildMediatorConfig(stubPort));
+        server.start(false);
+
+        Pass pass;
+        int unmatched;
+        try {
+            int warmupPasses = Integer.getInteger("replay.warmup-passes", 1);
+            for (int i=0; i<warmupPasses; i++) {
+                System.out.println(String.format("Warming up, replaying %d requests", exchanges.size()));
+                replay();
+            }
+
+            System.out.println(String.format("Replaying %d requests at %sx speed", exchanges.size(), speed > 0 ? speed : "max"));
+            int unmatchedBefore = stub.getUnmatchedCount();
+            pass = replay();
+            unmatched = stub.getUnmatchedCount() - unmatchedBefore;
+        } finally {
+            server.stop();
+            system.shutdown();
+            stub.stop();
+            driver.shutdownNow();
+            httpClient.close();
+        }
+
+        long[] capturedLatencies = new long[exchanges.size()];
+        for (int i=0; i<exchanges.size(); i++) {
+            capturedLatencies[i] = TimeUnit.MILLISECONDS.toNanos(exchanges.get(i).totalMillis);
+        }
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("timestamp", System.currentTimeMillis());
+        report.put("javaVersion", System.getProperty("java.version"));
+        report.put("speed", speed);
+        report.put("requests", pass.recorded.get());
+        report.put("errors", pass.errors.get());
+        report.put("statusMismatches", pass.statusMismatches.get());
+        report.put("unmatchedUpstreamRequests", unmatched);
+        report.put("throughput", pass.recorded.get() / (pass.elapsedNanos / 1e9));
+        report.put("latencyMillis", LoadHarness.latencySummary(pass.latencies, pass.recorded.get()));
+        report.put("capturedLatencyMillis", LoadHarness.latencySummary(capturedLatencies, capturedLatencies.length));
+
+        String json = new GsonBuilder().setPrettyPrinting().create().toJson(report);
+        File reportFile = new File(System.getProperty("replay.report", "target/replay-report.json"));
+        FileUtils.writeStringToFile(reportFile, json, StandardCharsets.UTF_8.name());
+        System.out.println(json);
+        System.out.println("Report written to " + reportFile.getAbsolutePath());
+    }
+
+    public static void main(String... args) throws Exception {
+        File log = null;
+        double speed = 1;
+        for (int i=0; i+1<args.length; i+=2) {
+            if (args[i].equals("--log")) {
+                log = new File(args[i + 1]);
+            } else if (args[i].equals("--speed")) {
+                speed = Double.parseDouble(args[i + 1]);
+            }
+        }
+        if (log==null) {
+            System.err.println("Usage: TrafficReplay --log <traffic log file or directory> [--speed <factor>]");
+            System.exit(1);
+        }
+
+        List<TrafficLog.Exchange> exchanges = loadExchanges(log);
+        if (exchanges.isEmpty()) {
+            System.err.println("No exchanges in " + log);
+            System.exit(1);
+        }
+        new TrafficReplay(exchanges, speed).run();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSelection;
+import akka.actor.Props;
+import ca.uhn.fhir.model.dstu2.resource.OperationOutcome;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Test;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.FinishRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPResponse;
+import org.openhim.mediator.engine.messages.PutPropertyInCoreResponse;
+import org.openhim.mediator.engine.testing.MockLauncher;
+import org.skyscreamer.jsonassert.JSONAssert;
+import org.skyscreamer.jsonassert.JSONCompareMode;
+import scala.concurrent.duration.Duration;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class UpstreamCircuitBreakerActorTest extends FhirProxyTestBase {
+
+    private static class FailingJSONGetFhirServer extends AcceptJSONGetFhirServer {
+        static final AtomicInteger requestCount = new AtomicInteger();
+
+        @Override
+        public Integer getStatus() {
+            return 500;
+        }
+
+        @Override
+        public void executeOnReceive(MediatorHTTPRequest request) {
+            super.executeOnReceive(request);
+            requestCount.incrementAndGet();
+        }
+    }
+
+
+    /**
+     * Once enough upstream calls have failed, reads should fail fast with a 503 without calling upstream
+     */
+    @Test
+    public void testCircuitBreakerOpens() throws Throwable {
+        List<MockLauncher.ActorToLaunch> breaker = Collections.singletonList(
+                new MockLauncher.ActorToLaunch("upstream-breaker", TestUpstreamCircuitBreaker.class)
+        );
+
+        new FhirProxyTestKit(system, DSTU2FhirContext.class, FailingJSONGetFhirServer.class, breaker) {{
+            testConfig.getDynamicConfig().put("upstream-format", "JSON");
+            testConfig.getDynamicConfig().put("circuit-breaker-failure-rate", 50);
+            FailingJSONGetFhirServer.requestCount.set(0);
+
+            try {
+                for (int i=0; i<10; i++) {
+                    ActorRef handler = system.actorOf(Props.create(FhirProxyHandler.class, testConfig));
+                    handler.tell(GETPatientRequest(Constants.FHIR_MIME_JSON), getRef());
+
+                    Object result = expectMsgAnyClassOf(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class, ExceptError.class);
+                    if (result instanceof ExceptError) {
+                        throw ((ExceptError) result).getError();
+                    }
+                    assertEquals(new Integer(500), ((FinishRequest) result).getResponseStatus());
+                }
+
+                ActorRef handler = system.actorOf(Props.create(FhirProxyHandler.class, testConfig));
+                handler.tell(GETPatientRequest(Constants.FHIR_MIME_JSON), getRef());
+
+                PutPropertyInCoreResponse property = expectMsgClass(Duration.create(5, TimeUnit.SECONDS), PutPropertyInCoreResponse.class);
+                assertEquals("upstream-circuit", property.getName());
+                FinishRequest result = expectMsgClass(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class);
+                assertEquals(new Integer(503), result.getResponseStatus());
+                assertEquals(Constants.FHIR_MIME_JSON, result.getResponseMimeType());
+                assertNotNull(result.getResponseHeaders().get("Retry-After"));
+                JSONAssert.assertEquals("{\"resourceType\": \"OperationOutcome\"}", result.getResponse(), JSONCompareMode.LENIENT);
+                assertEquals(10, FailingJSONGetFhirServer.requestCount.get());
+            } finally {
+                testConfig.getDynamicConfig().remove("circuit-breaker-failure-rate");
+                cleanup();
+            }
+        }};
+    }
+
+    private abstract class BreakerTestKit extends FhirProxyTestKit {
+        protected final ActorSelection breaker;
+
+        BreakerTestKit() {
+            super(system, DSTU2FhirContext.class, AcceptJSONGetFhirServer.class, Collections.singletonList(
+                    new MockLauncher.ActorToLaunch("upstream-breaker", TestUpstreamCircuitBreaker.class)
+            ));
+            breaker = system.actorSelection(testConfig.userPathFor("upstream-breaker"));
+        }
+
+        protected void reportOutcomes(int succeeded, int failed) {
+            for (int i=0; i<succeeded; i++) {
+                breaker.tell(new UpstreamCircuitBreakerActor.CallOutcome(true), getRef());
+            }
+            for (int i=0; i<failed; i++) {
+                breaker.tell(new UpstreamCircuitBreakerActor.CallOutcome(false), getRef());
+            }
+        }
+
+        protected MediatorHTTPRequest upstreamRequest() {
+            return new MediatorHTTPRequest(
+                    getRef(), getRef(), "unit-test", "GET", "http", "localhost", 80, "/fhir/Patient/1", null,
+                    Collections.singletonMap("Accept", Constants.FHIR_MIME_JSON),
+                    Collections.<Pair<String, String>>emptyList()
+            );
+        }
+
+        protected void expectPassedOn() {
+            breaker.tell(upstreamRequest(), getRef());
+            expectMsgClass(Duration.create(1, TimeUnit.SECONDS), MediatorHTTPResponse.class);
+        }
+
+        protected long expectOpen() {
+            breaker.tell(upstreamRequest(), getRef());
+            return expectMsgClass(Duration.create(1, TimeUnit.SECONDS), UpstreamCircuitBreakerActor.CircuitOpen.class).getRetryAfterSeconds();
+        }
+    }
+
+    /**
+     * The breaker should stay closed until it has seen enough calls, and below the failure rate
+     */
+    @Test
+    public void testStaysClosedBelowThresholds() throws Throwable {
+        testConfig.getDynamicConfig().put("circuit-breaker-failure-rate", 50);
+
+        new BreakerTestKit() {{
+            try {
+                reportOutcomes(0, 9);
+                expectPassedOn();
+            } finally {
+                cleanup();
+            }
+        }};
+
+        new BreakerTestKit() {{
+            try {
+                // 9 failures of the last 20 calls
+                reportOutcomes(11, 9);
+                expectPassedOn();
+            } finally {
+                cleanup();
+            }
+        }};
+    }
+
+    /**
+     * Once the failure rate is reached, requests should be answered straight away until the breaker is half-open
+     */
+    @Test
+    public void testOpensAtFailureRate() throws Throwable {
+        testConfig.getDynamicConfig().put("circuit-breaker-failure-rate", 50);
+        testConfig.getDynamicConfig().put("circuit-breaker-open-duration", 30);
+
+        new BreakerTestKit() {{
+            try {
+                reportOutcomes(5, 5);
+                long retryAfter = expectOpen();
+                assertTrue(String.valueOf(retryAfter), retryAfter > 1 && retryAfter <= 30);
+
+                // calls that were in flight when it opened don't change anything
+                reportOutcomes(3, 0);
+                expectOpen();
+            } finally {
+                cleanup();
+            }
+        }};
+    }
+
+    /**
+     * Once half-open, only a single trial call should go through, and its success should close the breaker
+     */
+    @Test
+    public void testHalfOpenTrialCloses() throws Throwable {
+        testConfig.getDynamicConfig().put("circuit-breaker-failure-rate", 50);
+        testConfig.getDynamicConfig().put("circuit-breaker-open-duration", 1);
+
+        new BreakerTestKit() {{
+            try {
+                reportOutcomes(0, 10);
+                expectOpen();
+
+                Thread.sleep(1100);
+                expectPassedOn();
+                assertEquals(1, expectOpen());
+
+                reportOutcomes(1, 0);
+                expectPassedOn();
+                expectPassedOn();
+
+                // closing starts over, a few failures don't re-open it
+                reportOutcomes(0, 9);
+                expectPassedOn();
+            } finally {
+                cleanup();
+            }
+        }};
+    }
+
+    /**
+     * A failed trial call should re-open the breaker for another open duration
+     */
+    @Test
+    public void testHalfOpenTrialReopens() throws Throwable {
+        testConfig.getDynamicConfig().put("circuit-breaker-failure-rate", 50);
+        testConfig.getDynamicConfig().put("circuit-breaker-open-duration", 1);
+
+        new BreakerTestKit() {{
+            try {
+                reportOutcomes(0, 10);
+                expectOpen();
+
+                Thread.sleep(1100);
+                expectPassedOn();
+                reportOutcomes(0, 1);
+                expectOpen();
+
+                Thread.sleep(1100);
+                expectPassedOn();
+            } finally {
+                cleanup();
+            }
+        }};
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSelection;
+import akka.actor.Props;
+import ca.uhn.fhir.model.dstu2.resource.OperationOutcome;
+import org.junit.Test;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.FinishRequest;
+import org.openhim.mediator.engine.testing.MockLauncher;
+import scala.concurrent.duration.Duration;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ValidationCacheActorTest extends FhirProxyTestBase {
+
+    private static class TestValidationCache extends ValidationCacheActor {
+        public TestValidationCache() {
+            super(testConfig);
+        }
+    }
+
+
+    /**
+     * A body that has been validated before should be answered with its cached validation outcome
+     */
+    @Test
+    public void testCachedValidationOutcome() throws Throwable {
+        List<MockLauncher.ActorToLaunch> validationCache = Collections.singletonList(
+                new MockLauncher.ActorToLaunch("validation-cache", TestValidationCache.class)
+        );
+
+        new FhirProxyTestKit(system, DSTU2FhirContext.class, AcceptJSONCreateFhirServer.class, validationCache) {{
+            testConfig.getDynamicConfig().put("upstream-format", "JSON");
+            testConfig.getDynamicConfig().put("validation-enabled", true);
+            testConfig.getDynamicConfig().put("validation-cache-size", 100);
+
+            try {
+                fhirProxyHandler.tell(POSTPatientRequest(Constants.FHIR_MIME_JSON, patientJSON), getRef());
+
+                Object result = expectMsgAnyClassOf(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class, ExceptError.class);
+                if (result instanceof ExceptError) {
+                    throw ((ExceptError) result).getError();
+                }
+                assertEquals(new Integer(201), ((FinishRequest) result).getResponseStatus());
+
+                // replace the outcome of the body, the next request must use it rather than validating the body again
+                String validationKey = CacheKeys.validationKey("DSTU2", new Contents(Constants.FHIR_MIME_JSON, patientJSON), "json");
+                String outcome = "{\"resourceType\": \"OperationOutcome\", \"id\": \"cached\"}";
+                ActorSelection cache = system.actorSelection(testConfig.userPathFor("validation-cache"));
+                cache.tell(new ValidationCacheActor.StoreValidation(validationKey, new ValidationCacheActor.ValidationOutcome(false, outcome)), getRef());
+
+                ActorRef handler = system.actorOf(Props.create(FhirProxyHandler.class, testConfig));
+                handler.tell(POSTPatientRequest(Constants.FHIR_MIME_JSON, patientJSON), getRef());
+
+                FinishRequest cached = expectMsgClass(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class);
+                assertEquals(new Integer(400), cached.getResponseStatus());
+                assertEquals(outcome, cached.getResponse());
+            } finally {
+                testConfig.getDynamicConfig().remove("validation-cache-size");
+                cleanup();
+            }
+        }};
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.fhir;
+
+import akka.actor.ActorRef;
+import akka.actor.Props;
+import akka.testkit.JavaTestKit;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Test;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.FinishRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.openhim.mediator.engine.testing.MockLauncher;
+import org.skyscreamer.jsonassert.JSONAssert;
+import org.skyscreamer.jsonassert.JSONCompareMode;
+import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class WriteDeduplicationActorTest extends FhirProxyTestBase {
+
+    private static class CountingJSONCreateFhirServer extends AcceptJSONCreateFhirServer {
+        static final AtomicInteger requestCount = new AtomicInteger();
+
+        @Override
+        public void executeOnReceive(MediatorHTTPRequest request) {
+            super.executeOnReceive(request);
+            requestCount.incrementAndGet();
+        }
+    }
+
+    private static class TestWriteDeduplication extends WriteDeduplicationActor {
+        public TestWriteDeduplication() {
+            super(testConfig);
+        }
+    }
+
+
+    /**
+     * A retried create with the same Idempotency-Key should get the original response without going upstream again
+     */
+    @Test
+    public void testRetriedPOSTWithIdempotencyKey() throws Throwable {
+        List<MockLauncher.ActorToLaunch> deduplication = Collections.singletonList(
+                new MockLauncher.ActorToLaunch("post-deduplication", TestWriteDeduplication.class)
+        );
+
+        new FhirProxyTestKit(system, DSTU2FhirContext.class, CountingJSONCreateFhirServer.class, deduplication) {{
+            testConfig.getDynamicConfig().put("upstream-format", "JSON");
+            testConfig.getDynamicConfig().put("validation-enabled", true);
+            CountingJSONCreateFhirServer.requestCount.set(0);
+
+            try {
+                Map<String, String> headers = new HashMap<>();
+                headers.put("Content-Type", Constants.FHIR_MIME_JSON);
+                headers.put("Idempotency-Key", "d1c9a3e0-create-patient");
+
+                for (int i=0; i<2; i++) {
+                    MediatorHTTPRequest POST_Request = new MediatorHTTPRequest(
+                            getRef(), getRef(), "unit-test", "POST", "http", "localhost", 8604, "/fhir/Patient", patientJSON,
+                            headers, Collections.<Pair<String, String>>emptyList()
+                    );
+                    ActorRef handler = system.actorOf(Props.create(FhirProxyHandler.class, testConfig));
+                    handler.tell(POST_Request, getRef());
+
+                    Object result = expectMsgAnyClassOf(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class, ExceptError.class);
+                    if (result instanceof ExceptError) {
+                        throw ((ExceptError) result).getError();
+                    }
+                    assertEquals(new Integer(201), ((FinishRequest) result).getResponseStatus());
+                }
+
+                assertEquals(1, CountingJSONCreateFhirServer.requestCount.get());
+            } finally {
+                cleanup();
+            }
+        }};
+    }
+
+    /**
+     * Identical creates from clients that can't be identified shouldn't be taken for retries when deduplicating by content
+     */
+    @Test
+    public void testAnonymousPOSTsNotDeduplicatedByContent() throws Throwable {
+        List<MockLauncher.ActorToLaunch> deduplication = Collections.singletonList(
+                new MockLauncher.ActorToLaunch("post-deduplication", TestWriteDeduplication.class)
+        );
+
+        new FhirProxyTestKit(system, DSTU2FhirContext.class, CountingJSONCreateFhirServer.class, deduplication) {{
+            testConfig.getDynamicConfig().put("upstream-format", "JSON");
+            testConfig.getDynamicConfig().put("validation-enabled", false);
+            testConfig.getDynamicConfig().put("post-deduplication", "Content");
+            CountingJSONCreateFhirServer.requestCount.set(0);
+
+            try {
+                Map<String, String> headers = new HashMap<>();
+                headers.put("Content-Type", Constants.FHIR_MIME_JSON);
+
+                for (int i=0; i<2; i++) {
+                    MediatorHTTPRequest POST_Request = new MediatorHTTPRequest(
+                            getRef(), getRef(), "unit-test", "POST", "http", "localhost", 8604, "/fhir/Patient", patientJSON,
+                            headers, Collections.<Pair<String, String>>emptyList()
+                    );
+                    ActorRef handler = system.actorOf(Props.create(FhirProxyHandler.class, testConfig));
+                    handler.tell(POST_Request, getRef());
+
+                    Object result = expectMsgAnyClassOf(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class, ExceptError.class);
+                    if (result instanceof ExceptError) {
+                        throw ((ExceptError) result).getError();
+                    }
+                    assertEquals(new Integer(201), ((FinishRequest) result).getResponseStatus());
+                }
+
+                assertEquals(2, CountingJSONCreateFhirServer.requestCount.get());
+            } finally {
+                testConfig.getDynamicConfig().remove("post-deduplication");
+                cleanup();
+            }
+        }};
+    }
+
+    /**
+     * A create that reuses an Idempotency-Key for a different body isn't a retry, it should be rejected with a 422
+     */
+    @Test
+    public void testIdempotencyKeyReusedForDifferentBody() throws Throwable {
+        List<MockLauncher.ActorToLaunch> deduplication = Collections.singletonList(
+                new MockLauncher.ActorToLaunch("post-deduplication", TestWriteDeduplication.class)
+        );
+
+        new FhirProxyTestKit(system, DSTU2FhirContext.class, CountingJSONCreateFhirServer.class, deduplication) {{
+            testConfig.getDynamicConfig().put("upstream-format", "JSON");
+            testConfig.getDynamicConfig().put("validation-enabled", false);
+            CountingJSONCreateFhirServer.requestCount.set(0);
+
+            try {
+                Map<String, String> headers = new HashMap<>();
+                headers.put("Content-Type", Constants.FHIR_MIME_JSON);
+                headers.put("Idempotency-Key", "d1c9a3e0-create-patient");
+
+                // the retry was serialized differently, but is the same create
+                String otherPatient = patientJSON.replace("Peter Chalmers", "Someone Else");
+                String[] bodies = {patientJSON, patientJSON.replace("\n", ""), otherPatient};
+                int[] expected = {201, 201, 422};
+                for (int i=0; i<bodies.length; i++) {
+                    MediatorHTTPRequest POST_Request = new MediatorHTTPRequest(
+                            getRef(), getRef(), "unit-test", "POST", "http", "localhost", 8604, "/fhir/Patient", bodies[i],
+                            headers, Collections.<Pair<String, String>>emptyList()
+                    );
+                    ActorRef handler = system.actorOf(Props.create(FhirProxyHandler.class, testConfig));
+                    handler.tell(POST_Request, getRef());
+
+                    Object result = expectMsgAnyClassOf(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class, ExceptError.class);
+                    if (result instanceof ExceptError) {
+                        throw ((ExceptError) result).getError();
+                    }
+                    assertEquals(new Integer(expected[i]), ((FinishRequest) result).getResponseStatus());
+                    if (expected[i]==422) {
+                        JSONAssert.assertEquals("{\"resourceType\": \"OperationOutcome\"}", ((FinishRequest) result).getResponse(), JSONCompareMode.LENIENT);
+                    }
+                }
+                assertEquals(1, CountingJSONCreateFhirServer.requestCount.get());
+
+                // the original is still there for its retries
+                MediatorHTTPRequest POST_Request = new MediatorHTTPRequest(
+                        getRef(), getRef(), "unit-test", "POST", "http", "localhost", 8604, "/fhir/Patient", patientJSON,
+                        headers, Collections.<Pair<String, String>>emptyList()
+                );
+                ActorRef handler = system.actorOf(Props.create(FhirProxyHandler.class, testConfig));
+                handler.tell(POST_Request, getRef());
+                assertEquals(new Integer(201), expectMsgClass(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class).getResponseStatus());
+            } finally {
+                cleanup();
+            }
+        }};
+    }
+
+    private abstract class DeduplicationTestKit extends JavaTestKit {
+        protected final ActorRef deduplication;
+
+        DeduplicationTestKit() {
+            super(system);
+            deduplication = system.actorOf(Props.create(TestWriteDeduplication.class));
+        }
+
+        protected JavaTestKit lookup(String writeKey) {
+            return lookup(writeKey, null);
+        }
+
+        protected JavaTestKit lookup(String writeKey, String fingerprint) {
+            JavaTestKit handler = new JavaTestKit(system);
+            deduplication.tell(new WriteDeduplicationActor.DeduplicationRequest(handler.getRef(), handler.getRef(), writeKey, fingerprint), handler.getRef());
+            return handler;
+        }
+
+        /**
+         * @return the original response, or null if the handler should process the write
+         */
+        protected FinishRequest expectLookup(JavaTestKit handler) {
+            return handler.expectMsgClass(Duration.create(1, TimeUnit.SECONDS), WriteDeduplicationActor.DeduplicationResponse.class).getResponseObject();
+        }
+
+        protected void expectWaiting(JavaTestKit handler) {
+            handler.expectNoMsg((FiniteDuration) dilated(Duration.create(100, TimeUnit.MILLISECONDS)));
+        }
+
+        protected void store(String writeKey, FinishRequest response) {
+            deduplication.tell(new WriteDeduplicationActor.StoreResult(writeKey, response), getRef());
+        }
+    }
+
+    private static FinishRequest created(String id) {
+        return new FinishRequest(null, Collections.singletonMap("Location", "Patient/" + id + "/_history/1"), 201);
+    }
+
+    /**
+     * Retries that arrive while the first write is in flight should wait for it and get its response, as should later ones
+     */
+    @Test
+    public void testRetriesGetOriginalResult() throws Throwable {
+        new DeduplicationTestKit() {{
+            assertNull(expectLookup(lookup("key-1")));
+            JavaTestKit retry = lookup("key-1");
+            JavaTestKit otherWrite = lookup("key-2");
+            expectWaiting(retry);
+            assertNull(expectLookup(otherWrite));
+
+            store("key-1", created("1"));
+            assertEquals("Patient/1/_history/1", expectLookup(retry).getResponseHeaders().get("Location"));
+            assertEquals("Patient/1/_history/1", expectLookup(lookup("key-1")).getResponseHeaders().get("Location"));
+        }};
+    }
+
+    /**
+     * A write that failed, or got a server error, should let the next retry go ahead while the others keep waiting
+     */
+    @Test
+    public void testFailedWriteRetried() throws Throwable {
+        new DeduplicationTestKit() {{
+            assertNull(expectLookup(lookup("key-1")));
+            JavaTestKit firstRetry = lookup("key-1");
+            JavaTestKit secondRetry = lookup("key-1");
+            expectWaiting(firstRetry);
+
+            deduplication.tell(new WriteDeduplicationActor.WriteFailed("key-1"), getRef());
+            assertNull(expectLookup(firstRetry));
+            expectWaiting(secondRetry);
+
+            store("key-1", new FinishRequest("upstream unavailable", "text/plain", 502));
+            assertNull(expectLookup(secondRetry));
+            store("key-1", created("1"));
+            assertEquals(new Integer(201), expectLookup(lookup("key-1")).getResponseStatus());
+        }};
+    }
+
+    /**
+     * Client errors are the write's outcome and should be kept, like a success
+     */
+    @Test
+    public void testClientErrorKept() throws Throwable {
+        new DeduplicationTestKit() {{
+            assertNull(expectLookup(lookup("key-1")));
+            store("key-1", new FinishRequest("invalid", "text/plain", 400));
+            assertEquals(new Integer(400), expectLookup(lookup("key-1")).getResponseStatus());
+        }};
+    }
+
+    /**
+     * Results should be forgotten once they leave the window, or when there are too many of them
+     */
+    @Test
+    public void testResultsExpire() throws Throwable {
+        testConfig.getDynamicConfig().put("post-deduplication-window", 1);
+        testConfig.getDynamicConfig().put("post-deduplication-max-entries", 2);
+
+        new DeduplicationTestKit() {{
+            for (String key : Arrays.asList("key-1", "key-2", "key-3")) {
+                assertNull(expectLookup(lookup(key)));
+                store(key, created(key));
+            }
+            assertNotNull(expectLookup(lookup("key-3")));
+            assertNull(expectLookup(lookup("key-1")));
+            store("key-1", created("key-1"));
+
+            Thread.sleep(1100);
+            assertNull(expectLookup(lookup("key-3")));
+        }};
+    }
+    /**
+     * A key reused for a different body should be rejected, whether the first write is in flight or done, and
+     * whether or not it failed
+     */
+    @Test
+    public void testKeyReusedRejected() throws Throwable {
+        new DeduplicationTestKit() {{
+            assertNull(expectLookup(lookup("key-1", "body-a")));
+            JavaTestKit retry = lookup("key-1", "body-a");
+            JavaTestKit reused = lookup("key-1", "body-b");
+            reused.expectMsgClass(Duration.create(1, TimeUnit.SECONDS), WriteDeduplicationActor.KeyReused.class);
+            expectWaiting(retry);
+
+            deduplication.tell(new WriteDeduplicationActor.WriteFailed("key-1"), getRef());
+            assertNull(expectLookup(retry));
+            lookup("key-1", "body-b").expectMsgClass(Duration.create(1, TimeUnit.SECONDS), WriteDeduplicationActor.KeyReused.class);
+
+            store("key-1", created("1"));
+            assertEquals(new Integer(201), expectLookup(lookup("key-1", "body-a")).getResponseStatus());
+            lookup("key-1", "body-b").expectMsgClass(Duration.create(1, TimeUnit.SECONDS), WriteDeduplicationActor.KeyReused.class);
+
+            // once forgotten, the key may be used again
+            deduplication.tell(new WriteDeduplicationActor.WriteFailed("key-2"), getRef());
+            assertNull(expectLookup(lookup("key-2", "body-a")));
+            deduplication.tell(new WriteDeduplicationActor.WriteFailed("key-2"), getRef());
+            assertNull(expectLookup(lookup("key-2", "body-b")));
+        }};
+    }
+}